@@ -0,0 +1,163 @@
+package org.svvsd.droneteam.canary;
+
+import android.annotation.TargetApi;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.net.NetworkInfo;
+import android.net.NetworkRequest;
+import android.os.Build;
+
+////////////////////////////////////
+// Notes
+//
+// AndroidNetworkState tells an UploadScheduler whether the phone has a network, whether it is metered, and when that changes
+//   Changes come from ConnectivityManager network callbacks on Android 5.0 and up, and from the connectivity change broadcast before that
+//   Before Android 4.1 there is no metered flag, so anything but wifi or ethernet counts as metered
+//
+// Constructor
+//   AndroidNetworkState(Context)
+//
+// Public Methods
+//   isConnected() - whether there is a network connection
+//   isMetered() - whether the connection is metered (like cellular)
+//   start(UploadScheduler) - starts telling the scheduler about network changes
+//   stop() - stops telling the scheduler about network changes
+//
+///////////////////////////
+
+public class AndroidNetworkState implements UploadScheduler.NetworkState
+{
+    private final Context context;
+    private final ConnectivityManager connectivityManager;
+    private UploadScheduler scheduler = null;
+    private Object callback = null; // the NetworkCallback or BroadcastReceiver registered, depending on the Android version
+
+    public AndroidNetworkState(Context context)
+    {
+        this.context = context.getApplicationContext();
+        connectivityManager = (ConnectivityManager) this.context.getSystemService(Context.CONNECTIVITY_SERVICE);
+    }
+
+    // isConnected() - whether there is a network connection
+    public boolean isConnected()
+    {
+        NetworkInfo info = connectivityManager.getActiveNetworkInfo();
+        return info != null && info.isConnected();
+    }
+
+    // isMetered() - whether the connection is metered (like cellular)
+    public boolean isMetered()
+    {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN)
+        {
+            return isActiveNetworkMetered();
+        }
+        NetworkInfo info = connectivityManager.getActiveNetworkInfo();
+        return info == null || (info.getType() != ConnectivityManager.TYPE_WIFI && info.getType() != ConnectivityManager.TYPE_ETHERNET);
+    }
+
+    // start(UploadScheduler) - starts telling the scheduler about network changes
+    public synchronized void start(UploadScheduler scheduler)
+    {
+        if (callback != null)
+        {
+            return;
+        }
+        this.scheduler = scheduler;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP)
+        {
+            callback = registerNetworkCallback();
+        }
+        else
+        {
+            BroadcastReceiver receiver = new BroadcastReceiver()
+            {
+                @Override
+                public void onReceive(Context context, Intent intent)
+                {
+                    changed();
+                }
+            };
+            context.registerReceiver(receiver, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+            callback = receiver;
+        }
+    }
+
+    // stop() - stops telling the scheduler about network changes
+    public synchronized void stop()
+    {
+        if (callback == null)
+        {
+            return;
+        }
+        if (callback instanceof BroadcastReceiver)
+        {
+            context.unregisterReceiver((BroadcastReceiver) callback);
+        }
+        else
+        {
+            unregisterNetworkCallback(callback);
+        }
+        callback = null;
+        scheduler = null;
+    }
+
+    // changed() - lets the scheduler know the network changed
+    private void changed()
+    {
+        UploadScheduler currentScheduler;
+        synchronized (this)
+        {
+            currentScheduler = scheduler;
+        }
+        if (currentScheduler != null)
+        {
+            currentScheduler.onNetworkChanged();
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private boolean isActiveNetworkMetered()
+    {
+        return connectivityManager.isActiveNetworkMetered();
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private Object registerNetworkCallback()
+    {
+        ConnectivityManager.NetworkCallback networkCallback = new ConnectivityManager.NetworkCallback()
+        {
+            @Override
+            public void onAvailable(Network network)
+            {
+                changed();
+            }
+
+            @Override
+            public void onLost(Network network)
+            {
+                changed();
+            }
+
+            @Override
+            public void onCapabilitiesChanged(Network network, NetworkCapabilities capabilities)
+            {
+                changed(); // like going from metered to unmetered
+            }
+        };
+        NetworkRequest request = new NetworkRequest.Builder().addCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET).build();
+        connectivityManager.registerNetworkCallback(request, networkCallback);
+        return networkCallback;
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private void unregisterNetworkCallback(Object networkCallback)
+    {
+        connectivityManager.unregisterNetworkCallback((ConnectivityManager.NetworkCallback) networkCallback);
+    }
+}
@@ -0,0 +1,113 @@
+package org.svvsd.droneteam.canary;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.hardware.usb.UsbDevice;
+import android.os.Build;
+
+import com.digi.xbee.api.connection.android.AndroidXBeeInterface;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+////////////////////////////////////
+// Notes
+//
+// AndroidSerialLink is the SerialLink to an XBee attached to the USB port, through the XBee library's AndroidXBeeInterface
+//   The library sets the baud rate when the interface is made, so open() makes a new interface each time, with the config's baud rate
+//   The id is the USB vendor and product id, plus the serial number where Android lets us read it (5.0 and up), so each XBee keeps its own LinkConfig
+//
+// Constructor
+//   AndroidSerialLink(Context, UsbDevice)
+//
+// Public Methods
+//   SerialLink methods
+//
+///////////////////////////
+
+public class AndroidSerialLink implements SerialLink
+{
+    private final Context context;
+    private final UsbDevice device;
+    private final String sId;
+    private volatile AndroidXBeeInterface xbeeInterface = null;
+
+    public AndroidSerialLink(Context context, UsbDevice device)
+    {
+        this.context = context;
+        this.device = device;
+        String sSerial = Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP ? getSerialNumber(device) : null;
+        sId = device.getVendorId() + ":" + device.getProductId() + (sSerial != null ? ":" + sSerial : "");
+    }
+
+    public void open(LinkConfig config) throws IOException
+    {
+        AndroidXBeeInterface newInterface = new AndroidXBeeInterface(context, config.baudRate, device);
+        try
+        {
+            newInterface.open();
+        }
+        catch (Exception e) // the library's own exceptions, for a device in use, gone, or not allowed
+        {
+            throw new IOException("unable to open XBee " + sId + " " + e.toString());
+        }
+        xbeeInterface = newInterface;
+    }
+
+    public boolean isOpen()
+    {
+        AndroidXBeeInterface myInterface = xbeeInterface;
+        return myInterface != null && myInterface.isOpen();
+    }
+
+    public int available() throws IOException
+    {
+        InputStream in = openInterface().getInputStream();
+        return in == null ? 0 : in.available();
+    }
+
+    public int read(byte[] buffer, int offset, int length) throws IOException
+    {
+        // the library's readData() spins until data shows up, which is why callers check available() first
+        return openInterface().readData(buffer, offset, length);
+    }
+
+    public void close()
+    {
+        AndroidXBeeInterface myInterface = xbeeInterface;
+        if (myInterface != null && myInterface.isOpen())
+        {
+            myInterface.close();
+        }
+    }
+
+    public String getId()
+    {
+        return sId;
+    }
+
+    // openInterface() - the interface, or an IOException if the link is not open
+    private AndroidXBeeInterface openInterface() throws IOException
+    {
+        AndroidXBeeInterface myInterface = xbeeInterface;
+        if (myInterface == null || !myInterface.isOpen())
+        {
+            throw new IOException("XBee " + sId + " is not open");
+        }
+        return myInterface;
+    }
+
+    // getSerialNumber(UsbDevice) - the device's serial number, or null if it has none or we are not allowed to read it
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private static String getSerialNumber(UsbDevice device)
+    {
+        try
+        {
+            return device.getSerialNumber();
+        }
+        catch (SecurityException e) // newer Androids want USB permission first
+        {
+            return null;
+        }
+    }
+}
@@ -1,17 +1,46 @@
 package org.svvsd.droneteam.canary;
 
+import java.util.ArrayList;
+
+// DebugUtils.msg() logs through CanaryLog, in the "app" subsystem at INFO level. Code on the reader, ingest and upload threads
+//   should use its own CanaryLog.Subsystem instead, passing values separately so disabled messages cost nothing (see CanaryLog)
+// DebugUtils.simulateXBee() processes and records one frame, right on the calling thread
+// DebugUtils.replayXBees() makes the receiver read made up radios instead of the attached XBees (see ReplaySerialLink and SyntheticTrace),
+//   so the whole path from the reader threads to the recorder can be run, and loaded, with no radio. Call before startListening()
 public class DebugUtils
 {
+    private static final CanaryLog.Subsystem LOG = CanaryLog.subsystem("app");
+    private static final int REPLAY_FRAMES = 1000; // frames in each made up replay trace, replayed over and over
+
     public static void msg(String sMsg)
     {
-        System.out.println("Canary Tweet " + sMsg);
+        LOG.info(sMsg);
     }
 
     public static void simulateXBee(String xbeeString, Receiver receiver, Recorder recorder)
     {
-        receiver.processData(xbeeString); // simulate processing XBee data string
+        Reading reading = new Reading();
+        byte[] frame = xbeeString.getBytes();
+        reading.setRaw(frame, 0, frame.length);
+        receiver.processData(frame, frame.length, reading); // simulate processing XBee data string
         receiver.updateMonitors(); // updates ui monitors with data
-        recorder.recordData(receiver.lastProcessedData); // record the data
-        recorder.updateDataCount(recorder.dataCount); // update the data count
+        recorder.recordData(reading); // record the data
+        recorder.updateDataCount(); // update the data count
+    }
+
+    public static void replayXBees(Receiver receiver, int radios, double speed)
+    {
+        ArrayList<SerialLink> links = new ArrayList<SerialLink>();
+        int mode = receiver.getLinkMode();
+        for (int i = 0; i < radios; i++)
+        {
+            SyntheticTrace synthetic = new SyntheticTrace(i + 1);
+            byte[] trace = mode == Receiver.MODE_TRANSPARENT ? synthetic.transparent(REPLAY_FRAMES) : synthetic.api(REPLAY_FRAMES, mode == Receiver.MODE_API_ESCAPED);
+            ReplaySerialLink link = new ReplaySerialLink("replay:" + (i + 1), trace, LinkConfig.DEFAULT.baudRate / 10);
+            link.setSpeed(speed);
+            link.setRepeat(0); // over and over
+            links.add(link);
+        }
+        receiver.setLinks(links);
     }
 }
@@ -0,0 +1,47 @@
+package org.svvsd.droneteam.canary;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+////////////////////////////////////
+// Notes
+//
+// LinkSettings keeps the best LinkConfig found for each XBee (see LinkProber), by SerialLink id, in the app's shared preferences
+//   An XBee that was never probed gets LinkConfig.DEFAULT, which is what was always used before
+//
+// Public Methods
+//   load(Context, linkId) - the saved config for the link, or LinkConfig.DEFAULT
+//   save(Context, linkId, LinkConfig) - saves the config for the link
+//   clear(Context, linkId) - forgets the saved config, so the link goes back to LinkConfig.DEFAULT
+//
+///////////////////////////
+
+public class LinkSettings
+{
+    private static final String PREFERENCES = "canary_links";
+    private static final String KEY_PREFIX = "link.";
+
+    // load(Context, linkId) - the saved config for the link, or LinkConfig.DEFAULT
+    public static LinkConfig load(Context context, String sLinkId)
+    {
+        LinkConfig config = LinkConfig.parse(preferences(context).getString(KEY_PREFIX + sLinkId, null));
+        return config != null ? config : LinkConfig.DEFAULT;
+    }
+
+    // save(Context, linkId, LinkConfig) - saves the config for the link
+    public static void save(Context context, String sLinkId, LinkConfig config)
+    {
+        preferences(context).edit().putString(KEY_PREFIX + sLinkId, config.encode()).apply();
+    }
+
+    // clear(Context, linkId) - forgets the saved config, so the link goes back to LinkConfig.DEFAULT
+    public static void clear(Context context, String sLinkId)
+    {
+        preferences(context).edit().remove(KEY_PREFIX + sLinkId).apply();
+    }
+
+    private static SharedPreferences preferences(Context context)
+    {
+        return context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+    }
+}
@@ -20,7 +20,8 @@ import android.widget.Toast;
 //  DebugUtils is a class just used for debugging.
 //   Try to have all debug messages you want to log use the function DebugUtils.msg(), which writes to the system log.
 //   Then in Logcat you can filter for string "canary tweet" and you'll see only those messages.
-//   And before releasing the App you can comment out the system log line in it so you don't make noisy system logs
+//   Messages go through CanaryLog, so before releasing the App you can quiet them with CanaryLog.setDefaultLevel(CanaryLog.WARN)
+//   Receiver, Recorder and Uploader log through their own CanaryLog subsystems, whose levels can be set separately with CanaryLog.setLevel()
 //
 //  For testing, feel free to set the uploader server url sUploadUrl to "http://tuckerfoltz.com/canary/canary.php?"
 //   Then you can see the results of your server submission at http://tuckerfoltz.com/canary/canarysubmissions.html
@@ -37,15 +38,16 @@ import android.widget.Toast;
 //   Upload - Upper right cloud with up arroud - toggles uplodading data on and off
 //     Below of each of them output for data recorded
 //   Delete Data - Trash can below record - clears all data in the database
+//   Performance - text at the bottom - toggles the metrics overlay (see MetricsOverlay), long press it to write the metrics to a file
 //
 //
 // Things you need to do to customize this for Canary project
 //
 // 1) Figure out exactly what the field names are for the XBee data coming in and uploading
 // 2) Add the field names to Recorder.java DatabaseHelper.onCreate() data table definition (use INTEGER, TEXT, REAL column types)
-// 3) Add the field names appropriately and figure out the code to process the actual received XBee data in Receiver.java processData()
+// 3) Add the field names appropriately to Reading.java, and figure out the code to process the actual received XBee data in SensorFrameParser.java
 // 4) Set the correct sUploadUrl in Uploader.java (You can keep the tuckerfoltz.com one now for testing if you wish, see note above)
-// 5) Set the correct value in Uploader.java uploadDataToServerTask onPostExecute() for what server response indicates a successful upload of the data
+// 5) Set the correct value in HttpUploadTransport.java isSuccessResponse() for what server response indicates a successful upload of the data
 // 6) Customize the UI in res/activity_main.xml and MainActivity.java to add UI Fields and add them to monitoring fields for all the XBee data coming in
 //     Any display strings you add put in res/values/strings.xml
 //     Then it becomes easy to put it in different languages
@@ -67,10 +69,12 @@ public class MainActivity extends AppCompatActivity
     private Receiver receiver; // the device that receives the data - the XBee
     private Recorder recorder; // the utility that will store the data and be fetched from when uploading the data
     private Uploader uploader; // the process that will upload data
+    private MetricsOverlay metricsOverlay; // shows how the pipeline is doing, for tuning and troubleshooting
 
     // UI state variables
     private Boolean bRecordingOn = false; // whether the recording button is on or not
     private Boolean bUploadingOn = false; // whether the uploading button is on or not
+    private boolean bRecordPending = false; // whether a recording toggle is still waiting on the recorder, taps are ignored until it is done
 
 
     ///////////////
@@ -88,7 +92,7 @@ public class MainActivity extends AppCompatActivity
 
         // set up major objects
         recorder = new Recorder(this); // an object to record data from xbee
-        uploader = new Uploader(recorder); // an object to upload the data, using the recorder as a data source
+        uploader = new Uploader(this, recorder); // an object to upload the data, using the recorder as a data source, when there is a network
         receiver = new Receiver(this, recorder, vendorId, productId); // an object to get data from the xbee, using recorder as a place to
 
         // set up UI elements
@@ -96,6 +100,19 @@ public class MainActivity extends AppCompatActivity
         // set up size of recorded / uploaded data monitoring field
         recorder.setDataCountView((TextView) findViewById(R.id.datacount)); // set where to display recorded data count and display current size
         uploader.setUploadCountView((TextView) findViewById(R.id.uploadcount)); // set where to display uploaded data count and display current size
+        //uploader.setMaxBatchSize(200); // once the server accepts batch uploads, send up to 200 rows per request
+
+        // set up the metrics overlay, tap the performance text to show or hide it, long press it to write the metrics to a file
+        metricsOverlay = new MetricsOverlay(this, (TextView) findViewById(R.id.metricsOverlay));
+        findViewById(R.id.metricsToggle).setOnLongClickListener(new View.OnLongClickListener()
+        {
+            @Override
+            public boolean onLongClick(View view)
+            {
+                screenMessage(metricsOverlay.dump() != null ? R.string.metrics_dumped : R.string.metrics_not_dumped);
+                return true;
+            }
+        });
 
         // set up any monitor views (for seeing real time data)
         // an example: receiver.processData() sets a field "testfield".
@@ -121,8 +138,15 @@ public class MainActivity extends AppCompatActivity
     {
         DebugUtils.msg("onStart() making sure listening for data");
         super.onStart();
-        // start receiver listening as soon as we start up
-        receiver.startListening();
+        // start receiver listening as soon as we start up, on the recorder's background thread so it stays in order with the stopping in onStop()
+        recorder.runInBackground(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                receiver.startListening();
+            }
+        }, null);
 
 
     }
@@ -132,7 +156,16 @@ public class MainActivity extends AppCompatActivity
     {
         super.onStop();
         DebugUtils.msg("onStop() stopping listening for data");
-        receiver.stopListening();
+        recorder.runInBackground(new Runnable() // stopping the readers and flushing can take seconds, too long to hold up the main thread
+        {
+            @Override
+            public void run()
+            {
+                receiver.stopListening(); // waits for the reader threads, and for the merger to hand over what was recorded
+                recorder.flush(); // make sure everything received is committed to the database
+                CanaryLog.flush(); // and everything logged is in the system log, in case the app gets killed
+            }
+        }, null);
 
     }
 
@@ -157,34 +190,93 @@ public class MainActivity extends AppCompatActivity
 
     }
     // toggleRecord - turns recording on and off
+    //   Starting and ending a session wait on storage, and starting and stopping the receiver wait on its threads, so they run on the recorder's
+    //   background thread, and the toggle changes once they are done
     public void toggleRecord(View view)
     {
-        ImageView toggle = (ImageView) findViewById(view.getId());
+        final ImageView toggle = (ImageView) findViewById(view.getId());
+        if (bRecordPending) // still starting or stopping
+        {
+            return;
+        }
+        bRecordPending = true;
         if (bRecordingOn) // if recording, stop recording and change to unhighlighted toggle
         {
             DebugUtils.msg("toggleRecord() stopping recording");
-            receiver.stopRecording();
-            toggle.setImageResource(R.drawable.record);
-            bRecordingOn = false;
+            recorder.runInBackground(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    receiver.stopRecording(); // hands the recorder what was recorded so far
+                    recorder.endSession(); // the flight is over
+                }
+            }, new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    toggle.setImageResource(R.drawable.record);
+                    bRecordingOn = false;
+                    bRecordPending = false;
+                }
+            });
         }
         else // otherwise start recording and change to highlighted toggle
         {
             DebugUtils.msg("toggleRecord() starting recording");
-            receiver.startRecording();
-            if (receiver.isRecording())
+            final long[] sessionId = new long[1];
+            recorder.runInBackground(new Runnable()
             {
-                toggle.setImageResource(R.drawable.record_highlight);
-                bRecordingOn = true;
-            }
-            else
+                @Override
+                public void run()
+                {
+                    sessionId[0] = recorder.startSession(); // before recording starts, so every row of the flight is tagged with it
+                    receiver.startRecording();
+                }
+            }, new Runnable()
             {
-                screenMessage(R.string.no_record_no_xbee_hint);
-            }
-
+                @Override
+                public void run()
+                {
+                    recordingStarted(toggle, sessionId[0]);
+                }
+            });
         }
 
     }
 
+    // recordingStarted(toggle, sessionId) - changes to highlighted toggle once the flight session is started and the receiver is recording,
+    //   or drops the session if the receiver could not start recording
+    private void recordingStarted(ImageView toggle, final long sessionId)
+    {
+        if (receiver.isRecording())
+        {
+            DebugUtils.msg("toggleRecord() recording flight session " + sessionId);
+            toggle.setImageResource(R.drawable.record_highlight);
+            bRecordingOn = true;
+            bRecordPending = false;
+            return;
+        }
+        recorder.runInBackground(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                recorder.endSession(); // nothing got recorded, so no flight to keep
+                recorder.eraseSession(sessionId);
+            }
+        }, new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                bRecordPending = false;
+            }
+        });
+        screenMessage(R.string.no_record_no_xbee_hint);
+    }
+
     // toggleRecord - turns uploading on and off
     public void toggleUpload(View view)
     {
@@ -207,13 +299,32 @@ public class MainActivity extends AppCompatActivity
     }
 
 
+    // toggleMetrics - shows and hides the metrics overlay
+    public void toggleMetrics(View view)
+    {
+        metricsOverlay.toggle();
+    }
+
     // deleteData - deletes all the recorded data
     public void deleteData(View view)
     {
-        recorder.eraseData(); // erase the data
-        recorder.updateDataCount(); // recalculate the data count
-        uploader.updateUploadCount(); // recalculate the upload data count
-        screenMessage(R.string.data_erased);
+        recorder.runInBackground(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                recorder.eraseData(); // erase the data, after waiting for what is queued, so not on the main thread
+            }
+        }, new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                recorder.updateDataCount(); // recalculate the data count
+                uploader.updateUploadCount(); // recalculate the upload data count
+                screenMessage(R.string.data_erased);
+            }
+        });
     }
 
 
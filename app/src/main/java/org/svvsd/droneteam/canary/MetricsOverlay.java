@@ -0,0 +1,130 @@
+package org.svvsd.droneteam.canary;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.view.View;
+import android.widget.TextView;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.HashMap;
+
+////////////////////////////////////
+// Notes
+//
+// MetricsOverlay shows the pipeline metrics (see Metrics) in a text view on top of the UI, refreshed once a second while it is showing
+//   Counters are shown with their rate per second over the last refresh. Nothing is refreshed while it is hidden
+//   dump() writes the metrics to a file in the app's external files directory, so it can be pulled off the phone with adb or a file manager
+//
+// Constructor
+//   MetricsOverlay(Context, TextView) - create on the main UI thread. The view should start out hidden (visibility gone)
+//
+// Public Methods
+//   toggle() - shows the overlay if it is hidden, and hides it if it is showing
+//   isShowing() - whether the overlay is showing
+//   dump() - writes the metrics to metrics-<time>.txt, returning the file, or null if it could not be written
+//
+///////////////////////////
+
+public class MetricsOverlay
+{
+    private static final long REFRESH_MS = 1000; // how often the overlay is refreshed while showing
+
+    private final Context context;
+    private final TextView overlayView;
+    private final Handler uiHandler = new Handler(Looper.getMainLooper());
+    private final Runnable refresh = new Refresh();
+    private final HashMap<String, Long> lastCounts = new HashMap<String, Long>(); // counter values at the last refresh, for the rates
+    private final StringBuilder sbReport = new StringBuilder(1024);
+    private long lastRefreshTime = 0;
+    private boolean bShowing = false;
+
+    public MetricsOverlay(Context context, TextView overlayView)
+    {
+        this.context = context;
+        this.overlayView = overlayView;
+    }
+
+    // toggle() - shows the overlay if it is hidden, and hides it if it is showing
+    public void toggle()
+    {
+        bShowing = !bShowing;
+        uiHandler.removeCallbacks(refresh);
+        if (bShowing)
+        {
+            lastCounts.clear(); // rates start over from now
+            overlayView.setVisibility(View.VISIBLE);
+            refresh.run();
+        }
+        else
+        {
+            overlayView.setVisibility(View.GONE);
+        }
+    }
+
+    // isShowing() - whether the overlay is showing
+    public boolean isShowing()
+    {
+        return bShowing;
+    }
+
+    // dump() - writes the metrics to metrics-<time>.txt, returning the file, or null if it could not be written
+    public File dump()
+    {
+        File directory = context.getExternalFilesDir(null);
+        if (directory == null) // no external storage mounted
+        {
+            directory = context.getFilesDir();
+        }
+        File file = new File(directory, "metrics-" + System.currentTimeMillis() + ".txt");
+        Writer writer = null;
+        try
+        {
+            writer = new FileWriter(file);
+            Metrics.dump(writer);
+        }
+        catch (IOException e)
+        {
+            DebugUtils.msg("MetricsOverlay dump() unable to write metrics " + e.toString());
+            return null;
+        }
+        finally
+        {
+            if (writer != null)
+            {
+                try
+                {
+                    writer.close();
+                }
+                catch (IOException e)
+                {
+                    DebugUtils.msg("MetricsOverlay dump() unable to close metrics file " + e.toString());
+                }
+            }
+        }
+        DebugUtils.msg("MetricsOverlay dump() wrote metrics to " + file.getPath());
+        return file;
+    }
+
+    // Refresh - shows the current metrics, and comes back in REFRESH_MS while the overlay is showing
+    private class Refresh implements Runnable
+    {
+        public void run()
+        {
+            if (!bShowing)
+            {
+                return;
+            }
+            long now = SystemClock.uptimeMillis();
+            sbReport.setLength(0);
+            Metrics.appendReport(sbReport, lastCounts, now - lastRefreshTime);
+            lastRefreshTime = now;
+            overlayView.setText(sbReport);
+            uiHandler.postDelayed(this, REFRESH_MS);
+        }
+    }
+}
@@ -0,0 +1,219 @@
+package org.svvsd.droneteam.canary;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.view.Choreographer;
+import android.widget.TextView;
+
+import java.util.ArrayList;
+
+////////////////////////////////////
+// Notes
+//
+// MonitorUpdater shows the latest reading on the "monitor" ui text fields, at most once per display frame
+//   publish() can be called for every frame from any thread. It only copies the reading, and asks for one update at the next display frame
+//   however many readings come in before it, so a burst of frames costs the main UI thread one update
+//   The update is paced by Choreographer (on Android before 4.1, by a Handler at about 60 per second)
+//   Each monitor keeps the text it shows. A value is formatted into a preallocated buffer (see ReadingFormatter), and the view is only
+//   touched when the text changed
+//
+// Constructor
+//   MonitorUpdater() - create on the main UI thread
+//
+// Public Methods
+//   addMonitor(String fieldName, TextView) - display fieldName values to a given UI textview
+//   clearMonitor(String fieldName) - stop displaying fieldName values
+//   clearAllMonitors() - stop displaying any field values
+//   publish(Reading) - makes the reading the latest one, and asks for an update at the next display frame. Any thread
+//   requestUpdate() - asks for an update at the next display frame, unless one is already waiting. Any thread
+//   setFrameTask(Runnable) - something else to do on the main UI thread at each update, like updating the data count
+//   updateMonitors() - updates the monitors right now. Main UI thread only
+//
+///////////////////////////
+
+public class MonitorUpdater
+{
+    private static final long FALLBACK_FRAME_MS = 16; // update period when there is no Choreographer
+
+    private final ArrayList<Monitor> monitors = new ArrayList<Monitor>(); // only used on the main UI thread
+    private final Reading latestReading = new Reading(); // latest published reading, copied in and out while synchronized on it
+    private final Reading displayReading = new Reading(); // copy of latestReading the monitors are updated from, only used on the main UI thread
+    private final ReadingFormatter formatter = new ReadingFormatter();
+    private final char[] scratch = new char[ReadingFormatter.BUFFER_SIZE];
+    private final Handler uiHandler = new Handler(Looper.getMainLooper());
+    private final Runnable frameUpdate = new FrameUpdate();
+    private final FramePacer framePacer; // null before Android 4.1
+    private volatile boolean bUpdatePending = false; // whether an update is already waiting for the next display frame
+    private volatile Runnable frameTask = null;
+
+    public MonitorUpdater()
+    {
+        framePacer = Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN ? new FramePacer(frameUpdate) : null;
+    }
+
+    // addMonitor(String fieldName, TextView) - display fieldName values to a given UI textview
+    public void addMonitor(String fieldName, TextView textView)
+    {
+        clearMonitor(fieldName);
+        int field = ReadingFormatter.fieldId(fieldName);
+        if (field < 0)
+        {
+            DebugUtils.msg("MonitorUpdater addMonitor() no field " + fieldName);
+            return;
+        }
+        monitors.add(new Monitor(fieldName, field, textView));
+    }
+
+    // clearMonitor(String fieldName) - stop displaying fieldName values
+    public void clearMonitor(String fieldName)
+    {
+        for (int i = monitors.size() - 1; i >= 0; i--)
+        {
+            if (monitors.get(i).sFieldName.equals(fieldName))
+            {
+                monitors.remove(i);
+            }
+        }
+    }
+
+    // clearAllMonitors() - stop displaying any field values
+    public void clearAllMonitors()
+    {
+        monitors.clear();
+    }
+
+    // setFrameTask(Runnable) - something else to do on the main UI thread at each update, like updating the data count
+    public void setFrameTask(Runnable frameTask)
+    {
+        this.frameTask = frameTask;
+    }
+
+    // publish(Reading) - makes the reading the latest one, and asks for an update at the next display frame. Any thread
+    public void publish(Reading reading)
+    {
+        synchronized (latestReading)
+        {
+            latestReading.copyFrom(reading);
+        }
+        requestUpdate();
+    }
+
+    // requestUpdate() - asks for an update at the next display frame, unless one is already waiting. Any thread
+    public void requestUpdate()
+    {
+        if (bUpdatePending)
+        {
+            return;
+        }
+        bUpdatePending = true;
+        if (framePacer != null)
+        {
+            framePacer.post();
+        }
+        else
+        {
+            long now = SystemClock.uptimeMillis();
+            uiHandler.postAtTime(frameUpdate, now - now % FALLBACK_FRAME_MS + FALLBACK_FRAME_MS);
+        }
+    }
+
+    // updateMonitors() - updates the monitors right now. Main UI thread only
+    public void updateMonitors()
+    {
+        synchronized (latestReading)
+        {
+            displayReading.copyFrom(latestReading);
+        }
+        for (int i = 0; i < monitors.size(); i++)
+        {
+            Monitor monitor = monitors.get(i);
+            int length = formatter.format(displayReading, monitor.field, scratch);
+            if (length >= 0)
+            {
+                monitor.show(scratch, length);
+            }
+        }
+    }
+
+    // FrameUpdate - updates the monitors and runs the frame task, once per display frame at most
+    private class FrameUpdate implements Runnable
+    {
+        public void run()
+        {
+            bUpdatePending = false;
+            updateMonitors();
+            Runnable task = frameTask;
+            if (task != null)
+            {
+                task.run();
+            }
+        }
+    }
+
+    // Monitor - a monitor text field, and the text it shows
+    //   TextView.setText(char[]) keeps using the array it is given, so there are two buffers: the one shown, and the one written next
+    private static class Monitor
+    {
+        final String sFieldName;
+        final int field;
+        final TextView textView;
+        private final char[][] buffers = {new char[ReadingFormatter.BUFFER_SIZE], new char[ReadingFormatter.BUFFER_SIZE]};
+        private int shown = 0; // which buffer the text view has
+        private int shownLength = -1; // length of the shown text, -1 before anything was shown
+
+        Monitor(String sFieldName, int field, TextView textView)
+        {
+            this.sFieldName = sFieldName;
+            this.field = field;
+            this.textView = textView;
+        }
+
+        // show(text, length) - shows the text, if it is not already what is shown
+        void show(char[] text, int length)
+        {
+            char[] current = buffers[shown];
+            if (length == shownLength)
+            {
+                int i = 0;
+                while (i < length && current[i] == text[i])
+                {
+                    i++;
+                }
+                if (i == length) // no change
+                {
+                    return;
+                }
+            }
+            shown ^= 1;
+            System.arraycopy(text, 0, buffers[shown], 0, length);
+            shownLength = length;
+            textView.setText(buffers[shown], 0, length);
+        }
+    }
+
+    // FramePacer - posts the update to run at the next display frame, Android 4.1 and up
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private static class FramePacer implements Choreographer.FrameCallback
+    {
+        private final Choreographer choreographer = Choreographer.getInstance(); // of the main UI thread, since it is created there
+        private final Runnable update;
+
+        FramePacer(Runnable update)
+        {
+            this.update = update;
+        }
+
+        void post()
+        {
+            choreographer.postFrameCallback(this);
+        }
+
+        public void doFrame(long frameTimeNanos)
+        {
+            update.run();
+        }
+    }
+}
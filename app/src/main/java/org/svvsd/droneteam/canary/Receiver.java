@@ -1,48 +1,77 @@
 package org.svvsd.droneteam.canary;
 
-import android.content.ContentValues;
 import android.content.Context;
 import android.hardware.usb.UsbDevice;
 import android.hardware.usb.UsbManager;
-import android.os.AsyncTask;
 import android.widget.TextView;
 
-import com.digi.xbee.api.connection.android.AndroidXBeeInterface;
-
-import java.nio.charset.StandardCharsets;
-import java.util.Date;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.TreeMap;
 
 ////////////////////////////////////
 // Notes
 //
-// Receiver reads data from the XBee and processes the data
-//   Optionally displays the received data to "monitor" ui text fields (see addMonitor())
-//   Optionally records the data to a Recorder (see startRecording())
+// Receiver reads data from the XBees and processes the data
+//   Every attached XBee matching vendorId / productId is used, each read on its own thread, so several radios (several drones, or redundant links)
+//   can feed one ground station. Each radio is a source, numbered from 1 in USB device name order, and its readings are tagged with it (Reading.source)
+//   Recorded readings from all the radios are merged into one stream in timestamp order, taking turns on ties (see ReadingMerger)
+//   Optionally displays the received data to "monitor" ui text fields (see addMonitor() and MonitorUpdater)
+//   Optionally records the data to a Recorder (see startRecording()), along with window summaries of it (see WindowAggregator and Recorder Summaries)
+//
+// Link modes (see setLinkMode())
+//   MODE_TRANSPARENT - the default, and what older drones send. The XBees pass the sensor frame text straight through (see FrameAssembler and SensorFrameParser)
+//   MODE_API, MODE_API_ESCAPED - the XBees are in API mode (AP=1 or AP=2) and each reading comes in its own checksummed receive frame
+//     (see ApiFrameAssembler) with a binary payload (see SensorPayloadCodec). Nothing to parse, exact frame boundaries, and fewer bytes per reading
+//     Receive frames of the 802.15.4 (RX 64 and RX 16) and ZigBee / DigiMesh (Receive Packet) kinds are decoded, other API frames are skipped
+//     The testfield column is left empty, since there is no frame text
+//
+// Link settings
+//   Each XBee is read through a SerialLink (see AndroidSerialLink) with its own LinkConfig - baud rate, read buffer size and how long to wait
+//   between reads when there is nothing to read. The config saved for the XBee (see LinkSettings) is used, LinkConfig.DEFAULT if there is none
+//   probeLinks() tries the settings on each XBee in turn (see LinkProber) and saves the best one for it. Takes a while, so not on the main UI thread
+//   Each XBee is read by a LinkReader thread, which does the reading, framing and parsing. setLinks() swaps the attached XBees for other links,
+//   like ReplaySerialLinks replaying captured or made up traces, to load test the whole path to the Recorder with no radio attached
 //
 // Things that need customizing
-//   processData(String sData) - Need to split up the XBee sData string into the correct field value pairs
+//   SensorFrameParser - Need to split up the XBee frame into the correct Reading fields
+//   SensorPayloadCodec - the same for the binary payloads of the API link modes
 //
 // Constructor
-//   Receiver(Context, Recorder, VendorId, ProductId)
+//   Receiver(Context, Recorder, VendorId, ProductId) - create on the main UI thread
+//
+// Metrics (see Metrics)
+//   receiver.bytes, receiver.frames, receiver.parseFailures, receiver.checksumFailures - from the LinkReaders
+//   receiver.mergeDropped - recorded readings dropped because the merger fell behind
+//
+// Logging goes to the "receiver" CanaryLog subsystem (see LinkReader for the reader threads)
 //
 // Public variables
 //   vendorId - the vendor ID of the XBee interface attached
 //   productId - the product ID of the XBee interface attached
 //
 // Public Methods
+//   startListening(), stopListening(), startRecording() and stopRecording() start and stop threads and wait on them (up to READER_STOP_WAIT_MS for each
+//     reader, and up to a second for the merger to hand over what was recorded), so call them off the main UI thread, one at a time.
+//     MainActivity runs them on the recorder's background thread (see Recorder runInBackground())
 //   startListening() - begins listening and processing data
 //   stopListening() - stops listening and processing data
 //   isListening() - whether the receivers is currently listening and processing data
+//   getRadioCount() - how many XBees are being listened to
+//   setLinkMode(mode) - sets how the XBees are configured, MODE_TRANSPARENT (default), MODE_API or MODE_API_ESCAPED. Takes effect at the next startListening()
+//   getLinkMode() - the link mode set
+//   setLinks(ArrayList<SerialLink>) - reads these links instead of the attached XBees, null to go back to the XBees. Takes effect at the next startListening()
+//   probeLinks(probeMs, maxLossRate) - finds and saves the best LinkConfig for each XBee, reading probeMs with each. Only while not listening, and not on the main UI thread
 //   startRecording(Recorder) - begins recording data to the Recorder database
 //   stopRecording() - stop recording data to the Recorder database
 //   isRecording() - whether the receiver is recording the data to the Recorder database
 //   addMonitor(String fieldName,TextView) - display processed fieldName values to a given UI textview
 //   clearMonitor(String fieldName) - stop displaying processed fieldName value to a given UI
 //   clearAllMonitors() - stop displaying any field values
-//   updateMonitors(ContentValues) - updates monitors with latest values
+//   updateMonitors() - updates monitors with latest values right now. Main UI thread only
+//   setSummaryWindows(long[] windowsMs) - sets the window lengths recorded data is summarized over, in milliseconds. Use while not recording
+//   processData(byte[] frame, length, Reading) - fills in the Reading from an XBee frame, and makes it the latest reading for monitors. Main UI thread only
 //
 ///////////////////////////
 
@@ -52,18 +81,29 @@ public class Receiver
     // xbee device info - keeping public so you can identify new device ids for auto launching app with the usb filter
     public int vendorId = 0; //1027;
     public int productId = 0; //24597;
-    public ContentValues lastProcessedData = new ContentValues();
-    public int gpsProblem = 0;
-    public Date date = new Date();
+    public volatile int gpsProblem = 0;
+
+    // link modes, see setLinkMode()
+    public static final int MODE_TRANSPARENT = LinkReader.MODE_TRANSPARENT;
+    public static final int MODE_API = LinkReader.MODE_API;
+    public static final int MODE_API_ESCAPED = LinkReader.MODE_API_ESCAPED;
 
     private Context context;
 
 
-    private AndroidXBeeInterface xBeeInterface = null; // xbee connection interface
-    private Timer checkForDataTimer = new Timer(); // timer for launching thread to check for data
-    private Boolean bListening = false; // whether the receiver is listening for new data coming in
-    private Boolean bRecording = false; // whether the receiver is recording the new data coming in
-    private HashMap<String, TextView> monitors = new HashMap<String, TextView>(); // monitoring field views to update when listening
+    private ArrayList<LinkReader> radios = new ArrayList<LinkReader>(); // one long lived reader thread per XBee while listening
+    private volatile ArrayList<SerialLink> replacementLinks = null; // read instead of the attached XBees when set, see setLinks()
+    private ReadingMerger merger = null; // merges the radios' recorded readings into one stream for the recorder
+    private volatile boolean bListening = false; // whether the receiver is listening for new data coming in
+    private volatile boolean bRecording = false; // whether the receiver is recording the new data coming in
+    private MonitorUpdater monitorUpdater = new MonitorUpdater(); // shows the latest reading on the monitors, at most once per display frame
+    private SensorFrameParser frameParser = new SensorFrameParser(); // for processData() on the main UI thread, each reader thread has its own
+    private volatile WindowAggregator aggregator = null; // summarizes recorded data for the recorder
+    private static final CanaryLog.Subsystem LOG = CanaryLog.subsystem("receiver");
+    private volatile int linkMode = MODE_TRANSPARENT;
+    private static final long READER_STOP_WAIT_MS = 500; // how long stopListening() waits for each reader thread to finish
+    private static final int MERGE_QUEUE_SIZE = 512; // readings each radio can have waiting for the merger
+    private static final long MERGE_MAX_DELAY_MS = 5; // longest a reading waits on a quiet radio to keep the merged stream in order
 
 
     private Recorder recorder = null;
@@ -79,6 +119,8 @@ public class Receiver
         this.recorder = recorder;
         this.vendorId = vendorId;
         this.productId = productId;
+        monitorUpdater.setFrameTask(new DataCountUpdate());
+        aggregator = new WindowAggregator(WindowAggregator.DEFAULT_WINDOWS_MS, recorder);
     }
 
 
@@ -86,30 +128,62 @@ public class Receiver
 
     public void startListening()
     {
-        DebugUtils.msg("startListening() starting listening");
-        if (xBeeInterface == null) // get an interface if we don't have it
+        LOG.info("startListening() starting listening");
+        if (bListening)
+        {
+            return;
+        }
+        ArrayList<SerialLink> links = getXBeeInterfaces();
+        if (links.isEmpty())
+        {
+            return;
+        }
+        merger = new ReadingMerger(MERGE_QUEUE_SIZE, MERGE_MAX_DELAY_MS, new MergedReadingSink());
+        for (int i = 0; i < links.size(); i++)
         {
-            xBeeInterface = getXBeeInterface();
+            SerialLink link = links.get(i);
+            LinkConfig config = LinkSettings.load(context, link.getId());
+            LOG.info("startListening() radio {} reading with {}", i + 1, config);
+            radios.add(new LinkReader(link, config, i + 1, linkMode, new RadioListener(merger.addSource())));
         }
-        if (xBeeInterface != null) // have an interface
+        bListening = true;
+        merger.start();
+        for (LinkReader radio : radios)
         {
-            bListening = true;
-            scheduleCheckFoData();
+            radio.start();
         }
     }
 
 
     public void stopListening()
     {
-        DebugUtils.msg("stopListening() stopping listening");
-        bListening = false;
+        LOG.info("stopListening() stopping listening");
         if (bRecording)
         {
             stopRecording();
         }
-        if (xBeeInterface != null && xBeeInterface.isOpen())
+        bListening = false;
+        for (LinkReader radio : radios) // let the reader threads finish their current read before closing the interfaces under them
+        {
+            radio.stopReading();
+        }
+        for (LinkReader radio : radios)
+        {
+            try
+            {
+                radio.join(READER_STOP_WAIT_MS);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+            radio.getLink().close();
+        }
+        radios.clear();
+        if (merger != null)
         {
-            xBeeInterface.close();
+            merger.stop();
+            merger = null;
         }
     }
 
@@ -118,6 +192,62 @@ public class Receiver
         return bListening;
     }
 
+    public int getRadioCount()
+    {
+        return radios.size();
+    }
+
+    public void setLinkMode(int mode)
+    {
+        if (mode != MODE_TRANSPARENT && mode != MODE_API && mode != MODE_API_ESCAPED)
+        {
+            throw new IllegalArgumentException("unknown link mode " + mode);
+        }
+        linkMode = mode;
+    }
+
+    public int getLinkMode()
+    {
+        return linkMode;
+    }
+
+    public void setLinks(ArrayList<SerialLink> links)
+    {
+        replacementLinks = links == null ? null : new ArrayList<SerialLink>(links);
+    }
+
+    public ArrayList<LinkProber.Result> probeLinks(long probeMs, double maxLossRate) throws InterruptedException
+    {
+        ArrayList<LinkProber.Result> best = new ArrayList<LinkProber.Result>();
+        if (bListening)
+        {
+            LOG.warn("probeLinks() can not probe while listening");
+            return best;
+        }
+        LinkProber prober = new LinkProber(linkMode != MODE_TRANSPARENT, linkMode == MODE_API_ESCAPED, probeMs, maxLossRate);
+        for (SerialLink link : getXBeeInterfaces())
+        {
+            LinkConfig current = LinkSettings.load(context, link.getId());
+            try
+            {
+                LinkProber.Result result = prober.tune(link, current);
+                if (result == null)
+                {
+                    LOG.warn("probeLinks() no link settings worked for {}, keeping the old ones", link.getId());
+                    continue;
+                }
+                LinkSettings.save(context, link.getId(), result.config);
+                LOG.info("probeLinks() saved {} {}", link.getId(), result);
+                best.add(result);
+            }
+            catch (IOException e)
+            {
+                LOG.warn("probeLinks() unable to probe {} {}", link.getId(), e);
+            }
+        }
+        return best;
+    }
+
     public void startRecording()
     {
         if (!bListening)
@@ -126,6 +256,10 @@ public class Receiver
         }
         if (bListening)
         {
+            if (aggregator != null)
+            {
+                aggregator.reset(); // anything the reader added after the last stopRecording()
+            }
             bRecording = true;
         }
     }
@@ -133,6 +267,14 @@ public class Receiver
     public void stopRecording()
     {
         bRecording = false;
+        if (merger != null)
+        {
+            merger.flush(); // so readings recorded before now reach the recorder before the caller ends the session
+        }
+        if (aggregator != null)
+        {
+            aggregator.flush(); // the windows end with the recording
+        }
     }
 
     public Boolean isRecording()
@@ -142,39 +284,32 @@ public class Receiver
 
     public void addMonitor(String fieldName, TextView textView)
     {
-        monitors.put(fieldName, textView);
+        monitorUpdater.addMonitor(fieldName, textView);
+    }
+
+    public void setSummaryWindows(long[] windowsMs)
+    {
+        if (recorder != null)
+        {
+            aggregator = new WindowAggregator(windowsMs, recorder);
+        }
     }
 
     public void clearMonitor(String fieldName)
     {
-        monitors.remove(fieldName);
+        monitorUpdater.clearMonitor(fieldName);
     }
 
     public void clearAllMonitors()
     {
-        monitors.clear();
+        monitorUpdater.clearAllMonitors();
     }
 
     public void updateMonitors()
     {
-        // go through any added monitors if any and update their values with the last processed data if an value exists for the field
-        // note you have to do this here because you usually can only update UI views on the main UI thread, whihc we are on by the time we get to onPostExecute
-        TextView textView;
-        for (String sKey : monitors.keySet())
-        {
-            if (lastProcessedData.containsKey(sKey))
-            {
-                textView = monitors.get(sKey);
-                textView.setText(lastProcessedData.getAsString(sKey));
-
-            }
-            if(sKey.equals("Timestamp"))
-            {
-                textView = monitors.get(sKey);
-                textView.setText(date.toString());
-            }
-        }
-
+        // note you have to call this on the main UI thread, because you usually can only update UI views there
+        // while listening you do not need to, MonitorUpdater updates the monitors at the next display frame after each processed frame
+        monitorUpdater.updateMonitors();
     }
 
 
@@ -182,77 +317,48 @@ public class Receiver
     // XBee routines
     ///////////////
 
-    // processData() - here is where you take the XBee received data string and turn into usable value you can put into the recorder or use for displaying on monitors
-    public ContentValues processData(String sData)
+    // processData(byte[] frame, length, Reading) - here is where you take an XBee received frame and turn it into reading values you can put into the recorder or use for displaying on monitors
+    //   Fills in the passed in reading, which also becomes the latest reading for monitors. Returns false if the frame is missing values
+    public boolean processData(byte[] frame, int length, Reading reading)
     {
 
         //make timestamp for the last time data was processed
-        date = new Date();
-        // TODO: 10/18/18 - Split the received XBee data string into field values.
-        //   Field names should be the same as Recorder database column names you want to record the values to
-        //   Field names should be the same as the monitor field names for monitoring
-        ContentValues contentValues = new ContentValues();
-        sData = sData.replaceAll("[^0-9|.,]", "");
-        DebugUtils.msg("sData at processData is " + sData);
-        //make sure the data starts at the right point
-        String[] dataSplit = sData.split("[|]+");
-        //locate start of string
-        contentValues.put("testfield", ("full data" + sData));
-        for(int i = 0; i<4; i++)
+        reading.timestamp = System.currentTimeMillis();
+        // To change what the frames look like, see SensorFrameParser
+        //   Reading fields get recorded to the Recorder database columns of the same name (see Recorder insertReading())
+        //   Field names for monitoring are the database column names (see ReadingFormatter.fieldId())
+        if (!frameParser.parse(frame, 0, length, reading))
         {
-            String[] sensorSplit = dataSplit[i].split(",");
-            if(sensorSplit[0].contentEquals("1"))
-            {
-                //sensorID 1
-                contentValues.put("temperature", Float.parseFloat(sensorSplit[1]));
-                contentValues.put("pressure", Integer.parseInt(sensorSplit[2]));
-                contentValues.put("humidity", Integer.parseInt(sensorSplit[3]));
-            }
-            else if(sensorSplit[0].contentEquals("2"))
-            {
-                //sensorID 2
-                contentValues.put("CO", Integer.parseInt(sensorSplit[1]));
-                contentValues.put("H2", Integer.parseInt(sensorSplit[2]));
-                contentValues.put("NH4", Integer.parseInt(sensorSplit[3]));
-                contentValues.put("CH4", Integer.parseInt(sensorSplit[4]));
-                contentValues.put("O3", Integer.parseInt(sensorSplit[5]));
-            }
-            else if(sensorSplit[0].contentEquals("3"))
-            {
-                //semsorID 3
-                contentValues.put("Lidar", Integer.parseInt(sensorSplit[1]));
-            }
-            else if(sensorSplit[0].contentEquals("4"))
-            {
-                if(sensorSplit.length>1) {
-                    contentValues.put("Latitude", Float.parseFloat(sensorSplit[1]));
-                    contentValues.put("Longitude", Float.parseFloat(sensorSplit[2]));
-                    contentValues.put("Altitude", Float.parseFloat(sensorSplit[3]));
-                    gpsProblem = 0;
-                }
-                else {
-                    contentValues.put("Latitude", "-1");
-                    contentValues.put("Longitude", "-1");
-                    contentValues.put("Altitude", "-1");
-                    gpsProblem = 1;
-                }
-            }
-            DebugUtils.msg("contentValues() data parsed is" + contentValues.toString());
+            return false;
         }
+        publish(reading);
+        return true;
 
+    }
 
+    // publish(Reading) - makes a processed reading the latest one for the monitors and the GPS warning
+    private void publish(Reading reading)
+    {
+        if (reading.has(Reading.GPS))
+        {
+            gpsProblem = reading.gpsFix ? 0 : 1;
+        }
 
-        lastProcessedData = contentValues;
-
-        return contentValues;
-
+        monitorUpdater.publish(reading);
     }
 
-    // getXBeeInterface() - gets the xBeeInterface if it is attached to the USB port
-    private AndroidXBeeInterface getXBeeInterface()
+    // getXBeeInterfaces() - gets a link for every XBee attached to the USB port, in USB device name order so the radio numbering stays the same
+    //   or the links given to setLinks()
+    private ArrayList<SerialLink> getXBeeInterfaces()
     {
-        AndroidXBeeInterface myXBeeInterface = null;
-        DebugUtils.msg("getXBeeInterface() looking for XBee");
+        ArrayList<SerialLink> links = replacementLinks;
+        if (links != null)
+        {
+            LOG.info("getXBeeInterfaces() using {} links in place of XBees", links.size());
+            return new ArrayList<SerialLink>(links);
+        }
+        ArrayList<SerialLink> interfaces = new ArrayList<SerialLink>();
+        LOG.info("getXBeeInterfaces() looking for XBees");
 
         // get the interface
         // get hashmap of all the USB devices attached
@@ -261,33 +367,30 @@ public class Receiver
         HashMap<String, UsbDevice> deviceList = manager.getDeviceList();
         if (deviceList != null)
         {
-            DebugUtils.msg("getXBeeInterface() found USB Devices");
+            LOG.info("getXBeeInterfaces() found USB Devices");
             int iDeviceVendorId = 0;
             int iDeviceProductId = 0;
-            // go through the hashmap values and see if any of the USB devices match the xbee device we are looking for
-            for (UsbDevice device : deviceList.values())
+            // go through the USB devices in name order and get an interface for each that matches the xbee device we are looking for
+            for (UsbDevice device : new TreeMap<String, UsbDevice>(deviceList).values())
             {
-                if (myXBeeInterface == null) // if we do not have an interface, keep checking
-                {
-                    iDeviceVendorId = device.getVendorId();
-                    iDeviceProductId = device.getProductId();
-                    DebugUtils.msg("getXBeeInterface found a USB device vendorId " + iDeviceVendorId + " productId " + iDeviceProductId + " " + device.toString());
+                iDeviceVendorId = device.getVendorId();
+                iDeviceProductId = device.getProductId();
+                LOG.info("getXBeeInterfaces() found a USB device vendorId {} productId {} {}", iDeviceVendorId, iDeviceProductId, device);
 
-                    // if the vendor and product ids match, try to get the interface.
-                    // need to match because the underlying library can get an XBee interface for a non-XBEE device which then crashes
-                    if (iDeviceVendorId == vendorId && iDeviceProductId == productId)
+                // if the vendor and product ids match, try to get the interface.
+                // need to match because the underlying library can get an XBee interface for a non-XBEE device which then crashes
+                if (iDeviceVendorId == vendorId && iDeviceProductId == productId)
+                {
+                    LOG.info("getXBeeInterfaces() attempting to get interface");
+                    try
                     {
-                        DebugUtils.msg("getXBeeInterface() attempting to get interface");
-                        try
-                        {
-                            myXBeeInterface = new AndroidXBeeInterface(context, 9600, device);
+                        interfaces.add(new AndroidSerialLink(context, device)); // opened with its LinkConfig by the reader
 
-                        }
-                        catch (Exception e)
-                        {
-                            DebugUtils.msg("getXBeeInterface() did not get interface " + e.toString());
+                    }
+                    catch (Exception e)
+                    {
+                        LOG.warn("getXBeeInterfaces() did not get interface {}", e);
 
-                        }
                     }
                 }
 
@@ -295,125 +398,84 @@ public class Receiver
         }
         else
         {
-            DebugUtils.msg("getXBeeInterface() did not find any USB Devices");
+            LOG.info("getXBeeInterfaces() did not find any USB Devices");
         }
 
-        if (myXBeeInterface == null)
+        if (interfaces.isEmpty())
         {
-            DebugUtils.msg("getXBeeInterface() could not get any XBee Interface");
+            LOG.info("getXBeeInterfaces() could not get any XBee Interface");
         }
         else
         {
-            DebugUtils.msg("getXBeeInterface() got XBee Interface " + myXBeeInterface.toString());
+            LOG.info("getXBeeInterfaces() got {} XBee Interfaces", interfaces.size());
         }
 
-        return myXBeeInterface;
+        return interfaces;
     }
 
     ///////
-    // Check for data routines
+    // Read data routines
     //
-    // There is probably much more elegant solution to it all, but this works
-    // Assumes an existing XBee Interface
+    // Assumes existing XBee Interfaces
     // Here's how it works currently
-    // 1) scheduleCheckForData() is called, which schedules a program thread checkForDataTask to launch at some small amount of time in the future like 10ms
-    // 2) checkForDataTask executes asynchronous task getXBeeDataTask, which goes off on a separate thread (doInBackground()) from the main UI thread (so it does not hang / wait)
-    // 3) getXBeeDataTask in the background opens the connection to the XBee if necessary, and reads any data in the XBee buffer
-    //    When done reading data, getXBeeDataTask returns to main UI thread (onPostExecute()), and ends with a call to scheduleCheckForData() to set up the next check for data run before ending the task
+    // 1) startListening() starts a LinkReader thread for each XBee, which lives until stopListening(), and the merger thread (see ReadingMerger)
+    // 2) Each LinkReader opens the connection to its XBee if necessary, and reads data as it arrives
+    //    Read data goes through the radio's frame assembler (API frame assembler in the API link modes), which processes each complete frame right on the reader thread
+    //    with the radio's own parser, so the radios never wait on each other. The readings come to RadioListener.onReading()
+    // 3) Frames being recorded are handed to the merger, which hands them to the recorder (see MergedReadingSink) oldest first across all the radios
+    // 4) After each frame, MonitorUpdater is asked to refresh the monitors and the data count at the next display frame
+    //    The readers never wait on the UI thread, and a burst of frames only costs the UI thread a single update
     //
     ///////
 
-    // scheduleCheckForData() - schedules a program thread checkForDataTask to launch at some small amount of time in the future like 10ms
-    private void scheduleCheckFoData()
+    // RadioListener - gets each processed reading from a radio's LinkReader, on its reader thread, and hands it to the merger if we are recording
+    private class RadioListener implements LinkReader.ReadingListener
     {
-        if (bListening) // if we are supposed to be listening, schedule the next listening
+        private final ReadingMerger.Source mergeSource; // where recorded readings go
+
+        RadioListener(ReadingMerger.Source mergeSource)
         {
-            //       DebugUtils.msg("scheduleCheckForData() scheduling next check for data");
-            checkForDataTimer.schedule(new checkForDataTask(), 10);
+            this.mergeSource = mergeSource;
         }
-    }
 
-    // checkForDataTask() - executes asynchronous task getXBeeDataTask, which goes off on a separate thread (doInBackground()) from the main UI thread (so app does not hang / wait)
-    class checkForDataTask extends TimerTask
-    {
-        public void run()
+        public void onReading(Reading reading)
         {
-            new getXBeeDataTask().execute(xBeeInterface);
-
+            publish(reading);
+            if (bRecording && reading.flags != 0) // need to record and have good data
+            {
+                mergeSource.offer(reading);
+            }
         }
-
     }
 
-    // getXBeeDataTask (XBeeInterface)
-    //    In the background (separate thread), opens the connection to the XBee if necessary and reads all data available from the passed in XBee interface
-    //    When done processing the data, getXBeeDataTask returns to main UI thread (onPostExecute()), and ends with a call to scheduleCheckForData() to set up the next check for data run before ending the task
-    private class getXBeeDataTask extends AsyncTask<AndroidXBeeInterface, Void, String>
+    // MergedReadingSink - records the readings of all the radios, oldest first, on the merger thread
+    private class MergedReadingSink implements ReadingMerger.ReadingSink
     {
-        private int usefulLength = 0;
-        @Override
-        protected String doInBackground(AndroidXBeeInterface... xbee)
+        public void onReading(Reading reading)
         {
-            AndroidXBeeInterface myXBeeInterface = xbee[0];
-            //    DebugUtils.msg("getXBeeDataTask doInBackground() trying to open XBee Connection");
-            if (myXBeeInterface == null)
+            recorder.recordData(reading);
+            WindowAggregator myAggregator = aggregator;
+            if (myAggregator != null)
             {
-                //        DebugUtils.msg("getXBeeDataTask doInBackground() No XBee Interface");
+                myAggregator.add(reading);
             }
-            else
-            {
-                String sData = "";
-                ContentValues processedData = new ContentValues();
-                try
-                {
-                    if (!myXBeeInterface.isOpen())
-                    {
-                        myXBeeInterface.open();
-                    }
-                    byte[] buffer = new byte[1024];
-                    int iLength;
-
-
-
-                    //       DebugUtils.msg("getXBeeDataTask doInBackground() reading XBee data");
-                    while ((iLength = myXBeeInterface.readData(buffer)) > 0)
-                    {
-                        usefulLength = usefulLength + iLength;
-                        DebugUtils.msg("getXBeeDataTask doInBackground() read data length " + usefulLength);
-                        sData = sData + new String(buffer,0,iLength); //just keep adding to sData until we reset it
-//                        sData = new String(buffer);
-                        DebugUtils.msg("getXBeeDataTask doInBackground() data is before change " + sData);
-                    }
-
-                }
-                catch (Exception e)
-                {
-                    //         DebugUtils.msg("getXBeeDataTask doInBackground() problem getting XBee data " + e.toString());
-                }
-                if(sData.length()>0){
-                    processedData = processData(sData);}
-                if (bRecording && processedData.size() > 0) // need to record and have good data
-                {
-                    recorder.recordData(processedData);
-                }
-            }
-            return "OK";
         }
+    }
 
+    // DataCountUpdate - updates the data count display when it changed. Runs on the main UI thread with the monitor updates
+    private class DataCountUpdate implements Runnable
+    {
+        private long shownCount = -1;
 
-        // process things back on the main thread
-        protected void onPostExecute(String sStatus)
+        public void run()
         {
-            updateMonitors();
-            recorder.updateDataCount(recorder.dataCount);
-
-
-            //       DebugUtils.msg("getXBeeDataTask onPostExecute() calling scheduleCheckForData()");
-
-            scheduleCheckFoData(); // set up the next check for data run
+            long count = recorder.getRecordedDataSize(); // rows committed to the database
+            if (count != shownCount)
+            {
+                shownCount = count;
+                recorder.updateDataCount(count);
+            }
         }
-
     }
 
-
-
 }
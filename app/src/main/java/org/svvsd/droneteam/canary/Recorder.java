@@ -1,15 +1,27 @@
 package org.svvsd.droneteam.canary;
 
+import java.io.IOException;
+import java.io.Writer;
 import java.text.NumberFormat;
 import java.util.Date;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.DatabaseUtils;
+import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Handler;
+import android.os.Looper;
 import android.widget.TextView;
 
 ////////////////////////////////////
@@ -19,39 +31,221 @@ import android.widget.TextView;
 //   Optionally displays the size of all the recorded data
 //
 // Things that need customizing
-//   Add the XBee field names to DatabaseHelper.onCreate() data table definition (use INTEGER, TEXT, REAL column types)
+//   Add the XBee field names to DatabaseHelper.createDataTable() data table definition (use INTEGER, TEXT, REAL column types)
 //
 // Constructor
 //   Recorder(Context)
 //
 // Public variables
-//   dataCount - how much recorded data there is (number of rows in database)
+//   dataCount - the recorded data count last shown by updateDataCount(). Main UI thread only, getRecordedDataSize() is the live count
+//
+// Writing data
+//   The storage path up to the database is a StorageWriter (see it for the details), with the capture log and spill file in the app's files directory.
+//   recordData() only puts a copy of the reading on its storage queue (see ReadingQueue), a bounded lock free ring, so it never waits on storage.
+//   If storage falls behind (slow flash, a new capture log segment) and the queue fills, the overflow policy decides what happens (see setOverflowPolicy()) -
+//   by default readings spill to a file and are appended once storage catches up, so a storage hiccup never backs up into the radios
+//   An append thread appends each reading to the capture log (see CaptureLog), a memory mapped file, tagged with the session.
+//   That never waits on the database, and the data survives the app being killed from that moment on.
+//   An ingest thread reads the capture log and DatabaseSink commits the data to the database in batches, one transaction per batch,
+//   which is much faster than a transaction per row. A batch is committed when it has maxBatchRows rows, or when its oldest row
+//   has waited maxBatchDelayMs. The ingest thread's place in the capture log is saved in recorderstate in the same transaction as the batch,
+//   so after a crash it picks up right where the last commit left off, and every logged row ends up in the database exactly once.
+//   Capture log segments the ingest thread is done with are recycled. The database runs in write ahead logging (WAL) mode.
+//   Rows are inserted with a precompiled insert statement bound straight from the reading fields.
+//
+// Finding data to upload
+//   uploadWatermark is the highest dataId at or below which every row is uploaded. It is kept in the recorderstate table, and moved up
+//   in the same transaction that marks a batch uploaded. Batches are fetched starting just above it through the canarydata_pending partial index
+//   (only rows with no uploaded value are in it), so getting the next batch costs the same no matter how much uploaded data is in the table
+//
+// Sequences (see UploadBatch)
+//   dataId is each row's sequence number for uploading - AUTOINCREMENT never hands out an id twice, and eraseData() keeps the sequence going
+//   deviceId is a random id made once with the database, kept in recorderstate, so it lives exactly as long as the sequence. The server keeps rows by
+//   deviceId, stream and sequence, so a batch sent twice is only stored once. Batches cover a range of sequences, so they are marked uploaded with one range update
+//   sequencesConfirmed in recorderstate remembers that the server has answered ACK, so after a crash uploading can ask it what it already has right away.
+//   It is read once when the Recorder is made and mirrored in memory, so isSequencesConfirmed() does not touch the database
+//   The streams are data (all the rows), session<sessionId> (one flight session's rows) and summary<windowMs> (one window length's summaries, by summaryId)
+//
+// Counting data
+//   How many rows are recorded and uploaded is kept in the recordercounters table, changed in the same transaction that inserts, marks or erases rows,
+//   and mirrored in memory. getRecordedDataSize() and getUploadedDataSize() just read the memory copy, so they cost nothing however big the table gets
+//
+// Flight sessions
+//   startSession() and endSession() bracket a flight. Rows recorded in between are tagged with the session's sessionId (rows recorded outside one have none),
+//   and the canarydata_session index on (sessionId, dataId) lets a single flight be uploaded, exported or erased in time proportional to that flight only
+//   eraseData() does not delete row by row, it drops and recreates canarydata, keeping the dataId sequence going so upload positions stay valid
+//
+// Metrics (see Metrics, the storage ones are kept by StorageWriter)
+//   recorder.appendNs - how long adding a reading to the capture log took, recorder.commitUs - how long each batch transaction took
+//   recorder.batchRows - rows per batch, recorder.commitFailures - batch transactions that failed and will be retried
+//   recorder.queueDepth - rows and summaries logged but not committed yet
+//   recorder.storageQueueDepth, recorder.storageHighWater - readings on the storage queue (spilled ones included), and the most ever in its ring at once
+//   recorder.storageDropped, recorder.storageSpilled - readings the storage queue threw away or the capture log could not take, and readings written to the spill file
+//
+// Summaries
+//   Receiver feeds what it records to a WindowAggregator, which hands Recorder the count, min, max and mean of every sensor field over each window
+//   (1 second, 10 seconds and 1 minute by default). They go in the canarysummary table, one row per window, with <field>Min, <field>Max and <field>Mean columns.
+//   Ended windows wait in memory and are committed by the ingest thread with its next batch, so summaries never make the reader wait on the database either.
+//   A summary is tagged with the session that was current when its window ended. Dashboards can read them with querySummaries(), and low bandwidth
+//   uploads can send them instead of the raw rows with getSummaryUploadStore(). Once raw rows are uploaded and old, downsampleRawData() can delete them,
+//   leaving just their summaries. Summaries are only kept for data recorded since the table was added, older rows are never downsampled
 //
 // Public Methods
-//   recordData(ContentValues) - records the passed in ContentValues into the database. ContentValues keys are the database column names to update
+//   recordData(Reading) - queues a copy of the passed in Reading to be recorded into the database. The reading can be reused as soon as this returns
+//   setOverflowPolicy(policy) - what recordData() does when the storage queue is full, ReadingQueue.SPILL (default), ReadingQueue.BLOCK or ReadingQueue.DROP_OLDEST
+//   setMaxUnflushed(maxBatchRows, maxBatchDelayMs) - sets how many rows, or how many milliseconds of data, can be waiting to be committed (the durability knob)
+//   flush() - waits (up to FLUSH_TIMEOUT_MS) until all the logged data is committed to the database, forcing the capture log to the disk first. Use before shutting down
+//   runInBackground(task, whenDone) - runs task on the recorder's background thread, then whenDone (if not null) on the main thread. Tasks run one at a time,
+//     in order. flush(), startSession(), endSession(), eraseData() and eraseSession() can wait seconds on storage, so the UI calls them through this
+//   setCommitListener(Runnable) - runs on the ingest thread after each batch of new rows is committed, so uploading can wake up for them. Keep it quick
 //   getNonUploadedData() - returns ContentValues of 1 row of non-uploaded data. Will have zero size if there are no non-uploaded data rows. Called by Uploader to get a row of data to upload.
+//   getNonUploadedData(maxRows) - returns an UploadBatch of up to maxRows rows of non-uploaded data, oldest first. Will have zero size if there are no non-uploaded data rows. Called by Uploader for batch uploads.
+//   nextBatch(afterDataId, maxRows) - like getNonUploadedData(maxRows), but only rows with a dataId above afterDataId, so rows already being uploaded are not fetched again. Called by UploadEngine
+//   markDataUploaded(UploadBatch) - marks all the rows in the batch as uploaded with one update. Used by Uploader when a batch has been successfully sent to the server
+//   markUploaded(UploadBatch) - same as markDataUploaded(UploadBatch), for UploadEngine
+//   getStream() - the stream name of the rows nextBatch() hands out, data
+//   getDeviceId() - the id the server tells this device's rows apart by, see Sequences
+//   isSequencesConfirmed() - whether the server is known to acknowledge sequences, see Sequences
+//   setSequencesConfirmed() - remembers that the server acknowledges sequences
 //   markDataUploaded(dataId) - marks the data row of dataId as uploaded by setting a timestamp value in the uploaded column. Used by Uploader to mark data as uploaded when it has been successfully sent to the server
 //   getRecordedDataSize() - gets the current size of the stored data (number of data rows stored in the database)
 //   getUploadedDataSize() - gets the current size of the uploaded stored data (number of data rows stored in the database that have an uploaded value set)
 //   eraseData() - erases all the stored data
+//   startSession() - starts a new flight session, rows recorded from now on are tagged with it. Returns its sessionId
+//   endSession() - ends the current flight session, after committing the data queued in it
+//   getCurrentSessionId() - the sessionId rows are being tagged with, 0 when there is no session
+//   getSessionIds() - the sessionIds of all the flight sessions, oldest first
+//   getSessionUploadStore(sessionId) - an UploadStore for only the rows of one flight session, for uploading just that flight
+//   exportSession(sessionId, Writer) - writes one flight session's rows as CSV, returning how many rows were written
+//   eraseSession(sessionId) - erases one flight session's rows
+//   onSummary(Summary) - queues a window summary to be recorded into the canarysummary table. Called by Receiver's WindowAggregator
+//   querySummaries(windowMs, fromMs) - a Cursor of the summaries of one window length starting at or after fromMs, oldest first. Close it when done
+//   getSummaryUploadStore(windowMs) - an UploadStore for the summaries of one window length, for uploading those instead of the raw rows
+//   downsampleRawData(olderThanMs) - deletes uploaded raw rows recorded before olderThanMs (milliseconds since 1970) that have summaries, returning how many
 //   setDataCountView(TextView) - sets the UI field to update with size of data, and does initial calculation of data size
 //   updateDataCount() - gets current actual data size, and updates UI field with it. Use once at beginning.
 //   updateDataCount(long) - updates UI field with value of long (formatted). Use for ongoing updates once initialized
 //
 ///////////////////////////
 
-public class Recorder
+public class Recorder implements UploadStore, WindowAggregator.SummaryListener
 {
-    public long dataCount = 0; // how much recorded data there is
+    public long dataCount = 0; // the recorded data count last shown, main UI thread only
     private static final String DATABASE_NAME = "canary.db";
-    private static final int DATABASE_VERSION = 1;
+    private static final int DATABASE_VERSION = 7;
     private SQLiteDatabase db;
+    private DatabaseHelper dbHelper;
     private TextView dataCountView = null;
     private NumberFormat numberFormat = NumberFormat.getInstance(); // get local number formatting scheme
 
+    private static final long FLUSH_TIMEOUT_MS = 5000; // longest flush() waits, in case the database keeps failing
+    private final Handler mainHandler = new Handler(Looper.getMainLooper()); // for runInBackground() whenDone and data count updates
+    private final AtomicBoolean bCountUpdatePosted = new AtomicBoolean(false); // whether a data count update is waiting on the main thread
+    private final Runnable countUpdate = new Runnable() // shows the committed row count, posted after each commit
+    {
+        public void run()
+        {
+            bCountUpdatePosted.set(false);
+            updateDataCount();
+        }
+    };
+    private final ExecutorService background = Executors.newSingleThreadExecutor(new ThreadFactory() // runs runInBackground() tasks, in order
+    {
+        public Thread newThread(Runnable runnable)
+        {
+            Thread thread = new Thread(runnable, "Canary Recorder Background");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    private StorageWriter storageWriter; // storage queue, capture log and ingest thread, null if the capture log could not be opened
+    private volatile Runnable commitListener = null; // told about newly committed rows, see setCommitListener()
+    private volatile long uploadWatermark = 0; // highest dataId at or below which every row is uploaded
+    private final long deviceId; // the id the server tells this device's rows apart by, see Sequences
+    private volatile boolean bSequencesConfirmed; // same as the recorderstate sequencesConfirmed value, see Sequences
+    private final AtomicLong recordedCount = new AtomicLong(); // rows in canarydata, same as the recordercounters recorded value
+    private final AtomicLong uploadedCount = new AtomicLong(); // rows in canarydata marked uploaded, same as the recordercounters uploaded value
+    private volatile long currentSessionId = 0; // flight session new rows are tagged with, 0 for none
+    private static final CanaryLog.Subsystem LOG = CanaryLog.subsystem("recorder");
+    private final ConcurrentLinkedQueue<PendingSummary> pendingSummaries = new ConcurrentLinkedQueue<PendingSummary>(); // ended windows waiting to be committed
+
     public Recorder(Context context)
     {
-        db = new DatabaseHelper(context).getWritableDatabase();
+        dbHelper = new DatabaseHelper(context);
+        db = dbHelper.getWritableDatabase();
+        db.enableWriteAheadLogging(); // readers (counts, uploads) do not block the writer, and commits are cheaper
+        uploadWatermark = getState("uploadWatermark", 0);
+        deviceId = getState("deviceId", 0);
+        bSequencesConfirmed = getState("sequencesConfirmed", 0) != 0;
+        recordedCount.set(getCounter("recorded"));
+        uploadedCount.set(getCounter("uploaded"));
+        try
+        {
+            storageWriter = new StorageWriter(context.getFilesDir(), "Canary Recorder", new DatabaseSink());
+        }
+        catch (IOException e)
+        {
+            LOG.error("Recorder unable to open the capture log, not recording {}", e);
+            return;
+        }
+        storageWriter.start(getState("captureSegment", 0), (int) getState("captureOffset", 0)); // where the last commit left off
+    }
+
+    // setCommitListener(Runnable) - runs on the ingest thread after each batch of new rows is committed. Keep it quick
+    public void setCommitListener(Runnable listener)
+    {
+        commitListener = listener;
+    }
+
+    // setOverflowPolicy(policy) - what recordData() does when the storage queue is full, see ReadingQueue
+    public void setOverflowPolicy(int policy)
+    {
+        if (storageWriter != null)
+        {
+            storageWriter.setOverflowPolicy(policy);
+        }
+    }
+
+    // setMaxUnflushed(maxBatchRows, maxBatchDelayMs) - sets how many rows, or how many milliseconds of data, can be waiting to be committed (the durability knob)
+    public void setMaxUnflushed(int maxBatchRows, long maxBatchDelayMs)
+    {
+        if (storageWriter != null)
+        {
+            storageWriter.setMaxUnflushed(maxBatchRows, maxBatchDelayMs);
+        }
+    }
+
+    // runInBackground(task, whenDone) - runs task on the recorder's background thread, then whenDone (if not null) on the main thread
+    public void runInBackground(final Runnable task, final Runnable whenDone)
+    {
+        background.execute(new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    task.run();
+                }
+                catch (RuntimeException e)
+                {
+                    LOG.error("runInBackground() task failed {}", e);
+                }
+                if (whenDone != null)
+                {
+                    mainHandler.post(whenDone);
+                }
+            }
+        });
+    }
+
+    // flush() - waits (up to FLUSH_TIMEOUT_MS in all) until all the logged data is committed to the database. Use before shutting down
+    //   Can take seconds when storage is slow, so not on the main thread - see runInBackground()
+    public void flush()
+    {
+        if (storageWriter != null)
+        {
+            storageWriter.flush(System.currentTimeMillis() + FLUSH_TIMEOUT_MS);
+        }
     }
 
     // setDataCountView(TextView) - sets the UI field to update with size of data, and does initial calculation of data size
@@ -77,60 +271,735 @@ public class Recorder
         dataCount = count;
     }
 
-    // recordData(ContentValues) - records the passed in ContentValues into the database. ContentValues keys are the database column names to update
-    public long recordData(ContentValues contentValues)
+    // recordData(Reading) - queues a copy of the passed in Reading to be recorded into the database. The reading can be reused as soon as this returns
+    public void recordData(Reading reading)
+    {
+        if (storageWriter != null)
+        {
+            storageWriter.recordData(reading);
+        }
+    }
+
+    // onSummary(Summary) - queues a window summary to be recorded into the canarysummary table. Called by Receiver's WindowAggregator
+    public void onSummary(WindowAggregator.Summary summary)
     {
-        long dataId = insertIntoTable("canarydata", contentValues);
-        dataCount += 1;
-        return dataId;
+        if (storageWriter == null) // no ingest thread to commit it
+        {
+            return;
+        }
+        PendingSummary pending = new PendingSummary(); // a few a second at most
+        pending.summary.copyFrom(summary);
+        pending.sessionId = currentSessionId;
+        storageWriter.addPending(1);
+        pendingSummaries.offer(pending);
     }
 
     // getNonUploadedData() - returns ContentValues of 1 row of non-uploaded data. Will have zero size if there are no non-uploaded data rows. Called by Uploader to get a row of data to upload.
     public ContentValues getNonUploadedData()
     {
         ContentValues contentValues = new ContentValues();
-        Cursor cursor = db.rawQuery("select * from canarydata where uploaded is null limit 1", null);
+        Cursor cursor = db.rawQuery("select * from canarydata where dataId > " + uploadWatermark + " and uploaded is null order by dataId limit 1", null);
         if (cursor.getCount() > 0)
         {
             cursor.moveToPosition(0);
             DatabaseUtils.cursorRowToContentValues(cursor, contentValues);
+            contentValues.remove("sessionId"); // internal, not meant to be sent
         }
         cursor.close();
         return contentValues;
     }
 
-    // markDataUploaded(dataId) - marks the data row of dataId as uploaded by setting a timestamp value in the uploaded column. Used by Uploader to mark data as uploaded when it has been successfully sent to the server
-    public void markDataUploaded(long dataId)
+    // getNonUploadedData(maxRows) - returns an UploadBatch of up to maxRows rows of non-uploaded data, oldest first. Will have zero size if there are no non-uploaded data rows. Called by Uploader for batch uploads.
+    public UploadBatch getNonUploadedData(int maxRows)
+    {
+        return nextBatch(0, maxRows);
+    }
+
+    // nextBatch(afterDataId, maxRows) - like getNonUploadedData(maxRows), but only rows with a dataId above afterDataId, so rows already being uploaded are not fetched again. Called by UploadEngine
+    public UploadBatch nextBatch(long afterDataId, int maxRows)
+    {
+        return queryBatch("select * from canarydata where dataId > " + Math.max(afterDataId, uploadWatermark) + " and uploaded is null order by dataId limit " + maxRows);
+    }
+
+    // queryBatch(query) - runs a select * from canarydata query, returning the rows as an UploadBatch
+    private UploadBatch queryBatch(String sQuery)
+    {
+        return queryBatch(sQuery, "dataId");
+    }
+
+    // queryBatch(query, idColumn) - runs a select * query, returning the rows as an UploadBatch with the idColumn values as the row ids
+    private UploadBatch queryBatch(String sQuery, String sIdColumn)
+    {
+        Cursor cursor = db.rawQuery(sQuery, null);
+        int dataIdColumn = cursor.getColumnIndex(sIdColumn);
+        int[] cursorColumns = dataColumns(cursor);
+        String[] columns = new String[cursorColumns.length];
+        int c;
+        for (c = 0; c < columns.length; c++)
+        {
+            columns[c] = cursor.getColumnName(cursorColumns[c]);
+        }
+
+        UploadBatch batch = new UploadBatch(columns, cursor.getCount());
+        while (cursor.moveToNext())
+        {
+            String[] values = new String[columns.length];
+            for (c = 0; c < columns.length; c++)
+            {
+                values[c] = cursor.getString(cursorColumns[c]);
+            }
+            batch.addRow(cursor.getLong(dataIdColumn), values);
+        }
+        cursor.close();
+        return batch;
+    }
+
+    // dataColumns(cursor) - the cursor columns of the data values, leaving out dataId, summaryId, uploaded and sessionId, which are internal and not meant to be sent
+    private int[] dataColumns(Cursor cursor)
+    {
+        int columnCount = cursor.getColumnCount();
+        int[] columns = new int[columnCount];
+        int c = 0;
+        for (int i = 0; i < columnCount; i++)
+        {
+            String sName = cursor.getColumnName(i);
+            if (!sName.equals("dataId") && !sName.equals("summaryId") && !sName.equals("uploaded") && !sName.equals("sessionId"))
+            {
+                columns[c++] = i;
+            }
+        }
+        int[] dataColumns = new int[c];
+        System.arraycopy(columns, 0, dataColumns, 0, c);
+        return dataColumns;
+    }
+
+    // markUploaded(UploadBatch) - same as markDataUploaded(UploadBatch), for UploadEngine
+    public void markUploaded(UploadBatch batch)
+    {
+        markDataUploaded(batch);
+    }
+
+    // markDataUploaded(UploadBatch) - marks all the rows in the batch as uploaded with one update. Used by Uploader when a batch has been successfully sent to the server
+    public void markDataUploaded(UploadBatch batch)
+    {
+        if (batch.size == 0)
+        {
+            return;
+        }
+        markRowsUploaded(batchWhere("dataId", batch));
+    }
+
+    // batchWhere(idColumn, UploadBatch) - a where clause matching the rows of the batch by their ids. A batch that knows the range of sequences
+    //   it covers (see UploadBatch) is matched by that range, since none of the stream's other rows in it are left to upload
+    private String batchWhere(String sIdColumn, UploadBatch batch)
+    {
+        if (batch.firstSequence > 0)
+        {
+            return sIdColumn + " between " + batch.firstSequence + " and " + batch.lastSequence();
+        }
+        long firstId = batch.dataIds[0];
+        long lastId = batch.dataIds[batch.size - 1];
+        if (lastId - firstId + 1 == batch.size) // rows are contiguous, so a range does it
+        {
+            return sIdColumn + " between " + firstId + " and " + lastId;
+        }
+        StringBuilder sb = new StringBuilder(sIdColumn).append(" in (");
+        for (int i = 0; i < batch.size; i++)
+        {
+            if (i > 0)
+            {
+                sb.append(',');
+            }
+            sb.append(batch.dataIds[i]);
+        }
+        return sb.append(')').toString();
+    }
+
+    // markRowsUploaded(where) - marks the not yet uploaded rows matching where as uploaded, counting them and moving the watermark up in the same transaction
+    private void markRowsUploaded(String sWhere)
     {
         ContentValues contentValues = new ContentValues();
         contentValues.put("uploaded", new Date().getTime());
-        updateTable("canarydata", contentValues, "dataId=" + dataId);
+        int marked;
+        db.beginTransactionNonExclusive();
+        try
+        {
+            marked = updateTable("canarydata", contentValues, "(" + sWhere + ") and uploaded is null"); // already uploaded rows are not counted twice
+            addCounter("uploaded", marked);
+            advanceUploadWatermark();
+            db.setTransactionSuccessful();
+        }
+        finally
+        {
+            db.endTransaction();
+        }
+        uploadedCount.addAndGet(marked);
+    }
+
+    // advanceUploadWatermark() - moves uploadWatermark up to just below the oldest non-uploaded row. Call inside the transaction that marks rows uploaded
+    private void advanceUploadWatermark()
+    {
+        long watermark;
+        Cursor cursor = db.rawQuery("select min(dataId) from canarydata where dataId > " + uploadWatermark + " and uploaded is null", null);
+        if (cursor.moveToFirst() && !cursor.isNull(0))
+        {
+            watermark = cursor.getLong(0) - 1;
+        }
+        else // nothing left to upload, everything we have is uploaded
+        {
+            cursor.close();
+            cursor = db.rawQuery("select max(dataId) from canarydata", null);
+            watermark = (cursor.moveToFirst() && !cursor.isNull(0)) ? cursor.getLong(0) : uploadWatermark;
+        }
+        cursor.close();
+        if (watermark > uploadWatermark)
+        {
+            setState("uploadWatermark", watermark);
+            uploadWatermark = watermark;
+        }
+    }
+
+    // getStream() - the stream name of the rows nextBatch() hands out, data
+    public String getStream()
+    {
+        return "data";
+    }
+
+    // getDeviceId() - the id the server tells this device's rows apart by, see Sequences
+    public long getDeviceId()
+    {
+        return deviceId;
+    }
+
+    // isSequencesConfirmed() - whether the server is known to acknowledge sequences, see Sequences
+    public boolean isSequencesConfirmed()
+    {
+        return bSequencesConfirmed;
+    }
+
+    // setSequencesConfirmed() - remembers that the server acknowledges sequences
+    public void setSequencesConfirmed()
+    {
+        if (!bSequencesConfirmed)
+        {
+            setState("sequencesConfirmed", 1);
+            bSequencesConfirmed = true;
+        }
+    }
+
+    // markDataUploaded(dataId) - marks the data row of dataId as uploaded by setting a timestamp value in the uploaded column. Used by Uploader to mark data as uploaded when it has been successfully sent to the server
+    public void markDataUploaded(long dataId)
+    {
+        markRowsUploaded("dataId=" + dataId);
     }
 
     // getRecordedDataSize() - gets the current size of the stored data (number of data rows stored in the database)
     public long getRecordedDataSize()
     {
-        return DatabaseUtils.queryNumEntries(db, "canarydata");
+        return recordedCount.get();
     }
 
     // getUploadedDataSize() - gets the current size of the uploaded stored data (number of data rows stored in the database that have an uploaded value set)
     public long getUploadedDataSize()
     {
-        Cursor cursor = db.rawQuery("select count(*) from canarydata where uploaded is not null", null);
-        long size = 0;
-        if (cursor.getCount() > 0)
+        return uploadedCount.get();
+    }
+
+    // eraseData() - erases all the stored data
+    public void eraseData()
+    {
+        flush(); // so logged data does not show up after the erase
+        db.beginTransactionNonExclusive();
+        try
         {
-            cursor.moveToPosition(0);
-            size = cursor.getLong(0);
+            // dropping the table is much faster than deleting every row. Keep the dataId sequence going, so ids are never reused
+            Cursor cursor = db.rawQuery("select seq from sqlite_sequence where name = 'canarydata'", null);
+            long lastDataId = cursor.moveToFirst() ? cursor.getLong(0) : 0;
+            cursor.close();
+            db.execSQL("drop table canarydata");
+            dbHelper.createDataTable(db);
+            if (lastDataId > 0)
+            {
+                db.execSQL("insert into sqlite_sequence (name, seq) values ('canarydata', ?)", new Object[] {lastDataId});
+            }
+            db.execSQL("delete from sessions where sessionId <> ?", new Object[] {currentSessionId});
+            db.execSQL("delete from canarysummary");
+            setState("summaryFromDataId", lastDataId);
+            db.execSQL("update recordercounters set value = 0");
+            setState("uploadWatermark", lastDataId);
+            db.setTransactionSuccessful();
+            uploadWatermark = lastDataId;
+        }
+        finally
+        {
+            db.endTransaction();
+        }
+        recordedCount.set(0);
+        uploadedCount.set(0);
+    }
+
+    // startSession() - starts a new flight session, rows recorded from now on are tagged with it. Returns its sessionId
+    public long startSession()
+    {
+        endSession();
+        if (storageWriter != null)
+        {
+            storageWriter.awaitAppended(System.currentTimeMillis() + FLUSH_TIMEOUT_MS); // rows recorded before now are not part of the session
+        }
+        ContentValues contentValues = new ContentValues();
+        contentValues.put("started", System.currentTimeMillis());
+        setCurrentSessionId(insertIntoTable("sessions", contentValues));
+        return currentSessionId;
+    }
+
+    // endSession() - ends the current flight session, after committing the data queued in it
+    public void endSession()
+    {
+        if (currentSessionId == 0)
+        {
+            return;
+        }
+        flush(); // queued rows belong to the session ending
+        ContentValues contentValues = new ContentValues();
+        contentValues.put("ended", System.currentTimeMillis());
+        updateTable("sessions", contentValues, "sessionId=" + currentSessionId);
+        setCurrentSessionId(0);
+    }
+
+    // setCurrentSessionId(sessionId) - tags rows recorded from now on, and summaries of windows ending from now on, with the session
+    private void setCurrentSessionId(long sessionId)
+    {
+        currentSessionId = sessionId;
+        if (storageWriter != null)
+        {
+            storageWriter.setTag(sessionId);
+        }
+    }
+
+    // getCurrentSessionId() - the sessionId rows are being tagged with, 0 when there is no session
+    public long getCurrentSessionId()
+    {
+        return currentSessionId;
+    }
+
+    // getSessionIds() - the sessionIds of all the flight sessions, oldest first
+    public long[] getSessionIds()
+    {
+        Cursor cursor = db.rawQuery("select sessionId from sessions order by sessionId", null);
+        long[] sessionIds = new long[cursor.getCount()];
+        for (int i = 0; cursor.moveToNext(); i++)
+        {
+            sessionIds[i] = cursor.getLong(0);
         }
         cursor.close();
-        return size;
+        return sessionIds;
     }
 
-    // eraseData() - erases all the stored data
-    public void eraseData()
+    // getSessionUploadStore(sessionId) - an UploadStore for only the rows of one flight session, for uploading just that flight
+    public UploadStore getSessionUploadStore(final long sessionId)
+    {
+        return new UploadStore()
+        {
+            public UploadBatch nextBatch(long afterDataId, int maxRows)
+            {
+                // the planner would rather walk dataId from afterDataId, through every later flight too
+                return queryBatch("select * from canarydata indexed by canarydata_session where sessionId = " + sessionId + " and dataId > " + afterDataId +
+                        " and uploaded is null order by dataId limit " + maxRows);
+            }
+
+            public void markUploaded(UploadBatch batch)
+            {
+                if (batch.size == 0)
+                {
+                    return;
+                }
+                markRowsUploaded("sessionId = " + sessionId + " and " + batchWhere("dataId", batch)); // the range also holds other sessions' rows
+            }
+
+            public String getStream()
+            {
+                return "session" + sessionId;
+            }
+        };
+    }
+
+    // exportSession(sessionId, Writer) - writes one flight session's rows as CSV, returning how many rows were written
+    public long exportSession(long sessionId, Writer writer) throws IOException
     {
-        db.execSQL("delete from canarydata");
+        if (sessionId == currentSessionId)
+        {
+            flush();
+        }
+        Cursor cursor = db.rawQuery("select * from canarydata where sessionId = " + sessionId + " order by dataId", null);
+        long rows = 0;
+        try
+        {
+            int[] columns = dataColumns(cursor);
+            for (int c = 0; c < columns.length; c++)
+            {
+                writer.write(c > 0 ? "," : "");
+                writeCsvValue(writer, cursor.getColumnName(columns[c]));
+            }
+            writer.write("\n");
+            while (cursor.moveToNext())
+            {
+                for (int c = 0; c < columns.length; c++)
+                {
+                    writer.write(c > 0 ? "," : "");
+                    writeCsvValue(writer, cursor.getString(columns[c]));
+                }
+                writer.write("\n");
+                rows++;
+            }
+        }
+        finally
+        {
+            cursor.close();
+        }
+        writer.flush();
+        return rows;
+    }
+
+    // writeCsvValue(Writer, value) - writes a CSV value, quoted if it needs to be. Nothing for null
+    private void writeCsvValue(Writer writer, String sValue) throws IOException
+    {
+        if (sValue == null)
+        {
+            return;
+        }
+        if (sValue.indexOf(',') < 0 && sValue.indexOf('"') < 0 && sValue.indexOf('\n') < 0)
+        {
+            writer.write(sValue);
+            return;
+        }
+        writer.write('"');
+        writer.write(sValue.replace("\"", "\"\""));
+        writer.write('"');
+    }
+
+    // eraseSession(sessionId) - erases one flight session's rows
+    public void eraseSession(long sessionId)
+    {
+        if (sessionId == currentSessionId)
+        {
+            flush(); // so logged data does not show up after the erase
+        }
+        long rows = 0;
+        long uploaded = 0;
+        db.beginTransactionNonExclusive();
+        try
+        {
+            Cursor cursor = db.rawQuery("select count(*), count(uploaded) from canarydata where sessionId = " + sessionId, null);
+            if (cursor.moveToFirst())
+            {
+                rows = cursor.getLong(0);
+                uploaded = cursor.getLong(1);
+            }
+            cursor.close();
+            db.execSQL("delete from canarydata where sessionId = " + sessionId);
+            db.execSQL("delete from canarysummary where sessionId = " + sessionId);
+            if (sessionId != currentSessionId)
+            {
+                db.execSQL("delete from sessions where sessionId = " + sessionId);
+            }
+            addCounter("recorded", -rows);
+            addCounter("uploaded", -uploaded);
+            advanceUploadWatermark();
+            db.setTransactionSuccessful();
+        }
+        finally
+        {
+            db.endTransaction();
+        }
+        recordedCount.addAndGet(-rows);
+        uploadedCount.addAndGet(-uploaded);
+    }
+
+
+    // querySummaries(windowMs, fromMs) - a Cursor of the summaries of one window length starting at or after fromMs, oldest first. Close it when done
+    //   windowStart is in the same form as the canarydata Timestamp column
+    public Cursor querySummaries(long windowMs, long fromMs)
+    {
+        return db.rawQuery("select * from canarysummary where windowMs = " + windowMs + " and windowStart >= datetime(" + fromMs + " / 1000, 'unixepoch') " +
+                "order by windowStart", null);
+    }
+
+    // getSummaryUploadStore(windowMs) - an UploadStore for the summaries of one window length, for uploading those instead of the raw rows
+    public UploadStore getSummaryUploadStore(final long windowMs)
+    {
+        return new UploadStore()
+        {
+            public UploadBatch nextBatch(long afterSummaryId, int maxRows)
+            {
+                return queryBatch("select * from canarysummary where windowMs = " + windowMs + " and summaryId > " + afterSummaryId +
+                        " and uploaded is null order by summaryId limit " + maxRows, "summaryId");
+            }
+
+            public void markUploaded(UploadBatch batch)
+            {
+                if (batch.size == 0)
+                {
+                    return;
+                }
+                ContentValues contentValues = new ContentValues();
+                contentValues.put("uploaded", new Date().getTime());
+                db.beginTransactionNonExclusive(); // like markRowsUploaded(), so a batch is marked all or nothing
+                try
+                {
+                    // already uploaded summaries keep the time they were first uploaded
+                    updateTable("canarysummary", contentValues, "windowMs = " + windowMs + " and (" + batchWhere("summaryId", batch) + ") and uploaded is null");
+                    db.setTransactionSuccessful();
+                }
+                finally
+                {
+                    db.endTransaction();
+                }
+            }
+
+            public String getStream()
+            {
+                return "summary" + windowMs;
+            }
+        };
+    }
+
+    // downsampleRawData(olderThanMs) - deletes uploaded raw rows recorded before olderThanMs (milliseconds since 1970) that have summaries, returning how many
+    //   Only rows at or below the upload watermark go, so they are all uploaded and the upload position is not disturbed
+    public long downsampleRawData(long olderThanMs)
+    {
+        int deleted;
+        db.beginTransactionNonExclusive();
+        try
+        {
+            deleted = db.delete("canarydata", "dataId > " + getState("summaryFromDataId", 0) + " and dataId <= " + uploadWatermark +
+                    " and Timestamp < datetime(" + olderThanMs + " / 1000, 'unixepoch')", null);
+            addCounter("recorded", -deleted);
+            addCounter("uploaded", -deleted);
+            db.setTransactionSuccessful();
+        }
+        finally
+        {
+            db.endTransaction();
+        }
+        recordedCount.addAndGet(-deleted);
+        uploadedCount.addAndGet(-deleted);
+        return deleted;
+    }
+
+
+    // getState(name, default) - gets a value saved in the recorderstate table, or default if it has not been saved
+    private long getState(String sName, long defaultValue)
+    {
+        Cursor cursor = db.rawQuery("select value from recorderstate where name = ?", new String[] {sName});
+        long value = cursor.moveToFirst() ? cursor.getLong(0) : defaultValue;
+        cursor.close();
+        return value;
+    }
+
+    // getCounter(name) - gets a count kept in the recordercounters table
+    private long getCounter(String sName)
+    {
+        Cursor cursor = db.rawQuery("select value from recordercounters where name = ?", new String[] {sName});
+        long value = cursor.moveToFirst() ? cursor.getLong(0) : 0;
+        cursor.close();
+        return value;
+    }
+
+    // addCounter(name, amount) - adds to a count kept in the recordercounters table. Call inside the transaction that changes the rows counted
+    private void addCounter(String sName, long amount)
+    {
+        if (amount != 0)
+        {
+            db.execSQL("update recordercounters set value = value + ? where name = ?", new Object[] {amount, sName});
+        }
+    }
+
+    // setState(name, value) - saves a value in the recorderstate table
+    private void setState(String sName, long value)
+    {
+        db.execSQL("insert or replace into recorderstate (name, value) values (?, ?)", new Object[] {sName, value});
+    }
+
+
+    //////////////
+    // ingest routines
+    //////////////
+
+    // DatabaseSink - commits the batches StorageWriter's ingest thread reads from the capture log to the database, one transaction per batch
+    private class DatabaseSink implements StorageWriter.CommitSink
+    {
+        private SQLiteStatement insertStatement; // compiled once, bound from each reading
+        private SQLiteStatement summaryStatement; // compiled once, bound from each summary
+        private StringBuilder sbTestField = new StringBuilder(256); // reused for building the testfield value
+
+        // hasPending() - whether there are summaries waiting, they go on their own when there is no data coming
+        public boolean hasPending()
+        {
+            return !pendingSummaries.isEmpty();
+        }
+
+        // insertReading(Reading, sessionId) - binds the reading fields to the insert statement and runs it. Sensor groups the reading does not have are left null
+        private void insertReading(Reading reading, long sessionId)
+        {
+            SQLiteStatement statement = insertStatement;
+            statement.clearBindings(); // unbound parameters are null
+
+            // testfield keeps the frame text, with anything but digits and separators taken out
+            sbTestField.setLength(0);
+            sbTestField.append("full data");
+            for (int i = 0; i < reading.rawLength; i++)
+            {
+                byte b = reading.raw[i];
+                if ((b >= '0' && b <= '9') || b == '|' || b == '.' || b == ',')
+                {
+                    sbTestField.append((char) b);
+                }
+            }
+            statement.bindString(1, sbTestField.toString());
+
+            if (reading.has(Reading.ATMOSPHERE))
+            {
+                statement.bindDouble(2, reading.temperature);
+                statement.bindLong(3, reading.pressure);
+                statement.bindLong(4, reading.humidity);
+            }
+            if (reading.has(Reading.GAS))
+            {
+                statement.bindLong(5, reading.co);
+                statement.bindLong(6, reading.h2);
+                statement.bindLong(7, reading.nh4);
+                statement.bindLong(8, reading.ch4);
+                statement.bindLong(9, reading.o3);
+            }
+            if (reading.has(Reading.LIDAR))
+            {
+                statement.bindLong(10, reading.lidar);
+            }
+            if (reading.has(Reading.GPS))
+            {
+                statement.bindDouble(11, reading.latitude);
+                statement.bindDouble(12, reading.longitude);
+                statement.bindDouble(13, reading.altitude);
+            }
+            statement.bindLong(14, reading.timestamp);
+            if (sessionId != 0)
+            {
+                statement.bindLong(15, sessionId);
+            }
+            if (reading.source != 0)
+            {
+                statement.bindLong(16, reading.source);
+            }
+            statement.executeInsert();
+        }
+
+        // insertSummary(PendingSummary) - binds the summary to the summary insert statement and runs it. Fields none of the readings had are left null
+        private void insertSummary(PendingSummary pending)
+        {
+            WindowAggregator.Summary summary = pending.summary;
+            SQLiteStatement statement = summaryStatement;
+            statement.clearBindings();
+            statement.bindLong(1, summary.windowMs);
+            statement.bindLong(2, summary.windowStart);
+            statement.bindLong(3, summary.readings);
+            if (pending.sessionId != 0)
+            {
+                statement.bindLong(4, pending.sessionId);
+            }
+            for (int f = 0; f < WindowAggregator.FIELD_COUNT; f++)
+            {
+                if (summary.count[f] > 0)
+                {
+                    statement.bindDouble(5 + f * 3, summary.min[f]);
+                    statement.bindDouble(6 + f * 3, summary.max[f]);
+                    statement.bindDouble(7 + f * 3, summary.mean(f));
+                }
+            }
+            statement.executeInsert();
+        }
+
+        // commit(batch, sessionIds, size, segment, offset) - inserts the batch and any pending summaries and saves the capture log place in one transaction
+        //   Returns how many summaries went in, or -1 if the transaction failed, in which case nothing was saved and the summaries stay pending
+        public int commit(Reading[] batch, long[] sessionIds, int size, long segment, int offset)
+        {
+            if (insertStatement == null)
+            {
+                insertStatement = db.compileStatement("insert into canarydata (testfield, temperature, pressure, humidity, CO, H2, NH4, CH4, O3, " +
+                        "Lidar, Latitude, Longitude, Altitude, Timestamp, sessionId, source) values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, datetime(? / 1000, 'unixepoch'), ?, ?)");
+            }
+            if (summaryStatement == null)
+            {
+                summaryStatement = db.compileStatement(summaryInsertSql());
+            }
+            int summaries = 0;
+            boolean bCommitted = false;
+            db.beginTransactionNonExclusive();
+            try
+            {
+                for (int i = 0; i < size; i++)
+                {
+                    insertReading(batch[i], sessionIds[i]);
+                }
+                for (PendingSummary pending : pendingSummaries) // only this thread takes them off, so these stay at the head
+                {
+                    insertSummary(pending);
+                    summaries++;
+                }
+                addCounter("recorded", size);
+                setState("captureSegment", segment);
+                setState("captureOffset", offset);
+                db.setTransactionSuccessful();
+                bCommitted = true;
+            }
+            catch (Exception e)
+            {
+                LOG.warn("DatabaseSink commit() unable to record {} rows {}", size, e);
+            }
+            finally
+            {
+                db.endTransaction();
+            }
+            if (!bCommitted)
+            {
+                return -1;
+            }
+            for (int i = 0; i < summaries; i++)
+            {
+                pendingSummaries.poll();
+            }
+            recordedCount.addAndGet(size);
+            if (dataCountView != null && size > 0 && bCountUpdatePosted.compareAndSet(false, true)) // one update waiting at a time, however fast we commit
+            {
+                mainHandler.post(countUpdate);
+            }
+            Runnable listener = commitListener;
+            if (size > 0 && listener != null)
+            {
+                listener.run();
+            }
+            return summaries;
+        }
+    }
+
+
+    // PendingSummary - a window summary waiting for the ingest thread to commit it
+    private static class PendingSummary
+    {
+        final WindowAggregator.Summary summary = new WindowAggregator.Summary();
+        long sessionId; // 0 for none
+    }
+
+    // summaryInsertSql() - the insert statement for a canarysummary row, with the fields' min, max and mean in WindowAggregator.FIELD_NAMES order
+    private static String summaryInsertSql()
+    {
+        StringBuilder sbColumns = new StringBuilder("insert into canarysummary (windowMs, windowStart, readings, sessionId");
+        StringBuilder sbValues = new StringBuilder(") values (?, datetime(? / 1000, 'unixepoch'), ?, ?");
+        for (String sField : WindowAggregator.FIELD_NAMES)
+        {
+            sbColumns.append(", ").append(sField).append("Min, ").append(sField).append("Max, ").append(sField).append("Mean");
+            sbValues.append(", ?, ?, ?");
+        }
+        return sbColumns.append(sbValues).append(')').toString();
     }
 
 
@@ -149,13 +1018,41 @@ public class Recorder
         @Override
         // create the database
         public void onCreate(SQLiteDatabase db)
+        {
+            createDataTable(db);
+
+            // everything else added since version 1
+            onUpgrade(db, 1, DATABASE_VERSION);
+        }
+
+        // createDataTable(db) - creates the canarydata table and its indexes. Also used by eraseData() to recreate it
+        public void createDataTable(SQLiteDatabase db)
         {
             // table to record data and keep track of what has been uploaded
             //   only required is dataId (primary key, automatically generated, you do not set) and uploaded (timestamp), which are used for uploading data
+            //   sessionId is the flight session the row was recorded in, null if none
+            //   source is which radio the row came from (see Receiver), null if not known
             //   column names should be the same name as the field names you plan on uploading, and the same names as the receiver process data and receiver monitors
             db.execSQL("CREATE TABLE IF NOT EXISTS canarydata (dataId INTEGER PRIMARY KEY AUTOINCREMENT, uploaded INTEGER, testfield TEXT, " +
                     "temperature REAL, pressure INTEGER, humidity INTEGER, CO INTEGER, H2 INTEGER, NH4 INTEGER, CH4 INTEGER, O3 INTEGER, " +
-                    "Lidar INTEGER, Latitude REAL, Longitude REAL, Altitude REAL, Timestamp DATETIME DEFAULT CURRENT_TIMESTAMP)");
+                    "Lidar INTEGER, Latitude REAL, Longitude REAL, Altitude REAL, Timestamp DATETIME DEFAULT CURRENT_TIMESTAMP, sessionId INTEGER, source INTEGER)");
+            createDataIndexes(db);
+        }
+
+        // createDataIndexes(db) - creates the canarydata indexes, if they are not there
+        private void createDataIndexes(SQLiteDatabase db)
+        {
+            try
+            {
+                // only holds rows waiting to be uploaded, so finding the next ones to upload stays fast however big the table gets
+                db.execSQL("CREATE INDEX IF NOT EXISTS canarydata_pending ON canarydata (dataId) WHERE uploaded IS NULL");
+            }
+            catch (SQLException e) // partial indexes need SQLite 3.8 (Android 5). Without it the watermark alone keeps the search short
+            {
+                LOG.warn("createDataIndexes() unable to create canarydata_pending index {}", e);
+            }
+            // one flight session's rows, in order
+            db.execSQL("CREATE INDEX IF NOT EXISTS canarydata_session ON canarydata (sessionId, dataId)");
         }
 
 
@@ -163,7 +1060,75 @@ public class Recorder
         // put any changes needed when migrating the data from database version to another, for backward compatibility
          public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion)
         {
+            if (oldVersion < 2)
+            {
+                // small name / value table for things the recorder needs to remember, like the upload watermark
+                db.execSQL("CREATE TABLE IF NOT EXISTS recorderstate (name TEXT PRIMARY KEY, value INTEGER)");
+                // start the watermark just below the oldest row not uploaded yet
+                db.execSQL("INSERT OR REPLACE INTO recorderstate (name, value) VALUES ('uploadWatermark', " +
+                        "COALESCE((SELECT min(dataId) - 1 FROM canarydata WHERE uploaded IS NULL), (SELECT max(dataId) FROM canarydata), 0))");
+            }
+            if (oldVersion < 3)
+            {
+                // row counts, kept up to date by the recorder so it never has to count the rows
+                db.execSQL("CREATE TABLE IF NOT EXISTS recordercounters (name TEXT PRIMARY KEY, value INTEGER NOT NULL)");
+                db.execSQL("INSERT OR REPLACE INTO recordercounters (name, value) VALUES ('recorded', (SELECT count(*) FROM canarydata))");
+                db.execSQL("INSERT OR REPLACE INTO recordercounters (name, value) VALUES ('uploaded', (SELECT count(*) FROM canarydata WHERE uploaded IS NOT NULL))");
+            }
+            if (oldVersion < 4)
+            {
+                // flight sessions, rows are tagged with the session they were recorded in
+                db.execSQL("CREATE TABLE IF NOT EXISTS sessions (sessionId INTEGER PRIMARY KEY AUTOINCREMENT, started INTEGER, ended INTEGER)");
+                if (!hasColumn(db, "canarydata", "sessionId")) // created before version 4
+                {
+                    db.execSQL("ALTER TABLE canarydata ADD COLUMN sessionId INTEGER");
+                }
+            }
+            if (oldVersion < 5)
+            {
+                // window summaries, see WindowAggregator. Rows already recorded have none, so downsampling leaves them alone
+                createSummaryTable(db);
+                db.execSQL("INSERT OR REPLACE INTO recorderstate (name, value) VALUES ('summaryFromDataId', COALESCE((SELECT max(dataId) FROM canarydata), 0))");
+            }
+            if (oldVersion < 6)
+            {
+                // which radio each row came from, now that several can be attached
+                if (!hasColumn(db, "canarydata", "source")) // created before version 6
+                {
+                    db.execSQL("ALTER TABLE canarydata ADD COLUMN source INTEGER");
+                }
+            }
+            if (oldVersion < 7)
+            {
+                // a random id for this device's rows, so the server can tell a resent row from a new one (see Sequences)
+                db.execSQL("INSERT OR IGNORE INTO recorderstate (name, value) VALUES ('deviceId', random() & 9223372036854775807)");
+            }
+            createDataIndexes(db);
+        }
 
+        // hasColumn(db, table, column) - whether the table has the column
+        private boolean hasColumn(SQLiteDatabase db, String sTable, String sColumn)
+        {
+            Cursor cursor = db.rawQuery("SELECT * FROM " + sTable + " LIMIT 0", null);
+            boolean bHasColumn = cursor.getColumnIndex(sColumn) >= 0;
+            cursor.close();
+            return bHasColumn;
+        }
+
+        // createSummaryTable(db) - creates the canarysummary table and its indexes, with min, max and mean columns for each WindowAggregator field
+        private void createSummaryTable(SQLiteDatabase db)
+        {
+            //   windowStart is in the same form as the canarydata Timestamp column, readings is how many readings the window had
+            StringBuilder sb = new StringBuilder("CREATE TABLE IF NOT EXISTS canarysummary (summaryId INTEGER PRIMARY KEY AUTOINCREMENT, uploaded INTEGER, " +
+                    "windowMs INTEGER, windowStart DATETIME, readings INTEGER, sessionId INTEGER");
+            for (String sField : WindowAggregator.FIELD_NAMES)
+            {
+                sb.append(", ").append(sField).append("Min REAL, ").append(sField).append("Max REAL, ").append(sField).append("Mean REAL");
+            }
+            db.execSQL(sb.append(')').toString());
+            // one window length's summaries over time for dashboards, and in id order for uploading
+            db.execSQL("CREATE INDEX IF NOT EXISTS canarysummary_window ON canarysummary (windowMs, windowStart)");
+            db.execSQL("CREATE INDEX IF NOT EXISTS canarysummary_upload ON canarysummary (windowMs, summaryId)");
         }
     }
 
@@ -176,9 +1141,9 @@ public class Recorder
         return rowId;
     }
 
-    private void updateTable(String sTable, ContentValues contentValues, String sWhere)
+    private int updateTable(String sTable, ContentValues contentValues, String sWhere)
     {
-        db.update(sTable, contentValues, sWhere, null);
+        return db.update(sTable, contentValues, sWhere, null);
     }
 /**
     //Some debug routines
@@ -242,9 +1207,7 @@ public class Recorder
 
     public void msg(String sMsg)
     {
-
-        System.out.println("Canary DataBase: " + sMsg);
-
+        LOG.info(sMsg);
     }
 
     public Cursor selectFromTableOrder(String sTable, String sColumn, String sWhere, String sOrder)
@@ -1,17 +1,12 @@
 package org.svvsd.droneteam.canary;
 
-import android.content.ContentValues;
-import android.os.AsyncTask;
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
 import android.widget.TextView;
 
-import java.io.BufferedInputStream;
-import java.io.InputStream;
-import java.net.HttpURLConnection;
-import java.net.URL;
-import java.net.URLEncoder;
 import java.text.NumberFormat;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.Random;
 
 ////////////////////////////////////
 // Notes
@@ -21,15 +16,50 @@ import java.util.TimerTask;
 //
 // Things that need customizing
 //  1) Set the correct upload url sUploadUrl (You can keep the tuckerfoltz.com one now for testing if you wish, see note above)
-//  2) Set the correct value in uploadDataToServerTask onPostExecute() for what server response indicates a successful upload of the data
+//  2) Set the correct value in HttpUploadTransport.isSuccessResponse() for what server response indicates a successful upload of the data
+//  3) If the server accepts batch uploads, turn on batch mode with setMaxBatchSize()
+//
+// How uploading works
+//   UploadEngine does the uploading on its own threads, with up to maxInFlight requests to the server at once over kept alive connections
+//   maxInFlight starts at 1, since a server that knows nothing of sequences could store a resent row twice, and rows sent one per GET get there in order.
+//   It goes up to PIPELINED_MAX_IN_FLIGHT while the transport is sending batches or once the server has acknowledged sequences (see Resending safely),
+//   and back down when the server rejects batches and the transport falls back to one row per GET. setMaxInFlight() overrides both
+//   Rows are marked uploaded in the order they were fetched, no matter what order the server answers in (see UploadEngine)
+//   HttpUploadTransport does the actual sending
+//
+// Batch uploads
+//   With a max batch size above 1, up to that many rows are POSTed in one request, gzipped in the columnar format (see ColumnarEncoder)
+//   The server answers OK when it stored them all, or OK <n> when it only stored the first n rows. The accepted rows are marked uploaded with one update
+//   If the server does not take the columnar format, uploading falls back to plain text batches, and if it does not take those either,
+//   to one row per GET (see HttpUploadTransport)
+//   The batch size adapts to how long requests take (see UploadBatchSizer). With a max batch size of 1 (the default), rows are sent one per GET like always
+//
+// Resending safely
+//   Every request carries Recorder's device id and the sequence numbers (dataIds) of its rows (see HttpUploadTransport), so a server that knows
+//   about them stores a resent row only once, and answers ACK <seq> with how far it has the rows. When an answer gets lost, the engine asks the server
+//   how far it got before resending, and on starting again carries on from there (see UploadEngine). A server that just answers OK works like before
+//
+// When uploading happens (see UploadScheduler)
+//   The engine is woken up when Recorder commits new rows, and otherwise sleeps - it does not poll for data
+//   After failures it backs off, up to a few minutes. Given a Context it watches the network (see AndroidNetworkState), waits while there is none,
+//     and starts again right away when one comes up
+//   setUnmeteredOnly(true) keeps it off cellular, and setMinBacklog() lets rows pile up into fewer, bigger batches
+//
+// Metrics (see Metrics and UploadEngine)
+//   upload.backlog - rows recorded but not uploaded yet
 //
 // Constructor
-//   Uploader(Recorder) - Recorder is the dataSource
+//   Uploader(Recorder) - Recorder is the dataSource. Assumes the network is always up
+//   Uploader(Context, Recorder) - Recorder is the dataSource, and the network is watched through the Context
 //
 // Public Methods
 //   startUploading() - starts uploading data
 //   stopUploading() - stops uploading data
 //   isUploading() - returns whether currently uploading data
+//   setMaxBatchSize(int) - sets the most rows to send in one batch request. 1 sends one row per GET request
+//   setMaxInFlight(int) - sets how many requests can be waiting on the server at once, instead of the default (see How uploading works)
+//   setUnmeteredOnly(boolean) - only upload on unmetered networks (wifi), never over cellular. Needs the Context constructor
+//   setMinBacklog(long, long) - wait for at least that many rows, or that many milliseconds after the last upload, before uploading
 //   setUploadCountView(TextView) - set the UI field to update with the current size of data uploaded, and sets the UI field with the current size
 //   updateUploadCount() - get the size of the data already uploaded and update the UI field with it. Called initially
 //   updateUploadCount(long) - updates the UI field with the value of long, formatted. Used ongoing
@@ -40,16 +70,100 @@ public class Uploader
 {
     // TODO: Set correct name of upload URL
     private String sUploadUrl = "http://tuckerfoltz.com/canary/canary.php?"; // the URL to upload
-    private Boolean bUploading = false; // whether uploading non-uploaded data or not
     private Recorder dataSource;
     private long uploadCount = 0;
     private TextView uploadCountView = null;
     private NumberFormat numberFormat = NumberFormat.getInstance(); // get local number formatting scheme
-    private Timer uploadDataTimer = new Timer(); // timer for launching thread to see if there is any data to upload
+    private Handler uiHandler = new Handler(Looper.getMainLooper()); // for updating the upload count from the upload threads
+    private UploadBatchSizer batchSizer = new UploadBatchSizer(1, 1, BATCH_TARGET_LATENCY_MS); // how many rows to send per batch request
+    private HttpUploadTransport transport = new HttpUploadTransport(sUploadUrl);
+    private UploadEngine uploadEngine;
+    private UploadScheduler scheduler;
+    private AndroidNetworkState networkState = null; // null when we can not tell, and assume the network is up
+    private static final CanaryLog.Subsystem LOG = CanaryLog.subsystem("upload");
+    private static final long BATCH_TARGET_LATENCY_MS = 2000; // how long we would like a batch request to take
+    private static final int MIN_BATCH_SIZE = 10; // smallest batch the batch sizer will shrink to
+    private static final int DEFAULT_MAX_IN_FLIGHT = 1; // default for how many requests can be waiting on the server at once
+    private static final int PIPELINED_MAX_IN_FLIGHT = 4; // the default while sending batches or once the server acknowledges sequences
+    private volatile int maxInFlight = 0; // set by setMaxInFlight(), 0 for the default
 
     public Uploader(Recorder dataSource) // general constructor, passing in a dataSource to use for uploading
+    {
+        this(dataSource, null);
+    }
+
+    public Uploader(Context context, Recorder dataSource) // constructor that also watches the network, so uploading waits for one
+    {
+        this(dataSource, new AndroidNetworkState(context));
+    }
+
+    private Uploader(final Recorder dataSource, AndroidNetworkState networkState)
     {
         this.dataSource = dataSource;
+        this.networkState = networkState;
+        transport.setDeviceId(Long.toHexString(dataSource.getDeviceId()), dataSource.isSequencesConfirmed());
+        transport.setSequencesListener(new Runnable()
+        {
+            public void run()
+            {
+                dataSource.setSequencesConfirmed(); // so resuming after a restart asks the server what it already has
+                updateMaxInFlight(); // resent rows are stored only once now
+            }
+        });
+        transport.setFormatListener(new Runnable()
+        {
+            public void run()
+            {
+                updateMaxInFlight(); // in case it is back to one row per GET
+            }
+        });
+        uploadEngine = new UploadEngine(dataSource, transport, batchSizer);
+        updateMaxInFlight();
+        scheduler = new UploadScheduler(UploadScheduler.SYSTEM_CLOCK, networkState != null ? networkState : UploadScheduler.ALWAYS_UP, new Random());
+        scheduler.setBacklog(new UploadScheduler.Backlog()
+        {
+            public long get()
+            {
+                return dataSource.getRecordedDataSize() - dataSource.getUploadedDataSize();
+            }
+        });
+        uploadEngine.setScheduler(scheduler);
+        dataSource.setCommitListener(new Runnable()
+        {
+            public void run()
+            {
+                uploadEngine.wakeUp(); // new rows to upload
+            }
+        });
+        Metrics.gauge("upload.backlog", new Metrics.Gauge()
+        {
+            public long get()
+            {
+                return dataSource.getRecordedDataSize() - dataSource.getUploadedDataSize();
+            }
+        });
+        uploadEngine.setListener(new UploadEngine.UploadListener()
+        {
+            @Override
+            public void onUploaded(int rows)
+            {
+                final long uploaded = dataSource.getUploadedDataSize(); // the count the database keeps, so the counter never drifts from it
+                uiHandler.post(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        updateUploadCount(uploaded); // update the progress counter
+                    }
+                });
+            }
+
+            @Override
+            public void onUploadError(Exception e)
+            {
+                LOG.warn("Uploader unable to send to server {}", e);
+            }
+        });
     }
 
     // setUploadCountView(TextView) - set the UI field to update with the current size of data uploaded, and sets the UI field with the current size
@@ -81,140 +195,76 @@ public class Uploader
     // startUploading() - starts uploading data
     public void startUploading()
     {
-        bUploading = true;
-        scheduleUploadData();
+        if (networkState != null)
+        {
+            networkState.start(scheduler);
+        }
+        uploadEngine.start();
     }
 
     // stopUploading() - stops uploading data
     public void stopUploading()
     {
-        bUploading = false;
+        uploadEngine.stop();
+        if (networkState != null)
+        {
+            networkState.stop();
+        }
     }
 
     // isUploading() - returns whether currently uploading data
     public Boolean isUploading()
     {
-        return bUploading;
+        return uploadEngine.isRunning();
     }
 
-    ///////
-    // Upload data routines
-    //
-    // There is probably much more elegant solution to it all, but this works
-    // Here's how it works currently
-    // 1) scheduleUploadData() is called, which schedules a program thread uploadDataTask to launch at some small amount of time in the future like 10ms
-    // 2) uploadDataTask executes asynchronous task sendDataToServerTask, which goes off on a separate thread (doInBackground()) from the main UI thread (so it does not hang / wait)
-    // 3) sendDataToServerTask sees if there is any non-uploaded data, and if there is sends the data to the server
-    //    When done sending all the data, sendDataToServerTask returns to main UI thread (onPostExecute()), and ends with a call to scheduleUploadData() to set up the next uploading data run before ending the task
-    //
-    ///////
-
-    // scheduleUploadData() - schedules a program thread uploadDataTask to launch at some small amount of time in the future like 10ms
-    private void scheduleUploadData()
+    // setMaxBatchSize(int) - sets the most rows to send in one batch request. 1 sends one row per GET request
+    public void setMaxBatchSize(int maxBatchSize)
     {
-        if (bUploading) // if we are supposed to be uploading, schedule the next uploading
+        maxBatchSize = Math.max(1, maxBatchSize);
+        transport.setWireFormat(maxBatchSize > 1 ? HttpUploadTransport.FORMAT_COLUMNAR : HttpUploadTransport.FORMAT_ROWS);
+        if (maxBatchSize > 1)
         {
-    //       DebugUtils.msg("scheduleUploadData() scheduling next data upload");
-            uploadDataTimer.schedule(new uploadDataTask(), 10);
+            batchSizer.setLimits(Math.min(MIN_BATCH_SIZE, maxBatchSize), maxBatchSize, BATCH_TARGET_LATENCY_MS);
         }
-    }
-
-    // uploadDataTask() - executes asynchronous task sendDataToServerTask, which goes off on a separate thread (doInBackground()) from the main UI thread (so app does not hang / wait)
-    class uploadDataTask extends TimerTask
-    {
-        public void run()
+        else
         {
-            new uploadDataToServerTask().execute(sUploadUrl);
-
+            batchSizer.setLimits(1, 1, BATCH_TARGET_LATENCY_MS);
         }
-
+        updateMaxInFlight();
     }
 
-    // sendDataToServerTask (DataSource)
-    //    In the background (separate thread), see if there is any un-uploaded data, and send it to the server if there is
-    //    When done processing the data, getXBeeDataTask returns to main UI thread (onPostExecute()), and ends with a call to scheduleCheckForData() to set up the next check for data run before ending the task
-    private class uploadDataToServerTask extends AsyncTask<String, Void, String>
+    // setMaxInFlight(int) - sets how many requests can be waiting on the server at once, instead of the default (see How uploading works)
+    public void setMaxInFlight(int maxInFlight)
     {
-        private long dataId = 0; // the data id being uploaded for marker as uploaded
+        this.maxInFlight = Math.max(1, maxInFlight);
+        updateMaxInFlight();
+    }
 
-        @Override
-        protected String doInBackground(String... urls)
+    // updateMaxInFlight() - hands the engine the set maxInFlight, or the default for the wire format being sent and what the server is known to do
+    private void updateMaxInFlight()
+    {
+        if (maxInFlight > 0)
         {
-            String sServerResponse = ""; // default response passed on to onPostExecute()
-
-            String sUrl = urls[0];
-
-            ContentValues contentValues = dataSource.getNonUploadedData();
-
-            String sContentValues = "";
-            String sValue = "";
-            for (String sKey : contentValues.keySet())
-            {
-                if (sKey.contentEquals("dataId"))
-                {
-                    dataId = contentValues.getAsLong(sKey); // save for marking in onPostExecute()
-                }
-                else if (!sKey.contentEquals("uploaded")) // these are internal and not meant to be sent
-                {
-                    DebugUtils.msg("key is " + sKey);
-                    sValue = contentValues.getAsString(sKey);
-                    if (sValue.length()>0) // have some data value to send
-                    {
-                        if(sContentValues.length()>0)
-                            sContentValues += "&";
-                        sContentValues += sKey + "=" + sValue;
-                    }
-                }
-
-            }
-            if (sContentValues.length() > 0) // have some values to send, try to send them
-            {
-                DebugUtils.msg("non-uploaded data is " + contentValues.toString());
-                // convert to real url
-                URL url = null;
-                try {
-                    url = new URL(sUrl +URLEncoder.encode( sContentValues));
-                } catch (Exception e) {
-                    DebugUtils.msg("sendDataToServerTask doInBackground() unable to format url " + sUrl + ", " + e.toString());
-                }
-
-                // if have good url, send it off and get response
-                if (url != null) {
-                    try {
-                        HttpURLConnection urlConnection = (HttpURLConnection) url.openConnection();
-                        InputStream in = new BufferedInputStream(urlConnection.getInputStream());
-                        byte[] buffer = new byte[1024];
-                        in.read(buffer);
-                        sServerResponse = new String(buffer);
-                        //DebugUtils.msg("sendDataToServerTask doInBackground() server response is " + sServerResponse);
-                        in.close();
-                        urlConnection.disconnect();
-                    } catch (Exception e) {
-                        DebugUtils.msg("sendDataToServerTask doInBackground() unable to send to server " + e.toString());
-                    }
-
-                }
-            }
-
-            return sServerResponse;
+            uploadEngine.setMaxInFlight(maxInFlight);
         }
-
-
-        // process things back on the main thread
-        protected void onPostExecute(String sServerResponse)
+        else
         {
-            // TODO: Set the value for what server response indicates successfully uploaded
-            if (sServerResponse.contains("OK")) // test for whatever response indicates successful transmission
-            {
-                DebugUtils.msg("sendDataToServerTask onPostExecute() successfully sent data, marking as uploaded");
-
-                dataSource.markDataUploaded(dataId); // mark the data as uploaded
-                updateUploadCount(uploadCount + 1); // upload the progress counter
-            }
-
-            scheduleUploadData(); // set up the next upload data run
+            boolean bPipelined = transport.getWireFormat() != HttpUploadTransport.FORMAT_ROWS || transport.isSequencesConfirmed();
+            uploadEngine.setMaxInFlight(bPipelined ? PIPELINED_MAX_IN_FLIGHT : DEFAULT_MAX_IN_FLIGHT);
         }
+    }
 
+    // setUnmeteredOnly(boolean) - only upload on unmetered networks (wifi), never over cellular. Needs the Context constructor
+    public void setUnmeteredOnly(boolean bUnmeteredOnly)
+    {
+        scheduler.setUnmeteredOnly(bUnmeteredOnly);
+    }
+
+    // setMinBacklog(long, long) - wait for at least rows rows, or maxDelayMs milliseconds after the last upload, before uploading. 0 rows turns it off
+    public void setMinBacklog(long rows, long maxDelayMs)
+    {
+        scheduler.setMinBacklog(rows, maxDelayMs);
     }
 
 }
@@ -0,0 +1,88 @@
+package org.svvsd.droneteam.canary.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.svvsd.droneteam.canary.FrameAssembler;
+import org.svvsd.droneteam.canary.Reading;
+import org.svvsd.droneteam.canary.SensorFrameParser;
+
+import java.util.concurrent.TimeUnit;
+
+// FrameAssemblerBenchmark - XBee read chunks handled per second, just assembling frames, and assembling plus parsing them like the Receiver reader thread
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class FrameAssemblerBenchmark
+{
+    @Param({"small", "typical", "large"})
+    public String frameSize;
+
+    @Param({"16", "64", "1024"})
+    public int chunkSize; // bytes per XBee read
+
+    private byte[] stream;
+    private int position = 0;
+    private FrameAssembler assembler = new FrameAssembler(1024);
+    private CountingListener countingListener = new CountingListener();
+    private ParsingListener parsingListener = new ParsingListener();
+
+    @Setup
+    public void setup()
+    {
+        stream = FrameCorpus.stream(frameSize);
+    }
+
+    @Benchmark
+    public long assemble()
+    {
+        appendChunk(countingListener);
+        return countingListener.frames;
+    }
+
+    @Benchmark
+    public Reading assembleAndParse()
+    {
+        appendChunk(parsingListener);
+        return parsingListener.reading;
+    }
+
+    private void appendChunk(FrameAssembler.FrameListener listener)
+    {
+        int length = Math.min(chunkSize, stream.length - position);
+        assembler.append(stream, position, length, listener);
+        position += length;
+        if (position == stream.length)
+        {
+            position = 0;
+        }
+    }
+
+    private static class CountingListener implements FrameAssembler.FrameListener
+    {
+        long frames = 0;
+
+        public void onFrame(byte[] frame, int length)
+        {
+            frames++;
+        }
+    }
+
+    private static class ParsingListener implements FrameAssembler.FrameListener
+    {
+        SensorFrameParser parser = new SensorFrameParser();
+        Reading reading = new Reading();
+
+        public void onFrame(byte[] frame, int length)
+        {
+            reading.reset();
+            reading.setRaw(frame, 0, length);
+            parser.parse(frame, 0, length, reading);
+        }
+    }
+}
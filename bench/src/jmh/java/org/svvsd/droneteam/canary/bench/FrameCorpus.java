@@ -0,0 +1,187 @@
+package org.svvsd.droneteam.canary.bench;
+
+import org.svvsd.droneteam.canary.Reading;
+import org.svvsd.droneteam.canary.SensorFrameParser;
+import org.svvsd.droneteam.canary.UploadBatch;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+////////////////////////////////////
+// Notes
+//
+// FrameCorpus supplies the XBee frames the benchmarks run on
+//   By default frames are generated (always the same ones, fixed random seed) in three sizes
+//     small - all four sensor groups, GPS without a lock (about 50 bytes)
+//     typical - all four sensor groups with a GPS fix (about 80 bytes)
+//     large - typical plus radio noise, long decimals and repeated groups (about 250 bytes)
+//   With -Dcanary.corpus=/path/to/capture.txt the frames are read from a capture instead, one frame per line, for every size
+//
+// Public Methods
+//   frames(size) - the frames of a size as bytes
+//   stream(size) - the frames of a size run together as the XBee would send them, each ended with \r\n
+//   uploadBatch(rows) - an UploadBatch of typical frames as the Recorder would fetch them for upload
+//
+///////////////////////////
+
+public class FrameCorpus
+{
+    public static final int FRAME_COUNT = 1024; // power of 2, so benchmarks can wrap with a mask
+
+    private static final String[] UPLOAD_COLUMNS = {"testfield", "temperature", "pressure", "humidity", "CO", "H2", "NH4", "CH4", "O3",
+            "Lidar", "Latitude", "Longitude", "Altitude", "Timestamp"};
+
+    // frames(size) - the frames of a size as bytes
+    public static byte[][] frames(String size)
+    {
+        List<String> lines = load(size);
+        byte[][] frames = new byte[FRAME_COUNT][];
+        for (int i = 0; i < FRAME_COUNT; i++)
+        {
+            frames[i] = lines.get(i % lines.size()).getBytes(StandardCharsets.US_ASCII);
+        }
+        return frames;
+    }
+
+    // stream(size) - the frames of a size run together as the XBee would send them, each ended with \r\n
+    public static byte[] stream(String size)
+    {
+        StringBuilder sb = new StringBuilder();
+        for (String line : load(size))
+        {
+            sb.append(line).append("\r\n");
+        }
+        return sb.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    // uploadBatch(rows) - an UploadBatch of typical frames as the Recorder would fetch them for upload
+    public static UploadBatch uploadBatch(int rows)
+    {
+        byte[][] frames = frames("typical");
+        SensorFrameParser parser = new SensorFrameParser();
+        Reading reading = new Reading();
+        UploadBatch batch = new UploadBatch(UPLOAD_COLUMNS, rows);
+        for (int r = 0; r < rows; r++)
+        {
+            byte[] frame = frames[r % frames.length];
+            parser.parse(frame, 0, frame.length, reading);
+            String[] values = {"full data" + new String(frame, StandardCharsets.US_ASCII),
+                    Float.toString(reading.temperature), Integer.toString(reading.pressure), Integer.toString(reading.humidity),
+                    Integer.toString(reading.co), Integer.toString(reading.h2), Integer.toString(reading.nh4), Integer.toString(reading.ch4),
+                    Integer.toString(reading.o3), Integer.toString(reading.lidar),
+                    Float.toString(reading.latitude), Float.toString(reading.longitude), Float.toString(reading.altitude),
+                    "2019-06-01 17:" + (10 + r / 60 % 50) + ":" + (10 + r % 50)};
+            batch.addRow(r + 1, values);
+        }
+        return batch;
+    }
+
+    private static List<String> load(String size)
+    {
+        String sCorpus = System.getProperty("canary.corpus");
+        if (sCorpus != null)
+        {
+            return readCapture(sCorpus);
+        }
+        Random random = new Random(42);
+        List<String> lines = new ArrayList<String>(FRAME_COUNT);
+        for (int i = 0; i < FRAME_COUNT; i++)
+        {
+            lines.add(generate(size, random));
+        }
+        return lines;
+    }
+
+    private static List<String> readCapture(String sPath)
+    {
+        List<String> lines = new ArrayList<String>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(sPath), StandardCharsets.US_ASCII)))
+        {
+            String line;
+            while ((line = reader.readLine()) != null)
+            {
+                if (line.length() > 0)
+                {
+                    lines.add(line);
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            throw new IllegalStateException("unable to read corpus " + sPath, e);
+        }
+        if (lines.isEmpty())
+        {
+            throw new IllegalStateException("corpus " + sPath + " has no frames");
+        }
+        return lines;
+    }
+
+    private static String generate(String size, Random random)
+    {
+        StringBuilder sb = new StringBuilder(256);
+        atmosphere(sb, random);
+        gas(sb, random);
+        sb.append("|3,").append(200 + random.nextInt(12000));
+        switch (size)
+        {
+            case "small":
+                sb.append("|4,|");
+                break;
+            case "typical":
+                gps(sb, random, 4);
+                sb.append('|');
+                break;
+            case "large":
+                gps(sb, random, 7);
+                sb.append("|\u0000\u0013");
+                gas(sb, random);
+                atmosphere(sb, random);
+                sb.append("|3,").append(200 + random.nextInt(12000)).append(" \t");
+                gps(sb, random, 7);
+                sb.append("||");
+                break;
+            default:
+                throw new IllegalArgumentException("unknown frame size " + size);
+        }
+        return sb.toString();
+    }
+
+    private static void atmosphere(StringBuilder sb, Random random)
+    {
+        sb.append("|1,").append(15 + random.nextInt(25)).append('.').append(random.nextInt(100))
+                .append(',').append(80000 + random.nextInt(5000)).append(',').append(10 + random.nextInt(80));
+    }
+
+    private static void gas(StringBuilder sb, Random random)
+    {
+        sb.append("|2");
+        for (int i = 0; i < 5; i++)
+        {
+            sb.append(',').append(random.nextInt(1024));
+        }
+    }
+
+    private static void gps(StringBuilder sb, Random random, int decimals)
+    {
+        sb.append("|4,40.").append(pad(random.nextInt(1000000), decimals))
+                .append(",-105.").append(pad(random.nextInt(1000000), decimals))
+                .append(',').append(1500 + random.nextInt(400)).append('.').append(random.nextInt(10));
+    }
+
+    private static String pad(int value, int digits)
+    {
+        StringBuilder sb = new StringBuilder(Integer.toString(value));
+        while (sb.length() < digits)
+        {
+            sb.insert(0, '0');
+        }
+        return sb.substring(0, digits);
+    }
+}
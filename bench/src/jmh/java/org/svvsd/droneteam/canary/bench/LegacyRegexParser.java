@@ -0,0 +1,66 @@
+package org.svvsd.droneteam.canary.bench;
+
+import org.svvsd.droneteam.canary.Reading;
+
+////////////////////////////////////
+// Notes
+//
+// LegacyRegexParser is the regex / split based frame parsing Receiver.processData() used before SensorFrameParser
+//   Only kept here as a baseline, so the benchmarks show what SensorFrameParser is being compared against
+//
+///////////////////////////
+
+public class LegacyRegexParser
+{
+    public Reading parse(byte[] frame, Reading reading)
+    {
+        String sData = new String(frame);
+        reading.flags = 0;
+        sData = sData.replaceAll("[^0-9|.,]", "");
+        String[] dataSplit = sData.split("[|]+");
+        for (int i = 0; i < Math.min(4, dataSplit.length); i++)
+        {
+            String[] sensorSplit = dataSplit[i].split(",");
+            if (sensorSplit[0].contentEquals("1"))
+            {
+                reading.temperature = Float.parseFloat(sensorSplit[1]);
+                reading.pressure = Integer.parseInt(sensorSplit[2]);
+                reading.humidity = Integer.parseInt(sensorSplit[3]);
+                reading.flags |= Reading.ATMOSPHERE;
+            }
+            else if (sensorSplit[0].contentEquals("2"))
+            {
+                reading.co = Integer.parseInt(sensorSplit[1]);
+                reading.h2 = Integer.parseInt(sensorSplit[2]);
+                reading.nh4 = Integer.parseInt(sensorSplit[3]);
+                reading.ch4 = Integer.parseInt(sensorSplit[4]);
+                reading.o3 = Integer.parseInt(sensorSplit[5]);
+                reading.flags |= Reading.GAS;
+            }
+            else if (sensorSplit[0].contentEquals("3"))
+            {
+                reading.lidar = Integer.parseInt(sensorSplit[1]);
+                reading.flags |= Reading.LIDAR;
+            }
+            else if (sensorSplit[0].contentEquals("4"))
+            {
+                if (sensorSplit.length > 1)
+                {
+                    reading.latitude = Float.parseFloat(sensorSplit[1]);
+                    reading.longitude = Float.parseFloat(sensorSplit[2]);
+                    reading.altitude = Float.parseFloat(sensorSplit[3]);
+                    reading.gpsFix = true;
+                }
+                else
+                {
+                    reading.latitude = -1;
+                    reading.longitude = -1;
+                    reading.altitude = -1;
+                    reading.gpsFix = false;
+                }
+                reading.flags |= Reading.GPS;
+            }
+        }
+        return reading;
+    }
+}
@@ -0,0 +1,91 @@
+package org.svvsd.droneteam.canary.bench;
+
+import org.svvsd.droneteam.canary.UploadBatch;
+import org.svvsd.droneteam.canary.UploadStore;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+////////////////////////////////////
+// Notes
+//
+// MemoryUploadStore is an in memory UploadStore standing in for Recorder, so uploads can be measured without a database
+//   Marking a batch checks it is marked in order, like Recorder's uploadWatermark relies on
+//
+// Public Methods
+//   add(rows) - adds rows of typical frame data waiting to be uploaded
+//   awaitUploaded(count) - waits until count rows in total have been marked uploaded
+//
+///////////////////////////
+
+public class MemoryUploadStore implements UploadStore
+{
+    private final UploadBatch source = FrameCorpus.uploadBatch(FrameCorpus.FRAME_COUNT);
+    private final TreeMap<Long, String[]> pending = new TreeMap<>();
+    private long nextDataId = 1;
+    private long lastMarked = 0;
+    private long uploaded = 0;
+
+    // add(rows) - adds rows of typical frame data waiting to be uploaded
+    public synchronized void add(int rows)
+    {
+        for (int r = 0; r < rows; r++)
+        {
+            String[] values = new String[source.columns.length];
+            for (int c = 0; c < values.length; c++)
+            {
+                values[c] = source.getValue((int) (nextDataId % source.size), c);
+            }
+            pending.put(nextDataId++, values);
+        }
+    }
+
+    // awaitUploaded(count) - waits until count rows in total have been marked uploaded
+    public synchronized void awaitUploaded(long count) throws InterruptedException
+    {
+        while (uploaded < count)
+        {
+            wait();
+        }
+    }
+
+    @Override
+    public synchronized UploadBatch nextBatch(long afterDataId, int maxRows)
+    {
+        UploadBatch batch = new UploadBatch(source.columns, maxRows);
+        for (Map.Entry<Long, String[]> row : pending.tailMap(afterDataId, false).entrySet())
+        {
+            if (batch.size == maxRows)
+            {
+                break;
+            }
+            batch.addRow(row.getKey(), row.getValue());
+        }
+        return batch;
+    }
+
+    @Override
+    public synchronized void markUploaded(UploadBatch batch)
+    {
+        if (batch.size > 0 && batch.dataIds[0] <= lastMarked)
+        {
+            throw new IllegalStateException("batch marked out of order: " + batch.dataIds[0] + " after " + lastMarked);
+        }
+        for (int r = 0; r < batch.size; r++)
+        {
+            pending.remove(batch.dataIds[r]);
+        }
+        if (batch.size > 0)
+        {
+            lastMarked = batch.dataIds[batch.size - 1];
+        }
+        uploaded += batch.size;
+        notifyAll();
+    }
+
+    @Override
+    public String getStream()
+    {
+        return "data";
+    }
+}
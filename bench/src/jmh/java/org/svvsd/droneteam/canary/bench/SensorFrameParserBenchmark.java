@@ -0,0 +1,51 @@
+package org.svvsd.droneteam.canary.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.svvsd.droneteam.canary.Reading;
+import org.svvsd.droneteam.canary.SensorFrameParser;
+
+import java.util.concurrent.TimeUnit;
+
+// SensorFrameParserBenchmark - frames parsed per second (what Receiver.processData() does per frame), against the old regex parsing
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class SensorFrameParserBenchmark
+{
+    @Param({"small", "typical", "large"})
+    public String frameSize;
+
+    private byte[][] frames;
+    private int next = 0;
+    private SensorFrameParser parser = new SensorFrameParser();
+    private LegacyRegexParser legacyParser = new LegacyRegexParser();
+    private Reading reading = new Reading();
+
+    @Setup
+    public void setup()
+    {
+        frames = FrameCorpus.frames(frameSize);
+    }
+
+    @Benchmark
+    public Reading parse()
+    {
+        byte[] frame = frames[next++ & (FrameCorpus.FRAME_COUNT - 1)];
+        parser.parse(frame, 0, frame.length, reading);
+        return reading;
+    }
+
+    @Benchmark
+    public Reading legacyRegex()
+    {
+        byte[] frame = frames[next++ & (FrameCorpus.FRAME_COUNT - 1)];
+        return legacyParser.parse(frame, reading);
+    }
+}
@@ -0,0 +1,390 @@
+package org.svvsd.droneteam.canary.bench;
+
+import org.svvsd.droneteam.canary.CanaryLog;
+import org.svvsd.droneteam.canary.HttpUploadTransport;
+import org.svvsd.droneteam.canary.LinkConfig;
+import org.svvsd.droneteam.canary.LinkReader;
+import org.svvsd.droneteam.canary.Metrics;
+import org.svvsd.droneteam.canary.ReadingMerger;
+import org.svvsd.droneteam.canary.ReplaySerialLink;
+import org.svvsd.droneteam.canary.SyntheticTrace;
+import org.svvsd.droneteam.canary.UploadBatchSizer;
+import org.svvsd.droneteam.canary.UploadEngine;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+////////////////////////////////////
+// Notes
+//
+// SoakBenchmark runs the whole pipeline for minutes at a time at fixed offered loads, headless on the JVM, and writes what it sustained as JSON
+//   Radios - one ReplaySerialLink per radio replays a SyntheticTrace in real time, over and over, at load / radios frames per second each
+//   Receiver - a LinkReader per radio hands its readings to a ReadingMerger, the same as Receiver does (Receiver itself needs Android)
+//   Recorder - the merged readings go to a SoakRecorder, Recorder's storage queue, capture log and ingest batching with the database in memory
+//   Uploader - an UploadEngine with Uploader's settings uploads columnar batches with sequences to a StubCanaryServer, which acknowledges them by sequence
+//   It is a plain main() rather than a JMH benchmark, since one run is minutes of one steady state and not many short invocations
+//
+// Each load gets a fresh pipeline. It runs warmupSeconds, then seconds measured, then the radios stop and the pipeline is drained,
+//   so every frame read either made it to the server or is counted as lost somewhere along the way
+//   framesPerSecond - frames received, rows committed and rows acknowledged per second while measured
+//   ackLatencyMs - from a reading being timestamped by its LinkReader to its row being marked uploaded after the server acknowledged it, for readings
+//     timestamped while measured (acknowledged during the drain included)
+//   db - rows and bytes the data table grew by, and the capture log files. heap and gc - heap used, and collections while measured
+//   loss - frames offered (complete frames the radios sent), lost at each stage (parse failures, merger and storage queue drops), and overall
+//   upload - requests, duplicate rows the server got (answers lost, see soak.lostAnswerRate), and rows not resent because they were acknowledged
+//   samples - the counts, backlog, sizes and heap once per sampleMs, to see growth or a backlog building up over the run
+//
+// Settings (system properties, see the soak task in bench/build.gradle)
+//   soak.loads - offered loads in frames per second over all the radios, comma separated (default 50,200,1000)
+//   soak.seconds - how long each load is measured (default 120), soak.warmupSeconds - how long it runs first (default 10)
+//   soak.radios - how many radios (default 2), soak.mode - transparent or api, how the radios send (default transparent)
+//   soak.serverLatencyMs - how long the server takes to answer (default 20), soak.lostAnswerRate - share of answers lost (default 0)
+//   soak.maxBatch - most rows per upload request (default 500), soak.maxInFlight - requests at once (default 4, like Uploader in batch mode)
+//   soak.sampleMs - how often samples are taken (default 1000), soak.out - where the JSON goes (default build/reports/soak/results.json)
+//
+///////////////////////////
+
+public class SoakBenchmark
+{
+    private static final int MERGE_QUEUE_SIZE = 512; // the same as Receiver's
+    private static final long MERGE_MAX_DELAY_MS = 5;
+    private static final int MIN_BATCH_SIZE = 10; // the same as Uploader's
+    private static final long BATCH_TARGET_LATENCY_MS = 2000;
+    private static final int TRACE_FRAMES = 4096; // frames in each radio's trace, replayed over and over
+    private static final long READER_STOP_WAIT_MS = 500;
+    private static final long DRAIN_TIMEOUT_MS = 60000;
+    private static final String DEVICE_ID = "50a450a4";
+
+    private final int radios = Integer.getInteger("soak.radios", 2);
+    private final String sMode = System.getProperty("soak.mode", "transparent");
+    private final long seconds = Long.getLong("soak.seconds", 120);
+    private final long warmupSeconds = Long.getLong("soak.warmupSeconds", 10);
+    private final long serverLatencyMs = Long.getLong("soak.serverLatencyMs", 20);
+    private final double lostAnswerRate = Double.parseDouble(System.getProperty("soak.lostAnswerRate", "0"));
+    private final int maxBatch = Integer.getInteger("soak.maxBatch", 500);
+    private final int maxInFlight = Integer.getInteger("soak.maxInFlight", 4);
+    private final long sampleMs = Long.getLong("soak.sampleMs", 1000);
+    private final int linkMode = "api".equals(sMode) ? LinkReader.MODE_API : LinkReader.MODE_TRANSPARENT;
+
+    private final Metrics.Counter framesReceived = Metrics.counter("receiver.frames");
+    private final Metrics.Counter parseFailures = Metrics.counter("receiver.parseFailures");
+    private final Metrics.Counter checksumFailures = Metrics.counter("receiver.checksumFailures");
+    private final Metrics.Counter uploadErrors = Metrics.counter("upload.errors");
+    private final Metrics.Counter ackSkipped = Metrics.counter("upload.ackSkipped");
+
+    public static void main(String[] args) throws Exception
+    {
+        String[] loads = System.getProperty("soak.loads", "50,200,1000").split(",");
+        File out = new File(System.getProperty("soak.out", "build/reports/soak/results.json"));
+        CanaryLog.setLevel("receiver", CanaryLog.OFF); // a line per reader start and stop, nothing worth the noise
+        CanaryLog.setLevel("upload", CanaryLog.ERROR);
+        System.setProperty("http.maxConnections", "16"); // keep alive more connections than the most in flight
+
+        SoakBenchmark benchmark = new SoakBenchmark();
+        StringBuilder json = new StringBuilder();
+        json.append("{\n  \"benchmark\": \"soak\",\n");
+        json.append("  \"java\": \"").append(System.getProperty("java.version")).append("\",\n");
+        json.append("  \"settings\": {\"radios\": ").append(benchmark.radios).append(", \"mode\": \"").append(benchmark.sMode)
+                .append("\", \"seconds\": ").append(benchmark.seconds).append(", \"warmupSeconds\": ").append(benchmark.warmupSeconds)
+                .append(", \"serverLatencyMs\": ").append(benchmark.serverLatencyMs).append(", \"lostAnswerRate\": ").append(benchmark.lostAnswerRate)
+                .append(", \"maxBatch\": ").append(benchmark.maxBatch).append(", \"maxInFlight\": ").append(benchmark.maxInFlight).append("},\n");
+        json.append("  \"loads\": [\n");
+        for (int i = 0; i < loads.length; i++)
+        {
+            int load = Integer.parseInt(loads[i].trim());
+            System.out.println("soak: " + load + " frames/s over " + benchmark.radios + " radios, " + benchmark.warmupSeconds + " s warm up, "
+                    + benchmark.seconds + " s measured");
+            json.append(benchmark.run(load));
+            json.append(i < loads.length - 1 ? ",\n" : "\n");
+        }
+        json.append("  ]\n}\n");
+
+        File directory = out.getAbsoluteFile().getParentFile();
+        if (!directory.isDirectory() && !directory.mkdirs())
+        {
+            throw new IOException("unable to make " + directory);
+        }
+        Files.write(out.toPath(), json.toString().getBytes(StandardCharsets.UTF_8));
+        System.out.println("soak: results written to " + out);
+    }
+
+    // run(load) - runs one offered load on a fresh pipeline, returning its results as a JSON object
+    private String run(int load) throws Exception
+    {
+        Metrics.reset();
+        File directory = Files.createTempDirectory("canary-soak").toFile();
+        StubCanaryServer server = new StubCanaryServer(serverLatencyMs);
+        server.setLostAnswerRate(lostAnswerRate);
+        SoakRecorder recorder = new SoakRecorder(directory);
+
+        HttpUploadTransport transport = new HttpUploadTransport(server.getUploadUrl());
+        transport.setWireFormat(maxBatch > 1 ? HttpUploadTransport.FORMAT_COLUMNAR : HttpUploadTransport.FORMAT_ROWS);
+        transport.setDeviceId(DEVICE_ID);
+        UploadBatchSizer batchSizer = new UploadBatchSizer(Math.min(MIN_BATCH_SIZE, maxBatch), maxBatch, BATCH_TARGET_LATENCY_MS);
+        UploadEngine engine = new UploadEngine(recorder, transport, batchSizer);
+        engine.setMaxInFlight(maxInFlight);
+        recorder.setCommitListener(engine::wakeUp);
+
+        ReadingMerger merger = new ReadingMerger(MERGE_QUEUE_SIZE, MERGE_MAX_DELAY_MS, recorder::recordData);
+        List<ReplaySerialLink> links = new ArrayList<>();
+        List<LinkReader> readers = new ArrayList<>();
+        int[][] frameEnds = new int[radios][];
+        int[] traceLengths = new int[radios];
+        for (int i = 0; i < radios; i++)
+        {
+            SyntheticTrace synthetic = new SyntheticTrace(i + 1);
+            byte[] trace = linkMode == LinkReader.MODE_API ? synthetic.api(TRACE_FRAMES, false) : synthetic.transparent(TRACE_FRAMES);
+            frameEnds[i] = frameEnds(trace);
+            traceLengths[i] = trace.length;
+            double framesPerSecond = (double) load / radios;
+            ReplaySerialLink link = new ReplaySerialLink("soak" + (i + 1), trace, (int) Math.round(framesPerSecond * trace.length / TRACE_FRAMES));
+            link.setRepeat(0);
+            link.setSeed(i + 1);
+            links.add(link);
+            final ReadingMerger.Source source = merger.addSource();
+            readers.add(new LinkReader(link, LinkConfig.DEFAULT, i + 1, linkMode, reading ->
+            {
+                if (reading.flags != 0) // the same as Receiver records
+                {
+                    source.offer(reading);
+                }
+            }));
+        }
+
+        long startTime = System.currentTimeMillis();
+        merger.start();
+        engine.start();
+        for (LinkReader reader : readers)
+        {
+            reader.start();
+        }
+
+        List<long[]> samples = new ArrayList<>();
+        sampleUntil(startTime + warmupSeconds * 1000, startTime, recorder, samples);
+        long measureStart = System.currentTimeMillis();
+        recorder.setLatencyFrom(measureStart);
+        long receivedStart = framesReceived.get();
+        long committedStart = recorder.getCommitted();
+        long uploadedStart = recorder.getUploaded();
+        long tableBytesStart = recorder.getTableBytes();
+        long[] gcStart = gc();
+        sampleUntil(measureStart + seconds * 1000, startTime, recorder, samples);
+        long measureEnd = System.currentTimeMillis();
+        long received = framesReceived.get() - receivedStart;
+        long committed = recorder.getCommitted() - committedStart;
+        long uploaded = recorder.getUploaded() - uploadedStart;
+        long tableBytes = recorder.getTableBytes() - tableBytesStart;
+        long[] gcEnd = gc();
+        long heapEnd = heapUsed();
+        long heapPeak = 0;
+        long backlogPeak = 0;
+        for (long[] sample : samples)
+        {
+            if (sample[0] >= measureStart - startTime)
+            {
+                heapPeak = Math.max(heapPeak, sample[7]);
+                backlogPeak = Math.max(backlogPeak, sample[4]);
+            }
+        }
+
+        // drain - stop the radios, and let everything read make it through to the server
+        long drainStart = System.currentTimeMillis();
+        for (LinkReader reader : readers)
+        {
+            reader.stopReading();
+        }
+        for (LinkReader reader : readers)
+        {
+            reader.join(READER_STOP_WAIT_MS);
+        }
+        merger.stop();
+        boolean bDrained = recorder.awaitCommitted(DRAIN_TIMEOUT_MS);
+        engine.wakeUp();
+        bDrained = recorder.awaitUploaded(DRAIN_TIMEOUT_MS) && bDrained;
+        long drainMs = System.currentTimeMillis() - drainStart;
+        engine.stop();
+        recorder.close();
+
+        long offered = 0;
+        for (int i = 0; i < radios; i++)
+        {
+            links.get(i).close();
+            offered += completeFrames(frameEnds[i], traceLengths[i], links.get(i).getBytesRead());
+        }
+        long serverRows = server.acknowledged(DEVICE_ID, recorder.getStream());
+        double measuredSeconds = (measureEnd - measureStart) / 1000.0;
+        Metrics.Histogram latency = recorder.getAckLatency();
+        dumpMetrics(load);
+        server.stop();
+        deleteAll(directory);
+
+        String sSummary = String.format(Locale.US, "soak: %d frames/s offered - received %.1f/s, committed %.1f/s, acknowledged %.1f/s, "
+                        + "ack latency p50 %d ms p99 %d ms max %d ms, lost %d of %d, drained in %d ms%s",
+                load, received / measuredSeconds, committed / measuredSeconds, uploaded / measuredSeconds,
+                latency.getPercentile(50), latency.getPercentile(99), latency.getMax(), offered - recorder.getUploaded(), offered, drainMs,
+                bDrained ? "" : " (gave up draining)");
+        System.out.println(sSummary);
+
+        StringBuilder json = new StringBuilder();
+        json.append("    {\n");
+        json.append("      \"offeredFps\": ").append(load).append(",\n");
+        json.append("      \"measuredSeconds\": ").append(measuredSeconds).append(",\n");
+        json.append("      \"framesPerSecond\": {\"received\": ").append(rate(received, measuredSeconds))
+                .append(", \"committed\": ").append(rate(committed, measuredSeconds))
+                .append(", \"acknowledged\": ").append(rate(uploaded, measuredSeconds)).append("},\n");
+        json.append("      \"ackLatencyMs\": {\"count\": ").append(latency.getCount())
+                .append(", \"mean\": ").append(String.format(Locale.US, "%.1f", latency.getMean()))
+                .append(", \"p50\": ").append(latency.getPercentile(50))
+                .append(", \"p90\": ").append(latency.getPercentile(90))
+                .append(", \"p99\": ").append(latency.getPercentile(99))
+                .append(", \"p999\": ").append(latency.getPercentile(99.9))
+                .append(", \"max\": ").append(latency.getMax()).append("},\n");
+        json.append("      \"db\": {\"rows\": ").append(committed)
+                .append(", \"tableBytes\": ").append(tableBytes)
+                .append(", \"tableBytesPerSecond\": ").append(rate(tableBytes, measuredSeconds))
+                .append(", \"backlogPeak\": ").append(backlogPeak)
+                .append(", \"captureLogBytes\": ").append(samples.isEmpty() ? 0 : samples.get(samples.size() - 1)[6]).append("},\n");
+        json.append("      \"heap\": {\"peakUsedBytes\": ").append(heapPeak).append(", \"endUsedBytes\": ").append(heapEnd)
+                .append(", \"maxBytes\": ").append(Runtime.getRuntime().maxMemory()).append("},\n");
+        json.append("      \"gc\": {\"count\": ").append(gcEnd[0] - gcStart[0]).append(", \"timeMs\": ").append(gcEnd[1] - gcStart[1]).append("},\n");
+        json.append("      \"loss\": {\"offered\": ").append(offered)
+                .append(", \"parseFailures\": ").append(parseFailures.get())
+                .append(", \"checksumFailures\": ").append(checksumFailures.get())
+                .append(", \"mergeDropped\": ").append(merger.getDropped())
+                .append(", \"storageDropped\": ").append(recorder.getQueue().getDropped())
+                .append(", \"storageSpilled\": ").append(recorder.getQueue().getSpilled())
+                .append(", \"committed\": ").append(recorder.getCommitted())
+                .append(", \"acknowledged\": ").append(recorder.getUploaded())
+                .append(", \"serverThrough\": ").append(serverRows)
+                .append(", \"lost\": ").append(offered - recorder.getUploaded())
+                .append(", \"drained\": ").append(bDrained)
+                .append(", \"drainMs\": ").append(drainMs).append("},\n");
+        json.append("      \"upload\": {\"requests\": ").append(server.requests())
+                .append(", \"errors\": ").append(uploadErrors.get())
+                .append(", \"duplicateRows\": ").append(server.duplicateRows())
+                .append(", \"ackSkipped\": ").append(ackSkipped.get()).append("},\n");
+        json.append("      \"samples\": [");
+        for (int i = 0; i < samples.size(); i++)
+        {
+            long[] sample = samples.get(i);
+            json.append(i > 0 ? ",\n" : "\n").append("        {\"ms\": ").append(sample[0]).append(", \"received\": ").append(sample[1])
+                    .append(", \"committed\": ").append(sample[2]).append(", \"acknowledged\": ").append(sample[3])
+                    .append(", \"backlog\": ").append(sample[4]).append(", \"tableBytes\": ").append(sample[5])
+                    .append(", \"captureLogBytes\": ").append(sample[6]).append(", \"heapUsedBytes\": ").append(sample[7]).append("}");
+        }
+        json.append("\n      ]\n    }");
+        return json.toString();
+    }
+
+    // sampleUntil(time, startTime, SoakRecorder, samples) - takes a sample every sampleMs until time
+    //   A sample is ms since startTime, frames received, rows committed, rows acknowledged, backlog, table bytes, capture log bytes, heap used
+    private void sampleUntil(long time, long startTime, SoakRecorder recorder, List<long[]> samples) throws InterruptedException
+    {
+        long now;
+        while ((now = System.currentTimeMillis()) < time)
+        {
+            Thread.sleep(Math.min(sampleMs, time - now));
+            samples.add(new long[] {System.currentTimeMillis() - startTime, framesReceived.get(), recorder.getCommitted(), recorder.getUploaded(),
+                    recorder.getBacklog(), recorder.getTableBytes(), recorder.getCaptureLogBytes(), heapUsed()});
+        }
+    }
+
+    // frameEnds(trace) - where each frame of the trace ends, just past its last byte
+    private int[] frameEnds(byte[] trace)
+    {
+        int[] ends = new int[TRACE_FRAMES];
+        int count = 0;
+        if (linkMode == LinkReader.MODE_API) // start delimiter, 2 byte length, frame data, checksum (not escaped)
+        {
+            for (int i = 0; i < trace.length && count < ends.length; )
+            {
+                i += 3 + (((trace[i + 1] & 0xFF) << 8) | (trace[i + 2] & 0xFF)) + 1;
+                ends[count++] = i;
+            }
+        }
+        else
+        {
+            for (int i = 0; i < trace.length && count < ends.length; i++)
+            {
+                if (trace[i] == '\n')
+                {
+                    ends[count++] = i + 1;
+                }
+            }
+        }
+        return Arrays.copyOf(ends, count);
+    }
+
+    // completeFrames(frameEnds, traceLength, bytes) - how many whole frames are in the first bytes of the trace replayed over and over
+    private static long completeFrames(int[] frameEnds, int traceLength, long bytes)
+    {
+        long frames = bytes / traceLength * frameEnds.length;
+        int rest = (int) (bytes % traceLength);
+        int found = Arrays.binarySearch(frameEnds, rest);
+        return frames + (found >= 0 ? found + 1 : -found - 1);
+    }
+
+    // gc() - collections and milliseconds spent collecting so far, over all the collectors
+    private static long[] gc()
+    {
+        long[] totals = new long[2];
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans())
+        {
+            totals[0] += Math.max(0, collector.getCollectionCount());
+            totals[1] += Math.max(0, collector.getCollectionTime());
+        }
+        return totals;
+    }
+
+    private static long heapUsed()
+    {
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    private static String rate(long count, double seconds)
+    {
+        return String.format(Locale.US, "%.1f", seconds > 0 ? count / seconds : 0);
+    }
+
+    // dumpMetrics(load) - writes every pipeline metric next to the results, for digging into a run
+    private static void dumpMetrics(int load)
+    {
+        File out = new File(System.getProperty("soak.out", "build/reports/soak/results.json")).getAbsoluteFile();
+        File file = new File(out.getParentFile(), "metrics-" + load + ".txt");
+        if (!file.getParentFile().isDirectory() && !file.getParentFile().mkdirs())
+        {
+            return;
+        }
+        try (Writer writer = new FileWriter(file))
+        {
+            Metrics.dump(writer);
+        }
+        catch (IOException e)
+        {
+            System.err.println("soak: unable to write " + file + " " + e);
+        }
+    }
+
+    private static void deleteAll(File file)
+    {
+        File[] files = file.listFiles();
+        for (int i = 0; files != null && i < files.length; i++)
+        {
+            deleteAll(files[i]);
+        }
+        if (!file.delete())
+        {
+            file.deleteOnExit();
+        }
+    }
+}
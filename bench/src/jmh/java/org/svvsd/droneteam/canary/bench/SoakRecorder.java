@@ -0,0 +1,284 @@
+package org.svvsd.droneteam.canary.bench;
+
+import org.svvsd.droneteam.canary.Metrics;
+import org.svvsd.droneteam.canary.Reading;
+import org.svvsd.droneteam.canary.ReadingQueue;
+import org.svvsd.droneteam.canary.StorageWriter;
+import org.svvsd.droneteam.canary.UploadBatch;
+import org.svvsd.droneteam.canary.UploadStore;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.TreeMap;
+
+////////////////////////////////////
+// Notes
+//
+// SoakRecorder stands in for Recorder in SoakBenchmark, running its storage path on the JVM with the database kept in memory
+//   Everything up to the database is the real thing, Recorder's StorageWriter with its default batching - only the CommitSink is different
+//   A commit turns each reading into the column values Recorder's database hands the uploader (the same columns, as text), and gives it the next dataId
+//   Rows that are not uploaded are kept. Uploaded ones are only counted, with their size, so the heap stays that of the pipeline and not of the table
+//   Marking a batch uploaded removes its range of sequences, like Recorder's range update, and records how long each row took from being
+//   timestamped by its LinkReader to being marked (the capture to ack latency)
+//
+// Constructor
+//   SoakRecorder(directory) - the capture log and spill file go in the directory
+//
+// Public Methods
+//   recordData(Reading) - queues a copy of the reading to be recorded
+//   setCommitListener(Runnable) - runs on the ingest thread after each batch is committed
+//   setLatencyFrom(timeMs) - only rows timestamped from then on count in getAckLatency()
+//   awaitCommitted(timeoutMs) - waits until everything queued now is committed, returning false if it took too long
+//   awaitUploaded(timeoutMs) - waits until every committed row is marked uploaded, returning false if it took too long
+//   close() - stops the append and ingest threads
+//   getQueue() - the storage queue, for its dropped and spilled counts
+//   getCommitted(), getUploaded() - rows committed, and marked uploaded
+//   getBacklog() - rows committed but not uploaded
+//   getTableBytes() - about how big the data table has grown, the text of every committed row plus its dataId
+//   getCaptureLogBytes() - the size of the capture log files
+//   getAckLatency() - milliseconds from each row's timestamp to it being marked uploaded
+//
+///////////////////////////
+
+public class SoakRecorder implements UploadStore, StorageWriter.CommitSink
+{
+    // the columns Recorder hands the uploader, see Recorder.dataColumns()
+    private static final String[] COLUMNS = {"testfield", "temperature", "pressure", "humidity", "CO", "H2", "NH4", "CH4", "O3",
+            "Lidar", "Latitude", "Longitude", "Altitude", "Timestamp", "source"};
+    private static final int ROW_OVERHEAD = 8; // dataId
+
+    private final File directory;
+    private final StorageWriter storageWriter;
+    private volatile Runnable commitListener = null;
+    private volatile long latencyFrom = 0;
+    private final Metrics.Histogram ackLatency = new Metrics.Histogram();
+
+    private volatile long committed = 0; // only moved by the ingest thread
+    private volatile long tableBytes = 0;
+    private final StringBuilder sb = new StringBuilder(256); // ingest thread only
+    private final SimpleDateFormat timestampFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss"); // ingest thread only
+
+    // the table, guarded by this
+    private final TreeMap<Long, Row> pending = new TreeMap<>(); // rows not uploaded yet, by dataId
+    private long nextDataId = 1;
+    private long uploaded = 0;
+
+    public SoakRecorder(File directory) throws IOException
+    {
+        this.directory = directory;
+        timestampFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+        storageWriter = new StorageWriter(directory, "Soak Recorder", this);
+        storageWriter.start(0, 0); // a fresh directory every run, so nothing to pick up
+    }
+
+    // recordData(Reading) - queues a copy of the reading to be recorded
+    public void recordData(Reading reading)
+    {
+        storageWriter.recordData(reading);
+    }
+
+    // setCommitListener(Runnable) - runs on the ingest thread after each batch is committed
+    public void setCommitListener(Runnable listener)
+    {
+        commitListener = listener;
+    }
+
+    // setLatencyFrom(timeMs) - only rows timestamped from then on count in getAckLatency()
+    public void setLatencyFrom(long timeMs)
+    {
+        latencyFrom = timeMs;
+    }
+
+    // awaitCommitted(timeoutMs) - waits until everything queued now is committed, returning false if it took too long
+    public boolean awaitCommitted(long timeoutMs)
+    {
+        return storageWriter.flush(System.currentTimeMillis() + timeoutMs);
+    }
+
+    // awaitUploaded(timeoutMs) - waits until every committed row is marked uploaded, returning false if it took too long
+    public synchronized boolean awaitUploaded(long timeoutMs) throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        long wait;
+        while (!pending.isEmpty())
+        {
+            if ((wait = deadline - System.currentTimeMillis()) <= 0)
+            {
+                return false;
+            }
+            wait(wait);
+        }
+        return true;
+    }
+
+    // close() - stops the append and ingest threads
+    public void close() throws InterruptedException
+    {
+        storageWriter.close();
+    }
+
+    public ReadingQueue getQueue()
+    {
+        return storageWriter.getQueue();
+    }
+
+    public long getCommitted()
+    {
+        return committed;
+    }
+
+    public synchronized long getUploaded()
+    {
+        return uploaded;
+    }
+
+    public synchronized long getBacklog()
+    {
+        return pending.size();
+    }
+
+    public long getTableBytes()
+    {
+        return tableBytes;
+    }
+
+    // getCaptureLogBytes() - the size of the capture log files
+    public long getCaptureLogBytes()
+    {
+        long bytes = 0;
+        File[] files = new File(directory, "capture").listFiles();
+        for (int i = 0; files != null && i < files.length; i++)
+        {
+            bytes += files[i].length();
+        }
+        return bytes;
+    }
+
+    public Metrics.Histogram getAckLatency()
+    {
+        return ackLatency;
+    }
+
+    @Override
+    public synchronized UploadBatch nextBatch(long afterDataId, int maxRows)
+    {
+        UploadBatch batch = new UploadBatch(COLUMNS, maxRows);
+        for (Map.Entry<Long, Row> row : pending.tailMap(afterDataId, false).entrySet())
+        {
+            if (batch.size == maxRows)
+            {
+                break;
+            }
+            batch.addRow(row.getKey(), row.getValue().values);
+        }
+        return batch;
+    }
+
+    @Override
+    public synchronized void markUploaded(UploadBatch batch)
+    {
+        if (batch.size == 0)
+        {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        long first = batch.firstSequence > 0 ? batch.firstSequence : batch.dataIds[0];
+        Iterator<Row> rows = pending.subMap(first, true, batch.lastSequence(), true).values().iterator();
+        while (rows.hasNext())
+        {
+            Row row = rows.next();
+            if (row.timestamp >= latencyFrom)
+            {
+                ackLatency.record(now - row.timestamp);
+            }
+            rows.remove();
+            uploaded++;
+        }
+        notifyAll();
+    }
+
+    @Override
+    public String getStream()
+    {
+        return "data";
+    }
+
+    // commit(batch, tags, size, segment, offset) - puts a batch of readings in the table, one transaction's worth. Nothing of its own, and nothing to save the place in
+    @Override
+    public int commit(Reading[] batch, long[] tags, int size, long segment, int offset)
+    {
+        Row[] rows = new Row[size];
+        long bytes = 0;
+        for (int i = 0; i < size; i++)
+        {
+            rows[i] = new Row(batch[i], sb, timestampFormat);
+            bytes += rows[i].bytes();
+        }
+        synchronized (this)
+        {
+            for (int i = 0; i < size; i++)
+            {
+                pending.put(nextDataId++, rows[i]);
+            }
+        }
+        tableBytes += bytes;
+        committed += size;
+        Runnable listener = commitListener;
+        if (size > 0 && listener != null)
+        {
+            listener.run();
+        }
+        return 0;
+    }
+
+    @Override
+    public boolean hasPending()
+    {
+        return false;
+    }
+
+    // Row - a committed row's values, as the database hands them back as text
+    private static class Row
+    {
+        final String[] values = new String[COLUMNS.length];
+        final long timestamp;
+
+        Row(Reading reading, StringBuilder sb, SimpleDateFormat timestampFormat)
+        {
+            // testfield keeps the frame text, with anything but digits and separators taken out, like Recorder's
+            sb.setLength(0);
+            sb.append("full data");
+            for (int i = 0; i < reading.rawLength; i++)
+            {
+                byte b = reading.raw[i];
+                if ((b >= '0' && b <= '9') || b == '|' || b == '.' || b == ',')
+                {
+                    sb.append((char) b);
+                }
+            }
+            values[0] = sb.toString();
+            for (int c = 1; c < 13; c++)
+            {
+                values[c] = reading.getAsString(COLUMNS[c]);
+            }
+            values[13] = timestampFormat.format(new Date(reading.timestamp / 1000 * 1000)); // datetime(? / 1000, 'unixepoch')
+            values[14] = reading.source != 0 ? Integer.toString(reading.source) : null;
+            timestamp = reading.timestamp;
+        }
+
+        long bytes()
+        {
+            long bytes = ROW_OVERHEAD;
+            for (String sValue : values)
+            {
+                bytes += sValue != null ? sValue.length() : 0;
+            }
+            return bytes;
+        }
+    }
+}
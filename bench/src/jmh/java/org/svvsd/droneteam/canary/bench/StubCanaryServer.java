@@ -0,0 +1,303 @@
+package org.svvsd.droneteam.canary.bench;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.svvsd.droneteam.canary.ColumnarEncoder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+////////////////////////////////////
+// Notes
+//
+// StubCanaryServer is a local stand in for canary.php, for measuring uploads without a real server
+//   Answers GET rows and batch POSTs (text or gzipped columnar) with OK after a simulated latency, the way canary.php answers once it stored the data
+//   With setAcceptColumnar(false) columnar POSTs get 415, like a server that only knows the older formats
+//   Counts requests, rows, and how many different connections they came in on (to see keep alive working)
+//
+// Sequences (see HttpUploadTransport)
+//   Requests with X-Canary-Device, X-Canary-Stream and X-Canary-Range are answered ACK <last of the range>, and the range is kept per device and stream,
+//   so a range sent again is counted in duplicateRows() instead of being stored twice. An X-Canary-Ack query is answered ACK <seq>, the sequence
+//   through which every row of the stream has come in
+//   With setLostAnswerRate(), that share of requests is stored but answered 503, like an answer lost on the way back, so the client sends it again
+//
+// Constructor
+//   StubCanaryServer(latencyMs) - starts serving on a free local port
+//
+// Public Methods
+//   getUploadUrl() - the URL to upload to, the same form as Uploader.sUploadUrl
+//   setLatencyMs(long) - how long each request takes to answer
+//   setAcceptColumnar(boolean) - whether columnar POSTs are taken (default true)
+//   setLostAnswerRate(rate) - the share of requests that are stored but answered with an error (default 0)
+//   requests() / rows() / connections() - counts since started
+//   duplicateRows() - rows of sequence ranges that had already come in
+//   acknowledged(device, stream) - the sequence through which every row of the stream has come in, 0 for none
+//   stop() - stops serving
+//
+///////////////////////////
+
+public class StubCanaryServer
+{
+    private static final String PATH = "/canary/canary.php";
+
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private volatile long latencyMs;
+    private volatile boolean bAcceptColumnar = true;
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong rows = new AtomicLong();
+    private final AtomicLong duplicateRows = new AtomicLong();
+    private final Set<InetSocketAddress> clients = ConcurrentHashMap.newKeySet();
+    private final ConcurrentHashMap<String, SequenceRanges> streams = new ConcurrentHashMap<>(); // by device and stream
+    private volatile double lostAnswerRate = 0;
+    private final Random random = new Random(1);
+
+    public StubCanaryServer(long latencyMs) throws IOException
+    {
+        System.setProperty("sun.net.httpserver.nodelay", "true"); // otherwise Nagle plus delayed acks add ~40ms to every response
+        this.latencyMs = latencyMs;
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 64);
+        server.createContext(PATH, new CanaryHandler());
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    // getUploadUrl() - the URL to upload to, the same form as Uploader.sUploadUrl
+    public String getUploadUrl()
+    {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + PATH + "?";
+    }
+
+    // setLatencyMs(long) - how long each request takes to answer
+    public void setLatencyMs(long latencyMs)
+    {
+        this.latencyMs = latencyMs;
+    }
+
+    // setAcceptColumnar(boolean) - whether columnar POSTs are taken (default true)
+    public void setAcceptColumnar(boolean bAcceptColumnar)
+    {
+        this.bAcceptColumnar = bAcceptColumnar;
+    }
+
+    // setLostAnswerRate(rate) - the share of requests that are stored but answered with an error (default 0)
+    public void setLostAnswerRate(double lostAnswerRate)
+    {
+        this.lostAnswerRate = lostAnswerRate;
+    }
+
+    public long requests()
+    {
+        return requests.get();
+    }
+
+    public long rows()
+    {
+        return rows.get();
+    }
+
+    public long connections()
+    {
+        return clients.size();
+    }
+
+    // duplicateRows() - rows of sequence ranges that had already come in
+    public long duplicateRows()
+    {
+        return duplicateRows.get();
+    }
+
+    // acknowledged(device, stream) - the sequence through which every row of the stream has come in, 0 for none
+    public long acknowledged(String sDevice, String sStream)
+    {
+        SequenceRanges ranges = streams.get(sDevice + "/" + sStream);
+        return ranges == null ? 0 : ranges.through();
+    }
+
+    // stop() - stops serving
+    public void stop()
+    {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private class CanaryHandler implements HttpHandler
+    {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException
+        {
+            clients.add(exchange.getRemoteAddress());
+            boolean bColumnar = ColumnarEncoder.CONTENT_TYPE.equals(exchange.getRequestHeaders().getFirst("Content-Type"));
+            InputStream in = exchange.getRequestBody();
+            if ("gzip".equals(exchange.getRequestHeaders().getFirst("Content-Encoding")))
+            {
+                in = new GZIPInputStream(in);
+            }
+            byte[] body = readAll(in);
+            if (bColumnar && !bAcceptColumnar)
+            {
+                exchange.sendResponseHeaders(415, -1);
+                exchange.close();
+                return;
+            }
+            int received;
+            if (!"POST".equals(exchange.getRequestMethod()))
+            {
+                received = 1;
+            }
+            else
+            {
+                received = bColumnar ? columnarRows(body) : countLines(body);
+            }
+            if (latencyMs > 0)
+            {
+                try
+                {
+                    Thread.sleep(latencyMs);
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            String sAnswer = "OK";
+            String sDevice = exchange.getRequestHeaders().getFirst("X-Canary-Device");
+            String sStream = exchange.getRequestHeaders().getFirst("X-Canary-Stream");
+            if (sDevice != null && sStream != null)
+            {
+                SequenceRanges ranges = streams.computeIfAbsent(sDevice + "/" + sStream, k -> new SequenceRanges());
+                String sRange = exchange.getRequestHeaders().getFirst("X-Canary-Range");
+                if ("1".equals(exchange.getRequestHeaders().getFirst("X-Canary-Ack")))
+                {
+                    received = 0;
+                    sAnswer = "ACK " + ranges.through();
+                }
+                else if (sRange != null)
+                {
+                    int dash = sRange.indexOf('-');
+                    long first = Long.parseLong(sRange.substring(0, dash));
+                    long last = Long.parseLong(sRange.substring(dash + 1));
+                    duplicateRows.addAndGet(ranges.add(first, last));
+                    sAnswer = "ACK " + last;
+                }
+            }
+            boolean bLost = lostAnswerRate > 0 && nextDouble() < lostAnswerRate;
+            requests.incrementAndGet();
+            rows.addAndGet(received);
+            if (bLost) // stored, but the client never hears it was
+            {
+                exchange.sendResponseHeaders(503, -1);
+                exchange.close();
+                return;
+            }
+
+            byte[] response = sAnswer.getBytes(StandardCharsets.US_ASCII);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain");
+            exchange.sendResponseHeaders(200, response.length);
+            OutputStream out = exchange.getResponseBody();
+            out.write(response);
+            out.close();
+        }
+    }
+
+    // SequenceRanges - the sequences of one stream that have come in, as ranges that do not touch each other, first -> last
+    private static class SequenceRanges
+    {
+        private final TreeMap<Long, Long> ranges = new TreeMap<>();
+
+        // add(first, last) - adds a range, returning how many of its sequences had already come in
+        synchronized long add(long first, long last)
+        {
+            long already = 0;
+            long start = first;
+            long end = last;
+            Map.Entry<Long, Long> before = ranges.floorEntry(first);
+            if (before != null && before.getValue() >= first - 1)
+            {
+                already += Math.max(0, Math.min(before.getValue(), last) - first + 1);
+                start = before.getKey();
+                end = Math.max(end, before.getValue());
+                ranges.remove(before.getKey());
+            }
+            Map.Entry<Long, Long> after;
+            while ((after = ranges.ceilingEntry(first)) != null && after.getKey() <= last + 1)
+            {
+                already += Math.max(0, Math.min(after.getValue(), last) - after.getKey() + 1);
+                end = Math.max(end, after.getValue());
+                ranges.remove(after.getKey());
+            }
+            ranges.put(start, end);
+            return already;
+        }
+
+        // through() - the end of the first range, through which every sequence has come in
+        synchronized long through()
+        {
+            return ranges.isEmpty() ? 0 : ranges.firstEntry().getValue();
+        }
+    }
+
+    private double nextDouble()
+    {
+        synchronized (random)
+        {
+            return random.nextDouble();
+        }
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int length;
+        while ((length = in.read(buffer)) > 0)
+        {
+            bytes.write(buffer, 0, length);
+        }
+        in.close();
+        return bytes.toByteArray();
+    }
+
+    // columnarRows(body) - the row count from the header of a columnar body: "CNRY", version, varint rows
+    private static int columnarRows(byte[] body)
+    {
+        int rows = 0;
+        int shift = 0;
+        for (int i = 5; i < body.length; i++, shift += 7)
+        {
+            rows |= (body[i] & 0x7F) << shift;
+            if ((body[i] & 0x80) == 0)
+            {
+                break;
+            }
+        }
+        return rows;
+    }
+
+    private static int countLines(byte[] body)
+    {
+        int lines = 0;
+        for (byte b : body)
+        {
+            if (b == '\n')
+            {
+                lines++;
+            }
+        }
+        return lines;
+    }
+}
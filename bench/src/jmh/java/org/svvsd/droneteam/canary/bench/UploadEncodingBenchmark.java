@@ -0,0 +1,71 @@
+package org.svvsd.droneteam.canary.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+import org.svvsd.droneteam.canary.ColumnarEncoder;
+import org.svvsd.droneteam.canary.UploadBatch;
+
+import java.net.URLEncoder;
+import java.util.concurrent.TimeUnit;
+
+// UploadEncodingBenchmark - upload batches encoded per second, as a gzipped columnar POST body, as a text POST body, and as the one GET query per row Uploader sends without batching
+//   Setup prints the bytes per row each way sends, to compare what goes over the cellular link
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class UploadEncodingBenchmark
+{
+    @Param({"1", "50", "500"})
+    public int rows;
+
+    private UploadBatch batch;
+    private StringBuilder sbQuery = new StringBuilder(512);
+    private ColumnarEncoder columnarEncoder = new ColumnarEncoder();
+
+    @Setup
+    @SuppressWarnings("deprecation")
+    public void setup() throws Exception
+    {
+        batch = FrameCorpus.uploadBatch(rows);
+        long queryBytes = 0;
+        for (int r = 0; r < batch.size; r++)
+        {
+            sbQuery.setLength(0);
+            batch.appendQuery(r, sbQuery);
+            queryBytes += URLEncoder.encode(sbQuery.toString()).length();
+        }
+        System.out.printf("%nbytes per row: columnar %.1f, text %.1f, row queries %.1f%n",
+                (double) columnarEncoder.encode(batch).length / rows, (double) batch.encodeBody().getBytes("UTF-8").length / rows, (double) queryBytes / rows);
+    }
+
+    @Benchmark
+    public byte[] columnarBody()
+    {
+        return columnarEncoder.encode(batch);
+    }
+
+    @Benchmark
+    public String batchBody()
+    {
+        return batch.encodeBody();
+    }
+
+    @Benchmark
+    @SuppressWarnings("deprecation")
+    public void rowQueries(Blackhole blackhole)
+    {
+        for (int r = 0; r < batch.size; r++)
+        {
+            sbQuery.setLength(0);
+            batch.appendQuery(r, sbQuery);
+            blackhole.consume(URLEncoder.encode(sbQuery.toString()));
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package org.svvsd.droneteam.canary.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.svvsd.droneteam.canary.HttpUploadTransport;
+import org.svvsd.droneteam.canary.UploadBatchSizer;
+import org.svvsd.droneteam.canary.UploadEngine;
+
+import java.util.concurrent.TimeUnit;
+
+// UploadEngineBenchmark - rows uploaded per second by UploadEngine to StubCanaryServer over HTTP, with simulated server latency
+//   maxInFlight 1 with batchSize 1 is how Uploader used to upload (one GET at a time)
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class UploadEngineBenchmark
+{
+    private static final int ROWS = 400; // rows uploaded per invocation
+
+    @Param({"0", "25"})
+    public long latencyMs;
+
+    @Param({"1", "4", "8"})
+    public int maxInFlight;
+
+    @Param({"1", "50"})
+    public int batchSize;
+
+    private StubCanaryServer server;
+    private MemoryUploadStore store;
+    private UploadEngine engine;
+    private long target = 0;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception
+    {
+        System.setProperty("http.maxConnections", "16"); // keep alive more connections than the most in flight
+        server = new StubCanaryServer(latencyMs);
+        store = new MemoryUploadStore();
+        HttpUploadTransport transport = new HttpUploadTransport(server.getUploadUrl());
+        transport.setWireFormat(batchSize > 1 ? HttpUploadTransport.FORMAT_COLUMNAR : HttpUploadTransport.FORMAT_ROWS);
+        engine = new UploadEngine(store, transport, new UploadBatchSizer(batchSize, batchSize, Long.MAX_VALUE));
+        engine.setMaxInFlight(maxInFlight);
+        engine.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        engine.stop();
+        System.out.println("\nrequests " + server.requests() + ", rows " + server.rows() + ", connections " + server.connections());
+        server.stop();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public void upload() throws InterruptedException
+    {
+        target += ROWS;
+        store.add(ROWS);
+        engine.wakeUp();
+        store.awaitUploaded(target);
+    }
+}
@@ -0,0 +1,225 @@
+package org.svvsd.droneteam.canary;
+
+////////////////////////////////////
+// Notes
+//
+// ApiFrameAssembler turns the raw byte chunks read from an XBee in API mode into complete, checksummed API frames
+//   It is the API mode counterpart of FrameAssembler - partial frames survive from one read to the next, and nothing is allocated per byte or per read
+//   Each frame's data (frame type byte first) is copied into one reusable frame buffer and handed to a FrameAssembler.FrameListener
+//
+// What is an API frame
+//   0x7E, length (2 bytes, most significant first), frame data (length bytes, starting with the frame type), checksum (1 byte)
+//   The checksum is 0xFF minus the low byte of the sum of the frame data, so frame data plus checksum adds up to 0xFF
+//   Frames with a bad checksum are thrown away and counted, and we look for the next 0x7E right after the bad frame's 0x7E, so a 0x7E inside
+//   a corrupted frame can not make us skip the good frame that follows it
+//   In escaped mode (XBee AP=2) 0x7E, 0x7D, 0x11 and 0x13 inside a frame are sent as 0x7D followed by the byte xor 0x20. Escapes are undone first,
+//   so a 0x7E always starts a frame
+//
+// Constructor
+//   ApiFrameAssembler(capacity, bEscaped) - capacity is the largest frame data in bytes we are willing to hold. bEscaped for API mode 2
+//
+// Public variables
+//   framesAssembled - how many good frames have been handed to the listener
+//   checksumFailures - how many frames were thrown away because of a bad checksum
+//   bytesDropped - how many bytes were thrown away outside of frames, or because a frame was longer than capacity
+//
+// Public Methods
+//   append(byte[], offset, length, FrameListener) - adds newly read bytes, calling the listener for every good frame completed by them
+//   reset() - forgets any partial frame, for example when the XBee connection is reopened
+//   receivePayloadOffset(frame, length) - where the received data starts in a receive frame (802.15.4 RX 64 / RX 16, or ZigBee / DigiMesh
+//     Receive Packet), after its source address and options. -1 for other frame types, or if there is no data
+//
+///////////////////////////
+
+public class ApiFrameAssembler
+{
+    public static final int START_DELIMITER = 0x7E;
+    public static final int ESCAPE = 0x7D;
+    public static final int ESCAPE_XOR = 0x20;
+
+    // receive frame types, and the frame data bytes before the received data (frame type, source address, and RSSI or options)
+    public static final int RECEIVE_PACKET = 0x90;
+    private static final int RECEIVE_PACKET_HEADER = 12;
+    public static final int RX_64 = 0x80;
+    private static final int RX_64_HEADER = 11;
+    public static final int RX_16 = 0x81;
+    private static final int RX_16_HEADER = 5;
+
+    // where we are in the frame
+    private static final int WAIT_START = 0;
+    private static final int LENGTH_HIGH = 1;
+    private static final int LENGTH_LOW = 2;
+    private static final int DATA = 3;
+    private static final int CHECKSUM = 4;
+
+    public long framesAssembled = 0; // how many good frames have been handed to the listener
+    public long checksumFailures = 0; // how many frames were thrown away because of a bad checksum
+    public long bytesDropped = 0; // how many bytes were thrown away outside of frames, or because a frame was longer than capacity
+
+    private final boolean bEscaped;
+    private final byte[] frame; // frame data of the frame being assembled, handed to the listener once checked
+    private int state = WAIT_START;
+    private int frameLength; // frame data length from the frame header
+    private int frameFill; // frame data bytes received so far
+    private int sum; // sum of the frame data received so far
+    private boolean bEscapeNext = false; // last byte was an escape, so undo the escape on the next one
+
+    public ApiFrameAssembler(int capacity, boolean bEscaped)
+    {
+        frame = new byte[capacity];
+        this.bEscaped = bEscaped;
+    }
+
+    // append(byte[], offset, length, FrameListener) - adds newly read bytes, calling the listener for every good frame completed by them
+    public void append(byte[] buffer, int offset, int length, FrameAssembler.FrameListener listener)
+    {
+        int end = offset + length;
+        for (int i = offset; i < end; i++)
+        {
+            int b = buffer[i] & 0xFF;
+            if (bEscaped)
+            {
+                if (b == START_DELIMITER) // only ever starts a frame in escaped mode, whatever we were in the middle of
+                {
+                    if (state != WAIT_START)
+                    {
+                        bytesDropped += frameFill + 3;
+                    }
+                    bEscapeNext = false;
+                    startFrame();
+                    continue;
+                }
+                if (b == ESCAPE)
+                {
+                    bEscapeNext = true;
+                    continue;
+                }
+                if (bEscapeNext)
+                {
+                    b ^= ESCAPE_XOR;
+                    bEscapeNext = false;
+                }
+            }
+            switch (state)
+            {
+                case WAIT_START:
+                    if (b == START_DELIMITER)
+                    {
+                        startFrame();
+                    }
+                    else
+                    {
+                        bytesDropped++;
+                    }
+                    break;
+                case LENGTH_HIGH:
+                    frameLength = b << 8;
+                    state = LENGTH_LOW;
+                    break;
+                case LENGTH_LOW:
+                    frameLength |= b;
+                    if (frameLength == 0 || frameLength > frame.length) // no room for it, or not really a frame
+                    {
+                        state = WAIT_START;
+                        if (bEscaped)
+                        {
+                            bytesDropped += 3;
+                        }
+                        else
+                        {
+                            bytesDropped++; // the 0x7E, either length byte may start the real frame
+                            rescan(-1, listener);
+                        }
+                    }
+                    else
+                    {
+                        state = DATA;
+                    }
+                    break;
+                case DATA:
+                    frame[frameFill++] = (byte) b;
+                    sum += b;
+                    if (frameFill == frameLength)
+                    {
+                        state = CHECKSUM;
+                    }
+                    break;
+                case CHECKSUM:
+                    state = WAIT_START;
+                    if (((sum + b) & 0xFF) == 0xFF)
+                    {
+                        framesAssembled++;
+                        listener.onFrame(frame, frameLength);
+                    }
+                    else
+                    {
+                        checksumFailures++;
+                        if (bEscaped)
+                        {
+                            bytesDropped += frameLength + 4;
+                        }
+                        else
+                        {
+                            bytesDropped++; // the 0x7E, the rest is counted by rescan() if it is not a frame either
+                            rescan(b, listener);
+                        }
+                    }
+                    break;
+            }
+        }
+    }
+
+    // reset() - forgets any partial frame, for example when the XBee connection is reopened
+    public void reset()
+    {
+        state = WAIT_START;
+        bEscapeNext = false;
+    }
+
+    // receivePayloadOffset(frame, length) - where the received data starts in a receive frame, -1 for other frame types, or if there is no data
+    public static int receivePayloadOffset(byte[] frame, int length)
+    {
+        int header;
+        switch (frame[0] & 0xFF)
+        {
+            case RECEIVE_PACKET:
+                header = RECEIVE_PACKET_HEADER;
+                break;
+            case RX_64:
+                header = RX_64_HEADER;
+                break;
+            case RX_16:
+                header = RX_16_HEADER;
+                break;
+            default:
+                return -1;
+        }
+        return length > header ? header : -1;
+    }
+
+    // startFrame() - a 0x7E came, so a frame header follows
+    private void startFrame()
+    {
+        state = LENGTH_HIGH;
+        frameLength = 0;
+        frameFill = 0;
+        sum = 0;
+    }
+
+    // rescan(lastByte, FrameListener) - feeds the bytes after the 0x7E of a frame we gave up on through again, in case that 0x7E was just noise
+    //   That is the length bytes, the frame data received, and lastByte unless it is -1
+    //   Only for unescaped mode, where a 0x7E can turn up inside a frame. Rare, so the bytes are simply copied out
+    private void rescan(int lastByte, FrameAssembler.FrameListener listener)
+    {
+        int length = frameFill;
+        byte[] bytes = new byte[length + (lastByte < 0 ? 2 : 3)];
+        bytes[0] = (byte) (frameLength >> 8);
+        bytes[1] = (byte) frameLength;
+        System.arraycopy(frame, 0, bytes, 2, length);
+        if (lastByte >= 0)
+        {
+            bytes[length + 2] = (byte) lastByte;
+        }
+        append(bytes, 0, bytes.length, listener);
+    }
+}
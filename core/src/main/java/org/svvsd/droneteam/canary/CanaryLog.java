@@ -0,0 +1,489 @@
+package org.svvsd.droneteam.canary;
+
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+////////////////////////////////////
+// Notes
+//
+// CanaryLog is a leveled logger that never makes the thread logging wait, for use on the reader, ingest and upload threads
+//   Each subsystem (receiver, recorder, upload...) gets its own Subsystem with its own level, see subsystem() and setLevel()
+//   A message below its subsystem's level costs one volatile read and nothing else, since messages are templates with the values
+//   passed separately, like LOG.warn("unable to record {} rows {}", size, e). Numbers are passed as longs, so nothing is boxed
+//   The template is only filled in later, on the log writer thread, so values passed as objects must not change afterwards (exceptions and strings are fine)
+//
+// How it works
+//   Messages go into a fixed ring of preallocated entries. A logging thread claims a slot with a compare and set, fills it, and publishes it
+//   The log writer thread formats published entries and prints them the way DebugUtils.msg() always has, so Logcat filtering on "Canary Tweet" still works
+//   If the ring is full the message is dropped and counted (the log.dropped metric) rather than waiting for room
+//
+// Levels
+//   DEBUG, INFO, WARN, ERROR, and OFF to turn a subsystem off. Subsystems start at the default level (INFO, see setDefaultLevel())
+//
+// Public Methods
+//   subsystem(name) - gets the Subsystem of that name, making it if needed. Keep it in a static final field
+//   setLevel(name, level) - sets the lowest level logged for a subsystem
+//   setDefaultLevel(level) - sets the level of every subsystem that has not had setLevel() called on it
+//   flush() - waits (up to a second) until everything logged so far is printed
+//
+// Subsystem Methods
+//   debug(), info(), warn(), error() - (template), (template, long), (template, long, long), (template, Object), (template, long, Object), (template, long, long, Object),
+//     (template, Object, Object)
+//   isEnabled(level) - whether messages at level are logged, for when working out the values costs something
+//
+///////////////////////////
+
+public class CanaryLog
+{
+    public static final int DEBUG = 0;
+    public static final int INFO = 1;
+    public static final int WARN = 2;
+    public static final int ERROR = 3;
+    public static final int OFF = 4;
+
+    private static final String[] LEVEL_NAMES = {"D", "I", "W", "E"};
+    private static final int RING_SIZE = 1024; // power of 2
+    private static final long IDLE_PARK_NS = 20000000; // how long the writer sleeps when there is nothing to print
+    private static final long FLUSH_TIMEOUT_MS = 1000;
+    private static final Object NULL_VALUE = "null"; // logged in place of a null object value, since null means no object value
+
+    // Subsystem - logs for one part of the app at its own level
+    public static class Subsystem
+    {
+        private final String sName;
+        private volatile int level;
+        private boolean bLevelSet = false; // guarded by subsystems
+
+        Subsystem(String sName, int level)
+        {
+            this.sName = sName;
+            this.level = level;
+        }
+
+        // isEnabled(level) - whether messages at level are logged
+        public boolean isEnabled(int messageLevel)
+        {
+            return messageLevel >= level;
+        }
+
+        public void debug(String sTemplate)
+        {
+            if (DEBUG >= level)
+            {
+                log(this, DEBUG, sTemplate, 0, 0, 0, null);
+            }
+        }
+
+        public void debug(String sTemplate, long a)
+        {
+            if (DEBUG >= level)
+            {
+                log(this, DEBUG, sTemplate, 1, a, 0, null);
+            }
+        }
+
+        public void debug(String sTemplate, long a, long b)
+        {
+            if (DEBUG >= level)
+            {
+                log(this, DEBUG, sTemplate, 2, a, b, null);
+            }
+        }
+
+        public void debug(String sTemplate, Object o)
+        {
+            if (DEBUG >= level)
+            {
+                log(this, DEBUG, sTemplate, 0, 0, 0, o != null ? o : NULL_VALUE);
+            }
+        }
+
+        public void debug(String sTemplate, long a, Object o)
+        {
+            if (DEBUG >= level)
+            {
+                log(this, DEBUG, sTemplate, 1, a, 0, o != null ? o : NULL_VALUE);
+            }
+        }
+
+        public void debug(String sTemplate, long a, long b, Object o)
+        {
+            if (DEBUG >= level)
+            {
+                log(this, DEBUG, sTemplate, 2, a, b, o != null ? o : NULL_VALUE);
+            }
+        }
+
+        public void debug(String sTemplate, Object o, Object o2)
+        {
+            if (DEBUG >= level)
+            {
+                log(this, DEBUG, sTemplate, 0, 0, 0, o != null ? o : NULL_VALUE, o2 != null ? o2 : NULL_VALUE);
+            }
+        }
+
+        public void info(String sTemplate)
+        {
+            if (INFO >= level)
+            {
+                log(this, INFO, sTemplate, 0, 0, 0, null);
+            }
+        }
+
+        public void info(String sTemplate, long a)
+        {
+            if (INFO >= level)
+            {
+                log(this, INFO, sTemplate, 1, a, 0, null);
+            }
+        }
+
+        public void info(String sTemplate, long a, long b)
+        {
+            if (INFO >= level)
+            {
+                log(this, INFO, sTemplate, 2, a, b, null);
+            }
+        }
+
+        public void info(String sTemplate, Object o)
+        {
+            if (INFO >= level)
+            {
+                log(this, INFO, sTemplate, 0, 0, 0, o != null ? o : NULL_VALUE);
+            }
+        }
+
+        public void info(String sTemplate, long a, Object o)
+        {
+            if (INFO >= level)
+            {
+                log(this, INFO, sTemplate, 1, a, 0, o != null ? o : NULL_VALUE);
+            }
+        }
+
+        public void info(String sTemplate, long a, long b, Object o)
+        {
+            if (INFO >= level)
+            {
+                log(this, INFO, sTemplate, 2, a, b, o != null ? o : NULL_VALUE);
+            }
+        }
+
+        public void info(String sTemplate, Object o, Object o2)
+        {
+            if (INFO >= level)
+            {
+                log(this, INFO, sTemplate, 0, 0, 0, o != null ? o : NULL_VALUE, o2 != null ? o2 : NULL_VALUE);
+            }
+        }
+
+        public void warn(String sTemplate)
+        {
+            if (WARN >= level)
+            {
+                log(this, WARN, sTemplate, 0, 0, 0, null);
+            }
+        }
+
+        public void warn(String sTemplate, long a)
+        {
+            if (WARN >= level)
+            {
+                log(this, WARN, sTemplate, 1, a, 0, null);
+            }
+        }
+
+        public void warn(String sTemplate, long a, long b)
+        {
+            if (WARN >= level)
+            {
+                log(this, WARN, sTemplate, 2, a, b, null);
+            }
+        }
+
+        public void warn(String sTemplate, Object o)
+        {
+            if (WARN >= level)
+            {
+                log(this, WARN, sTemplate, 0, 0, 0, o != null ? o : NULL_VALUE);
+            }
+        }
+
+        public void warn(String sTemplate, long a, Object o)
+        {
+            if (WARN >= level)
+            {
+                log(this, WARN, sTemplate, 1, a, 0, o != null ? o : NULL_VALUE);
+            }
+        }
+
+        public void warn(String sTemplate, long a, long b, Object o)
+        {
+            if (WARN >= level)
+            {
+                log(this, WARN, sTemplate, 2, a, b, o != null ? o : NULL_VALUE);
+            }
+        }
+
+        public void warn(String sTemplate, Object o, Object o2)
+        {
+            if (WARN >= level)
+            {
+                log(this, WARN, sTemplate, 0, 0, 0, o != null ? o : NULL_VALUE, o2 != null ? o2 : NULL_VALUE);
+            }
+        }
+
+        public void error(String sTemplate)
+        {
+            if (ERROR >= level)
+            {
+                log(this, ERROR, sTemplate, 0, 0, 0, null);
+            }
+        }
+
+        public void error(String sTemplate, long a)
+        {
+            if (ERROR >= level)
+            {
+                log(this, ERROR, sTemplate, 1, a, 0, null);
+            }
+        }
+
+        public void error(String sTemplate, long a, long b)
+        {
+            if (ERROR >= level)
+            {
+                log(this, ERROR, sTemplate, 2, a, b, null);
+            }
+        }
+
+        public void error(String sTemplate, Object o)
+        {
+            if (ERROR >= level)
+            {
+                log(this, ERROR, sTemplate, 0, 0, 0, o != null ? o : NULL_VALUE);
+            }
+        }
+
+        public void error(String sTemplate, long a, Object o)
+        {
+            if (ERROR >= level)
+            {
+                log(this, ERROR, sTemplate, 1, a, 0, o != null ? o : NULL_VALUE);
+            }
+        }
+
+        public void error(String sTemplate, long a, long b, Object o)
+        {
+            if (ERROR >= level)
+            {
+                log(this, ERROR, sTemplate, 2, a, b, o != null ? o : NULL_VALUE);
+            }
+        }
+
+        public void error(String sTemplate, Object o, Object o2)
+        {
+            if (ERROR >= level)
+            {
+                log(this, ERROR, sTemplate, 0, 0, 0, o != null ? o : NULL_VALUE, o2 != null ? o2 : NULL_VALUE);
+            }
+        }
+    }
+
+    // Entry - one message in the ring. published is the sequence number it was filled for, the writer only reads it once that matches
+    private static class Entry
+    {
+        volatile long published = -1;
+        Subsystem subsystem;
+        int level;
+        String sTemplate;
+        int longCount; // how many of a and b are used
+        long a;
+        long b;
+        Object o; // null if not used
+        Object o2; // the second object, null if not used
+    }
+
+    private static final HashMap<String, Subsystem> subsystems = new HashMap<String, Subsystem>(); // guarded by itself
+    private static volatile int defaultLevel = INFO;
+
+    private static final Entry[] ring = new Entry[RING_SIZE];
+    private static final AtomicLong claimed = new AtomicLong(); // sequence number of the next slot to claim
+    private static volatile long printed = 0; // sequence number of the next slot to print, only moved by the writer
+    private static final Metrics.Counter dropped = Metrics.counter("log.dropped");
+    private static final Thread writerThread;
+
+    static
+    {
+        for (int i = 0; i < RING_SIZE; i++)
+        {
+            ring[i] = new Entry();
+        }
+        writerThread = new Thread(new Writer(), "Canary Log Writer");
+        writerThread.setDaemon(true);
+        writerThread.setPriority(Thread.MIN_PRIORITY);
+        writerThread.start();
+    }
+
+    // subsystem(name) - gets the Subsystem of that name, making it if needed
+    public static Subsystem subsystem(String sName)
+    {
+        synchronized (subsystems)
+        {
+            Subsystem subsystem = subsystems.get(sName);
+            if (subsystem == null)
+            {
+                subsystem = new Subsystem(sName, defaultLevel);
+                subsystems.put(sName, subsystem);
+            }
+            return subsystem;
+        }
+    }
+
+    // setLevel(name, level) - sets the lowest level logged for a subsystem
+    public static void setLevel(String sName, int level)
+    {
+        synchronized (subsystems)
+        {
+            Subsystem subsystem = subsystem(sName);
+            subsystem.level = level;
+            subsystem.bLevelSet = true;
+        }
+    }
+
+    // setDefaultLevel(level) - sets the level of every subsystem that has not had setLevel() called on it
+    public static void setDefaultLevel(int level)
+    {
+        synchronized (subsystems)
+        {
+            defaultLevel = level;
+            for (Subsystem subsystem : subsystems.values())
+            {
+                if (!subsystem.bLevelSet)
+                {
+                    subsystem.level = level;
+                }
+            }
+        }
+    }
+
+    // flush() - waits (up to a second) until everything logged so far is printed
+    public static void flush()
+    {
+        long target = claimed.get();
+        long deadline = System.currentTimeMillis() + FLUSH_TIMEOUT_MS;
+        while (printed < target && System.currentTimeMillis() < deadline)
+        {
+            LockSupport.unpark(writerThread);
+            try
+            {
+                Thread.sleep(1);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private static void log(Subsystem subsystem, int level, String sTemplate, int longCount, long a, long b, Object o)
+    {
+        log(subsystem, level, sTemplate, longCount, a, b, o, null);
+    }
+
+    // log(...) - claims a slot, fills it and publishes it, or drops the message if the ring is full
+    private static void log(Subsystem subsystem, int level, String sTemplate, int longCount, long a, long b, Object o, Object o2)
+    {
+        long sequence;
+        do
+        {
+            sequence = claimed.get();
+            if (sequence - printed >= RING_SIZE) // the writer is behind, do not wait for it
+            {
+                dropped.increment();
+                return;
+            }
+        }
+        while (!claimed.compareAndSet(sequence, sequence + 1));
+        Entry entry = ring[(int) sequence & (RING_SIZE - 1)];
+        entry.subsystem = subsystem;
+        entry.level = level;
+        entry.sTemplate = sTemplate;
+        entry.longCount = longCount;
+        entry.a = a;
+        entry.b = b;
+        entry.o = o;
+        entry.o2 = o2;
+        entry.published = sequence;
+    }
+
+    // Writer - prints published entries in order, and sleeps a little when there are none
+    private static class Writer implements Runnable
+    {
+        private final StringBuilder sb = new StringBuilder(256);
+
+        public void run()
+        {
+            long next = 0;
+            while (true)
+            {
+                Entry entry = ring[(int) next & (RING_SIZE - 1)];
+                if (entry.published != next) // not logged yet, or still being filled in
+                {
+                    LockSupport.parkNanos(IDLE_PARK_NS);
+                    continue;
+                }
+                sb.setLength(0);
+                sb.append("Canary Tweet ").append(entry.subsystem.sName).append(' ').append(LEVEL_NAMES[entry.level]).append(' ');
+                format(entry);
+                entry.o = null; // do not keep them alive
+                entry.o2 = null;
+                next++;
+                printed = next; // the slot can be reused now
+                System.out.println(sb);
+            }
+        }
+
+        // format(Entry) - fills the {}s in the template with the values, in order. Values without a {} go on the end
+        private void format(Entry entry)
+        {
+            String sTemplate = entry.sTemplate;
+            int valueCount = entry.longCount + (entry.o != null ? 1 : 0) + (entry.o2 != null ? 1 : 0);
+            int value = 0;
+            int from = 0;
+            int at;
+            while (value < valueCount && (at = sTemplate.indexOf("{}", from)) >= 0)
+            {
+                sb.append(sTemplate, from, at);
+                appendValue(entry, value++);
+                from = at + 2;
+            }
+            sb.append(sTemplate, from, sTemplate.length());
+            for (; value < valueCount; value++)
+            {
+                sb.append(' ');
+                appendValue(entry, value);
+            }
+        }
+
+        // appendValue(Entry, value) - appends the value'th value of the entry, the longs coming before the objects
+        private void appendValue(Entry entry, int value)
+        {
+            if (value < entry.longCount)
+            {
+                sb.append(value == 0 ? entry.a : entry.b);
+            }
+            else if (value == entry.longCount)
+            {
+                sb.append(entry.o);
+            }
+            else
+            {
+                sb.append(entry.o2);
+            }
+        }
+    }
+}
@@ -0,0 +1,408 @@
+package org.svvsd.droneteam.canary;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.zip.CRC32;
+
+////////////////////////////////////
+// Notes
+//
+// CaptureLog is an append only log of Readings in memory mapped segment files, the first place every recorded frame lands
+//   Appending is a copy into mapped memory, so it never waits on the disk or the database. Once appended, a record survives the app being killed
+//   (the kernel writes the mapped pages out), and sync() forces them to the disk for surviving a power loss too. A segment is forced when the next one
+//   is started, so at most the segment being written can be lost with the power
+//   One thread reads the records back in order with next(), and tells the log with release() which segments it is done with
+//
+// Segments
+//   capture-<n>.log files of segmentSize bytes: a 16 byte header (magic, segment number), then records
+//   A record is length (4 bytes), CRC32 of the payload (4 bytes), payload (the tag as 8 bytes, then the reading, see ReadingCodec)
+//   A zero length is always written after the last record, so reading stops there. A record whose CRC does not match (torn by a crash) ends its segment
+//   A new segment is started whenever the log is opened, so segments left from before a crash are only ever read
+//   Released segments are kept as free-<n>.log files (up to MAX_FREE_SEGMENTS) and reused for new segments, so files are not created and grown all the time
+//
+// Constructor
+//   CaptureLog(directory, segmentSize) - opens the log in the directory, making it if needed. Reading starts at the oldest segment, see seek()
+//
+// Public Methods
+//   append(Reading, tag) - appends the reading with a tag (any number the caller wants back with it). Any thread
+//   sync() - forces everything appended to the disk
+//   next(Reading) - reads the next record into the reading, returning false if there is none yet. Reading thread only
+//   getTag() - the tag of the record next() last read
+//   isReplayed() - whether the record next() last read was appended before the log was opened (left from before a crash)
+//   getReadSegment() / getReadOffset() - where the next record will be read from, to save as a checkpoint
+//   seek(segment, offset) - continues reading from a saved checkpoint (or the oldest segment after it, if it is gone)
+//   release(segment) - the reader is done with every segment before segment, so they can be recycled
+//   awaitData(ms) - waits up to ms for something to be appended, returning at once if there is something to read
+//   wakeUp() - makes awaitData() return now
+//
+///////////////////////////
+
+public class CaptureLog
+{
+    public static final int DEFAULT_SEGMENT_SIZE = 1 << 20;
+
+    private static final int MAGIC = 0x434C4F47; // "CLOG"
+    private static final int HEADER_SIZE = 16;
+    private static final int RECORD_HEADER_SIZE = 8; // length, CRC32
+    private static final int MAX_FREE_SEGMENTS = 2;
+    private static final String SEGMENT_PREFIX = "capture-";
+    private static final String FREE_PREFIX = "free-";
+    private static final String SUFFIX = ".log";
+
+    private final File directory;
+    private final int segmentSize;
+    private final long firstWriteSegment; // the segment started when the log was opened, older ones were written before
+    private final ArrayList<File> freeSegments = new ArrayList<File>(); // guarded by this
+    private long oldestSegment; // oldest segment not released yet, guarded by this
+
+    // writing, guarded by this
+    private long writeSegment;
+    private MappedByteBuffer writeBuffer;
+    private byte[] writeScratch = new byte[1024];
+    private final CRC32 writeCrc = new CRC32();
+    private volatile long published; // writeSegment << 32 | offset just past the last appended record
+
+    // reading, only used on the reading thread
+    private long readSegment;
+    private int readOffset = HEADER_SIZE;
+    private ByteBuffer readBuffer; // null until readSegment is mapped
+    private long readTag;
+    private byte[] readScratch = new byte[1024];
+    private final CRC32 readCrc = new CRC32();
+
+    private final Object dataLock = new Object(); // awaitData() waits on it
+    private volatile boolean bReaderWaiting = false;
+
+    public CaptureLog(File directory, int segmentSize) throws IOException
+    {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        if (!directory.isDirectory() && !directory.mkdirs())
+        {
+            throw new IOException("unable to make capture log directory " + directory);
+        }
+        long newest = 0;
+        oldestSegment = Long.MAX_VALUE;
+        File[] files = directory.listFiles();
+        for (int i = 0; files != null && i < files.length; i++)
+        {
+            String sName = files[i].getName();
+            if (sName.startsWith(FREE_PREFIX))
+            {
+                freeSegments.add(files[i]);
+            }
+            else
+            {
+                long segment = segmentNumber(sName);
+                if (segment > 0)
+                {
+                    newest = Math.max(newest, segment);
+                    oldestSegment = Math.min(oldestSegment, segment);
+                }
+            }
+        }
+        synchronized (this)
+        {
+            startSegment(newest + 1);
+        }
+        firstWriteSegment = writeSegment;
+        if (oldestSegment == Long.MAX_VALUE)
+        {
+            oldestSegment = writeSegment;
+        }
+        readSegment = oldestSegment;
+    }
+
+    // append(Reading, tag) - appends the reading with a tag (any number the caller wants back with it). Any thread
+    public synchronized void append(Reading reading, long tag) throws IOException
+    {
+        int maxLength = 8 + ReadingCodec.maxSize(reading);
+        if (writeScratch.length < maxLength)
+        {
+            writeScratch = new byte[maxLength];
+        }
+        ByteBuffer payload = ByteBuffer.wrap(writeScratch);
+        payload.putLong(tag);
+        ReadingCodec.encode(reading, payload);
+        int length = payload.position();
+        writeCrc.reset();
+        writeCrc.update(writeScratch, 0, length);
+
+        if (writeBuffer.position() + RECORD_HEADER_SIZE + length + 4 > segmentSize) // does not fit, with the zero length after it
+        {
+            startSegment(writeSegment + 1);
+        }
+        MappedByteBuffer buffer = writeBuffer;
+        int start = buffer.position();
+        buffer.putInt(start + 4, (int) writeCrc.getValue());
+        buffer.position(start + RECORD_HEADER_SIZE);
+        buffer.put(writeScratch, 0, length);
+        buffer.putInt(0); // where reading stops until the next record
+        buffer.putInt(start, length); // last, so a reader never sees a length before its record
+        buffer.position(start + RECORD_HEADER_SIZE + length);
+        published = (writeSegment << 32) | buffer.position();
+        if (bReaderWaiting)
+        {
+            synchronized (dataLock)
+            {
+                dataLock.notifyAll();
+            }
+        }
+    }
+
+    // sync() - forces everything appended to the disk
+    public synchronized void sync()
+    {
+        writeBuffer.force();
+    }
+
+    // startSegment(segment) - starts writing a new segment, reusing a free segment file if there is one. Call while synchronized
+    private void startSegment(long segment) throws IOException
+    {
+        if (writeBuffer != null)
+        {
+            writeBuffer.force(); // the segment being left is done, so it goes to the disk once
+        }
+        File file = segmentFile(segment);
+        if (!freeSegments.isEmpty())
+        {
+            File free = freeSegments.remove(freeSegments.size() - 1);
+            if (!free.renameTo(file))
+            {
+                free.delete();
+            }
+        }
+        RandomAccessFile segmentFile = new RandomAccessFile(file, "rw");
+        try
+        {
+            segmentFile.setLength(segmentSize);
+            writeBuffer = segmentFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        }
+        finally
+        {
+            segmentFile.close(); // the mapping stays good
+        }
+        writeBuffer.putInt(HEADER_SIZE, 0); // a reused file still has old records, so nothing is readable until it is written again
+        writeBuffer.putInt(0, MAGIC);
+        writeBuffer.putLong(4, segment);
+        writeBuffer.position(HEADER_SIZE);
+        writeSegment = segment;
+        published = (segment << 32) | HEADER_SIZE;
+    }
+
+    // next(Reading) - reads the next record into the reading, returning false if there is none yet. Reading thread only
+    public boolean next(Reading reading) throws IOException
+    {
+        while (true)
+        {
+            long currentPublished = published;
+            long currentSegment = currentPublished >>> 32;
+            boolean bCurrent = readSegment == currentSegment;
+            if (bCurrent && readOffset >= (int) currentPublished) // caught up with the writer
+            {
+                return false;
+            }
+            if (readBuffer == null && !mapReadSegment())
+            {
+                nextReadSegment(); // gone or not a segment, and older than the one being written
+                continue;
+            }
+            if (readRecord(reading))
+            {
+                return true;
+            }
+            if (bCurrent) // never happens, records up to published are always complete
+            {
+                return false;
+            }
+            nextReadSegment(); // end of an older segment
+        }
+    }
+
+    // readRecord(Reading) - reads the record at readOffset, returning false at the end of the segment or at a damaged record
+    private boolean readRecord(Reading reading)
+    {
+        int length = readBuffer.getInt(readOffset);
+        if (length <= 8 || readOffset + RECORD_HEADER_SIZE + length > segmentSize)
+        {
+            return false;
+        }
+        int crc = readBuffer.getInt(readOffset + 4);
+        if (readScratch.length < length)
+        {
+            readScratch = new byte[length];
+        }
+        readBuffer.position(readOffset + RECORD_HEADER_SIZE);
+        readBuffer.get(readScratch, 0, length);
+        readCrc.reset();
+        readCrc.update(readScratch, 0, length);
+        if ((int) readCrc.getValue() != crc)
+        {
+            return false;
+        }
+        ByteBuffer payload = ByteBuffer.wrap(readScratch, 0, length);
+        readTag = payload.getLong();
+        if (!ReadingCodec.decode(payload, reading))
+        {
+            return false;
+        }
+        readOffset += RECORD_HEADER_SIZE + length;
+        return true;
+    }
+
+    // mapReadSegment() - maps readSegment for reading, returning false if it is gone or not a valid segment
+    private boolean mapReadSegment() throws IOException
+    {
+        File file = segmentFile(readSegment);
+        if (!file.exists())
+        {
+            return false;
+        }
+        RandomAccessFile segmentFile = new RandomAccessFile(file, "r");
+        try
+        {
+            if (segmentFile.length() < segmentSize)
+            {
+                return false;
+            }
+            readBuffer = segmentFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, segmentSize);
+        }
+        finally
+        {
+            segmentFile.close();
+        }
+        if (readBuffer.getInt(0) != MAGIC || readBuffer.getLong(4) != readSegment)
+        {
+            readBuffer = null;
+            return false;
+        }
+        return true;
+    }
+
+    private void nextReadSegment()
+    {
+        readSegment++;
+        readOffset = HEADER_SIZE;
+        readBuffer = null;
+    }
+
+    // getTag() - the tag of the record next() last read
+    public long getTag()
+    {
+        return readTag;
+    }
+
+    // isReplayed() - whether the record next() last read was appended before the log was opened (left from before a crash)
+    public boolean isReplayed()
+    {
+        return readSegment < firstWriteSegment;
+    }
+
+    // getReadSegment() - the segment the next record will be read from, to save as a checkpoint
+    public long getReadSegment()
+    {
+        return readSegment;
+    }
+
+    // getReadOffset() - the offset in the segment the next record will be read from, to save as a checkpoint
+    public int getReadOffset()
+    {
+        return readOffset;
+    }
+
+    // seek(segment, offset) - continues reading from a saved checkpoint (or the oldest segment after it, if it is gone)
+    public void seek(long segment, int offset)
+    {
+        readBuffer = null;
+        if (segment >= oldestSegment && segmentFile(segment).exists())
+        {
+            readSegment = segment;
+            readOffset = Math.max(HEADER_SIZE, offset);
+        }
+        else
+        {
+            readSegment = Math.max(segment + 1, oldestSegment);
+            readOffset = HEADER_SIZE;
+        }
+    }
+
+    // release(segment) - the reader is done with every segment before segment, so they can be recycled
+    public synchronized void release(long segment)
+    {
+        long end = Math.min(segment, writeSegment);
+        for (; oldestSegment < end; oldestSegment++)
+        {
+            File file = segmentFile(oldestSegment);
+            if (!file.exists())
+            {
+                continue;
+            }
+            File free = new File(directory, FREE_PREFIX + oldestSegment + SUFFIX);
+            if (freeSegments.size() < MAX_FREE_SEGMENTS && file.renameTo(free))
+            {
+                freeSegments.add(free);
+            }
+            else
+            {
+                file.delete();
+            }
+        }
+    }
+
+    // awaitData(ms) - waits up to ms for something to be appended, returning at once if there is something to read
+    public void awaitData(long ms) throws InterruptedException
+    {
+        bReaderWaiting = true;
+        try
+        {
+            synchronized (dataLock)
+            {
+                long currentPublished = published;
+                if (readSegment == currentPublished >>> 32 && readOffset >= (int) currentPublished)
+                {
+                    dataLock.wait(ms);
+                }
+            }
+        }
+        finally
+        {
+            bReaderWaiting = false;
+        }
+    }
+
+    // wakeUp() - makes awaitData() return now
+    public void wakeUp()
+    {
+        synchronized (dataLock)
+        {
+            dataLock.notifyAll();
+        }
+    }
+
+    private File segmentFile(long segment)
+    {
+        return new File(directory, SEGMENT_PREFIX + segment + SUFFIX);
+    }
+
+    // segmentNumber(name) - the segment number of a capture-<n>.log file name, or 0 if it is not one
+    private static long segmentNumber(String sName)
+    {
+        if (!sName.startsWith(SEGMENT_PREFIX) || !sName.endsWith(SUFFIX))
+        {
+            return 0;
+        }
+        try
+        {
+            return Long.parseLong(sName.substring(SEGMENT_PREFIX.length(), sName.length() - SUFFIX.length()));
+        }
+        catch (NumberFormatException e)
+        {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,218 @@
+package org.svvsd.droneteam.canary;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.GZIPOutputStream;
+
+////////////////////////////////////
+// Notes
+//
+// ColumnarEncoder encodes an UploadBatch into the compact columnar upload format, sent gzipped as a POST body with CONTENT_TYPE
+//   Column names are sent once per batch instead of once per value, and each column's values are stored together, typed,
+//   so repeating and slowly changing sensor values compress to a few bits each
+//
+// The format (before gzip). varint is unsigned LEB128 (7 bits per byte, low bits first), zigzag maps signed to unsigned (0,-1,1,-2 -> 0,1,2,3)
+//   "CNRY" magic, 1 byte format version (1)
+//   varint row count, varint column count
+//   for each column: varint name length, name in UTF-8, 1 byte type
+//   for each column: null bitmap ((rows + 7) / 8 bytes, bit r%8 of byte r/8 set when row r has a value), then the values of the rows that have one
+//     TYPE_INTEGER - zigzag varint of the difference from the previous value in the column (the first from 0)
+//     TYPE_DECIMAL - 1 byte scale s, then like TYPE_INTEGER of value * 10^s. Used when every value is a plain decimal with at most MAX_SCALE fraction digits
+//     TYPE_TEXT - varint length, then the text in UTF-8
+//   Decimal values come back as the same number, but trailing fraction zeros are not kept (23.50 is sent as 23.5)
+//
+// Public Methods
+//   encode(UploadBatch) - the batch as a gzipped columnar body
+//
+///////////////////////////
+
+public class ColumnarEncoder
+{
+    public static final String CONTENT_TYPE = "application/x-canary-columnar";
+    public static final int VERSION = 1;
+    public static final int TYPE_INTEGER = 1;
+    public static final int TYPE_DECIMAL = 2;
+    public static final int TYPE_TEXT = 3;
+
+    private static final int MAX_SCALE = 9; // most fraction digits sent as TYPE_DECIMAL
+    private static final int MAX_DIGITS = 18; // most digits that always fit in a long
+
+    // encode(UploadBatch) - the batch as a gzipped columnar body
+    public byte[] encode(UploadBatch batch)
+    {
+        try
+        {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(batch.size * 32 + 256);
+            GZIPOutputStream gzip = new GZIPOutputStream(bytes, 4096);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(batch.size * 64 + 256);
+            out.write('C');
+            out.write('N');
+            out.write('R');
+            out.write('Y');
+            out.write(VERSION);
+            writeVarint(out, batch.size);
+            writeVarint(out, batch.columns.length);
+
+            int[] types = new int[batch.columns.length];
+            int[] scales = new int[batch.columns.length];
+            for (int c = 0; c < batch.columns.length; c++)
+            {
+                writeText(out, batch.columns[c]);
+                scales[c] = decimalScale(batch, c);
+                types[c] = scales[c] < 0 ? TYPE_TEXT : (scales[c] == 0 ? TYPE_INTEGER : TYPE_DECIMAL);
+                out.write(types[c]);
+            }
+
+            for (int c = 0; c < batch.columns.length; c++)
+            {
+                writeNulls(out, batch, c);
+                if (types[c] == TYPE_DECIMAL)
+                {
+                    out.write(scales[c]);
+                }
+                long previous = 0;
+                for (int r = 0; r < batch.size; r++)
+                {
+                    String sValue = batch.getValue(r, c);
+                    if (sValue == null)
+                    {
+                        continue;
+                    }
+                    if (types[c] == TYPE_TEXT)
+                    {
+                        writeText(out, sValue);
+                    }
+                    else
+                    {
+                        long value = unscaled(sValue, scales[c]);
+                        long delta = value - previous;
+                        writeVarint(out, (delta << 1) ^ (delta >> 63));
+                        previous = value;
+                    }
+                }
+            }
+            out.writeTo(gzip);
+            gzip.close();
+            return bytes.toByteArray();
+        }
+        catch (IOException e) // only writing to memory
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // decimalScale(batch, column) - the most fraction digits of any value in the column, or -1 if some value is not a plain decimal that fits a long
+    private static int decimalScale(UploadBatch batch, int column)
+    {
+        int scale = 0;
+        int intDigits = 0;
+        for (int r = 0; r < batch.size; r++)
+        {
+            String sValue = batch.getValue(r, column);
+            if (sValue == null)
+            {
+                continue;
+            }
+            int start = (sValue.length() > 0 && sValue.charAt(0) == '-') ? 1 : 0;
+            int dot = -1;
+            for (int i = start; i < sValue.length(); i++)
+            {
+                char ch = sValue.charAt(i);
+                if (ch == '.' && dot < 0)
+                {
+                    dot = i;
+                }
+                else if (ch < '0' || ch > '9')
+                {
+                    return -1;
+                }
+            }
+            int end = sValue.length();
+            if (end - start - (dot < 0 ? 0 : 1) == 0) // no digits at all
+            {
+                return -1;
+            }
+            if (dot >= 0)
+            {
+                while (end > dot + 1 && sValue.charAt(end - 1) == '0') // trailing fraction zeros do not count
+                {
+                    end--;
+                }
+                scale = Math.max(scale, end - dot - 1);
+            }
+            intDigits = Math.max(intDigits, (dot < 0 ? end : dot) - start);
+        }
+        return (scale > MAX_SCALE || intDigits + scale > MAX_DIGITS) ? -1 : scale;
+    }
+
+    // unscaled(value, scale) - the value times 10^scale, as a long. The value was checked by decimalScale()
+    private static long unscaled(String sValue, int scale)
+    {
+        long value = 0;
+        int fraction = -1;
+        boolean bNegative = false;
+        for (int i = 0; i < sValue.length(); i++)
+        {
+            char ch = sValue.charAt(i);
+            if (ch == '-')
+            {
+                bNegative = true;
+            }
+            else if (ch == '.')
+            {
+                fraction = 0;
+            }
+            else if (fraction < scale)
+            {
+                value = value * 10 + (ch - '0');
+                if (fraction >= 0)
+                {
+                    fraction++;
+                }
+            }
+        }
+        for (int f = Math.max(0, fraction); f < scale; f++)
+        {
+            value *= 10;
+        }
+        return bNegative ? -value : value;
+    }
+
+    private static void writeNulls(ByteArrayOutputStream out, UploadBatch batch, int column)
+    {
+        int bits = 0;
+        for (int r = 0; r < batch.size; r++)
+        {
+            if (batch.getValue(r, column) != null)
+            {
+                bits |= 1 << (r & 7);
+            }
+            if ((r & 7) == 7)
+            {
+                out.write(bits);
+                bits = 0;
+            }
+        }
+        if ((batch.size & 7) != 0)
+        {
+            out.write(bits);
+        }
+    }
+
+    private static void writeText(ByteArrayOutputStream out, String sText) throws IOException
+    {
+        byte[] utf8 = sText.getBytes("UTF-8");
+        writeVarint(out, utf8.length);
+        out.write(utf8);
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, long value)
+    {
+        while ((value & ~0x7FL) != 0)
+        {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+}
@@ -0,0 +1,131 @@
+package org.svvsd.droneteam.canary;
+
+////////////////////////////////////
+// Notes
+//
+// FrameAssembler turns the raw byte chunks read from the XBee into complete sensor frames
+//   Bytes are kept in a fixed size ring buffer, so partial frames survive from one read to the next
+//   Nothing is allocated per byte or per read - complete frames are copied into one reusable frame buffer and handed to a FrameListener
+//
+// What is a frame
+//   A sensor frame is a run of |-delimited sensor groups, like |1,72.5,840,30|2,12,3,4,5,6|3,120|4,40.1,105.2,1600|
+//   A frame ends at a line terminator (\r or \n), or when the next frame starts (the |1, that begins sensor group 1)
+//   Bytes before the first frame boundary after starting (or after an overflow) are thrown away, since we can not tell if they are a complete frame
+//
+// Constructor
+//   FrameAssembler(capacity) - capacity is the largest frame in bytes we are willing to hold, rounded up to a power of 2
+//
+// Public variables
+//   framesAssembled - how many complete frames have been handed to the listener
+//   bytesDropped - how many bytes were thrown away because a frame did not fit in the buffer
+//
+// Public Methods
+//   append(byte[], offset, length, FrameListener) - adds newly read bytes, calling the listener for every frame completed by them
+//   reset() - forgets any partial frame, for example when the XBee connection is reopened
+//
+///////////////////////////
+
+public class FrameAssembler
+{
+    // FrameListener - gets called with each complete frame. The frame buffer is reused, so copy out anything you need to keep
+    public interface FrameListener
+    {
+        void onFrame(byte[] frame, int length);
+    }
+
+    public long framesAssembled = 0; // how many complete frames have been handed to the listener
+    public long bytesDropped = 0; // how many bytes were thrown away because a frame did not fit in the buffer
+
+    private final byte[] ring; // ring buffer holding the frame currently being assembled
+    private final int mask; // ring.length - 1, for cheap wrap around
+    private final byte[] frame; // reusable buffer complete frames are copied into for the listener
+    private long frameStart = 0; // absolute position of the first byte of the frame being assembled
+    private long tail = 0; // absolute position of the next byte to write
+    private boolean bSynced = false; // whether frameStart is known to be the start of a frame
+    private int markerState = 0; // how much of the |1, frame start marker we have just seen
+
+    public FrameAssembler(int capacity)
+    {
+        int size = 1;
+        while (size < capacity)
+        {
+            size <<= 1;
+        }
+        ring = new byte[size];
+        mask = size - 1;
+        frame = new byte[size];
+    }
+
+    // append(byte[], offset, length, FrameListener) - adds newly read bytes, calling the listener for every frame completed by them
+    public void append(byte[] buffer, int offset, int length, FrameListener listener)
+    {
+        int end = offset + length;
+        for (int i = offset; i < end; i++)
+        {
+            byte b = buffer[i];
+            if (tail - frameStart == ring.length) // frame is bigger than we can hold, throw it away and wait for the next boundary
+            {
+                bytesDropped += tail - frameStart;
+                frameStart = tail;
+                bSynced = false;
+            }
+            ring[(int) (tail & mask)] = b;
+            tail++;
+
+            if (b == '\n' || b == '\r')
+            {
+                endFrame(tail - 1, listener);
+                frameStart = tail;
+                bSynced = true;
+                markerState = 0;
+            }
+            else if (b == '|')
+            {
+                markerState = 1;
+            }
+            else if (b == '1' && markerState == 1)
+            {
+                markerState = 2;
+            }
+            else if (b == ',' && markerState == 2) // saw |1, so a new frame starts at the |
+            {
+                long markerStart = Math.max(tail - 3, frameStart);
+                endFrame(markerStart, listener);
+                frameStart = markerStart;
+                bSynced = true;
+                markerState = 0;
+            }
+            else
+            {
+                markerState = 0;
+            }
+        }
+    }
+
+    // reset() - forgets any partial frame, for example when the XBee connection is reopened
+    public void reset()
+    {
+        frameStart = tail;
+        bSynced = false;
+        markerState = 0;
+    }
+
+    // endFrame() - hands the bytes from frameStart up to frameEnd to the listener, if they are a complete frame
+    private void endFrame(long frameEnd, FrameListener listener)
+    {
+        int length = (int) (frameEnd - frameStart);
+        if (!bSynced || length <= 0)
+        {
+            return;
+        }
+        int start = (int) (frameStart & mask);
+        int firstPart = Math.min(length, ring.length - start);
+        System.arraycopy(ring, start, frame, 0, firstPart);
+        if (firstPart < length) // frame wraps around the end of the ring
+        {
+            System.arraycopy(ring, 0, frame, firstPart, length - firstPart);
+        }
+        framesAssembled++;
+        listener.onFrame(frame, length);
+    }
+}
@@ -0,0 +1,365 @@
+package org.svvsd.droneteam.canary;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+
+////////////////////////////////////
+// Notes
+//
+// HttpUploadTransport sends upload batches to the canary.php server over HTTP, in one of three wire formats
+//   FORMAT_ROWS - each row goes as its own GET request, with the row's key=value&key=value in the query string (the way it always has)
+//   FORMAT_TEXT - the whole batch is POSTed in one request, one URL encoded key=value&key=value row per line (the batch format servers took before columnar)
+//   FORMAT_COLUMNAR - the whole batch is POSTed gzipped in the columnar format (see ColumnarEncoder), about a sixth of the bytes of FORMAT_ROWS (60 against 359 bytes a row on recorded sensor data)
+//   For the batch formats the server answers OK when it stored them all, or OK <n> when it only stored the first n rows
+//   Responses are always read to the end and connections are never disconnect()ed, so HttpURLConnection keeps them alive and reuses them
+//
+// Format negotiation
+//   A server that does not understand a batch format answers 415 (Unsupported Media Type) or 501 (Not Implemented). Only those make the transport
+//   fall back to the next format, FORMAT_COLUMNAR to FORMAT_TEXT to FORMAT_ROWS, remember that, and resend the batch in it right away.
+//   The FormatListener is told each time, since one row per GET changes how many requests can safely be in flight (see Uploader)
+//   Any other failure - a 5xx while the server is busy, a 200 from a captive portal that is not OK - is a normal failure that is retried after the
+//   backoff, still in the batch format, so a passing outage never turns batches off for good
+//
+// Sequences (once setDeviceId() is called)
+//   Without them, an answer that gets lost makes the batch get sent again, and the server stores it twice. With them, uploads are idempotent -
+//   every request says which rows it covers in headers, and in batch formats every row is sent with its sequence (see UploadBatch) as a seq value:
+//     X-Canary-Device: <device id>, X-Canary-Stream: <stream>, X-Canary-Range: <first>-<last> (there are no other rows of the stream left to send in it)
+//     A FORMAT_ROWS request is one row, so its sequence is the end of the range, and the query string stays the same for older servers
+//   A server that understands them keeps rows by device, stream and seq, ignores rows it already has, and answers ACK <seq> - it has every row
+//   of the request's range through seq. The rows up to there are accepted, the rest get resent
+//   A GET with X-Canary-Ack: 1 (and the device and stream headers) is answered ACK <seq> - the sequence through which the server has every row of the stream,
+//   putting the ranges of all the requests together. It is only asked once the server has answered ACK, so an older server never sees it
+//   That the server answers ACK is worth remembering across restarts, so resuming after a crash can ask it straight away - setDeviceId() takes what
+//   was remembered, and the SequencesListener is told the first time the server answers ACK, to remember it
+//   A server that answers OK instead is handled as before
+//
+// Things that need customizing
+//   Set the correct value in isSuccessResponse() for what server response indicates a successful upload of the data
+//
+// Constructor
+//   HttpUploadTransport(uploadUrl)
+//
+// Public Methods
+//   send(UploadBatch) - sends the batch, returning how many rows from the start of it the server accepted
+//   setWireFormat(int) - which FORMAT_ to send in (default FORMAT_ROWS). Setting it starts negotiating again
+//   getWireFormat() - which FORMAT_ is being sent in, the one fallen back to once the server rejected a batch format
+//   setFormatListener(Runnable) - run when the server rejected a batch format and the transport fell back to the next one
+//   setDeviceId(deviceId) - turns on sequences, with the id the server knows this device's streams by. It has to stay the same as long as the sequences do
+//   setDeviceId(deviceId, bSequencesConfirmed) - same, for when the server is already known to answer ACK (remembered from an earlier run)
+//   setSequencesListener(Runnable) - run the first time the server answers ACK, so it can be remembered for setDeviceId()
+//   isSequencesConfirmed() - whether the server is known to answer ACK
+//   acknowledged(stream) - the sequence through which the server has every row of the stream, -1 if it has not answered ACK yet
+//
+///////////////////////////
+
+public class HttpUploadTransport implements UploadTransport
+{
+    private static final int CONNECT_TIMEOUT_MS = 15000;
+    private static final int READ_TIMEOUT_MS = 30000;
+
+    public static final int FORMAT_ROWS = 0; // one row per GET request
+    public static final int FORMAT_TEXT = 1; // URL encoded rows, one per line, POSTed
+    public static final int FORMAT_COLUMNAR = 2; // gzipped columnar batch, POSTed
+
+    private final String sUploadUrl;
+    private final ColumnarEncoder columnarEncoder = new ColumnarEncoder();
+    private volatile int wireFormat = FORMAT_ROWS;
+    private volatile String sDeviceId = null; // sent with every request when set, see Sequences
+    private volatile boolean bSequencesConfirmed = false; // whether the server has answered ACK
+    private volatile Runnable sequencesListener = null; // told the first time the server answers ACK
+    private volatile Runnable formatListener = null; // told when the transport falls back to the next format
+
+    public HttpUploadTransport(String sUploadUrl)
+    {
+        this.sUploadUrl = sUploadUrl;
+    }
+
+    // setWireFormat(int) - which FORMAT_ to send in (default FORMAT_ROWS). Setting it starts negotiating again
+    public void setWireFormat(int wireFormat)
+    {
+        this.wireFormat = wireFormat;
+    }
+
+    // getWireFormat() - which FORMAT_ is being sent in, the one fallen back to once the server rejected a batch format
+    public int getWireFormat()
+    {
+        return wireFormat;
+    }
+
+    // setFormatListener(Runnable) - run when the server rejected a batch format and the transport fell back to the next one, on the thread that sent the request
+    public void setFormatListener(Runnable listener)
+    {
+        formatListener = listener;
+    }
+
+    // setDeviceId(deviceId) - turns on sequences, with the id the server knows this device's streams by
+    public void setDeviceId(String sDeviceId)
+    {
+        setDeviceId(sDeviceId, false);
+    }
+
+    // setDeviceId(deviceId, bSequencesConfirmed) - same, for when the server is already known to answer ACK
+    public void setDeviceId(String sDeviceId, boolean bSequencesConfirmed)
+    {
+        this.sDeviceId = sDeviceId;
+        this.bSequencesConfirmed = bSequencesConfirmed;
+    }
+
+    // setSequencesListener(Runnable) - run the first time the server answers ACK, on the thread that sent the request
+    public void setSequencesListener(Runnable listener)
+    {
+        sequencesListener = listener;
+    }
+
+    // isSequencesConfirmed() - whether the server is known to answer ACK
+    public boolean isSequencesConfirmed()
+    {
+        return bSequencesConfirmed;
+    }
+
+    // send(UploadBatch) - sends the batch, returning how many rows from the start of it the server accepted
+    public int send(UploadBatch batch) throws IOException
+    {
+        int format = wireFormat;
+        while (format != FORMAT_ROWS)
+        {
+            int accepted = sendBatch(batch, format);
+            if (accepted >= 0)
+            {
+                return accepted;
+            }
+            format = fallBack(format);
+        }
+        return sendRow(batch);
+    }
+
+    // fallBack(format) - the server rejected format, so sends in the next one from now on, FORMAT_COLUMNAR to FORMAT_TEXT to FORMAT_ROWS. Returns the format to resend in
+    private int fallBack(int format)
+    {
+        int next = format == FORMAT_COLUMNAR ? FORMAT_TEXT : FORMAT_ROWS;
+        if (wireFormat == format) // another request may have fallen back already
+        {
+            wireFormat = next;
+            Runnable listener = formatListener;
+            if (listener != null)
+            {
+                listener.run();
+            }
+        }
+        return Math.min(next, wireFormat);
+    }
+
+    // sendRow(UploadBatch) - sends the first row of the batch as a GET request. Returns 1 if the server accepted it, 0 if not
+    @SuppressWarnings("deprecation")
+    private int sendRow(UploadBatch batch) throws IOException
+    {
+        StringBuilder sbQuery = new StringBuilder();
+        batch.appendQuery(0, sbQuery);
+        if (sbQuery.length() == 0) // no values to send
+        {
+            return 0;
+        }
+        HttpURLConnection urlConnection = open(new URL(sUploadUrl + URLEncoder.encode(sbQuery.toString())));
+        setSequenceHeaders(urlConnection, batch.stream, batch.firstSequence, batch.dataIds[0]);
+        String sServerResponse = readResponse(urlConnection);
+        if (isAckResponse(sServerResponse))
+        {
+            return Math.min(1, batch.countThrough(parseAck(sServerResponse)));
+        }
+        return isSuccessResponse(sServerResponse) ? 1 : 0;
+    }
+
+    // sendBatch(UploadBatch, format) - POSTs all the rows of the batch in one request. Returns how many rows, from the start of the batch, the server accepted
+    //   or -1 if the server said it does not take the format
+    private int sendBatch(UploadBatch batch, int format) throws IOException
+    {
+        byte[] body;
+        if (sDeviceId != null)
+        {
+            batch = batch.withSequences("seq");
+        }
+        HttpURLConnection urlConnection = open(new URL(sUploadUrl));
+        urlConnection.setRequestMethod("POST");
+        urlConnection.setDoOutput(true);
+        if (format == FORMAT_COLUMNAR)
+        {
+            body = columnarEncoder.encode(batch);
+            urlConnection.setRequestProperty("Content-Type", ColumnarEncoder.CONTENT_TYPE);
+            urlConnection.setRequestProperty("Content-Encoding", "gzip");
+        }
+        else
+        {
+            body = batch.encodeBody().getBytes("UTF-8");
+            urlConnection.setRequestProperty("Content-Type", "text/plain; charset=utf-8");
+        }
+        urlConnection.setFixedLengthStreamingMode(body.length);
+        urlConnection.setRequestProperty("X-Canary-Batch", Integer.toString(batch.size));
+        setSequenceHeaders(urlConnection, batch.stream, batch.firstSequence, batch.lastSequence());
+        OutputStream out = urlConnection.getOutputStream();
+        out.write(body);
+        out.close();
+        String sServerResponse = readResponse(urlConnection);
+        if (isAckResponse(sServerResponse))
+        {
+            return batch.countThrough(parseAck(sServerResponse));
+        }
+        if (isSuccessResponse(sServerResponse))
+        {
+            return parseAcceptedCount(sServerResponse, batch.size);
+        }
+        int status = urlConnection.getResponseCode();
+        if (status == HttpURLConnection.HTTP_UNSUPPORTED_TYPE || status == HttpURLConnection.HTTP_NOT_IMPLEMENTED) // the server does not take the format
+        {
+            return -1;
+        }
+        return 0;
+    }
+
+    // acknowledged(stream) - the sequence through which the server has every row of the stream, -1 if it has not answered ACK yet
+    public long acknowledged(String sStream) throws IOException
+    {
+        if (sDeviceId == null || !bSequencesConfirmed || sStream == null)
+        {
+            return -1;
+        }
+        HttpURLConnection urlConnection = open(new URL(sUploadUrl));
+        setSequenceHeaders(urlConnection, sStream, 0, 0);
+        urlConnection.setRequestProperty("X-Canary-Ack", "1");
+        String sServerResponse = readResponse(urlConnection);
+        return isAckResponse(sServerResponse) ? parseAck(sServerResponse) : -1;
+    }
+
+    // setSequenceHeaders(HttpURLConnection, stream, firstSequence, lastSequence) - adds the device, stream and range headers, when sequences are on
+    //   A firstSequence of 0 leaves out the range
+    private void setSequenceHeaders(HttpURLConnection urlConnection, String sStream, long firstSequence, long lastSequence)
+    {
+        String sDevice = sDeviceId;
+        if (sDevice == null || sStream == null)
+        {
+            return;
+        }
+        urlConnection.setRequestProperty("X-Canary-Device", sDevice);
+        urlConnection.setRequestProperty("X-Canary-Stream", sStream);
+        if (firstSequence > 0)
+        {
+            urlConnection.setRequestProperty("X-Canary-Range", firstSequence + "-" + lastSequence);
+        }
+    }
+
+    private HttpURLConnection open(URL url) throws IOException
+    {
+        HttpURLConnection urlConnection = (HttpURLConnection) url.openConnection();
+        urlConnection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+        urlConnection.setReadTimeout(READ_TIMEOUT_MS);
+        return urlConnection;
+    }
+
+    // isSuccessResponse(response) - whether the server response indicates the data was successfully uploaded
+    private boolean isSuccessResponse(String sServerResponse)
+    {
+        if (sServerResponse == null) // error status
+        {
+            return false;
+        }
+        // TODO: Set the value for what server response indicates successfully uploaded
+        return sServerResponse.contains("OK"); // test for whatever response indicates successful transmission
+    }
+
+    // isAckResponse(response) - whether the server answered ACK <seq>, the way a server that understands sequences does
+    private boolean isAckResponse(String sServerResponse)
+    {
+        if (sServerResponse == null || sDeviceId == null || !sServerResponse.trim().startsWith("ACK "))
+        {
+            return false;
+        }
+        if (!bSequencesConfirmed)
+        {
+            bSequencesConfirmed = true;
+            Runnable listener = sequencesListener;
+            if (listener != null)
+            {
+                listener.run();
+            }
+        }
+        return true;
+    }
+
+    // parseAck(response) - the sequence of an ACK <seq> answer, -1 if it is not a number
+    private long parseAck(String sServerResponse)
+    {
+        try
+        {
+            return Long.parseLong(sServerResponse.trim().substring(4).trim());
+        }
+        catch (NumberFormatException e)
+        {
+            return -1;
+        }
+    }
+
+    // parseAcceptedCount(response, batchSize) - how many rows the server accepted. OK <n> accepted the first n rows, a plain OK accepted them all
+    private int parseAcceptedCount(String sServerResponse, int batchSize)
+    {
+        int i = sServerResponse.indexOf("OK") + 2;
+        while (i < sServerResponse.length() && sServerResponse.charAt(i) == ' ')
+        {
+            i++;
+        }
+        int start = i;
+        while (i < sServerResponse.length() && Character.isDigit(sServerResponse.charAt(i)))
+        {
+            i++;
+        }
+        if (i == start) // no count, so everything was accepted
+        {
+            return batchSize;
+        }
+        try
+        {
+            return Math.min(batchSize, Integer.parseInt(sServerResponse.substring(start, i)));
+        }
+        catch (NumberFormatException e)
+        {
+            return 0;
+        }
+    }
+
+    // readResponse(HttpURLConnection) - reads the whole server response, so the connection can be reused. null for an error status
+    private String readResponse(HttpURLConnection urlConnection) throws IOException
+    {
+        if (urlConnection.getResponseCode() >= 400) // drain the error body so the connection can still be reused
+        {
+            InputStream error = urlConnection.getErrorStream();
+            if (error != null)
+            {
+                drain(error);
+            }
+            return null;
+        }
+        return drain(urlConnection.getInputStream());
+    }
+
+    private String drain(InputStream in) throws IOException
+    {
+        ByteArrayOutputStream response = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int iLength;
+        try
+        {
+            while ((iLength = in.read(buffer)) > 0)
+            {
+                response.write(buffer, 0, iLength);
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+        return response.toString("UTF-8");
+    }
+}
@@ -0,0 +1,109 @@
+package org.svvsd.droneteam.canary;
+
+////////////////////////////////////
+// Notes
+//
+// LinkConfig is how a SerialLink is run - the baud rate it is opened with, and how the reader thread reads it
+//   readBufferSize - the most bytes taken off the link per read
+//   readTimeoutMs - how long the reader waits before checking again when the link has nothing to read
+//   A bigger buffer and a shorter wait keep up with faster links, at the cost of more memory and more wake ups. LinkProber finds what works best
+//
+// Constructor
+//   LinkConfig(baudRate, readBufferSize, readTimeoutMs)
+//
+// Public variables
+//   DEFAULT - what was always used before probing, 9600 baud, 1024 byte reads, 5 ms between checks
+//   BAUD_RATES, READ_BUFFER_SIZES, READ_TIMEOUTS_MS - the settings LinkProber tries
+//
+// Public Methods
+//   withBaudRate(baudRate), withRead(readBufferSize, readTimeoutMs) - a copy with those settings changed
+//   encode() - the config as a short string, for saving it
+//   parse(String) - a config from encode(), or null if the string is not one
+//
+///////////////////////////
+
+public class LinkConfig
+{
+    public static final LinkConfig DEFAULT = new LinkConfig(9600, 1024, 5);
+    public static final int[] BAUD_RATES = {9600, 19200, 38400, 57600, 115200};
+    public static final int[] READ_BUFFER_SIZES = {256, 1024, 4096};
+    public static final long[] READ_TIMEOUTS_MS = {1, 5, 10, 20};
+
+    public final int baudRate;
+    public final int readBufferSize;
+    public final long readTimeoutMs;
+
+    public LinkConfig(int baudRate, int readBufferSize, long readTimeoutMs)
+    {
+        if (baudRate <= 0 || readBufferSize <= 0 || readTimeoutMs < 0)
+        {
+            throw new IllegalArgumentException("bad link config " + baudRate + "," + readBufferSize + "," + readTimeoutMs);
+        }
+        this.baudRate = baudRate;
+        this.readBufferSize = readBufferSize;
+        this.readTimeoutMs = readTimeoutMs;
+    }
+
+    // withBaudRate(baudRate) - a copy with the baud rate changed
+    public LinkConfig withBaudRate(int baudRate)
+    {
+        return new LinkConfig(baudRate, readBufferSize, readTimeoutMs);
+    }
+
+    // withRead(readBufferSize, readTimeoutMs) - a copy with the read settings changed
+    public LinkConfig withRead(int readBufferSize, long readTimeoutMs)
+    {
+        return new LinkConfig(baudRate, readBufferSize, readTimeoutMs);
+    }
+
+    // encode() - the config as a short string, for saving it
+    public String encode()
+    {
+        return baudRate + "," + readBufferSize + "," + readTimeoutMs;
+    }
+
+    // parse(String) - a config from encode(), or null if the string is not one
+    public static LinkConfig parse(String sConfig)
+    {
+        if (sConfig == null)
+        {
+            return null;
+        }
+        String[] parts = sConfig.split(",");
+        if (parts.length != 3)
+        {
+            return null;
+        }
+        try
+        {
+            return new LinkConfig(Integer.parseInt(parts[0]), Integer.parseInt(parts[1]), Long.parseLong(parts[2]));
+        }
+        catch (IllegalArgumentException e) // includes NumberFormatException
+        {
+            return null;
+        }
+    }
+
+    @Override
+    public boolean equals(Object other)
+    {
+        if (!(other instanceof LinkConfig))
+        {
+            return false;
+        }
+        LinkConfig config = (LinkConfig) other;
+        return baudRate == config.baudRate && readBufferSize == config.readBufferSize && readTimeoutMs == config.readTimeoutMs;
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return (baudRate * 31 + readBufferSize) * 31 + (int) readTimeoutMs;
+    }
+
+    @Override
+    public String toString()
+    {
+        return baudRate + " baud, " + readBufferSize + " byte reads, " + readTimeoutMs + " ms wait";
+    }
+}
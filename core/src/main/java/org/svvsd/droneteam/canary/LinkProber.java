@@ -0,0 +1,210 @@
+package org.svvsd.droneteam.canary;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+////////////////////////////////////
+// Notes
+//
+// LinkProber finds the LinkConfig a SerialLink works best with, by reading it with each config in turn and seeing how the frames come through
+//   Each config is read for probeMs the way Receiver reads a link, and the frames are assembled and decoded the way Receiver does (transparent or API)
+//   For each config it measures the bytes a second, the good frames a second, and the frame loss rate - the share of frames that did not decode
+//   (a frame that loses bytes in a FIFO overflow or on a bad line does not decode). Frames lost whole can not be seen, but they cost good frames a second
+//   The best config is the one with the most good frames a second whose loss rate is at most maxLossRate. On a tie (within 1%) the earlier one wins,
+//   and the settings are tried cheapest first, so the tie goes to the lowest baud rate, smallest buffer and longest wait
+//
+// tune() tries the baud rates first (with the base config's read settings), then the read settings at the best baud rate,
+//   so it takes BAUD_RATES + READ_BUFFER_SIZES x READ_TIMEOUTS_MS probes rather than all of them multiplied together
+//
+// Constructor
+//   LinkProber(bApiFrames, bEscaped, probeMs, maxLossRate) - bApiFrames for links in API mode (bEscaped for API mode 2), otherwise transparent
+//
+// Public Methods
+//   probe(SerialLink, LinkConfig) - reads the link with the config for probeMs, returning the Result. The link is closed after
+//   tune(SerialLink, LinkConfig base) - probes the link with the LinkConfig settings, returning the best Result, or null if no config decoded frames well enough
+//   getResults() - every Result of the last tune(), in the order probed
+//
+///////////////////////////
+
+public class LinkProber
+{
+    private static final double TIE = 0.01; // how much better a config has to be to beat an earlier one
+    private static final CanaryLog.Subsystem LOG = CanaryLog.subsystem("link");
+
+    // Result - how a link did with one config
+    public static class Result
+    {
+        public final LinkConfig config;
+        public long bytes; // bytes read
+        public long goodFrames; // frames that decoded
+        public long lostFrames; // frames that did not decode, or failed their checksum
+        public long elapsedMs;
+
+        Result(LinkConfig config)
+        {
+            this.config = config;
+        }
+
+        public double bytesPerSecond()
+        {
+            return elapsedMs == 0 ? 0 : bytes * 1000.0 / elapsedMs;
+        }
+
+        public double framesPerSecond()
+        {
+            return elapsedMs == 0 ? 0 : goodFrames * 1000.0 / elapsedMs;
+        }
+
+        public double lossRate()
+        {
+            long frames = goodFrames + lostFrames;
+            return frames == 0 ? 1 : (double) lostFrames / frames;
+        }
+
+        @Override
+        public String toString()
+        {
+            return config + ": " + Math.round(bytesPerSecond()) + " bytes/s, " + Math.round(framesPerSecond()) + " frames/s, " +
+                    Math.round(lossRate() * 1000) / 10.0 + "% lost";
+        }
+    }
+
+    private final boolean bApiFrames;
+    private final boolean bEscaped;
+    private final long probeMs;
+    private final double maxLossRate;
+    private final ArrayList<Result> results = new ArrayList<Result>();
+
+    public LinkProber(boolean bApiFrames, boolean bEscaped, long probeMs, double maxLossRate)
+    {
+        this.bApiFrames = bApiFrames;
+        this.bEscaped = bEscaped;
+        this.probeMs = probeMs;
+        this.maxLossRate = maxLossRate;
+    }
+
+    // tune(SerialLink, LinkConfig base) - probes the link with the LinkConfig settings, returning the best Result, or null if no config decoded frames well enough
+    public Result tune(SerialLink link, LinkConfig base) throws IOException, InterruptedException
+    {
+        results.clear();
+        Result best = null;
+        for (int baudRate : LinkConfig.BAUD_RATES)
+        {
+            best = better(best, probe(link, base.withBaudRate(baudRate)));
+        }
+        if (best == null) // nothing came through at any baud rate, so no point trying read settings
+        {
+            return null;
+        }
+        LinkConfig bestBaud = best.config;
+        for (int readBufferSize : LinkConfig.READ_BUFFER_SIZES)
+        {
+            for (int t = LinkConfig.READ_TIMEOUTS_MS.length - 1; t >= 0; t--) // longest wait first, it is the cheapest
+            {
+                LinkConfig config = bestBaud.withRead(readBufferSize, LinkConfig.READ_TIMEOUTS_MS[t]);
+                if (!config.equals(bestBaud)) // already probed with the baud rates
+                {
+                    best = better(best, probe(link, config));
+                }
+            }
+        }
+        return best;
+    }
+
+    // getResults() - every Result of the last tune(), in the order probed
+    public ArrayList<Result> getResults()
+    {
+        return results;
+    }
+
+    // probe(SerialLink, LinkConfig) - reads the link with the config for probeMs, returning the Result. The link is closed after
+    public Result probe(SerialLink link, LinkConfig config) throws IOException, InterruptedException
+    {
+        final Result result = new Result(config);
+        final Reading reading = new Reading();
+        final SensorFrameParser parser = new SensorFrameParser();
+        final SensorPayloadCodec codec = new SensorPayloadCodec();
+        FrameAssembler frameAssembler = new FrameAssembler(1024);
+        ApiFrameAssembler apiAssembler = new ApiFrameAssembler(256, bEscaped);
+        FrameAssembler.FrameListener listener = new FrameAssembler.FrameListener()
+        {
+            public void onFrame(byte[] frame, int length)
+            {
+                boolean bGood;
+                if (bApiFrames)
+                {
+                    int offset = ApiFrameAssembler.receivePayloadOffset(frame, length);
+                    if (offset < 0) // not a receive frame, so neither good nor lost
+                    {
+                        return;
+                    }
+                    bGood = codec.decode(frame, offset, length - offset, reading);
+                }
+                else
+                {
+                    bGood = parser.parse(frame, 0, length, reading) && reading.flags != 0;
+                }
+                if (bGood)
+                {
+                    result.goodFrames++;
+                }
+                else
+                {
+                    result.lostFrames++;
+                }
+            }
+        };
+        byte[] buffer = new byte[config.readBufferSize];
+        link.open(config);
+        try
+        {
+            long start = System.currentTimeMillis();
+            long end = start + probeMs;
+            long now = start;
+            while (now < end)
+            {
+                if (link.available() <= 0)
+                {
+                    Thread.sleep(config.readTimeoutMs);
+                }
+                else
+                {
+                    int length = link.read(buffer, 0, buffer.length);
+                    result.bytes += length;
+                    if (bApiFrames)
+                    {
+                        apiAssembler.append(buffer, 0, length, listener);
+                    }
+                    else
+                    {
+                        frameAssembler.append(buffer, 0, length, listener);
+                    }
+                }
+                now = System.currentTimeMillis();
+            }
+            result.elapsedMs = now - start;
+            result.lostFrames += apiAssembler.checksumFailures;
+        }
+        finally
+        {
+            link.close();
+        }
+        LOG.info("probe() {} {}", link.getId(), result);
+        results.add(result);
+        return result;
+    }
+
+    // better(best, Result) - whichever of the best so far and the new result is better, null if neither is good enough
+    private Result better(Result best, Result result)
+    {
+        if (result.goodFrames == 0 || result.lossRate() > maxLossRate)
+        {
+            return best;
+        }
+        if (best == null || result.framesPerSecond() > best.framesPerSecond() * (1 + TIE))
+        {
+            return result;
+        }
+        return best;
+    }
+}
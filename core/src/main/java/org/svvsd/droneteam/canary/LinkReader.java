@@ -0,0 +1,200 @@
+package org.svvsd.droneteam.canary;
+
+////////////////////////////////////
+// Notes
+//
+// LinkReader reads one radio's SerialLink on its own thread and turns what it reads into Readings, from start() until stopReading()
+//   It opens the link with its LinkConfig, and reopens it after a problem. Reads can spin until data shows up, so it only reads when there is
+//   something to read, and otherwise waits config.readTimeoutMs
+//   MODE_TRANSPARENT - bytes go through a FrameAssembler, and each frame is parsed by a SensorFrameParser, keeping the frame text in the reading
+//   MODE_API, MODE_API_ESCAPED - bytes go through an ApiFrameAssembler, and the payload of each receive frame is decoded by a SensorPayloadCodec
+//     Other API frames (modem status and the like) are skipped
+//   Each reading that processed is handed to the ReadingListener right on the reader thread, tagged with the radio's source number and timestamped
+//   The Reading is reused for the next frame, so the listener has to copy anything it wants to keep
+//   Receiver runs one per XBee. Nothing here needs Android, so the same path can be driven by a ReplaySerialLink anywhere
+//
+// Metrics (see Metrics, shared by all the readers)
+//   receiver.bytes, receiver.frames, receiver.parseFailures - bytes read, complete frames, and frames that did not parse
+//   receiver.checksumFailures - API frames thrown away because of a bad checksum
+//
+// Logging goes to the "receiver" CanaryLog subsystem. Each frame that does not parse is logged at DEBUG, so it costs nothing unless turned on
+//
+// Constructor
+//   LinkReader(SerialLink, LinkConfig, source, mode, ReadingListener)
+//
+// Public Methods
+//   start() - starts reading (Thread)
+//   stopReading() - asks the thread to finish, after its current read. join() it before closing the link
+//   getLink() - the link being read
+//   getSource() - the radio's source number
+//
+///////////////////////////
+
+public class LinkReader extends Thread implements FrameAssembler.FrameListener
+{
+    // ReadingListener - gets each processed reading on the reader thread. The reading is reused, so copy out anything you need to keep
+    public interface ReadingListener
+    {
+        void onReading(Reading reading);
+    }
+
+    // link modes, see Receiver.setLinkMode()
+    public static final int MODE_TRANSPARENT = 0;
+    public static final int MODE_API = 1;
+    public static final int MODE_API_ESCAPED = 2;
+
+    private static final long OPEN_RETRY_MS = 1000; // how long to wait before retrying after a problem with the link
+    private static final int FRAME_SIZE = 1024; // largest frame text we accept
+    private static final int API_FRAME_SIZE = 256; // largest API frame data we accept, a receive frame holds at most about 110 bytes of payload
+    private static final CanaryLog.Subsystem LOG = CanaryLog.subsystem("receiver");
+
+    private final SerialLink link;
+    private final LinkConfig config;
+    private final int source; // which radio this is, tagged on its readings
+    private final ReadingListener listener;
+    private final byte[] readBuffer; // reused for every read, config.readBufferSize long
+    private final FrameAssembler frameAssembler; // keeps partial frames between reads and hands us complete ones, null in the API modes
+    private final SensorFrameParser parser = new SensorFrameParser(); // turns frames into readings
+    private final ApiFrameAssembler apiAssembler; // instead of frameAssembler in the API modes, null in transparent mode
+    private final SensorPayloadCodec payloadCodec = new SensorPayloadCodec(); // turns API frame payloads into readings
+    private final Reading frameReading = new Reading(); // reused for every frame processed
+    private long countedChecksumFailures = 0; // apiAssembler.checksumFailures already added to the metric
+    private volatile boolean bReading = true;
+
+    private final Metrics.Counter bytesReceived = Metrics.counter("receiver.bytes");
+    private final Metrics.Counter framesReceived = Metrics.counter("receiver.frames");
+    private final Metrics.Counter parseFailures = Metrics.counter("receiver.parseFailures");
+    private final Metrics.Counter checksumFailures = Metrics.counter("receiver.checksumFailures");
+
+    public LinkReader(SerialLink link, LinkConfig config, int source, int mode, ReadingListener listener)
+    {
+        super("Canary XBee Reader " + source);
+        if (mode != MODE_TRANSPARENT && mode != MODE_API && mode != MODE_API_ESCAPED)
+        {
+            throw new IllegalArgumentException("unknown link mode " + mode);
+        }
+        this.link = link;
+        this.config = config;
+        this.source = source;
+        this.listener = listener;
+        readBuffer = new byte[config.readBufferSize];
+        frameAssembler = mode == MODE_TRANSPARENT ? new FrameAssembler(FRAME_SIZE) : null;
+        apiAssembler = mode == MODE_TRANSPARENT ? null : new ApiFrameAssembler(API_FRAME_SIZE, mode == MODE_API_ESCAPED);
+    }
+
+    // stopReading() - asks the thread to finish, after its current read. join() it before closing the link
+    public void stopReading()
+    {
+        bReading = false;
+        interrupt();
+    }
+
+    // getLink() - the link being read
+    public SerialLink getLink()
+    {
+        return link;
+    }
+
+    // getSource() - the radio's source number
+    public int getSource()
+    {
+        return source;
+    }
+
+    @Override
+    public void run()
+    {
+        while (bReading && !isInterrupted())
+        {
+            try
+            {
+                if (!link.isOpen())
+                {
+                    link.open(config);
+                    if (frameAssembler != null) // anything left over is from the old connection
+                    {
+                        frameAssembler.reset();
+                    }
+                    else
+                    {
+                        apiAssembler.reset();
+                    }
+                }
+                // reads can spin until data shows up, so only read when there is something to read
+                if (link.available() <= 0)
+                {
+                    Thread.sleep(config.readTimeoutMs);
+                    continue;
+                }
+                int iLength = link.read(readBuffer, 0, readBuffer.length);
+                if (iLength > 0)
+                {
+                    bytesReceived.add(iLength);
+                    if (frameAssembler != null)
+                    {
+                        frameAssembler.append(readBuffer, 0, iLength, this); // processes any frames completed by this read
+                    }
+                    else
+                    {
+                        apiAssembler.append(readBuffer, 0, iLength, this);
+                        if (apiAssembler.checksumFailures != countedChecksumFailures)
+                        {
+                            checksumFailures.add(apiAssembler.checksumFailures - countedChecksumFailures);
+                            countedChecksumFailures = apiAssembler.checksumFailures;
+                        }
+                    }
+                }
+            }
+            catch (InterruptedException e) // stopReading() wants us to finish
+            {
+                break;
+            }
+            catch (Exception e)
+            {
+                LOG.warn("LinkReader run() radio {} problem getting XBee data {}", source, e);
+                try
+                {
+                    Thread.sleep(OPEN_RETRY_MS);
+                }
+                catch (InterruptedException ie)
+                {
+                    break;
+                }
+            }
+        }
+        LOG.info("LinkReader run() radio {} stopped reading", source);
+    }
+
+    // onFrame(byte[], length) - processes each complete frame from the frame assembler, and hands the reading to the listener
+    //   In the API modes the frame is the data of a checked API frame, frame type first
+    public void onFrame(byte[] frame, int length)
+    {
+        framesReceived.increment();
+        frameReading.reset();
+        frameReading.timestamp = System.currentTimeMillis();
+        boolean bProcessed;
+        if (frameAssembler != null)
+        {
+            frameReading.setRaw(frame, 0, length);
+            bProcessed = parser.parse(frame, 0, length, frameReading);
+        }
+        else
+        {
+            int offset = ApiFrameAssembler.receivePayloadOffset(frame, length);
+            if (offset < 0) // modem status, transmit status and the like, nothing to record
+            {
+                LOG.debug("LinkReader onFrame() radio {} skipping API frame type {}", source, frame[0] & 0xFF);
+                return;
+            }
+            bProcessed = payloadCodec.decode(frame, offset, length - offset, frameReading);
+        }
+        if (!bProcessed) // frame did not have all the values we expect, skip it
+        {
+            parseFailures.increment();
+            LOG.debug("LinkReader onFrame() radio {} unable to process frame of {} bytes", source, length);
+            return;
+        }
+        frameReading.source = source;
+        listener.onReading(frameReading);
+    }
+}
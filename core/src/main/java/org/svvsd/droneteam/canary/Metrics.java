@@ -0,0 +1,326 @@
+package org.svvsd.droneteam.canary;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+////////////////////////////////////
+// Notes
+//
+// Metrics is one place for the whole pipeline to count what it is doing, so it can be shown on screen or written to a file
+//   Counter - a running total, like bytes received. Shown with its rate per second too
+//   Histogram - a distribution of values, like commit latencies in microseconds. Keeps the count, mean, max and percentiles
+//   Gauge - a value read only when the metrics are reported, like queue depth, so it costs nothing in between
+//
+// Recording is lock free and does not allocate - counters are an AtomicLong, histograms an AtomicLongArray of buckets
+//   Histogram buckets are HDR style: 16 buckets for every power of 2, so any percentile is within about 6% of the real value, from 0 up to Long.MAX_VALUE
+//   Look a metric up once (say into a field), and record into it from then on. Looking one up again by name gets the same one
+//
+// Names are subsystem.what, with the unit at the end for histograms (Us microseconds, Ns nanoseconds, Rows)
+//
+// Public Methods
+//   counter(name) - gets the counter of that name, making it if needed
+//   histogram(name) - gets the histogram of that name, making it if needed
+//   gauge(name, Gauge) - registers a gauge under name, replacing any gauge already there
+//   appendReport(StringBuilder, lastCounts, elapsedMs) - appends one line per metric. Counters get a rate since lastCounts if that is not null
+//   dump(Writer) - writes every metric with its full details, for looking at later
+//   reset() - zeroes every counter and histogram
+//
+///////////////////////////
+
+public class Metrics
+{
+    // Counter - a running total
+    public static class Counter
+    {
+        private final AtomicLong value = new AtomicLong();
+
+        public void increment()
+        {
+            value.incrementAndGet();
+        }
+
+        public void add(long amount)
+        {
+            value.addAndGet(amount);
+        }
+
+        public long get()
+        {
+            return value.get();
+        }
+    }
+
+    // Gauge - a value read when the metrics are reported. Called from whatever thread reports them, so keep it cheap and thread safe
+    public interface Gauge
+    {
+        long get();
+    }
+
+    // Histogram - a distribution of non-negative values (negative ones count as 0)
+    public static class Histogram
+    {
+        private static final int SUB_BITS = 4; // 2^SUB_BITS buckets per power of 2
+        private static final int SUB_COUNT = 1 << SUB_BITS;
+        private static final int BUCKET_COUNT = (64 - SUB_BITS) * SUB_COUNT;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong sum = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        // record(value) - adds a value
+        public void record(long value)
+        {
+            if (value < 0)
+            {
+                value = 0;
+            }
+            buckets.incrementAndGet(bucketOf(value));
+            count.incrementAndGet();
+            sum.addAndGet(value);
+            long currentMax;
+            while (value > (currentMax = max.get()) && !max.compareAndSet(currentMax, value))
+            {
+                // someone else raised it, check again
+            }
+        }
+
+        public long getCount()
+        {
+            return count.get();
+        }
+
+        public long getMax()
+        {
+            return max.get();
+        }
+
+        public double getMean()
+        {
+            long n = count.get();
+            return n == 0 ? 0 : (double) sum.get() / n;
+        }
+
+        // getPercentile(percent) - the value percent of the values are at or below, to within the bucket size. 0 if there are no values
+        public long getPercentile(double percent)
+        {
+            long n = count.get();
+            if (n == 0)
+            {
+                return 0;
+            }
+            long target = Math.max(1, (long) Math.ceil(n * percent / 100));
+            long seen = 0;
+            for (int b = 0; b < BUCKET_COUNT; b++)
+            {
+                seen += buckets.get(b);
+                if (seen >= target)
+                {
+                    return Math.min(bucketTop(b), max.get());
+                }
+            }
+            return max.get(); // values recorded while we were looking
+        }
+
+        // reset() - forgets every value
+        public void reset()
+        {
+            for (int b = 0; b < BUCKET_COUNT; b++)
+            {
+                buckets.set(b, 0);
+            }
+            count.set(0);
+            sum.set(0);
+            max.set(0);
+        }
+
+        // bucketOf(value) - values below SUB_COUNT get a bucket each, above that each power of 2 is split into SUB_COUNT buckets
+        private static int bucketOf(long value)
+        {
+            if (value < SUB_COUNT)
+            {
+                return (int) value;
+            }
+            int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+            return (shift + 1) * SUB_COUNT + (int) (value >>> shift) - SUB_COUNT;
+        }
+
+        // bucketTop(bucket) - the largest value that goes in the bucket
+        private static long bucketTop(int bucket)
+        {
+            if (bucket < SUB_COUNT)
+            {
+                return bucket;
+            }
+            int shift = bucket / SUB_COUNT - 1;
+            long sub = bucket % SUB_COUNT + SUB_COUNT;
+            return ((sub + 1) << shift) - 1;
+        }
+    }
+
+    private static final ArrayList<String> names = new ArrayList<String>(); // in the order registered, guarded by names
+    private static final HashMap<String, Object> metrics = new HashMap<String, Object>(); // guarded by names
+
+    // counter(name) - gets the counter of that name, making it if needed
+    public static Counter counter(String sName)
+    {
+        synchronized (names)
+        {
+            Object metric = metrics.get(sName);
+            if (metric instanceof Counter)
+            {
+                return (Counter) metric;
+            }
+            Counter counter = new Counter();
+            register(sName, counter);
+            return counter;
+        }
+    }
+
+    // histogram(name) - gets the histogram of that name, making it if needed
+    public static Histogram histogram(String sName)
+    {
+        synchronized (names)
+        {
+            Object metric = metrics.get(sName);
+            if (metric instanceof Histogram)
+            {
+                return (Histogram) metric;
+            }
+            Histogram histogram = new Histogram();
+            register(sName, histogram);
+            return histogram;
+        }
+    }
+
+    // gauge(name, Gauge) - registers a gauge under name, replacing any gauge already there
+    public static void gauge(String sName, Gauge gauge)
+    {
+        synchronized (names)
+        {
+            register(sName, gauge);
+        }
+    }
+
+    // register(name, metric) - puts the metric under name. Call holding names
+    private static void register(String sName, Object metric)
+    {
+        if (metrics.put(sName, metric) == null)
+        {
+            names.add(sName);
+        }
+    }
+
+    // currentNames() - the names of every metric right now, in the order registered
+    private static String[] currentNames()
+    {
+        synchronized (names)
+        {
+            return names.toArray(new String[names.size()]);
+        }
+    }
+
+    // currentMetrics(names) - the metrics under the names
+    private static Object[] currentMetrics(String[] metricNames)
+    {
+        Object[] currentMetrics = new Object[metricNames.length];
+        synchronized (names)
+        {
+            for (int i = 0; i < metricNames.length; i++)
+            {
+                currentMetrics[i] = metrics.get(metricNames[i]);
+            }
+        }
+        return currentMetrics;
+    }
+
+    // appendReport(StringBuilder, lastCounts, elapsedMs) - appends one line per metric, short enough for a phone screen
+    //   If lastCounts is not null, counters also get their rate per second since the counts in it, which were taken elapsedMs ago, and lastCounts is updated
+    public static void appendReport(StringBuilder sb, HashMap<String, Long> lastCounts, long elapsedMs)
+    {
+        String[] currentNames = currentNames();
+        Object[] currentMetrics = currentMetrics(currentNames);
+        for (int i = 0; i < currentNames.length; i++)
+        {
+            sb.append(currentNames[i]).append(' ');
+            Object metric = currentMetrics[i];
+            if (metric instanceof Counter)
+            {
+                long value = ((Counter) metric).get();
+                sb.append(value);
+                if (lastCounts != null)
+                {
+                    Long last = lastCounts.put(currentNames[i], value);
+                    if (last != null && elapsedMs > 0)
+                    {
+                        sb.append(" (").append((value - last) * 1000 / elapsedMs).append("/s)");
+                    }
+                }
+            }
+            else if (metric instanceof Histogram)
+            {
+                Histogram histogram = (Histogram) metric;
+                sb.append("n=").append(histogram.getCount())
+                        .append(" p50=").append(histogram.getPercentile(50))
+                        .append(" p99=").append(histogram.getPercentile(99))
+                        .append(" max=").append(histogram.getMax());
+            }
+            else
+            {
+                sb.append(((Gauge) metric).get());
+            }
+            sb.append('\n');
+        }
+    }
+
+    // dump(Writer) - writes every metric with its full details, one per line, for looking at later
+    public static void dump(Writer writer) throws IOException
+    {
+        String[] currentNames = currentNames();
+        Object[] currentMetrics = currentMetrics(currentNames);
+        writer.write("# canary metrics at " + System.currentTimeMillis() + "\n");
+        for (int i = 0; i < currentNames.length; i++)
+        {
+            Object metric = currentMetrics[i];
+            if (metric instanceof Counter)
+            {
+                writer.write(currentNames[i] + " counter " + ((Counter) metric).get() + "\n");
+            }
+            else if (metric instanceof Histogram)
+            {
+                Histogram histogram = (Histogram) metric;
+                writer.write(currentNames[i] + " histogram count=" + histogram.getCount() + " mean=" + histogram.getMean() +
+                        " p50=" + histogram.getPercentile(50) + " p90=" + histogram.getPercentile(90) + " p99=" + histogram.getPercentile(99) +
+                        " p999=" + histogram.getPercentile(99.9) + " max=" + histogram.getMax() + "\n");
+            }
+            else
+            {
+                writer.write(currentNames[i] + " gauge " + ((Gauge) metric).get() + "\n");
+            }
+        }
+        writer.flush();
+    }
+
+    // reset() - zeroes every counter and histogram
+    public static void reset()
+    {
+        synchronized (names)
+        {
+            for (Object metric : metrics.values())
+            {
+                if (metric instanceof Counter)
+                {
+                    ((Counter) metric).value.set(0);
+                }
+                else if (metric instanceof Histogram)
+                {
+                    ((Histogram) metric).reset();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package org.svvsd.droneteam.canary;
+
+////////////////////////////////////
+// Notes
+//
+// Reading holds the sensor values from one XBee frame, in plain primitive fields so nothing gets boxed or put in a map per frame
+//   Readings are meant to be reused - Receiver parses every frame into the same Reading, and Recorder reads the capture log back into a reused batch of them (see ReadingCodec)
+//   flags says which sensor groups the frame had. Values of groups that are not flagged are left over from before and should be ignored
+//   source is which radio the frame came from (see Receiver), numbered from 1, or 0 if not known
+//
+// Sensor groups (the number is the sensor ID at the start of the group in the frame)
+//   1 ATMOSPHERE - temperature, pressure, humidity
+//   2 GAS - CO, H2, NH4, CH4, O3
+//   3 LIDAR - lidar
+//   4 GPS - latitude, longitude, altitude. A GPS group with no values means no GPS lock, and they are set to -1 with gpsFix false
+//
+// Public Methods
+//   reset() - clears the reading so it can be reused for the next frame
+//   copyFrom(Reading) - makes this reading a copy of another one, without allocating
+//   has(flag) - whether the reading has the sensor group
+//   setRaw(byte[], offset, length) - keeps a copy of the raw frame text (recorded in the testfield column)
+//   getAsString(fieldName) - gets the value of a field by its database column name, or null if the reading does not have it. Allocates, monitors use ReadingFormatter instead
+//
+///////////////////////////
+
+public class Reading
+{
+    // sensor group flags
+    public static final int ATMOSPHERE = 1;
+    public static final int GAS = 1 << 1;
+    public static final int LIDAR = 1 << 2;
+    public static final int GPS = 1 << 3;
+
+    public int flags = 0; // which sensor groups the reading has
+    public long timestamp = 0; // when the frame was processed, in milliseconds since 1970
+    public int source = 0; // which radio the frame came from, 0 if not known
+
+    // ATMOSPHERE
+    public float temperature;
+    public int pressure;
+    public int humidity;
+
+    // GAS
+    public int co;
+    public int h2;
+    public int nh4;
+    public int ch4;
+    public int o3;
+
+    // LIDAR
+    public int lidar;
+
+    // GPS
+    public float latitude;
+    public float longitude;
+    public float altitude;
+    public boolean gpsFix; // false when the GPS group came without values
+
+    // raw frame text
+    public byte[] raw = new byte[256];
+    public int rawLength = 0;
+
+    // reset() - clears the reading so it can be reused for the next frame
+    public void reset()
+    {
+        flags = 0;
+        timestamp = 0;
+        source = 0;
+        rawLength = 0;
+        gpsFix = false;
+    }
+
+    // copyFrom(Reading) - makes this reading a copy of another one, without allocating
+    public void copyFrom(Reading other)
+    {
+        flags = other.flags;
+        timestamp = other.timestamp;
+        source = other.source;
+        temperature = other.temperature;
+        pressure = other.pressure;
+        humidity = other.humidity;
+        co = other.co;
+        h2 = other.h2;
+        nh4 = other.nh4;
+        ch4 = other.ch4;
+        o3 = other.o3;
+        lidar = other.lidar;
+        latitude = other.latitude;
+        longitude = other.longitude;
+        altitude = other.altitude;
+        gpsFix = other.gpsFix;
+        setRaw(other.raw, 0, other.rawLength);
+    }
+
+    // has(flag) - whether the reading has the sensor group
+    public boolean has(int flag)
+    {
+        return (flags & flag) != 0;
+    }
+
+    // setRaw(byte[], offset, length) - keeps a copy of the raw frame text (recorded in the testfield column)
+    public void setRaw(byte[] buffer, int offset, int length)
+    {
+        if (raw.length < length) // only grows for unusually long frames
+        {
+            raw = new byte[length];
+        }
+        System.arraycopy(buffer, offset, raw, 0, length);
+        rawLength = length;
+    }
+
+    // getAsString(fieldName) - gets the value of a field by its database column name, or null if the reading does not have it. Allocates, monitors use ReadingFormatter instead
+    public String getAsString(String sFieldName)
+    {
+        switch (sFieldName)
+        {
+            case "temperature":
+                return has(ATMOSPHERE) ? Float.toString(temperature) : null;
+            case "pressure":
+                return has(ATMOSPHERE) ? Integer.toString(pressure) : null;
+            case "humidity":
+                return has(ATMOSPHERE) ? Integer.toString(humidity) : null;
+            case "CO":
+                return has(GAS) ? Integer.toString(co) : null;
+            case "H2":
+                return has(GAS) ? Integer.toString(h2) : null;
+            case "NH4":
+                return has(GAS) ? Integer.toString(nh4) : null;
+            case "CH4":
+                return has(GAS) ? Integer.toString(ch4) : null;
+            case "O3":
+                return has(GAS) ? Integer.toString(o3) : null;
+            case "Lidar":
+                return has(LIDAR) ? Integer.toString(lidar) : null;
+            case "Latitude":
+                return has(GPS) ? Float.toString(latitude) : null;
+            case "Longitude":
+                return has(GPS) ? Float.toString(longitude) : null;
+            case "Altitude":
+                return has(GPS) ? Float.toString(altitude) : null;
+            default:
+                return null;
+        }
+    }
+}
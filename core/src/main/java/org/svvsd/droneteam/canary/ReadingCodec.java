@@ -0,0 +1,159 @@
+package org.svvsd.droneteam.canary;
+
+import java.nio.ByteBuffer;
+
+////////////////////////////////////
+// Notes
+//
+// ReadingCodec writes Readings to and reads them from a compact binary form, without allocating. Used by CaptureLog
+//   flags (1 byte), timestamp (8 bytes), source (2 bytes, only if the SOURCE bit is set in the flags byte), then only the sensor groups the reading has,
+//   then the raw frame text
+//     ATMOSPHERE - temperature (float), pressure, humidity (ints)
+//     GAS - CO, H2, NH4, CH4, O3 (ints)
+//     LIDAR - lidar (int)
+//     GPS - latitude, longitude, altitude (floats), gpsFix (1 byte)
+//     raw - length (2 bytes), then the bytes
+//
+// Public Methods
+//   maxSize(Reading) - the most bytes encode() can write for the reading
+//   encode(Reading, ByteBuffer) - writes the reading at the buffer position
+//   decode(ByteBuffer, Reading) - reads a reading written by encode() from the buffer position into the reading. Returns false if it is not a valid one
+//
+///////////////////////////
+
+public class ReadingCodec
+{
+    private static final int FIXED_SIZE = 1 + 8 + 2 + 12 + 20 + 4 + 13 + 2; // everything but the raw bytes, with every group
+    private static final int SOURCE = 0x80; // flags byte bit for a source being written, above the sensor group flags
+    private static final int MAX_RAW = 0xFFFF;
+
+    // maxSize(Reading) - the most bytes encode() can write for the reading
+    public static int maxSize(Reading reading)
+    {
+        return FIXED_SIZE + Math.min(reading.rawLength, MAX_RAW);
+    }
+
+    // encode(Reading, ByteBuffer) - writes the reading at the buffer position
+    public static void encode(Reading reading, ByteBuffer buffer)
+    {
+        buffer.put((byte) (reading.flags | (reading.source != 0 ? SOURCE : 0)));
+        buffer.putLong(reading.timestamp);
+        if (reading.source != 0)
+        {
+            buffer.putShort((short) reading.source);
+        }
+        if (reading.has(Reading.ATMOSPHERE))
+        {
+            buffer.putFloat(reading.temperature);
+            buffer.putInt(reading.pressure);
+            buffer.putInt(reading.humidity);
+        }
+        if (reading.has(Reading.GAS))
+        {
+            buffer.putInt(reading.co);
+            buffer.putInt(reading.h2);
+            buffer.putInt(reading.nh4);
+            buffer.putInt(reading.ch4);
+            buffer.putInt(reading.o3);
+        }
+        if (reading.has(Reading.LIDAR))
+        {
+            buffer.putInt(reading.lidar);
+        }
+        if (reading.has(Reading.GPS))
+        {
+            buffer.putFloat(reading.latitude);
+            buffer.putFloat(reading.longitude);
+            buffer.putFloat(reading.altitude);
+            buffer.put((byte) (reading.gpsFix ? 1 : 0));
+        }
+        int rawLength = Math.min(reading.rawLength, MAX_RAW);
+        buffer.putShort((short) rawLength);
+        buffer.put(reading.raw, 0, rawLength);
+    }
+
+    // decode(ByteBuffer, Reading) - reads a reading written by encode() from the buffer position into the reading. Returns false if it is not a valid one
+    public static boolean decode(ByteBuffer buffer, Reading reading)
+    {
+        reading.reset();
+        if (buffer.remaining() < 1 + 8 + 2)
+        {
+            return false;
+        }
+        int flags = buffer.get() & 0xFF;
+        reading.flags = flags & ~SOURCE;
+        reading.timestamp = buffer.getLong();
+        if ((flags & SOURCE) != 0)
+        {
+            if (buffer.remaining() < 2)
+            {
+                return false;
+            }
+            reading.source = buffer.getShort() & 0xFFFF;
+        }
+        if (buffer.remaining() < groupsSize(reading) + 2)
+        {
+            return false;
+        }
+        if (reading.has(Reading.ATMOSPHERE))
+        {
+            reading.temperature = buffer.getFloat();
+            reading.pressure = buffer.getInt();
+            reading.humidity = buffer.getInt();
+        }
+        if (reading.has(Reading.GAS))
+        {
+            reading.co = buffer.getInt();
+            reading.h2 = buffer.getInt();
+            reading.nh4 = buffer.getInt();
+            reading.ch4 = buffer.getInt();
+            reading.o3 = buffer.getInt();
+        }
+        if (reading.has(Reading.LIDAR))
+        {
+            reading.lidar = buffer.getInt();
+        }
+        if (reading.has(Reading.GPS))
+        {
+            reading.latitude = buffer.getFloat();
+            reading.longitude = buffer.getFloat();
+            reading.altitude = buffer.getFloat();
+            reading.gpsFix = buffer.get() != 0;
+        }
+        int rawLength = buffer.getShort() & 0xFFFF;
+        if (buffer.remaining() < rawLength)
+        {
+            return false;
+        }
+        if (reading.raw.length < rawLength) // only grows for unusually long frames
+        {
+            reading.raw = new byte[rawLength];
+        }
+        buffer.get(reading.raw, 0, rawLength);
+        reading.rawLength = rawLength;
+        return true;
+    }
+
+    // groupsSize(Reading) - bytes taken by the sensor groups the reading has
+    private static int groupsSize(Reading reading)
+    {
+        int size = 0;
+        if (reading.has(Reading.ATMOSPHERE))
+        {
+            size += 12;
+        }
+        if (reading.has(Reading.GAS))
+        {
+            size += 20;
+        }
+        if (reading.has(Reading.LIDAR))
+        {
+            size += 4;
+        }
+        if (reading.has(Reading.GPS))
+        {
+            size += 13;
+        }
+        return size;
+    }
+}
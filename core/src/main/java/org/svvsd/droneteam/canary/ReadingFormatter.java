@@ -0,0 +1,184 @@
+package org.svvsd.droneteam.canary;
+
+import java.util.TimeZone;
+
+////////////////////////////////////
+// Notes
+//
+// ReadingFormatter formats Reading fields into char buffers for display, without allocating
+//   Fields are looked up by their database column / monitor name once with fieldId(), then formatted by id
+//   Floats are shown with a fixed number of decimals (see DECIMALS), the Timestamp in local time as yyyy-MM-dd HH:mm:ss
+//
+// Public Methods
+//   fieldId(fieldName) - the field id for a database column / monitor name, or -1 if there is no such field
+//   format(Reading, fieldId, char[]) - writes the field's value into the buffer, returning its length, or -1 if the reading does not have the field
+//
+///////////////////////////
+
+public class ReadingFormatter
+{
+    public static final int BUFFER_SIZE = 32; // big enough for any formatted field
+
+    private static final String[] FIELD_NAMES = {"temperature", "pressure", "humidity", "CO", "H2", "NH4", "CH4", "O3",
+            "Lidar", "Latitude", "Longitude", "Altitude", "Timestamp"};
+    private static final int[] DECIMALS = {2, 0, 0, 0, 0, 0, 0, 0, 0, 6, 6, 1, 0}; // decimals shown for the float fields
+    private static final float[] POW10 = {1f, 10f, 100f, 1000f, 10000f, 100000f, 1000000f};
+
+    private final TimeZone timeZone = TimeZone.getDefault();
+
+    // fieldId(fieldName) - the field id for a database column / monitor name, or -1 if there is no such field
+    public static int fieldId(String sFieldName)
+    {
+        for (int i = 0; i < FIELD_NAMES.length; i++)
+        {
+            if (FIELD_NAMES[i].equals(sFieldName))
+            {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // format(Reading, fieldId, char[]) - writes the field's value into the buffer, returning its length, or -1 if the reading does not have the field
+    public int format(Reading reading, int field, char[] out)
+    {
+        switch (field)
+        {
+            case 0:
+                return reading.has(Reading.ATMOSPHERE) ? formatFloat(reading.temperature, DECIMALS[field], out) : -1;
+            case 1:
+                return reading.has(Reading.ATMOSPHERE) ? formatLong(reading.pressure, out, 0) : -1;
+            case 2:
+                return reading.has(Reading.ATMOSPHERE) ? formatLong(reading.humidity, out, 0) : -1;
+            case 3:
+                return reading.has(Reading.GAS) ? formatLong(reading.co, out, 0) : -1;
+            case 4:
+                return reading.has(Reading.GAS) ? formatLong(reading.h2, out, 0) : -1;
+            case 5:
+                return reading.has(Reading.GAS) ? formatLong(reading.nh4, out, 0) : -1;
+            case 6:
+                return reading.has(Reading.GAS) ? formatLong(reading.ch4, out, 0) : -1;
+            case 7:
+                return reading.has(Reading.GAS) ? formatLong(reading.o3, out, 0) : -1;
+            case 8:
+                return reading.has(Reading.LIDAR) ? formatLong(reading.lidar, out, 0) : -1;
+            case 9:
+                return reading.has(Reading.GPS) ? formatFloat(reading.latitude, DECIMALS[field], out) : -1;
+            case 10:
+                return reading.has(Reading.GPS) ? formatFloat(reading.longitude, DECIMALS[field], out) : -1;
+            case 11:
+                return reading.has(Reading.GPS) ? formatFloat(reading.altitude, DECIMALS[field], out) : -1;
+            case 12:
+                return reading.timestamp != 0 ? formatTimestamp(reading.timestamp, out) : -1;
+            default:
+                return -1;
+        }
+    }
+
+    // formatLong(value, out, pos) - writes value at pos, returning the position after it
+    private static int formatLong(long value, char[] out, int pos)
+    {
+        if (value < 0)
+        {
+            out[pos++] = '-';
+            value = -value;
+        }
+        int start = pos;
+        do
+        {
+            out[pos++] = (char) ('0' + (value % 10));
+            value /= 10;
+        }
+        while (value != 0);
+        for (int i = start, j = pos - 1; i < j; i++, j--) // digits went in backwards
+        {
+            char ch = out[i];
+            out[i] = out[j];
+            out[j] = ch;
+        }
+        return pos;
+    }
+
+    // formatFloat(value, decimals, out) - writes value rounded to decimals places, returning its length
+    private static int formatFloat(float value, int decimals, char[] out)
+    {
+        if (Float.isNaN(value) || Float.isInfinite(value) || Math.abs(value) >= 1e12f)
+        {
+            return copy(Float.toString(value), out); // never happens with sensor values
+        }
+        long scaled = Math.round(Math.abs((double) value) * POW10[decimals]);
+        int pos = 0;
+        if (value < 0 && scaled != 0)
+        {
+            out[pos++] = '-';
+        }
+        long whole = scaled;
+        for (int d = 0; d < decimals; d++)
+        {
+            whole /= 10;
+        }
+        pos = formatLong(whole, out, pos);
+        if (decimals > 0)
+        {
+            out[pos++] = '.';
+            for (int d = decimals - 1; d >= 0; d--)
+            {
+                out[pos + d] = (char) ('0' + (scaled % 10));
+                scaled /= 10;
+            }
+            pos += decimals;
+        }
+        return pos;
+    }
+
+    // formatTimestamp(ms, out) - writes the time in local time as yyyy-MM-dd HH:mm:ss, returning its length
+    private int formatTimestamp(long ms, char[] out)
+    {
+        long local = ms + timeZone.getOffset(ms);
+        long days = local / 86400000L;
+        long msOfDay = local % 86400000L;
+        if (msOfDay < 0) // before 1970
+        {
+            days--;
+            msOfDay += 86400000L;
+        }
+        int secondOfDay = (int) (msOfDay / 1000);
+
+        // civil date from days since 1970-01-01 (Howard Hinnant's civil_from_days)
+        long z = days + 719468;
+        long era = (z >= 0 ? z : z - 146096) / 146097;
+        long dayOfEra = z - era * 146097;
+        long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        long mp = (5 * dayOfYear + 2) / 153;
+        int day = (int) (dayOfYear - (153 * mp + 2) / 5 + 1);
+        int month = (int) (mp < 10 ? mp + 3 : mp - 9);
+        long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+
+        int pos = formatLong(year, out, 0);
+        out[pos++] = '-';
+        pos = twoDigits(month, out, pos);
+        out[pos++] = '-';
+        pos = twoDigits(day, out, pos);
+        out[pos++] = ' ';
+        pos = twoDigits(secondOfDay / 3600, out, pos);
+        out[pos++] = ':';
+        pos = twoDigits(secondOfDay / 60 % 60, out, pos);
+        out[pos++] = ':';
+        return twoDigits(secondOfDay % 60, out, pos);
+    }
+
+    private static int twoDigits(int value, char[] out, int pos)
+    {
+        out[pos++] = (char) ('0' + value / 10);
+        out[pos++] = (char) ('0' + value % 10);
+        return pos;
+    }
+
+    private static int copy(String sValue, char[] out)
+    {
+        int length = Math.min(sValue.length(), out.length);
+        sValue.getChars(0, length, out, 0);
+        return length;
+    }
+}
@@ -0,0 +1,265 @@
+package org.svvsd.droneteam.canary;
+
+import java.util.ArrayList;
+import java.util.concurrent.locks.LockSupport;
+
+////////////////////////////////////
+// Notes
+//
+// ReadingMerger merges readings from several sources (radios), each read on its own thread, into one stream in timestamp order
+//   Each source hands its readings to its own ring of preallocated readings with offer(). That only copies the reading, never locks and
+//   never waits - if the ring is full because the merger is behind, the reading is dropped and counted
+//   A merger thread hands the readings to the ReadingSink one at a time, oldest timestamp first across all the sources
+//
+// Ordering
+//   Readings are timestamped on their reader thread right before offer(), so a source with nothing queued can only come up with a newer reading,
+//   give or take a little thread scheduling. The oldest queued reading is handed on once every source has something queued (then nothing older can
+//   come), or once it is maxDelayMs old. So the merged stream is in order unless a reader thread stalls for more than maxDelayMs, and an idle
+//   source holds the others up by at most maxDelayMs. With one source, readings are handed on right away
+//   Sources with readings of the same timestamp take turns, so a busy radio cannot starve a quiet one
+//
+// Constructor
+//   ReadingMerger(queueCapacity, maxDelayMs, ReadingSink) - queueCapacity is rounded up to a power of 2
+//
+// Public Methods
+//   addSource() - adds a source, returning the Source its reader thread offers readings to. Only before start()
+//   start() - starts the merger thread
+//   stop() - hands on whatever is still queued, then stops the merger thread
+//   flush() - waits (up to a second) until whatever is queued now has been handed on, without waiting out maxDelayMs
+//   getDropped() - how many readings were dropped because a source's ring was full
+//
+///////////////////////////
+
+public class ReadingMerger
+{
+    private static final long IDLE_PARK_NS = 100000000; // longest the merger sleeps with nothing queued, in case a wake up is missed
+    private static final long STOP_WAIT_MS = 1000; // how long stop() and flush() wait for the merger thread
+
+    // ReadingSink - gets the merged readings, on the merger thread. The reading is reused, so copy anything needed before returning
+    public interface ReadingSink
+    {
+        void onReading(Reading reading);
+    }
+
+    // Source - one source's ring of readings. offer() is only called from that source's reader thread
+    public class Source
+    {
+        private final Reading[] slots;
+        private final int mask;
+        private volatile long head = 0; // next slot the merger takes, only moved by the merger thread
+        private volatile long tail = 0; // next slot offer() fills, only moved by the reader thread
+
+        Source(int capacity)
+        {
+            slots = new Reading[capacity];
+            for (int i = 0; i < capacity; i++)
+            {
+                slots[i] = new Reading();
+            }
+            mask = capacity - 1;
+        }
+
+        // offer(Reading) - queues a copy of the reading for the merger. Returns false if it was dropped because the ring is full
+        public boolean offer(Reading reading)
+        {
+            long currentTail = tail;
+            if (currentTail - head >= slots.length)
+            {
+                dropped.increment();
+                return false;
+            }
+            slots[(int) currentTail & mask].copyFrom(reading);
+            tail = currentTail + 1;
+            if (bMergerWaiting)
+            {
+                LockSupport.unpark(mergerThread);
+            }
+            return true;
+        }
+
+        // peek() - the oldest queued reading, or null if there is none. Merger thread only
+        Reading peek()
+        {
+            long currentHead = head;
+            return currentHead < tail ? slots[(int) currentHead & mask] : null;
+        }
+
+        // take() - lets the slot of the reading peek() returned be reused. Merger thread only
+        void take()
+        {
+            head = head + 1;
+        }
+    }
+
+    private final int queueCapacity;
+    private final long maxDelayMs;
+    private final ReadingSink sink;
+    private final ArrayList<Source> sourceList = new ArrayList<Source>();
+    private volatile Source[] sources = new Source[0]; // fixed once started
+    private final Metrics.Counter dropped = Metrics.counter("receiver.mergeDropped");
+    private volatile boolean bRunning = false;
+    private volatile boolean bMergerWaiting = false;
+    private volatile boolean bFlushRequested = false; // hand on readings without waiting out maxDelayMs
+    private volatile Thread mergerThread;
+    private int nextTurn = 0; // source that wins the next timestamp tie, merger thread only
+
+    public ReadingMerger(int queueCapacity, long maxDelayMs, ReadingSink sink)
+    {
+        int capacity = 1;
+        while (capacity < queueCapacity)
+        {
+            capacity <<= 1;
+        }
+        this.queueCapacity = capacity;
+        this.maxDelayMs = maxDelayMs;
+        this.sink = sink;
+    }
+
+    // addSource() - adds a source, returning the Source its reader thread offers readings to. Only before start()
+    public Source addSource()
+    {
+        if (bRunning)
+        {
+            throw new IllegalStateException("sources can only be added before start()");
+        }
+        Source source = new Source(queueCapacity);
+        sourceList.add(source);
+        return source;
+    }
+
+    // start() - starts the merger thread
+    public synchronized void start()
+    {
+        if (bRunning)
+        {
+            return;
+        }
+        sources = sourceList.toArray(new Source[sourceList.size()]);
+        bRunning = true;
+        mergerThread = new Thread(new Merger(), "Canary Reading Merger");
+        mergerThread.setDaemon(true);
+        mergerThread.start();
+    }
+
+    // stop() - hands on whatever is still queued, then stops the merger thread
+    public synchronized void stop()
+    {
+        if (!bRunning)
+        {
+            return;
+        }
+        bRunning = false;
+        LockSupport.unpark(mergerThread);
+        try
+        {
+            mergerThread.join(STOP_WAIT_MS);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        mergerThread = null;
+    }
+
+    // flush() - waits (up to a second) until whatever is queued now has been handed on, without waiting out maxDelayMs
+    public void flush()
+    {
+        Thread thread = mergerThread;
+        if (thread == null)
+        {
+            return;
+        }
+        long[] targets = new long[sources.length];
+        for (int i = 0; i < targets.length; i++)
+        {
+            targets[i] = sources[i].tail;
+        }
+        bFlushRequested = true;
+        LockSupport.unpark(thread);
+        long deadline = System.currentTimeMillis() + STOP_WAIT_MS;
+        try
+        {
+            for (int i = 0; i < targets.length; i++)
+            {
+                while (sources[i].head < targets[i] && System.currentTimeMillis() < deadline)
+                {
+                    Thread.sleep(1);
+                }
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        bFlushRequested = false;
+    }
+
+    // getDropped() - how many readings were dropped because a source's ring was full
+    public long getDropped()
+    {
+        return dropped.get();
+    }
+
+    // Merger - hands on the oldest queued reading whenever it is safe to, see Ordering
+    private class Merger implements Runnable
+    {
+        public void run()
+        {
+            while (true)
+            {
+                boolean bStopping = !bRunning;
+                boolean bFlushing = bStopping || bFlushRequested;
+                int oldest = -1;
+                long oldestTimestamp = Long.MAX_VALUE;
+                boolean bAllQueued = true;
+                for (int i = 0; i < sources.length; i++)
+                {
+                    int s = (nextTurn + i) % sources.length; // taking turns on ties
+                    Reading reading = sources[s].peek();
+                    if (reading == null)
+                    {
+                        bAllQueued = false;
+                    }
+                    else if (reading.timestamp < oldestTimestamp)
+                    {
+                        oldest = s;
+                        oldestTimestamp = reading.timestamp;
+                    }
+                }
+                if (oldest < 0) // nothing queued
+                {
+                    if (bStopping)
+                    {
+                        return;
+                    }
+                    waitForData(IDLE_PARK_NS);
+                    continue;
+                }
+                long wait = oldestTimestamp + maxDelayMs - System.currentTimeMillis();
+                if (bAllQueued || bFlushing || wait <= 0)
+                {
+                    sink.onReading(sources[oldest].peek());
+                    sources[oldest].take();
+                    nextTurn = (oldest + 1) % sources.length;
+                    continue;
+                }
+                waitForData(wait * 1000000);
+            }
+        }
+
+        // waitForData(ns) - sleeps up to ns, or until a source offers a reading
+        private void waitForData(long ns)
+        {
+            bMergerWaiting = true;
+            for (Source source : sources) // something may have come in since we looked
+            {
+                if (source.peek() == null)
+                {
+                    LockSupport.parkNanos(ns);
+                    break;
+                }
+            }
+            bMergerWaiting = false;
+        }
+    }
+}
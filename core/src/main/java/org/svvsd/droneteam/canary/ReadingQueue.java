@@ -0,0 +1,414 @@
+package org.svvsd.droneteam.canary;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+////////////////////////////////////
+// Notes
+//
+// ReadingQueue is a bounded queue of readings between the threads that receive them and the thread that stores them,
+//   so a storage hiccup (slow flash, a capture log segment being made) never holds up the radios
+//   The queue is a ring of preallocated readings, claimed with compare and set (the bounded multi producer multi consumer queue of Dmitry Vyukov),
+//   so offer() and poll() never lock and never allocate. Readings are copied in and out of the ring
+//
+// Overflow policies - what offer() does when the ring is full
+//   BLOCK - waits for room. Nothing is lost here, but the producer stalls, so with Receiver readings back up into the merger and get dropped (and counted) there
+//   DROP_OLDEST - throws away the oldest queued reading to make room, and counts it in getDropped()
+//   SPILL - writes the reading to a spill file instead. Once anything is spilled, everything offered goes to the spill file until poll()
+//     has read it all back, so readings come out in the order they went in (with one producer thread). The spill file is only overflow, it starts
+//     out empty every time the queue is made, so spilled readings are lost if the app is killed before they are stored
+//     Spilled readings are written and read back in chunks of up to SPILL_BUFFER_SIZE bytes, not a file read per reading, so draining a big
+//     backlog is about as fast as filling it
+//
+// Constructor
+//   ReadingQueue(capacity, policy, spillFile) - capacity is rounded up to a power of 2. spillFile is only used by SPILL, and can be null otherwise
+//
+// Public Methods
+//   offer(Reading) - queues a copy of the reading. Returns false if it was dropped (DROP_OLDEST never drops the new reading, SPILL only if the spill file fails)
+//   poll(Reading) - copies the oldest reading into the passed in one and takes it off the queue. Returns false if there is none
+//   awaitData(timeoutMs) - waits until there may be something to poll, or timeoutMs. For one consumer thread
+//   setPolicy(policy) - changes the overflow policy from now on
+//   size() - how many readings are queued, spilled ones included
+//   getHighWater() - the most readings that were ever in the ring at once
+//   getDropped() - how many readings were thrown away
+//   getSpilled() - how many readings were written to the spill file
+//   getSpillBacklog() - how many readings in the spill file have not been read back yet
+//   getRemoved() - how many readings have been taken off the queue, polled or dropped, for waiting until the queue is drained
+//
+///////////////////////////
+
+public class ReadingQueue
+{
+    public static final int BLOCK = 0;
+    public static final int DROP_OLDEST = 1;
+    public static final int SPILL = 2;
+
+    private static final long BLOCK_PARK_NS = 100000; // how long a BLOCK producer sleeps between looks for room
+    private static final int SPILL_BUFFER_SIZE = 1 << 17; // spill writes are gathered into this many bytes, more than the biggest reading
+    private static final CanaryLog.Subsystem LOG = CanaryLog.subsystem("queue");
+
+    private final Reading[] slots;
+    private final AtomicLongArray sequences; // Vyukov sequence of each slot, says whether it is ready to fill or to take
+    private final int mask;
+    private final AtomicLong enqueuePosition = new AtomicLong();
+    private final AtomicLong dequeuePosition = new AtomicLong();
+    private final AtomicLong highWater = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong removed = new AtomicLong();
+    private final Reading evicted = new Reading(); // where DROP_OLDEST puts the reading it throws away, guarded by itself
+    private volatile int policy;
+    private volatile Thread waitingConsumer = null; // consumer parked in awaitData(), to wake up on offer()
+
+    // spill file, all guarded by spillLock except the volatile backlog
+    private final Object spillLock = new Object();
+    private final File spillFile;
+    private RandomAccessFile spill = null;
+    private final ByteBuffer spillWriteBuffer = ByteBuffer.allocate(SPILL_BUFFER_SIZE); // spilled readings not written to the file yet
+    private final ByteBuffer spillReadBuffer = ByteBuffer.allocate(SPILL_BUFFER_SIZE); // read back from the file and not decoded yet, from position to limit
+    private long spillWritten = 0; // bytes written to the file
+    private long spillReadPosition = 0; // file position of the next byte to read into spillReadBuffer
+    private volatile long spillBacklog = 0; // readings spilled and not read back
+    private final AtomicLong spilled = new AtomicLong();
+
+    public ReadingQueue(int capacity, int policy, File spillFile)
+    {
+        int size = 1;
+        while (size < capacity)
+        {
+            size <<= 1;
+        }
+        slots = new Reading[size];
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++)
+        {
+            slots[i] = new Reading();
+            sequences.set(i, i);
+        }
+        mask = size - 1;
+        spillReadBuffer.limit(0); // nothing read back yet
+        this.spillFile = spillFile;
+        setPolicy(policy);
+        if (spillFile != null && spillFile.exists() && !spillFile.delete())
+        {
+            LOG.warn("ReadingQueue unable to delete old spill file {}", spillFile);
+        }
+    }
+
+    // setPolicy(policy) - changes the overflow policy from now on
+    public void setPolicy(int policy)
+    {
+        if (policy != BLOCK && policy != DROP_OLDEST && policy != SPILL)
+        {
+            throw new IllegalArgumentException("unknown overflow policy " + policy);
+        }
+        if (policy == SPILL && spillFile == null)
+        {
+            throw new IllegalArgumentException("SPILL needs a spill file");
+        }
+        this.policy = policy;
+    }
+
+    // offer(Reading) - queues a copy of the reading. Returns false if it was dropped
+    public boolean offer(Reading reading)
+    {
+        boolean bQueued;
+        int currentPolicy = policy;
+        if (currentPolicy == SPILL)
+        {
+            bQueued = (spillBacklog == 0 && tryOffer(reading)) || spill(reading);
+        }
+        else if (currentPolicy == DROP_OLDEST)
+        {
+            while (!(bQueued = tryOffer(reading)))
+            {
+                synchronized (evicted)
+                {
+                    if (tryPoll(evicted))
+                    {
+                        dropped.incrementAndGet();
+                    }
+                }
+            }
+        }
+        else
+        {
+            while (!(bQueued = tryOffer(reading)))
+            {
+                LockSupport.parkNanos(BLOCK_PARK_NS);
+            }
+        }
+        Thread consumer = waitingConsumer;
+        if (consumer != null)
+        {
+            LockSupport.unpark(consumer);
+        }
+        return bQueued;
+    }
+
+    // poll(Reading) - copies the oldest reading into the passed in one and takes it off the queue. Returns false if there is none
+    public boolean poll(Reading reading)
+    {
+        if (tryPoll(reading))
+        {
+            return true;
+        }
+        if (spillBacklog == 0)
+        {
+            return false;
+        }
+        synchronized (spillLock)
+        {
+            if (tryPoll(reading)) // queued just before spilling started
+            {
+                return true;
+            }
+            return unspill(reading);
+        }
+    }
+
+    // awaitData(timeoutMs) - waits until there may be something to poll, or timeoutMs. For one consumer thread
+    public void awaitData(long timeoutMs)
+    {
+        waitingConsumer = Thread.currentThread();
+        if (enqueuePosition.get() == dequeuePosition.get() && spillBacklog == 0) // nothing came in since the caller looked
+        {
+            LockSupport.parkNanos(timeoutMs * 1000000);
+        }
+        waitingConsumer = null;
+    }
+
+    // size() - how many readings are queued, spilled ones included
+    public long size()
+    {
+        return Math.max(0, enqueuePosition.get() - dequeuePosition.get()) + spillBacklog;
+    }
+
+    // getHighWater() - the most readings that were ever in the ring at once
+    public long getHighWater()
+    {
+        return highWater.get();
+    }
+
+    // getDropped() - how many readings were thrown away
+    public long getDropped()
+    {
+        return dropped.get();
+    }
+
+    // getSpilled() - how many readings were written to the spill file
+    public long getSpilled()
+    {
+        return spilled.get();
+    }
+
+    // getSpillBacklog() - how many readings in the spill file have not been read back yet
+    public long getSpillBacklog()
+    {
+        return spillBacklog;
+    }
+
+    // getRemoved() - how many readings have been taken off the queue, polled or dropped
+    public long getRemoved()
+    {
+        return removed.get();
+    }
+
+    // tryOffer(Reading) - copies the reading into the ring, returning false if it is full
+    private boolean tryOffer(Reading reading)
+    {
+        long position = enqueuePosition.get();
+        while (true)
+        {
+            int slot = (int) position & mask;
+            long difference = sequences.get(slot) - position;
+            if (difference == 0) // slot is free for this position, claim it
+            {
+                if (enqueuePosition.compareAndSet(position, position + 1))
+                {
+                    slots[slot].copyFrom(reading);
+                    sequences.lazySet(slot, position + 1); // ready to take
+                    long depth = position + 1 - dequeuePosition.get();
+                    long currentHighWater;
+                    while (depth > (currentHighWater = highWater.get()) && !highWater.compareAndSet(currentHighWater, depth))
+                    {
+                        // someone else raised it, check again
+                    }
+                    return true;
+                }
+                position = enqueuePosition.get();
+            }
+            else if (difference < 0) // slot still holds a reading from a lap ago, the ring is full
+            {
+                return false;
+            }
+            else // another producer got this position first
+            {
+                position = enqueuePosition.get();
+            }
+        }
+    }
+
+    // tryPoll(Reading) - copies the oldest reading in the ring out, returning false if the ring is empty
+    private boolean tryPoll(Reading reading)
+    {
+        long position = dequeuePosition.get();
+        while (true)
+        {
+            int slot = (int) position & mask;
+            long difference = sequences.get(slot) - (position + 1);
+            if (difference == 0) // slot has the reading for this position, claim it
+            {
+                if (dequeuePosition.compareAndSet(position, position + 1))
+                {
+                    reading.copyFrom(slots[slot]);
+                    sequences.lazySet(slot, position + mask + 1); // free for the next lap
+                    removed.incrementAndGet();
+                    return true;
+                }
+                position = dequeuePosition.get();
+            }
+            else if (difference < 0) // not filled yet, the ring is empty
+            {
+                return false;
+            }
+            else // another consumer got this position first
+            {
+                position = dequeuePosition.get();
+            }
+        }
+    }
+
+    // spill(Reading) - queues the reading in the ring if nothing is spilled and there is room after all, otherwise adds it to the spill file
+    private boolean spill(Reading reading)
+    {
+        synchronized (spillLock)
+        {
+            if (spillBacklog == 0 && tryOffer(reading))
+            {
+                return true;
+            }
+            try
+            {
+                if (spill == null)
+                {
+                    spill = new RandomAccessFile(spillFile, "rw");
+                    spill.setLength(0);
+                }
+                int size = ReadingCodec.maxSize(reading) + 4;
+                if (spillWriteBuffer.remaining() < size)
+                {
+                    writeSpill();
+                }
+                int start = spillWriteBuffer.position();
+                spillWriteBuffer.putInt(0); // length, filled in below
+                ReadingCodec.encode(reading, spillWriteBuffer);
+                spillWriteBuffer.putInt(start, spillWriteBuffer.position() - start - 4);
+            }
+            catch (IOException e)
+            {
+                dropped.incrementAndGet();
+                LOG.warn("spill() unable to spill a reading {}", e);
+                return false;
+            }
+            spilled.incrementAndGet();
+            spillBacklog = spillBacklog + 1;
+            return true;
+        }
+    }
+
+    // unspill(Reading) - reads the oldest spilled reading back. Call holding spillLock
+    private boolean unspill(Reading reading)
+    {
+        try
+        {
+            if (!hasSpilledReading())
+            {
+                readSpill();
+            }
+            int start = spillReadBuffer.position();
+            int length = spillReadBuffer.getInt();
+            if (length < 0)
+            {
+                throw new IOException("bad spilled reading length " + length);
+            }
+            int end = start + 4 + length;
+            int limit = spillReadBuffer.limit();
+            spillReadBuffer.limit(end); // so decode() can not read into the next reading
+            boolean bDecoded = ReadingCodec.decode(spillReadBuffer, reading);
+            spillReadBuffer.limit(limit);
+            spillReadBuffer.position(end);
+            spillBacklog = spillBacklog - 1;
+            removed.incrementAndGet();
+            if (spillBacklog == 0) // all read back, start the file over
+            {
+                spill.setLength(0);
+                spillWritten = 0;
+                spillReadPosition = 0;
+                spillReadBuffer.limit(0);
+            }
+            if (!bDecoded)
+            {
+                dropped.incrementAndGet();
+                return false;
+            }
+            return true;
+        }
+        catch (IOException e) // the spill file is no good, give up on what is in it
+        {
+            LOG.warn("unspill() unable to read the spill file, dropping {} readings {}", spillBacklog, e);
+            dropped.addAndGet(spillBacklog);
+            removed.addAndGet(spillBacklog);
+            spillBacklog = 0;
+            spillWriteBuffer.clear();
+            spillReadBuffer.limit(0);
+            spillWritten = 0;
+            spillReadPosition = 0;
+            return false;
+        }
+    }
+
+    // hasSpilledReading() - whether spillReadBuffer holds the whole of the next spilled reading. Call holding spillLock
+    private boolean hasSpilledReading()
+    {
+        int available = spillReadBuffer.remaining();
+        return available >= 4 && available >= 4 + spillReadBuffer.getInt(spillReadBuffer.position());
+    }
+
+    // readSpill() - moves what is left in spillReadBuffer to its start and fills the rest from the spill file, in one read. Call holding spillLock
+    private void readSpill() throws IOException
+    {
+        if (spillReadPosition >= spillWritten) // what is left is still in the write buffer
+        {
+            writeSpill();
+        }
+        spillReadBuffer.compact(); // now ready to fill
+        int length = (int) Math.min(spillReadBuffer.remaining(), spillWritten - spillReadPosition);
+        spill.seek(spillReadPosition);
+        spill.readFully(spillReadBuffer.array(), spillReadBuffer.position(), length);
+        spillReadBuffer.position(spillReadBuffer.position() + length);
+        spillReadPosition += length;
+        spillReadBuffer.flip();
+        if (!hasSpilledReading())
+        {
+            throw new IOException("spill file ends inside a reading");
+        }
+    }
+
+    // writeSpill() - writes the spill write buffer to the end of the spill file. Call holding spillLock
+    private void writeSpill() throws IOException
+    {
+        if (spillWriteBuffer.position() == 0)
+        {
+            return;
+        }
+        spill.seek(spillWritten);
+        spill.write(spillWriteBuffer.array(), 0, spillWriteBuffer.position());
+        spillWritten += spillWriteBuffer.position();
+        spillWriteBuffer.clear();
+    }
+}
@@ -0,0 +1,298 @@
+package org.svvsd.droneteam.canary;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+////////////////////////////////////
+// Notes
+//
+// ReplaySerialLink stands in for an XBee, replaying a byte trace through the SerialLink interface, for load testing without a radio
+//   The trace is what the XBee sends - a capture of a real link (see loadTrace()), or one made up by SyntheticTrace
+//   bytesPerSecond is the trace's real time rate (baud / 10 for 8N1, so 960 for a 9600 baud capture), and setSpeed() replays it at a multiple of that
+//     (1 for real time, 10, 100, ...) or AS_FAST_AS_POSSIBLE, where each chunk is there as soon as the last one has been read
+//   Opening the link starts the replay from the beginning. The LinkConfig does not matter, there is no line to get wrong
+//
+// Chunks, jitter and corruption
+//   Bytes arrive in chunks of minChunk to maxChunk bytes, the way the USB serial chip hands them over, so frames get split across reads
+//   With jitter, each chunk arrives up to maxJitterMs late (but never before the one before it), so reads come in bursts
+//   With corruption, bytes get a bit flipped (flipRate) or go missing (dropRate), each rate per byte, like on a noisy radio link
+//   Everything random comes from a seeded Random (see setSeed()), so a replay goes the same way every time
+//
+// Constructor
+//   ReplaySerialLink(id, trace, bytesPerSecond)
+//
+// Public variables
+//   AS_FAST_AS_POSSIBLE - the speed for not waiting at all
+//
+// Public Methods
+//   SerialLink methods
+//   setSpeed(speed) - how many times real time to replay at, or AS_FAST_AS_POSSIBLE. Can be changed while replaying
+//   setChunking(minChunk, maxChunk) - the range of chunk sizes the bytes arrive in (default 1 to 64)
+//   setJitter(maxJitterMs) - how late each chunk can be (default 0)
+//   setCorruption(flipRate, dropRate) - the chance of each byte getting a bit flipped, and of it going missing (default 0)
+//   setRepeat(times) - how many times the trace is sent, 0 for over and over (default 1)
+//   setSeed(seed) - seeds the randomness, takes effect at the next open()
+//   isFinished() - whether the whole replay has been read
+//   getBytesRead(), getBytesCorrupted(), getBytesDropped() - since the link was opened
+//   loadTrace(File) - reads a captured trace, the raw bytes read from an XBee
+//
+///////////////////////////
+
+public class ReplaySerialLink implements SerialLink
+{
+    public static final double AS_FAST_AS_POSSIBLE = 0;
+
+    private final String sId;
+    private final byte[] trace;
+    private final int bytesPerSecond;
+    private double speed = 1;
+    private int minChunk = 1;
+    private int maxChunk = 64;
+    private long maxJitterNs = 0;
+    private double flipRate = 0;
+    private double dropRate = 0;
+    private int repeats = 1;
+    private long seed = 1;
+    private Random random = new Random(seed);
+
+    private volatile boolean bOpen = false;
+    private long total; // bytes in the whole replay, Long.MAX_VALUE for over and over
+    private long delivered = 0; // stream position up to which chunks have arrived
+    private long readPosition = 0; // stream position of the next byte to hand out
+    private int chunkLength = 0; // length of the next chunk to arrive, 0 when it is not picked yet
+    private long chunkDueNs; // when the next chunk arrives
+    private long lastDueNs; // when the last chunk arrived, chunks never arrive out of order
+    private long rateBaseNs; // the time and stream position the rate is counted from, moved when the speed changes
+    private long rateBasePosition;
+    private long nextFlip; // stream position of the next byte to corrupt
+    private long nextDrop; // stream position of the next byte to lose
+    private long bytesRead = 0;
+    private long bytesCorrupted = 0;
+    private long bytesDropped = 0;
+
+    public ReplaySerialLink(String sId, byte[] trace, int bytesPerSecond)
+    {
+        if (trace.length == 0)
+        {
+            throw new IllegalArgumentException("empty trace");
+        }
+        this.sId = sId;
+        this.trace = trace;
+        this.bytesPerSecond = Math.max(1, bytesPerSecond);
+    }
+
+    public synchronized void open(LinkConfig config) throws IOException
+    {
+        if (bOpen)
+        {
+            throw new IOException("link " + sId + " is already open");
+        }
+        random = new Random(seed);
+        total = repeats == 0 ? Long.MAX_VALUE : (long) trace.length * repeats;
+        delivered = 0;
+        readPosition = 0;
+        chunkLength = 0;
+        rateBaseNs = System.nanoTime();
+        rateBasePosition = 0;
+        lastDueNs = rateBaseNs;
+        nextFlip = nextEvent(-1, flipRate);
+        nextDrop = nextEvent(-1, dropRate);
+        bytesRead = 0;
+        bytesCorrupted = 0;
+        bytesDropped = 0;
+        bOpen = true;
+    }
+
+    public boolean isOpen()
+    {
+        return bOpen;
+    }
+
+    public synchronized int available() throws IOException
+    {
+        checkOpen();
+        deliver();
+        return (int) Math.min(Integer.MAX_VALUE, delivered - readPosition);
+    }
+
+    public synchronized int read(byte[] buffer, int offset, int length) throws IOException
+    {
+        checkOpen();
+        deliver();
+        long end = Math.min(delivered, readPosition + length);
+        int count = 0;
+        for (long position = readPosition; position < end; position++)
+        {
+            if (position == nextDrop)
+            {
+                nextDrop = nextEvent(position, dropRate);
+                bytesDropped++;
+                continue;
+            }
+            byte b = trace[(int) (position % trace.length)];
+            if (position == nextFlip)
+            {
+                b ^= 1 << random.nextInt(8);
+                nextFlip = nextEvent(position, flipRate);
+                bytesCorrupted++;
+            }
+            buffer[offset + count++] = b;
+        }
+        readPosition = end;
+        bytesRead += count;
+        return count;
+    }
+
+    public void close()
+    {
+        bOpen = false;
+    }
+
+    public String getId()
+    {
+        return sId;
+    }
+
+    // setSpeed(speed) - how many times real time to replay at, or AS_FAST_AS_POSSIBLE. Can be changed while replaying
+    public synchronized void setSpeed(double speed)
+    {
+        rateBaseNs = System.nanoTime();
+        rateBasePosition = delivered;
+        lastDueNs = rateBaseNs;
+        chunkLength = 0; // the next chunk gets picked again, due at the new speed
+        this.speed = Math.max(0, speed);
+    }
+
+    // setChunking(minChunk, maxChunk) - the range of chunk sizes the bytes arrive in (default 1 to 64)
+    public synchronized void setChunking(int minChunk, int maxChunk)
+    {
+        this.minChunk = Math.max(1, minChunk);
+        this.maxChunk = Math.max(this.minChunk, maxChunk);
+    }
+
+    // setJitter(maxJitterMs) - how late each chunk can be (default 0)
+    public synchronized void setJitter(long maxJitterMs)
+    {
+        maxJitterNs = Math.max(0, maxJitterMs) * 1000000L;
+    }
+
+    // setCorruption(flipRate, dropRate) - the chance of each byte getting a bit flipped, and of it going missing (default 0)
+    public synchronized void setCorruption(double flipRate, double dropRate)
+    {
+        this.flipRate = Math.max(0, Math.min(1, flipRate));
+        this.dropRate = Math.max(0, Math.min(1, dropRate));
+        nextFlip = nextEvent(readPosition - 1, this.flipRate);
+        nextDrop = nextEvent(readPosition - 1, this.dropRate);
+    }
+
+    // setRepeat(times) - how many times the trace is sent, 0 for over and over (default 1)
+    public synchronized void setRepeat(int times)
+    {
+        repeats = Math.max(0, times);
+    }
+
+    // setSeed(seed) - seeds the randomness, takes effect at the next open()
+    public synchronized void setSeed(long seed)
+    {
+        this.seed = seed;
+    }
+
+    // isFinished() - whether the whole replay has been read
+    public synchronized boolean isFinished()
+    {
+        return bOpen && readPosition >= total;
+    }
+
+    public synchronized long getBytesRead()
+    {
+        return bytesRead;
+    }
+
+    public synchronized long getBytesCorrupted()
+    {
+        return bytesCorrupted;
+    }
+
+    public synchronized long getBytesDropped()
+    {
+        return bytesDropped;
+    }
+
+    // loadTrace(File) - reads a captured trace, the raw bytes read from an XBee
+    public static byte[] loadTrace(File file) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream((int) Math.min(Integer.MAX_VALUE, file.length()));
+        InputStream in = new FileInputStream(file);
+        try
+        {
+            byte[] buffer = new byte[8192];
+            int iLength;
+            while ((iLength = in.read(buffer)) > 0)
+            {
+                bytes.write(buffer, 0, iLength);
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+        return bytes.toByteArray();
+    }
+
+    // deliver() - lets the chunks that are due by now arrive. As fast as possible, the next chunk arrives once the last one has been read
+    private void deliver()
+    {
+        long now = System.nanoTime();
+        while (delivered < total)
+        {
+            if (chunkLength == 0) // pick the next chunk
+            {
+                chunkLength = (int) Math.min(total - delivered, minChunk + random.nextInt(maxChunk - minChunk + 1));
+                if (speed > 0)
+                {
+                    long dueNs = rateBaseNs + (long) ((delivered + chunkLength - rateBasePosition) * 1e9 / (bytesPerSecond * speed));
+                    if (maxJitterNs > 0)
+                    {
+                        dueNs += (long) (random.nextDouble() * maxJitterNs);
+                    }
+                    chunkDueNs = Math.max(dueNs, lastDueNs);
+                    lastDueNs = chunkDueNs;
+                }
+            }
+            if (speed > 0 ? now < chunkDueNs : readPosition < delivered)
+            {
+                break;
+            }
+            delivered += chunkLength;
+            chunkLength = 0;
+        }
+    }
+
+    // nextEvent(position, rate) - the stream position after position where the next event of a per byte rate happens, Long.MAX_VALUE for never
+    private long nextEvent(long position, double rate)
+    {
+        if (rate <= 0)
+        {
+            return Long.MAX_VALUE;
+        }
+        if (rate >= 1)
+        {
+            return position + 1;
+        }
+        // the gap between events of a per byte chance is geometric, so only the events cost a random number, not every byte
+        return position + 1 + (long) (Math.log(1 - random.nextDouble()) / Math.log(1 - rate));
+    }
+
+    // checkOpen() - throws if the link is not open, the way a closed USB connection does
+    private void checkOpen() throws IOException
+    {
+        if (!bOpen)
+        {
+            throw new IOException("link " + sId + " is not open");
+        }
+    }
+}
@@ -0,0 +1,257 @@
+package org.svvsd.droneteam.canary;
+
+////////////////////////////////////
+// Notes
+//
+// SensorFrameParser turns one XBee sensor frame into Reading fields, in a single pass over the frame bytes
+//   No regular expressions, no substrings and no allocation - numbers are built up digit by digit as the bytes go by
+//   Not thread safe (it keeps scratch space for the current field), so use one parser per thread
+//
+// Frame format
+//   |1,temperature,pressure,humidity|2,CO,H2,NH4,CH4,O3|3,lidar|4,latitude,longitude,altitude|
+//   Sensor groups are separated by one or more |, fields by commas, and the first field is the sensor ID
+//   Any number of groups can come in any order. Groups with an unknown sensor ID are skipped, a later group with the same ID wins
+//   Anything but digits, |, . and , is ignored (the same as the old replaceAll("[^0-9|.,]", "")), so minus signs are dropped too
+//   A GPS group with no values means no GPS lock (see Reading)
+//   Gives exactly the values Float.parseFloat() / Integer.parseInt() would on the same fields
+//
+// Public Methods
+//   parse(byte[], offset, length, Reading) - fills in the reading's sensor groups and flags from the frame. Returns false if a group is missing or has bad values
+//
+///////////////////////////
+
+public class SensorFrameParser
+{
+    private static final int MAX_FIELDS = 6; // sensor ID plus the most values any group has (GAS)
+    private static final long MAX_EXACT_FLOAT = 1 << 24; // integers below this are exact as floats
+    private static final float[] FLOAT_POW10 = {1f, 1e1f, 1e2f, 1e3f, 1e4f, 1e5f, 1e6f, 1e7f, 1e8f, 1e9f, 1e10f}; // all exact as floats
+
+    // values of the fields of the current group, by field index
+    private final boolean[] fieldIntOk = new boolean[MAX_FIELDS];
+    private final int[] fieldInt = new int[MAX_FIELDS];
+    private final boolean[] fieldFloatOk = new boolean[MAX_FIELDS];
+    private final float[] fieldFloat = new float[MAX_FIELDS];
+    private int fieldCount; // index of the last non-empty field + 1, the way String.split() drops trailing empty fields
+    private int sensorId; // sensor ID of the current group, 0 if it is not one we know
+
+    // the field being built up
+    private int fieldIndex;
+    private int digits;
+    private int dots;
+    private int fractionDigits;
+    private long mantissa;
+    private boolean bOverflow;
+    private final char[] fieldChars = new char[64]; // the field's characters, only used to parse floats too long for the fast path
+    private int fieldLength;
+
+    // parse(byte[], offset, length, Reading) - fills in the reading's sensor groups and flags from the frame. Returns false if a group is missing or has bad values
+    public boolean parse(byte[] frame, int offset, int length, Reading reading)
+    {
+        reading.flags = 0;
+        startGroup();
+        int end = offset + length;
+        for (int i = offset; i < end; i++)
+        {
+            byte b = frame[i];
+            if (b >= '0' && b <= '9')
+            {
+                int digit = b - '0';
+                if (mantissa > (Long.MAX_VALUE - digit) / 10)
+                {
+                    bOverflow = true;
+                }
+                else
+                {
+                    mantissa = mantissa * 10 + digit;
+                }
+                digits++;
+                if (dots > 0)
+                {
+                    fractionDigits++;
+                }
+                addFieldChar((char) b);
+            }
+            else if (b == '.')
+            {
+                dots++;
+                addFieldChar('.');
+            }
+            else if (b == ',')
+            {
+                endField();
+            }
+            else if (b == '|')
+            {
+                if (!endGroup(reading))
+                {
+                    return false;
+                }
+                startGroup();
+            }
+            // anything else is noise and skipped
+        }
+        return endGroup(reading);
+    }
+
+    private void startGroup()
+    {
+        fieldIndex = 0;
+        fieldCount = 0;
+        sensorId = 0;
+        startField();
+    }
+
+    private void startField()
+    {
+        digits = 0;
+        dots = 0;
+        fractionDigits = 0;
+        mantissa = 0;
+        bOverflow = false;
+        fieldLength = 0;
+    }
+
+    private void addFieldChar(char c)
+    {
+        if (fieldLength < fieldChars.length)
+        {
+            fieldChars[fieldLength] = c;
+        }
+        fieldLength++;
+    }
+
+    // endField() - works out the int and float value of the field just finished, if it has them
+    private void endField()
+    {
+        if (fieldIndex < MAX_FIELDS)
+        {
+            fieldIntOk[fieldIndex] = digits > 0 && dots == 0 && !bOverflow && mantissa <= Integer.MAX_VALUE;
+            fieldInt[fieldIndex] = (int) mantissa;
+            fieldFloatOk[fieldIndex] = digits > 0 && dots <= 1;
+            if (fieldFloatOk[fieldIndex])
+            {
+                if (!bOverflow && mantissa < MAX_EXACT_FLOAT && fractionDigits < FLOAT_POW10.length)
+                {
+                    // both exact, so the one rounding of the divide matches Float.parseFloat()
+                    fieldFloat[fieldIndex] = (float) mantissa / FLOAT_POW10[fractionDigits];
+                }
+                else if (fieldLength <= fieldChars.length)
+                {
+                    fieldFloat[fieldIndex] = Float.parseFloat(new String(fieldChars, 0, fieldLength));
+                }
+                else
+                {
+                    fieldFloatOk[fieldIndex] = false;
+                }
+            }
+            if (fieldLength > 0)
+            {
+                fieldCount = fieldIndex + 1;
+            }
+            if (fieldIndex == 0 && fieldLength == 1 && fieldChars[0] >= '1' && fieldChars[0] <= '4')
+            {
+                sensorId = fieldChars[0] - '0';
+            }
+        }
+        fieldIndex++;
+        startField();
+    }
+
+    // endGroup(Reading) - puts the values of the group just finished into the reading. Returns false if the group is missing or has bad values
+    private boolean endGroup(Reading reading)
+    {
+        endField();
+        if (sensorId == 0) // empty or unknown group, skip it
+        {
+            return true;
+        }
+        switch (sensorId)
+        {
+            case 1:
+                if (!hasFloats(1, 1) || !hasInts(2, 3))
+                {
+                    return false;
+                }
+                reading.temperature = fieldFloat[1];
+                reading.pressure = fieldInt[2];
+                reading.humidity = fieldInt[3];
+                reading.flags |= Reading.ATMOSPHERE;
+                return true;
+            case 2:
+                if (!hasInts(1, 5))
+                {
+                    return false;
+                }
+                reading.co = fieldInt[1];
+                reading.h2 = fieldInt[2];
+                reading.nh4 = fieldInt[3];
+                reading.ch4 = fieldInt[4];
+                reading.o3 = fieldInt[5];
+                reading.flags |= Reading.GAS;
+                return true;
+            case 3:
+                if (!hasInts(1, 1))
+                {
+                    return false;
+                }
+                reading.lidar = fieldInt[1];
+                reading.flags |= Reading.LIDAR;
+                return true;
+            default: // 4
+                if (fieldCount > 1)
+                {
+                    if (!hasFloats(1, 3))
+                    {
+                        return false;
+                    }
+                    reading.latitude = fieldFloat[1];
+                    reading.longitude = fieldFloat[2];
+                    reading.altitude = fieldFloat[3];
+                    reading.gpsFix = true;
+                }
+                else // no GPS lock
+                {
+                    reading.latitude = -1;
+                    reading.longitude = -1;
+                    reading.altitude = -1;
+                    reading.gpsFix = false;
+                }
+                reading.flags |= Reading.GPS;
+                return true;
+        }
+    }
+
+    // hasInts(first, last) - whether fields first to last all exist and are ints
+    private boolean hasInts(int first, int last)
+    {
+        if (last >= fieldCount)
+        {
+            return false;
+        }
+        for (int i = first; i <= last; i++)
+        {
+            if (!fieldIntOk[i])
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // hasFloats(first, last) - whether fields first to last all exist and are floats
+    private boolean hasFloats(int first, int last)
+    {
+        if (last >= fieldCount)
+        {
+            return false;
+        }
+        for (int i = first; i <= last; i++)
+        {
+            if (!fieldFloatOk[i])
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,220 @@
+package org.svvsd.droneteam.canary;
+
+////////////////////////////////////
+// Notes
+//
+// SensorPayloadCodec turns the binary sensor payload of an XBee API mode frame into Reading fields, and back
+//   It is the API mode counterpart of SensorFrameParser - the values come as numbers, so there is no text to parse, and nothing is allocated
+//   encode() is for whatever sends the payloads (the drone, a replay, the benchmarks), decode() is for Receiver
+//
+// Payload format
+//   Any number of sensor groups in any order: sensor ID (1 byte), group length (1 byte), then the group's values
+//   1 ATMOSPHERE - temperature (float), pressure, humidity
+//   2 GAS - CO, H2, NH4, CH4, O3
+//   3 LIDAR - lidar
+//   4 GPS - latitude, longitude, altitude (floats), or no values at all for no GPS lock
+//   Floats are 4 byte IEEE 754, most significant byte first. Whole numbers are zigzag varints (like protocol buffers sint32), so small sensor
+//   values take 1 or 2 bytes and negative ones work too
+//   Groups with an unknown sensor ID are skipped using their length, a later group with the same ID wins, the same as SensorFrameParser
+//   A full reading is about 40 bytes, against about 65 characters as text
+//
+// Public Methods
+//   decode(byte[], offset, length, Reading) - fills in the reading's sensor groups and flags from the payload. Returns false if a group is cut short or has bad values
+//   encode(Reading, byte[], offset) - writes the sensor groups the reading has, returning the payload length. MAX_PAYLOAD bytes is always enough
+//
+///////////////////////////
+
+public class SensorPayloadCodec
+{
+    public static final int MAX_PAYLOAD = 4 * 2 + 4 * 4 + 8 * 5; // group headers, floats and varints of a full reading
+
+    private static final int SENSOR_ATMOSPHERE = 1;
+    private static final int SENSOR_GAS = 2;
+    private static final int SENSOR_LIDAR = 3;
+    private static final int SENSOR_GPS = 4;
+
+    private int position; // next byte to read or write
+    private int limit; // end of the group being read
+
+    // decode(byte[], offset, length, Reading) - fills in the reading's sensor groups and flags from the payload. Returns false if a group is cut short or has bad values
+    public boolean decode(byte[] payload, int offset, int length, Reading reading)
+    {
+        reading.flags = 0;
+        int end = offset + length;
+        position = offset;
+        while (position < end)
+        {
+            if (end - position < 2)
+            {
+                return false;
+            }
+            int sensorId = payload[position] & 0xFF;
+            limit = position + 2 + (payload[position + 1] & 0xFF);
+            position += 2;
+            if (limit > end)
+            {
+                return false;
+            }
+            switch (sensorId)
+            {
+                case SENSOR_ATMOSPHERE:
+                    reading.temperature = readFloat(payload);
+                    reading.pressure = readInt(payload);
+                    reading.humidity = readInt(payload);
+                    reading.flags |= Reading.ATMOSPHERE;
+                    break;
+                case SENSOR_GAS:
+                    reading.co = readInt(payload);
+                    reading.h2 = readInt(payload);
+                    reading.nh4 = readInt(payload);
+                    reading.ch4 = readInt(payload);
+                    reading.o3 = readInt(payload);
+                    reading.flags |= Reading.GAS;
+                    break;
+                case SENSOR_LIDAR:
+                    reading.lidar = readInt(payload);
+                    reading.flags |= Reading.LIDAR;
+                    break;
+                case SENSOR_GPS:
+                    if (position == limit) // no GPS lock
+                    {
+                        reading.latitude = -1;
+                        reading.longitude = -1;
+                        reading.altitude = -1;
+                        reading.gpsFix = false;
+                    }
+                    else
+                    {
+                        reading.latitude = readFloat(payload);
+                        reading.longitude = readFloat(payload);
+                        reading.altitude = readFloat(payload);
+                        reading.gpsFix = true;
+                    }
+                    reading.flags |= Reading.GPS;
+                    break;
+                default: // not a sensor we know, skip it
+                    position = limit;
+                    break;
+            }
+            if (position != limit) // values ran past the group, or the group has more than we know about
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // encode(Reading, byte[], offset) - writes the sensor groups the reading has, returning the payload length. MAX_PAYLOAD bytes is always enough
+    public int encode(Reading reading, byte[] payload, int offset)
+    {
+        position = offset;
+        if (reading.has(Reading.ATMOSPHERE))
+        {
+            int start = startGroup(payload, SENSOR_ATMOSPHERE);
+            writeFloat(payload, reading.temperature);
+            writeInt(payload, reading.pressure);
+            writeInt(payload, reading.humidity);
+            endGroup(payload, start);
+        }
+        if (reading.has(Reading.GAS))
+        {
+            int start = startGroup(payload, SENSOR_GAS);
+            writeInt(payload, reading.co);
+            writeInt(payload, reading.h2);
+            writeInt(payload, reading.nh4);
+            writeInt(payload, reading.ch4);
+            writeInt(payload, reading.o3);
+            endGroup(payload, start);
+        }
+        if (reading.has(Reading.LIDAR))
+        {
+            int start = startGroup(payload, SENSOR_LIDAR);
+            writeInt(payload, reading.lidar);
+            endGroup(payload, start);
+        }
+        if (reading.has(Reading.GPS))
+        {
+            int start = startGroup(payload, SENSOR_GPS);
+            if (reading.gpsFix)
+            {
+                writeFloat(payload, reading.latitude);
+                writeFloat(payload, reading.longitude);
+                writeFloat(payload, reading.altitude);
+            }
+            endGroup(payload, start);
+        }
+        return position - offset;
+    }
+
+    // readInt(byte[]) - reads a zigzag varint. Past the end of the group it gives 0 and leaves position past limit, so decode() fails the group
+    private int readInt(byte[] payload)
+    {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7)
+        {
+            if (position >= limit)
+            {
+                position = limit + 1;
+                return 0;
+            }
+            int b = payload[position++];
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+            {
+                return (value >>> 1) ^ -(value & 1);
+            }
+        }
+        position = limit + 1; // more than 5 bytes is not an int
+        return 0;
+    }
+
+    // readFloat(byte[]) - reads a 4 byte float. Past the end of the group it gives 0 and leaves position past limit, so decode() fails the group
+    private float readFloat(byte[] payload)
+    {
+        if (limit - position < 4)
+        {
+            position = limit + 1;
+            return 0;
+        }
+        int bits = (payload[position] & 0xFF) << 24 | (payload[position + 1] & 0xFF) << 16 | (payload[position + 2] & 0xFF) << 8 | (payload[position + 3] & 0xFF);
+        position += 4;
+        return Float.intBitsToFloat(bits);
+    }
+
+    // startGroup(byte[], sensorId) - writes the group header with a length to be filled in by endGroup(), returning where the group starts
+    private int startGroup(byte[] payload, int sensorId)
+    {
+        int start = position;
+        payload[position] = (byte) sensorId;
+        position += 2;
+        return start;
+    }
+
+    // endGroup(byte[], start) - fills in the length of the group started at start
+    private void endGroup(byte[] payload, int start)
+    {
+        payload[start + 1] = (byte) (position - start - 2);
+    }
+
+    // writeInt(byte[], value) - writes a zigzag varint
+    private void writeInt(byte[] payload, int value)
+    {
+        int zigzag = (value << 1) ^ (value >> 31);
+        while ((zigzag & ~0x7F) != 0)
+        {
+            payload[position++] = (byte) ((zigzag & 0x7F) | 0x80);
+            zigzag >>>= 7;
+        }
+        payload[position++] = (byte) zigzag;
+    }
+
+    // writeFloat(byte[], value) - writes a 4 byte float
+    private void writeFloat(byte[] payload, float value)
+    {
+        int bits = Float.floatToIntBits(value);
+        payload[position++] = (byte) (bits >>> 24);
+        payload[position++] = (byte) (bits >>> 16);
+        payload[position++] = (byte) (bits >>> 8);
+        payload[position++] = (byte) bits;
+    }
+}
@@ -0,0 +1,35 @@
+package org.svvsd.droneteam.canary;
+
+import java.io.IOException;
+
+////////////////////////////////////
+// Notes
+//
+// SerialLink is one serial connection to an XBee, for Receiver and LinkProber. The app's AndroidSerialLink is the real one (USB),
+//   ReplaySerialLink replays a trace for load testing without a radio, and the tests' FakeSerialLink simulates one at a line rate for LinkProber
+//   Only one thread uses a link at a time, except close(), which may come from another thread to stop a read
+//
+// Public Methods
+//   open(LinkConfig) - opens the link with the baud rate of the config
+//   isOpen() - whether the link is open
+//   available() - how many bytes can be read without waiting
+//   read(byte[], offset, length) - reads up to length bytes that are available, returning how many. Only call when available() says there are some
+//   close() - closes the link. Does nothing if it is not open
+//   getId() - what the device is, the same every time it is plugged in, for keeping its LinkConfig (see LinkSettings)
+//
+///////////////////////////
+
+public interface SerialLink
+{
+    void open(LinkConfig config) throws IOException;
+
+    boolean isOpen();
+
+    int available() throws IOException;
+
+    int read(byte[] buffer, int offset, int length) throws IOException;
+
+    void close();
+
+    String getId();
+}
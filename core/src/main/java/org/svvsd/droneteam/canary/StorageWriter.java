@@ -0,0 +1,424 @@
+package org.svvsd.droneteam.canary;
+
+import java.io.File;
+import java.io.IOException;
+
+////////////////////////////////////
+// Notes
+//
+// StorageWriter is Recorder's storage path up to the database - the storage queue, the capture log, and the ingest loop that commits what is logged in batches
+//   What a commit does is up to the CommitSink. Recorder's inserts the rows into SQLite, the soak benchmark's keeps them in memory, so both run the same path
+//
+// Writing data
+//   recordData() only puts a copy of the reading on the storage queue (see ReadingQueue), a bounded lock free ring, so it never waits on storage.
+//   If storage falls behind and the queue fills, the overflow policy decides what happens (see setOverflowPolicy()), by default readings spill to a file
+//   An append thread takes readings off the queue and appends them to the capture log (see CaptureLog), tagged with the current tag (see setTag()).
+//   That never waits on the database, and the data survives the app being killed from that moment on. flush() also forces the log to the disk,
+//   so what was recorded before a flush() survives a power loss too (and full segments always do, see CaptureLog)
+//   A reading the capture log could not take (out of storage) is lost, and counted as dropped
+//   An ingest thread reads the capture log and hands the sink batches to commit. A batch goes when it has maxBatchRows rows, when its oldest row
+//   has waited maxBatchDelayMs, or right away for flush(). The sink saves the capture log place it is given in the same transaction as the batch,
+//   and start() picks up from the saved place, so after a crash every logged row is committed exactly once. If a commit fails, the rows are read
+//   from the log again and retried. Capture log segments the ingest thread is done with are recycled
+//   flush() waits for the rows and sink things queued in this process. Rows replayed from before a crash are committed too, but not counted,
+//   so they never make a flush() return before the rows it is waiting for are in
+//   The sink can have things of its own to commit (Recorder's summaries). They go with the next batch, or on their own when no rows are coming
+//
+// Metrics (see Metrics)
+//   recorder.appendNs - how long adding a reading to the capture log took, recorder.commitUs - how long each commit took
+//   recorder.batchRows - rows per batch, recorder.commitFailures - commits that failed and will be retried
+//   recorder.queueDepth - rows and sink things logged but not committed yet
+//   recorder.storageQueueDepth, recorder.storageHighWater - readings on the storage queue (spilled ones included), and the most ever in its ring at once
+//   recorder.storageDropped, recorder.storageSpilled - readings the storage queue threw away or the capture log could not take, and readings written to the spill file
+//
+// Constructor
+//   StorageWriter(directory, name, CommitSink) - the capture log and spill file go in the directory, the threads are named after name
+//
+// Public Methods
+//   start(segment, offset) - starts the append and ingest threads, committing from that capture log place (where the sink's last commit left off)
+//   recordData(Reading) - queues a copy of the reading to be logged and committed. The reading can be reused as soon as this returns
+//   setTag(tag) - what readings appended from now on are tagged with (Recorder's session), handed to the sink with each row
+//   setOverflowPolicy(policy) - what recordData() does when the storage queue is full, ReadingQueue.SPILL (default), ReadingQueue.BLOCK or ReadingQueue.DROP_OLDEST
+//   setMaxUnflushed(maxBatchRows, maxBatchDelayMs) - sets how many rows, or how many milliseconds of data, can be waiting to be committed
+//   addPending(count) - counts things of the sink's own waiting to be committed, so flush() waits for them too
+//   awaitAppended(deadline) - waits (up to the deadline, a System.currentTimeMillis() time) until everything on the storage queue now is in the capture log
+//   flush(deadline) - forces the capture log to the disk, and waits (up to the deadline) until everything queued now is committed, returning false if it did not make it
+//   close() - stops the append and ingest threads
+//   getQueue() - the storage queue, for its counts
+//
+///////////////////////////
+
+public class StorageWriter
+{
+    private static final int STORAGE_QUEUE_SIZE = 4096; // readings the storage queue holds before its overflow policy kicks in
+    private static final int DEFAULT_MAX_BATCH_ROWS = 200; // default for most rows committed at once
+    private static final long DEFAULT_MAX_BATCH_DELAY_MS = 250; // default for longest a queued row waits to be committed
+    private static final long APPEND_IDLE_MS = 1000; // longest the append thread waits for new data before checking again
+    private static final long INGEST_IDLE_MS = 1000; // longest the ingest thread waits for new data before checking again
+    private static final long INGEST_RETRY_MS = 1000; // how long the ingest thread waits before retrying a failed commit
+    private static final CanaryLog.Subsystem LOG = CanaryLog.subsystem("recorder");
+
+    // CommitSink - where the ingest thread commits batches. Called on the ingest thread only
+    public interface CommitSink
+    {
+        // commit(batch, tags, size, segment, offset) - commits the size rows of the batch (tags holds each one's tag) and any things of its own,
+        //   saving the capture log place segment, offset with them, all or nothing. Returns how many of its own things went in, or -1 if nothing did
+        int commit(Reading[] batch, long[] tags, int size, long segment, int offset);
+
+        // hasPending() - whether the sink has things of its own waiting, so they can be committed without rows
+        boolean hasPending();
+    }
+
+    private final CommitSink sink;
+    private final CaptureLog captureLog;
+    private final ReadingQueue storageQueue;
+    private final Thread appendThread;
+    private final Thread ingestThread;
+    private volatile long tag = 0;
+    private volatile int maxBatchRows = DEFAULT_MAX_BATCH_ROWS;
+    private volatile long maxBatchDelayMs = DEFAULT_MAX_BATCH_DELAY_MS;
+    private volatile long appendFailures = 0; // readings the capture log could not take, append thread only writes it
+    private volatile long appendedThrough = 0; // storage queue getRemoved() count every reading up to which is appended (or dropped)
+    private volatile boolean bFlushRequested = false; // makes the ingest thread commit what it has right away
+    private final Object flushLock = new Object(); // for flush() to wait on the ingest thread
+    private long queuedCount = 0; // how many rows and sink things have been queued (guarded by flushLock)
+    private long committedCount = 0; // how many of them have been committed, not counting replayed rows (guarded by flushLock)
+    private final Metrics.Histogram appendLatency = Metrics.histogram("recorder.appendNs");
+    private final Metrics.Histogram commitLatency = Metrics.histogram("recorder.commitUs");
+    private final Metrics.Histogram batchRows = Metrics.histogram("recorder.batchRows");
+    private final Metrics.Counter commitFailures = Metrics.counter("recorder.commitFailures");
+
+    public StorageWriter(File directory, String sName, CommitSink sink) throws IOException
+    {
+        this.sink = sink;
+        captureLog = new CaptureLog(new File(directory, "capture"), CaptureLog.DEFAULT_SEGMENT_SIZE);
+        storageQueue = new ReadingQueue(STORAGE_QUEUE_SIZE, ReadingQueue.SPILL, new File(directory, "capture-spill"));
+        appendThread = new AppendThread(sName + " Append");
+        ingestThread = new IngestThread(sName + " Ingest");
+        Metrics.gauge("recorder.queueDepth", new Metrics.Gauge()
+        {
+            public long get()
+            {
+                synchronized (flushLock)
+                {
+                    return Math.max(0, queuedCount - committedCount); // a row can be committed just before its append is counted
+                }
+            }
+        });
+        Metrics.gauge("recorder.storageQueueDepth", new Metrics.Gauge()
+        {
+            public long get()
+            {
+                return storageQueue.size();
+            }
+        });
+        Metrics.gauge("recorder.storageHighWater", new Metrics.Gauge()
+        {
+            public long get()
+            {
+                return storageQueue.getHighWater();
+            }
+        });
+        Metrics.gauge("recorder.storageDropped", new Metrics.Gauge()
+        {
+            public long get()
+            {
+                return storageQueue.getDropped() + appendFailures;
+            }
+        });
+        Metrics.gauge("recorder.storageSpilled", new Metrics.Gauge()
+        {
+            public long get()
+            {
+                return storageQueue.getSpilled();
+            }
+        });
+    }
+
+    // start(segment, offset) - starts the append and ingest threads, committing from that capture log place (where the sink's last commit left off)
+    public void start(long segment, int offset)
+    {
+        captureLog.seek(segment, offset); // replays anything logged but not committed before a crash
+        appendThread.setDaemon(true);
+        appendThread.start();
+        ingestThread.setDaemon(true);
+        ingestThread.start();
+    }
+
+    // recordData(Reading) - queues a copy of the reading to be logged and committed. The reading can be reused as soon as this returns
+    public void recordData(Reading reading)
+    {
+        storageQueue.offer(reading); // counts anything it has to drop
+    }
+
+    // setTag(tag) - what readings appended from now on are tagged with, handed to the sink with each row
+    public void setTag(long tag)
+    {
+        this.tag = tag;
+    }
+
+    // setOverflowPolicy(policy) - what recordData() does when the storage queue is full, see ReadingQueue
+    public void setOverflowPolicy(int policy)
+    {
+        storageQueue.setPolicy(policy);
+    }
+
+    // setMaxUnflushed(maxBatchRows, maxBatchDelayMs) - sets how many rows, or how many milliseconds of data, can be waiting to be committed
+    public void setMaxUnflushed(int maxBatchRows, long maxBatchDelayMs)
+    {
+        this.maxBatchRows = Math.max(1, maxBatchRows);
+        this.maxBatchDelayMs = Math.max(0, maxBatchDelayMs);
+    }
+
+    // addPending(count) - counts things of the sink's own waiting to be committed, so flush() waits for them too
+    public void addPending(int count)
+    {
+        synchronized (flushLock)
+        {
+            queuedCount += count;
+        }
+    }
+
+    // awaitAppended(deadline) - waits (up to the deadline) until everything on the storage queue now is in the capture log, so it has the current tag
+    public void awaitAppended(long deadline)
+    {
+        long target = storageQueue.getRemoved() + storageQueue.size();
+        try
+        {
+            while (appendedThrough < target && System.currentTimeMillis() < deadline)
+            {
+                Thread.sleep(1);
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // flush(deadline) - forces the capture log to the disk, and waits (up to the deadline) until everything queued now is committed, returning false if it did not make it
+    public boolean flush(long deadline)
+    {
+        awaitAppended(deadline);
+        captureLog.sync(); // survives a power loss from here on, whatever the database does
+        long target;
+        synchronized (flushLock)
+        {
+            target = queuedCount;
+            if (committedCount >= target)
+            {
+                return true;
+            }
+        }
+        bFlushRequested = true;
+        captureLog.wakeUp();
+        boolean bFlushed;
+        synchronized (flushLock)
+        {
+            long wait;
+            while (committedCount < target && (wait = deadline - System.currentTimeMillis()) > 0)
+            {
+                try
+                {
+                    flushLock.wait(wait);
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            bFlushed = committedCount >= target;
+        }
+        bFlushRequested = false;
+        return bFlushed;
+    }
+
+    // close() - stops the append and ingest threads
+    public void close() throws InterruptedException
+    {
+        appendThread.interrupt();
+        ingestThread.interrupt();
+        appendThread.join();
+        ingestThread.join();
+    }
+
+    // getQueue() - the storage queue, for its counts
+    public ReadingQueue getQueue()
+    {
+        return storageQueue;
+    }
+
+    // AppendThread - takes readings off the storage queue and appends them to the capture log, so storage never holds up recordData()
+    private class AppendThread extends Thread
+    {
+        private final Reading reading = new Reading(); // reused for every reading taken off the queue
+
+        AppendThread(String sName)
+        {
+            super(sName);
+        }
+
+        @Override
+        public void run()
+        {
+            while (!isInterrupted())
+            {
+                long removed = storageQueue.getRemoved(); // we are not holding any of these, so they are all appended or dropped
+                if (storageQueue.poll(reading))
+                {
+                    removed = storageQueue.getRemoved(); // now including this one
+                    append(reading);
+                    appendedThrough = removed;
+                    continue;
+                }
+                appendedThrough = removed;
+                storageQueue.awaitData(APPEND_IDLE_MS);
+            }
+        }
+
+        // append(Reading) - appends a reading taken off the storage queue to the capture log
+        private void append(Reading reading)
+        {
+            long startTime = System.nanoTime();
+            try
+            {
+                captureLog.append(reading, tag);
+            }
+            catch (IOException e) // out of storage
+            {
+                LOG.warn("recordData() unable to log data {}", e);
+                appendFailures++;
+                return;
+            }
+            appendLatency.record(System.nanoTime() - startTime);
+            synchronized (flushLock)
+            {
+                queuedCount++;
+            }
+        }
+    }
+
+    // IngestThread - reads data from the capture log and has the sink commit it in batches
+    private class IngestThread extends Thread
+    {
+        private Reading[] batch = new Reading[0]; // reused for every batch
+        private long[] tags = new long[0];
+        private int replayed = 0; // rows in the batch that were logged before the capture log was opened
+        private long committedSegment; // capture log place of the last commit, to go back to if a commit fails
+        private int committedOffset;
+
+        IngestThread(String sName)
+        {
+            super(sName);
+        }
+
+        @Override
+        public void run()
+        {
+            committedSegment = captureLog.getReadSegment();
+            committedOffset = captureLog.getReadOffset();
+            int size = 0;
+            long deadline = 0;
+            while (true)
+            {
+                try
+                {
+                    if (size < maxBatchRows)
+                    {
+                        if (size == batch.length)
+                        {
+                            growBatch();
+                        }
+                        if (captureLog.next(batch[size]))
+                        {
+                            tags[size] = captureLog.getTag();
+                            if (captureLog.isReplayed())
+                            {
+                                replayed++;
+                            }
+                            if (size == 0)
+                            {
+                                deadline = System.currentTimeMillis() + maxBatchDelayMs;
+                            }
+                            size++;
+                            continue;
+                        }
+                    }
+                    long wait = deadline - System.currentTimeMillis();
+                    // the sink's own things ride along with the next batch, or go on their own when there is no data coming
+                    if ((size > 0 && (size >= maxBatchRows || wait <= 0 || bFlushRequested)) || (size == 0 && sink.hasPending()))
+                    {
+                        if (!commit(size))
+                        {
+                            captureLog.seek(committedSegment, committedOffset); // the rows are still in the log, try them again
+                            Thread.sleep(INGEST_RETRY_MS);
+                        }
+                        size = 0;
+                        replayed = 0;
+                        continue;
+                    }
+                    captureLog.awaitData(size > 0 ? wait : INGEST_IDLE_MS);
+                }
+                catch (InterruptedException e)
+                {
+                    return;
+                }
+                catch (IOException e)
+                {
+                    LOG.warn("IngestThread run() unable to read the capture log {}", e);
+                    try
+                    {
+                        Thread.sleep(INGEST_RETRY_MS);
+                    }
+                    catch (InterruptedException ie)
+                    {
+                        return;
+                    }
+                }
+            }
+        }
+
+        // growBatch() - makes room for more rows in the batch, after maxBatchRows went up
+        private void growBatch()
+        {
+            int capacity = Math.max(maxBatchRows, batch.length * 2);
+            Reading[] grown = new Reading[capacity];
+            System.arraycopy(batch, 0, grown, 0, batch.length);
+            for (int i = batch.length; i < capacity; i++)
+            {
+                grown[i] = new Reading();
+            }
+            long[] grownTags = new long[capacity];
+            System.arraycopy(tags, 0, grownTags, 0, tags.length);
+            batch = grown;
+            tags = grownTags;
+        }
+
+        // commit(size) - has the sink commit the batch with our capture log place, and lets anyone waiting in flush() know
+        //   Returns false if the commit failed, in which case nothing was saved
+        private boolean commit(int size)
+        {
+            long segment = captureLog.getReadSegment();
+            int offset = captureLog.getReadOffset();
+            long startTime = System.nanoTime();
+            int others = sink.commit(batch, tags, size, segment, offset);
+            if (others < 0)
+            {
+                commitFailures.increment();
+                return false;
+            }
+            commitLatency.record((System.nanoTime() - startTime) / 1000);
+            batchRows.record(size);
+            committedSegment = segment;
+            committedOffset = offset;
+            captureLog.release(segment); // segments before this one are all committed now
+            synchronized (flushLock)
+            {
+                committedCount += size - replayed + others; // replayed rows were never counted as queued
+                flushLock.notifyAll();
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package org.svvsd.droneteam.canary;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Locale;
+import java.util.Random;
+
+////////////////////////////////////
+// Notes
+//
+// SyntheticTrace makes up what an XBee on a flying drone sends, for ReplaySerialLink when there is no capture to replay
+//   Readings wander around plausible values (a random walk from a seeded Random, so the same seed always makes the same trace),
+//   with all four sensor groups, and now and then a frame without a GPS lock
+//   transparent() sends them as sensor frame text (see SensorFrameParser), api() as RX 64 API frames with binary payloads (see ApiFrameAssembler
+//   and SensorPayloadCodec), like the drone's XBee would in each link mode
+//
+// Constructor
+//   SyntheticTrace(seed)
+//
+// Public Methods
+//   next(Reading) - fills in the next made up reading
+//   transparent(frames) - the next frames readings as a transparent mode trace, each frame ended with \r\n
+//   api(frames, bEscaped) - the next frames readings as an API mode trace, escaped for AP=2 when bEscaped
+//   apiFrame(frameData, length, bEscaped, ByteArrayOutputStream) - writes one API frame around its frame data, with the length and checksum
+//
+///////////////////////////
+
+public class SyntheticTrace
+{
+    private static final int NO_FIX_EVERY = 50; // one frame in this many has no GPS lock
+    private static final int RX_64_HEADER = 11; // frame type, 64 bit source address, RSSI and options, see ApiFrameAssembler.receivePayloadOffset()
+
+    private final Random random;
+    private final Reading reading = new Reading(); // the random walk, carried from one reading to the next
+    private final SensorPayloadCodec codec = new SensorPayloadCodec();
+    private long count = 0;
+
+    public SyntheticTrace(long seed)
+    {
+        random = new Random(seed);
+        reading.temperature = 24f;
+        reading.pressure = 840;
+        reading.humidity = 35;
+        reading.co = 12;
+        reading.h2 = 3;
+        reading.nh4 = 4;
+        reading.ch4 = 5;
+        reading.o3 = 6;
+        reading.lidar = 120;
+        reading.latitude = 40.1672f;
+        reading.longitude = 105.1019f; // positive, the frame text has no minus signs (see SensorFrameParser)
+        reading.altitude = 1600f;
+    }
+
+    // next(Reading) - fills in the next made up reading
+    public void next(Reading next)
+    {
+        reading.temperature = clamp(reading.temperature + (random.nextFloat() - 0.5f) * 0.2f, -10f, 45f);
+        reading.pressure = (int) clamp(reading.pressure + random.nextInt(3) - 1, 700, 1050);
+        reading.humidity = (int) clamp(reading.humidity + random.nextInt(3) - 1, 0, 100);
+        reading.co = (int) clamp(reading.co + random.nextInt(5) - 2, 0, 1000);
+        reading.h2 = (int) clamp(reading.h2 + random.nextInt(3) - 1, 0, 1000);
+        reading.nh4 = (int) clamp(reading.nh4 + random.nextInt(3) - 1, 0, 1000);
+        reading.ch4 = (int) clamp(reading.ch4 + random.nextInt(3) - 1, 0, 1000);
+        reading.o3 = (int) clamp(reading.o3 + random.nextInt(3) - 1, 0, 1000);
+        reading.lidar = (int) clamp(reading.lidar + random.nextInt(21) - 10, 0, 4000);
+        reading.latitude += (random.nextFloat() - 0.5f) * 0.0002f;
+        reading.longitude += (random.nextFloat() - 0.5f) * 0.0002f;
+        reading.altitude = clamp(reading.altitude + (random.nextFloat() - 0.5f) * 2f, 1500f, 2500f);
+        reading.gpsFix = count++ % NO_FIX_EVERY != NO_FIX_EVERY - 1;
+        next.copyFrom(reading);
+        next.flags = Reading.ATMOSPHERE | Reading.GAS | Reading.LIDAR | Reading.GPS;
+        if (!next.gpsFix)
+        {
+            next.latitude = -1;
+            next.longitude = -1;
+            next.altitude = -1;
+        }
+    }
+
+    // transparent(frames) - the next frames readings as a transparent mode trace, each frame ended with \r\n
+    public byte[] transparent(int frames)
+    {
+        Reading next = new Reading();
+        StringBuilder sb = new StringBuilder(frames * 80);
+        for (int i = 0; i < frames; i++)
+        {
+            next(next);
+            sb.append(String.format(Locale.US, "|1,%.2f,%d,%d|2,%d,%d,%d,%d,%d|3,%d|4", next.temperature, next.pressure, next.humidity,
+                    next.co, next.h2, next.nh4, next.ch4, next.o3, next.lidar));
+            if (next.gpsFix)
+            {
+                sb.append(String.format(Locale.US, ",%.6f,%.6f,%.1f", next.latitude, next.longitude, next.altitude));
+            }
+            sb.append("|\r\n");
+        }
+        byte[] trace = new byte[sb.length()];
+        for (int i = 0; i < trace.length; i++)
+        {
+            trace[i] = (byte) sb.charAt(i);
+        }
+        return trace;
+    }
+
+    // api(frames, bEscaped) - the next frames readings as an API mode trace, escaped for AP=2 when bEscaped
+    public byte[] api(int frames, boolean bEscaped)
+    {
+        Reading next = new Reading();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(frames * 48);
+        byte[] frameData = new byte[RX_64_HEADER + SensorPayloadCodec.MAX_PAYLOAD];
+        frameData[0] = (byte) ApiFrameAssembler.RX_64;
+        long address = 0x0013A20040A1B2C3L; // a drone's XBee
+        for (int i = 0; i < 8; i++)
+        {
+            frameData[1 + i] = (byte) (address >>> (56 - 8 * i));
+        }
+        frameData[10] = 0; // options
+        for (int i = 0; i < frames; i++)
+        {
+            next(next);
+            frameData[9] = (byte) (0x20 + random.nextInt(0x30)); // RSSI
+            int length = RX_64_HEADER + codec.encode(next, frameData, RX_64_HEADER);
+            apiFrame(frameData, length, bEscaped, out);
+        }
+        return out.toByteArray();
+    }
+
+    // apiFrame(frameData, length, bEscaped, ByteArrayOutputStream) - writes one API frame around its frame data, with the length and checksum
+    public static void apiFrame(byte[] frameData, int length, boolean bEscaped, ByteArrayOutputStream out)
+    {
+        out.write(ApiFrameAssembler.START_DELIMITER);
+        writeEscaped(out, length >> 8, bEscaped);
+        writeEscaped(out, length & 0xFF, bEscaped);
+        int sum = 0;
+        for (int i = 0; i < length; i++)
+        {
+            sum += frameData[i] & 0xFF;
+            writeEscaped(out, frameData[i] & 0xFF, bEscaped);
+        }
+        writeEscaped(out, 0xFF - (sum & 0xFF), bEscaped);
+    }
+
+    private static void writeEscaped(ByteArrayOutputStream out, int b, boolean bEscaped)
+    {
+        if (bEscaped && (b == ApiFrameAssembler.START_DELIMITER || b == ApiFrameAssembler.ESCAPE || b == 0x11 || b == 0x13))
+        {
+            out.write(ApiFrameAssembler.ESCAPE);
+            out.write(b ^ ApiFrameAssembler.ESCAPE_XOR);
+        }
+        else
+        {
+            out.write(b);
+        }
+    }
+
+    private static float clamp(float value, float min, float max)
+    {
+        return Math.max(min, Math.min(max, value));
+    }
+}
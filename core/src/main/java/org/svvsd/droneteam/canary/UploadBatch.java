@@ -0,0 +1,186 @@
+package org.svvsd.droneteam.canary;
+
+import java.net.URLEncoder;
+import java.util.ArrayList;
+
+////////////////////////////////////
+// Notes
+//
+// UploadBatch holds a batch of non-uploaded data rows, fetched from Recorder and sent by Uploader
+//   Values are kept as the database returns them as text, so what gets sent matches what the one row at a time upload sends
+//   dataId and uploaded are internal columns, they are kept separately and are never sent as values
+//
+// Sequences
+//   A row's dataId is also its sequence number - it only ever goes up, and is never reused on the device. The rows of an UploadStore are a stream
+//   (see UploadStore.getStream()), and a batch holds every row of its stream not uploaded yet, with a sequence from firstSequence through its last row's
+//   So the server can be told exactly which range a batch covers, acknowledge it by sequence, and the batch can be marked uploaded with one range update
+//
+// Public variables
+//   columns - the column names of the values, in order
+//   dataIds - the dataId of each row, used to mark the rows as uploaded. Also the rows' sequence numbers
+//   size - how many rows are in the batch
+//   stream - the name of the stream the rows are from, null if not known
+//   firstSequence - the start of the range of sequences the batch covers, 0 if not known
+//
+// Public Methods
+//   addRow(dataId, String[]) - adds a row, values in the same order as columns (null for no value)
+//   getValue(row, column) - gets the value of a column in a row (null for no value)
+//   truncate(size) - keeps only the first size rows, for when the server only accepted part of the batch
+//   tail(from) - a new batch with the rows from row from on, for resending what the server did not accept
+//   lastSequence() - the end of the range of sequences the batch covers, the last row's dataId
+//   countThrough(sequence) - how many rows, from the start of the batch, have a sequence at or below sequence
+//   withSequences(column) - a copy of the batch with each row's sequence as the first value, in a column named column, for sending
+//   appendQuery(row, StringBuilder) - appends a row as key=value&key=value, the way the one row at a time upload sends it
+//   encodeBody() - encodes all rows as a batch request body, one URL encoded key=value&key=value row per line
+//
+///////////////////////////
+
+public class UploadBatch
+{
+    public String[] columns; // the column names of the values, in order
+    public long[] dataIds; // the dataId of each row, used to mark the rows as uploaded
+    public int size = 0; // how many rows are in the batch
+    public String stream = null; // the stream the rows are from, null if not known
+    public long firstSequence = 0; // the batch holds every not uploaded row of the stream from this sequence through its last row's, 0 if not known
+
+    private ArrayList<String[]> rows;
+
+    public UploadBatch(String[] columns, int capacity)
+    {
+        this.columns = columns;
+        this.dataIds = new long[capacity];
+        this.rows = new ArrayList<String[]>(capacity);
+    }
+
+    // addRow(dataId, String[]) - adds a row, values in the same order as columns (null for no value)
+    public void addRow(long dataId, String[] values)
+    {
+        if (size == dataIds.length)
+        {
+            long[] grown = new long[Math.max(1, size * 2)];
+            System.arraycopy(dataIds, 0, grown, 0, size);
+            dataIds = grown;
+        }
+        dataIds[size] = dataId;
+        rows.add(values);
+        size++;
+    }
+
+    // getValue(row, column) - gets the value of a column in a row (null for no value)
+    public String getValue(int row, int column)
+    {
+        return rows.get(row)[column];
+    }
+
+    // truncate(size) - keeps only the first size rows, for when the server only accepted part of the batch
+    public void truncate(int newSize)
+    {
+        while (size > newSize)
+        {
+            size--;
+            rows.remove(size);
+        }
+    }
+
+    // tail(from) - a new batch with the rows from row from on, for resending what the server did not accept
+    public UploadBatch tail(int from)
+    {
+        UploadBatch tail = new UploadBatch(columns, Math.max(0, size - from));
+        for (int r = from; r < size; r++)
+        {
+            tail.addRow(dataIds[r], rows.get(r));
+        }
+        tail.stream = stream;
+        tail.firstSequence = from > 0 ? dataIds[from - 1] + 1 : firstSequence;
+        return tail;
+    }
+
+    // lastSequence() - the end of the range of sequences the batch covers, the last row's dataId
+    public long lastSequence()
+    {
+        return size > 0 ? dataIds[size - 1] : firstSequence - 1;
+    }
+
+    // countThrough(sequence) - how many rows, from the start of the batch, have a sequence at or below sequence
+    public int countThrough(long sequence)
+    {
+        int count = 0;
+        while (count < size && dataIds[count] <= sequence) // dataIds go up, so this is a prefix
+        {
+            count++;
+        }
+        return count;
+    }
+
+    // withSequences(column) - a copy of the batch with each row's sequence as the first value, in a column named column, for sending
+    public UploadBatch withSequences(String sColumn)
+    {
+        String[] sequenceColumns = new String[columns.length + 1];
+        sequenceColumns[0] = sColumn;
+        System.arraycopy(columns, 0, sequenceColumns, 1, columns.length);
+        UploadBatch copy = new UploadBatch(sequenceColumns, size);
+        for (int r = 0; r < size; r++)
+        {
+            String[] values = new String[sequenceColumns.length];
+            values[0] = Long.toString(dataIds[r]);
+            System.arraycopy(rows.get(r), 0, values, 1, columns.length);
+            copy.addRow(dataIds[r], values);
+        }
+        copy.stream = stream;
+        copy.firstSequence = firstSequence;
+        return copy;
+    }
+
+    // appendQuery(row, StringBuilder) - appends a row as key=value&key=value, the way the one row at a time upload sends it
+    public void appendQuery(int row, StringBuilder sb)
+    {
+        String[] values = rows.get(row);
+        boolean bFirst = true;
+        for (int c = 0; c < columns.length; c++)
+        {
+            String sValue = values[c];
+            if (sValue != null && sValue.length() > 0) // have some data value to send
+            {
+                if (!bFirst)
+                {
+                    sb.append('&');
+                }
+                sb.append(columns[c]).append('=').append(sValue);
+                bFirst = false;
+            }
+        }
+    }
+
+    // encodeBody() - encodes all rows as a batch request body, one URL encoded key=value&key=value row per line
+    public String encodeBody()
+    {
+        StringBuilder sb = new StringBuilder(size * 128);
+        try
+        {
+            for (int r = 0; r < size; r++)
+            {
+                String[] values = rows.get(r);
+                boolean bFirst = true;
+                for (int c = 0; c < columns.length; c++)
+                {
+                    String sValue = values[c];
+                    if (sValue != null && sValue.length() > 0)
+                    {
+                        if (!bFirst)
+                        {
+                            sb.append('&');
+                        }
+                        sb.append(URLEncoder.encode(columns[c], "UTF-8")).append('=').append(URLEncoder.encode(sValue, "UTF-8"));
+                        bFirst = false;
+                    }
+                }
+                sb.append('\n');
+            }
+        }
+        catch (java.io.UnsupportedEncodingException e) // UTF-8 is always supported
+        {
+            throw new IllegalStateException(e);
+        }
+        return sb.toString();
+    }
+}
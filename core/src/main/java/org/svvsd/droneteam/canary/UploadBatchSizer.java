@@ -0,0 +1,67 @@
+package org.svvsd.droneteam.canary;
+
+////////////////////////////////////
+// Notes
+//
+// UploadBatchSizer picks how many rows Uploader sends per batch request, adapting to how long requests take
+//   Fast requests grow the batch (doubling), slow or failed requests shrink it (halving), always between minSize and maxSize
+//   On a fast link batches quickly get big, on a slow cellular link they stay small enough that a request does not take forever
+//
+// Constructor
+//   UploadBatchSizer(minSize, maxSize, targetLatencyMs)
+//
+// Public Methods
+//   getBatchSize() - how many rows to send in the next batch
+//   onSuccess(latencyMs) - tells the sizer a batch went through, and how long it took
+//   onFailure() - tells the sizer a batch failed
+//   setLimits(minSize, maxSize, targetLatencyMs) - changes the limits, keeping the current size within them
+//
+///////////////////////////
+
+public class UploadBatchSizer
+{
+    private int minSize;
+    private int maxSize;
+    private long targetLatencyMs; // how long we would like a batch request to take
+    private int batchSize;
+
+    public UploadBatchSizer(int minSize, int maxSize, long targetLatencyMs)
+    {
+        setLimits(minSize, maxSize, targetLatencyMs);
+        batchSize = this.minSize;
+    }
+
+    // setLimits(minSize, maxSize, targetLatencyMs) - changes the limits, keeping the current size within them
+    public synchronized void setLimits(int minSize, int maxSize, long targetLatencyMs)
+    {
+        this.minSize = Math.max(1, minSize);
+        this.maxSize = Math.max(this.minSize, maxSize);
+        this.targetLatencyMs = targetLatencyMs;
+        batchSize = Math.min(this.maxSize, Math.max(this.minSize, batchSize));
+    }
+
+    // getBatchSize() - how many rows to send in the next batch
+    public synchronized int getBatchSize()
+    {
+        return batchSize;
+    }
+
+    // onSuccess(latencyMs) - tells the sizer a batch went through, and how long it took
+    public synchronized void onSuccess(long latencyMs)
+    {
+        if (latencyMs < targetLatencyMs / 2)
+        {
+            batchSize = Math.min(maxSize, batchSize * 2);
+        }
+        else if (latencyMs > targetLatencyMs)
+        {
+            batchSize = Math.max(minSize, batchSize / 2);
+        }
+    }
+
+    // onFailure() - tells the sizer a batch failed
+    public synchronized void onFailure()
+    {
+        batchSize = Math.max(minSize, batchSize / 2);
+    }
+}
@@ -0,0 +1,529 @@
+package org.svvsd.droneteam.canary;
+
+import java.io.IOException;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+////////////////////////////////////
+// Notes
+//
+// UploadEngine keeps uploading data from an UploadStore through an UploadTransport, with several requests in flight at once
+//   A dispatcher thread fetches batches and hands them to sender threads, never more than maxInFlight at a time
+//     Each fetch starts after the last row already handed out, so rows that are in flight are never fetched twice
+//   A sender keeps resending its batch until the server accepted all of it (resending only the rows it did not accept)
+//   Finished batches are marked uploaded strictly in the order they were fetched, so a late batch never gets marked ahead of an earlier one
+//     Batches still unfinished when the engine stops are not marked, and get fetched again next time it starts
+//   Each start() to stop() is a run of its own, with its own dispatcher, senders and marking order. stop() does not wait for requests on the wire,
+//     so after a quick stop() and start() the old run's senders can still be finishing. Once a new run has started they no longer mark anything,
+//     since the new run fetches those rows again - so no row is marked twice, or out of order. A dispatcher of a stopped run never fetches again
+//     maxInFlight counts the requests of every run, so a restart never puts more than that on the wire
+//   The batch size adjusts to how fast the server answers, using UploadBatchSizer
+//   When to fetch and when to resend is up to the UploadScheduler - backoff after failures, waiting for a network, and the upload policies
+//     Waits are for the scheduler's delay or until wakeUp(), so with the server down, no network, or nothing to upload, the engine just sleeps
+//     Call wakeUp() when new data is stored, the engine does not poll for it
+//
+// Resuming (see UploadBatch for sequences)
+//   Each batch is tagged with its store's stream and the range of sequences it covers, so the server can acknowledge it by sequence
+//   Before resending a batch, the sender asks the server how far it has the stream (UploadTransport.acknowledged()). When only the answer was lost,
+//     the rows it already has are taken as accepted and not sent again
+//   On start, the rows the server already has are marked uploaded right away, and uploading carries on after them
+//
+// Metrics (see Metrics)
+//   upload.requestUs - how long each request took, upload.batchRows - rows per request, upload.rows - rows marked uploaded
+//   upload.errors - requests that failed or were not accepted, upload.inFlight - requests waiting on the server right now
+//   upload.failureStreak - failed requests in a row, one per backoff (see UploadScheduler)
+//   upload.ackSkipped - rows not sent (again) because the server already had them
+//
+// Constructor
+//   UploadEngine(UploadStore, UploadTransport, UploadBatchSizer)
+//
+// Public Methods
+//   start() - starts uploading
+//   stop() - stops uploading. Requests already sent still get marked if the server accepts them, until start() is called again
+//   isRunning() - whether the engine is uploading
+//   setMaxInFlight(int) - how many requests can be in flight at once (default 1)
+//   setListener(UploadListener) - gets told about uploaded rows and errors, called from the sender threads
+//   setScheduler(UploadScheduler) - what decides when to fetch and resend (default a plain UploadScheduler, just backoff)
+//   getScheduler() - the scheduler
+//   wakeUp() - check for new data now. Call when new data is stored
+//
+///////////////////////////
+
+public class UploadEngine
+{
+    public interface UploadListener
+    {
+        void onUploaded(int rows);
+
+        void onUploadError(Exception e);
+    }
+
+    private static final long IDLE_POLL_MS = 60000; // with nothing to upload, how long to wait for a wakeUp() before checking anyway, in case one is missed
+
+    private final UploadStore store;
+    private final UploadTransport transport;
+    private final UploadBatchSizer batchSizer;
+    private volatile UploadListener listener;
+    private volatile UploadScheduler scheduler;
+    private volatile int maxInFlight = 1;
+    private volatile Run run = null; // the current run, null when stopped. Only changed in start() and stop()
+
+    private final Object inFlightLock = new Object();
+    private int inFlight = 0; // requests on the wire from every run, guarded by inFlightLock
+    private long wakeUps = 0; // how many times wakeUp() was called, so a wake up that comes just before a wait is not missed. Guarded by inFlightLock
+
+    private final Object markLock = new Object(); // one batch is marked at a time, whichever run it is from
+    private long runsStarted = 0; // the number of the newest run, only its batches get marked. Guarded by markLock
+
+    private final Metrics.Histogram requestLatency = Metrics.histogram("upload.requestUs");
+    private final Metrics.Histogram batchRows = Metrics.histogram("upload.batchRows");
+    private final Metrics.Counter rowsUploaded = Metrics.counter("upload.rows");
+    private final Metrics.Counter uploadErrors = Metrics.counter("upload.errors");
+    private final Metrics.Counter ackSkipped = Metrics.counter("upload.ackSkipped");
+
+    public UploadEngine(UploadStore store, UploadTransport transport, UploadBatchSizer batchSizer)
+    {
+        this.store = store;
+        this.transport = transport;
+        this.batchSizer = batchSizer;
+        setScheduler(new UploadScheduler());
+        Metrics.gauge("upload.failureStreak", new Metrics.Gauge()
+        {
+            public long get()
+            {
+                return scheduler.getFailures();
+            }
+        });
+        Metrics.gauge("upload.inFlight", new Metrics.Gauge()
+        {
+            public long get()
+            {
+                synchronized (inFlightLock)
+                {
+                    return inFlight;
+                }
+            }
+        });
+    }
+
+    // setMaxInFlight(int) - how many requests can be in flight at once (default 1)
+    public void setMaxInFlight(int maxInFlight)
+    {
+        this.maxInFlight = Math.max(1, maxInFlight);
+        wakeUp();
+    }
+
+    // setListener(UploadListener) - gets told about uploaded rows and errors, called from the sender threads
+    public void setListener(UploadListener listener)
+    {
+        this.listener = listener;
+    }
+
+    // setScheduler(UploadScheduler) - what decides when to fetch and resend
+    public void setScheduler(UploadScheduler scheduler)
+    {
+        scheduler.setWakeUp(new Runnable()
+        {
+            public void run()
+            {
+                wakeUp();
+            }
+        });
+        this.scheduler = scheduler;
+        wakeUp();
+    }
+
+    // getScheduler() - the scheduler
+    public UploadScheduler getScheduler()
+    {
+        return scheduler;
+    }
+
+    // isRunning() - whether the engine is uploading
+    public boolean isRunning()
+    {
+        Run currentRun = run;
+        return currentRun != null && currentRun.bRunning;
+    }
+
+    // start() - starts uploading
+    public synchronized void start()
+    {
+        if (isRunning())
+        {
+            return;
+        }
+        if (run != null) // stopped itself after a store failure
+        {
+            run.stop();
+        }
+        long number;
+        synchronized (markLock) // from here on the runs before this one mark nothing
+        {
+            number = ++runsStarted;
+        }
+        run = new Run(number);
+        run.start();
+    }
+
+    // stop() - stops uploading. Requests already sent still get marked if the server accepts them, until start() is called again
+    public synchronized void stop()
+    {
+        if (run == null)
+        {
+            return;
+        }
+        run.stop();
+        run = null;
+    }
+
+    // wakeUp() - check for new data now. Call when new data is stored
+    public void wakeUp()
+    {
+        synchronized (inFlightLock)
+        {
+            wakeUps++;
+            inFlightLock.notifyAll();
+        }
+    }
+
+    // getWakeUps() - how many times wakeUp() has been called, for awaitWakeUp()
+    private long getWakeUps()
+    {
+        synchronized (inFlightLock)
+        {
+            return wakeUps;
+        }
+    }
+
+    // awaitWakeUp(Run, sinceWakeUps, timeoutMs) - waits until wakeUp() or timeoutMs (forever for UploadScheduler.WAIT_FOR_WAKE_UP), unless wakeUp() was already
+    //   called since getWakeUps() returned sinceWakeUps, or the run is stopped
+    private void awaitWakeUp(Run waitingRun, long sinceWakeUps, long timeoutMs) throws InterruptedException
+    {
+        synchronized (inFlightLock)
+        {
+            if (wakeUps != sinceWakeUps || !waitingRun.bRunning)
+            {
+                return;
+            }
+            if (timeoutMs == UploadScheduler.WAIT_FOR_WAKE_UP)
+            {
+                inFlightLock.wait();
+            }
+            else
+            {
+                inFlightLock.wait(timeoutMs);
+            }
+        }
+    }
+
+    // Run - one start() to stop(): its dispatcher, its senders, and the order its batches get marked in
+    private class Run
+    {
+        final long number; // which start() this is, see runsStarted
+        volatile boolean bRunning = true;
+        final ExecutorService senders = Executors.newCachedThreadPool(new ThreadFactory() // the number of threads is bounded by maxInFlight
+        {
+            public Thread newThread(Runnable runnable)
+            {
+                Thread thread = new Thread(runnable, "Canary Upload Sender");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        final Thread dispatcherThread = new Thread(new Dispatcher(this), "Canary Upload Dispatcher");
+        long nextToMark = 0; // sequence number of the next batch to mark, guarded by markLock
+        final TreeMap<Long, UploadBatch> finished = new TreeMap<Long, UploadBatch>(); // batches done ahead of an earlier one, null if given up on. Guarded by markLock
+
+        Run(long number)
+        {
+            this.number = number;
+        }
+
+        void start()
+        {
+            dispatcherThread.setDaemon(true);
+            dispatcherThread.start();
+        }
+
+        void stop()
+        {
+            bRunning = false;
+            wakeUp();
+            dispatcherThread.interrupt();
+            senders.shutdownNow(); // interrupts senders waiting to resend, their batches are given up on
+        }
+    }
+
+    private class Dispatcher implements Runnable
+    {
+        private final Run run; // the run this dispatcher fetches for, it never touches another
+
+        Dispatcher(Run run)
+        {
+            this.run = run;
+        }
+
+        @Override
+        public void run()
+        {
+            long lastFetched; // dataId of the last row handed out, the next fetch starts after it
+            long nextSequence = 0;
+            try
+            {
+                lastFetched = resume();
+                while (run.bRunning)
+                {
+                    synchronized (inFlightLock)
+                    {
+                        while (run.bRunning && inFlight >= maxInFlight)
+                        {
+                            inFlightLock.wait();
+                        }
+                    }
+                    if (!run.bRunning)
+                    {
+                        break;
+                    }
+                    long seenWakeUps = getWakeUps();
+                    long delay = scheduler.getFetchDelay();
+                    if (delay > 0) // backing off, no network, or a policy says not yet
+                    {
+                        awaitWakeUp(run, seenWakeUps, delay);
+                        continue;
+                    }
+                    UploadBatch batch = store.nextBatch(lastFetched, batchSizer.getBatchSize());
+                    if (batch.size == 0) // nothing to upload right now, wait for new data
+                    {
+                        awaitWakeUp(run, seenWakeUps, IDLE_POLL_MS);
+                        continue;
+                    }
+                    if (!run.bRunning) // stopped while fetching, the batch gets fetched again by the next run
+                    {
+                        break;
+                    }
+                    batch.stream = store.getStream();
+                    batch.firstSequence = lastFetched + 1; // nothing in between is left to upload
+                    lastFetched = batch.lastSequence();
+                    synchronized (inFlightLock)
+                    {
+                        inFlight++;
+                    }
+                    try
+                    {
+                        run.senders.execute(new Sender(run, nextSequence++, batch));
+                    }
+                    catch (RejectedExecutionException e) // stopped just now
+                    {
+                        synchronized (inFlightLock)
+                        {
+                            inFlight--;
+                            inFlightLock.notifyAll();
+                        }
+                        break;
+                    }
+                }
+            }
+            catch (InterruptedException e) // stopped
+            {
+            }
+            catch (RuntimeException e) // fetching from the store failed, give up until started again
+            {
+                run.bRunning = false;
+                notifyError(e);
+            }
+        }
+
+        // resume() - marks the rows the server already has as uploaded, returning the dataId of the last one (0 for none). Nothing is in flight yet,
+        //   so they are still marked in order
+        private long resume()
+        {
+            String sStream = store.getStream();
+            long acknowledged = acknowledged(sStream);
+            long after = 0;
+            while (run.bRunning && acknowledged > after)
+            {
+                UploadBatch batch = store.nextBatch(after, batchSizer.getBatchSize());
+                batch.stream = sStream;
+                batch.firstSequence = after + 1;
+                int through = batch.countThrough(acknowledged);
+                if (through == 0)
+                {
+                    break;
+                }
+                boolean bMore = through == batch.size;
+                batch.truncate(through);
+                store.markUploaded(batch);
+                ackSkipped.add(through);
+                uploaded(through);
+                after = batch.lastSequence();
+                if (!bMore)
+                {
+                    break;
+                }
+            }
+            return after;
+        }
+    }
+
+    private class Sender implements Runnable
+    {
+        private final Run run; // the run the batch was fetched for, it is marked in that run's order
+        private final long sequence;
+        private final UploadBatch batch;
+
+        Sender(Run run, long sequence, UploadBatch batch)
+        {
+            this.run = run;
+            this.sequence = sequence;
+            this.batch = batch;
+        }
+
+        @Override
+        public void run()
+        {
+            UploadBatch remaining = batch;
+            boolean bSent = false;
+            try
+            {
+                while (true)
+                {
+                    long startTime = System.nanoTime();
+                    int accepted;
+                    try
+                    {
+                        accepted = transport.send(remaining);
+                    }
+                    catch (IOException e)
+                    {
+                        notifyError(e);
+                        accepted = 0;
+                    }
+                    requestLatency.record((System.nanoTime() - startTime) / 1000);
+                    batchRows.record(remaining.size);
+                    if (accepted > 0)
+                    {
+                        scheduler.onSuccess();
+                        batchSizer.onSuccess((System.nanoTime() - startTime) / 1000000);
+                        if (accepted >= remaining.size)
+                        {
+                            bSent = true;
+                            break;
+                        }
+                        remaining = remaining.tail(accepted);
+                        continue;
+                    }
+                    batchSizer.onFailure();
+                    uploadErrors.increment();
+                    scheduler.onFailure();
+                    while (run.bRunning) // wait out the backoff, or for a network
+                    {
+                        long seenWakeUps = getWakeUps();
+                        long delay = scheduler.getRetryDelay();
+                        if (delay == 0)
+                        {
+                            break;
+                        }
+                        awaitWakeUp(run, seenWakeUps, delay);
+                    }
+                    if (!run.bRunning)
+                    {
+                        break;
+                    }
+                    int already = remaining.countThrough(acknowledged(remaining.stream)); // maybe only the answer was lost
+                    if (already > 0)
+                    {
+                        ackSkipped.add(already);
+                        if (already >= remaining.size)
+                        {
+                            bSent = true;
+                            break;
+                        }
+                        remaining = remaining.tail(already);
+                    }
+                }
+            }
+            catch (InterruptedException e) // stopped while waiting to resend
+            {
+            }
+            finally
+            {
+                synchronized (inFlightLock)
+                {
+                    inFlight--;
+                    inFlightLock.notifyAll();
+                }
+                finish(run, sequence, bSent ? batch : null);
+            }
+        }
+    }
+
+    // finish(Run, sequence, batch) - marks the batch uploaded once every earlier batch of its run is finished, along with any later ones that were waiting on it
+    //   Nothing is marked for a run that a newer one has replaced, the newer one fetches its rows again
+    private void finish(Run finishedRun, long sequence, UploadBatch batch)
+    {
+        synchronized (markLock)
+        {
+            if (finishedRun.number != runsStarted)
+            {
+                return;
+            }
+            finishedRun.finished.put(sequence, batch);
+            while (finishedRun.finished.containsKey(finishedRun.nextToMark))
+            {
+                UploadBatch done = finishedRun.finished.remove(finishedRun.nextToMark);
+                finishedRun.nextToMark++;
+                if (done == null) // given up on, it gets fetched again next time
+                {
+                    continue;
+                }
+                try
+                {
+                    store.markUploaded(done);
+                }
+                catch (RuntimeException e)
+                {
+                    notifyError(e);
+                    continue;
+                }
+                uploaded(done.size);
+            }
+        }
+    }
+
+    // uploaded(rows) - counts rows marked uploaded, and tells the listener
+    private void uploaded(int rows)
+    {
+        rowsUploaded.add(rows);
+        UploadListener currentListener = listener;
+        if (currentListener != null)
+        {
+            currentListener.onUploaded(rows);
+        }
+    }
+
+    // acknowledged(stream) - the sequence through which the server has every row of the stream, -1 if it can not say
+    private long acknowledged(String sStream)
+    {
+        try
+        {
+            return transport.acknowledged(sStream);
+        }
+        catch (IOException e) // not worth reporting, sending will fail the same way and report it
+        {
+            return -1;
+        }
+    }
+
+    private void notifyError(Exception e)
+    {
+        UploadListener currentListener = listener;
+        if (currentListener != null)
+        {
+            currentListener.onUploadError(e);
+        }
+    }
+}
@@ -0,0 +1,240 @@
+package org.svvsd.droneteam.canary;
+
+import java.util.Random;
+
+////////////////////////////////////
+// Notes
+//
+// UploadScheduler decides when UploadEngine may go to the server, so a server or network that is down costs next to nothing
+//   It only makes decisions - UploadEngine asks it how long to wait, and does the waiting. So it can be tried out with a fake Clock and NetworkState
+//
+// Backoff
+//   After a failed request, nothing is sent until a backoff delay has passed. The delay doubles with each failure in a row, from minBackoffMs
+//   up to maxBackoffMs, and is jittered (somewhere between half and all of it) so a fleet of phones does not retry in lock step
+//   Requests that fail while already backing off (the others in flight) do not double it again. A request that goes through resets it
+//
+// Network
+//   With no network nothing is sent, and the engine waits to be woken up. When the network changes (see onNetworkChanged()), backoff is forgotten
+//   and the engine is woken up, so uploading resumes right away on a new connection
+//
+// Policies
+//   setUnmeteredOnly(true) - only upload on unmetered networks (wifi), never over cellular
+//   setMinBacklog(rows, maxDelayMs) - only fetch a batch once at least rows rows are waiting, or maxDelayMs after the last upload, so the radio
+//     wakes up for a few big batches instead of many small ones. Needs a Backlog (see setBacklog())
+//   With no data to upload the engine waits to be woken up (see UploadEngine.wakeUp()), so being idle costs nothing
+//
+// Constructor
+//   UploadScheduler() - the system clock, a network that is always up, no policies
+//   UploadScheduler(Clock, NetworkState, Random) - for trying it out with fakes
+//
+// Public variables
+//   WAIT_FOR_WAKE_UP - what the delay methods return for "wait until woken up"
+//
+// Public Methods
+//   getFetchDelay() - how many milliseconds the engine should wait before fetching the next batch, 0 for now, or WAIT_FOR_WAKE_UP
+//   getRetryDelay() - how many milliseconds a sender should wait before resending a failed batch, 0 for now, or WAIT_FOR_WAKE_UP
+//   onSuccess() - a request went through
+//   onFailure() - a request failed or the server did not accept it
+//   onNetworkChanged() - the network came up, went down or changed. Called by the NetworkState
+//   setWakeUp(Runnable) - what to run when the engine should look again (UploadEngine sets it)
+//   setBacklog(Backlog) - where to find how many rows are waiting to be uploaded, for setMinBacklog()
+//   setBackoff(minBackoffMs, maxBackoffMs) - sets the range of the backoff delay
+//   setUnmeteredOnly(bUnmeteredOnly), setMinBacklog(rows, maxDelayMs) - the policies, see Policies
+//   getFailures() - failed requests in a row (counting one per backoff)
+//
+///////////////////////////
+
+public class UploadScheduler
+{
+    public static final long WAIT_FOR_WAKE_UP = Long.MAX_VALUE;
+
+    private static final long DEFAULT_MIN_BACKOFF_MS = 1000;
+    private static final long DEFAULT_MAX_BACKOFF_MS = 5 * 60 * 1000;
+
+    // Clock - the time in milliseconds. SYSTEM_CLOCK is the real one
+    public interface Clock
+    {
+        long now();
+    }
+
+    // NetworkState - whether the phone can reach the server. It calls onNetworkChanged() when that changes. ALWAYS_UP is for when we can not tell
+    public interface NetworkState
+    {
+        boolean isConnected();
+
+        boolean isMetered();
+    }
+
+    // Backlog - how many rows are waiting to be uploaded
+    public interface Backlog
+    {
+        long get();
+    }
+
+    public static final Clock SYSTEM_CLOCK = new Clock()
+    {
+        public long now()
+        {
+            return System.currentTimeMillis();
+        }
+    };
+
+    public static final NetworkState ALWAYS_UP = new NetworkState()
+    {
+        public boolean isConnected()
+        {
+            return true;
+        }
+
+        public boolean isMetered()
+        {
+            return false;
+        }
+    };
+
+    private final Clock clock;
+    private final NetworkState network;
+    private final Random random;
+    private volatile Runnable wakeUp = null;
+    private volatile Backlog backlog = null;
+    private long minBackoffMs = DEFAULT_MIN_BACKOFF_MS;
+    private long maxBackoffMs = DEFAULT_MAX_BACKOFF_MS;
+    private boolean bUnmeteredOnly = false;
+    private long minBacklogRows = 0;
+    private long minBacklogDelayMs = 0;
+    private int failures = 0; // failed requests in a row, one per backoff
+    private long backoffUntil = 0; // no requests before this time
+    private long lastUploadTime; // when a request last went through, for setMinBacklog()
+
+    public UploadScheduler()
+    {
+        this(SYSTEM_CLOCK, ALWAYS_UP, new Random());
+    }
+
+    public UploadScheduler(Clock clock, NetworkState network, Random random)
+    {
+        this.clock = clock;
+        this.network = network;
+        this.random = random;
+        lastUploadTime = clock.now();
+    }
+
+    // setWakeUp(Runnable) - what to run when the engine should look again (UploadEngine sets it)
+    public void setWakeUp(Runnable wakeUp)
+    {
+        this.wakeUp = wakeUp;
+    }
+
+    // setBacklog(Backlog) - where to find how many rows are waiting to be uploaded, for setMinBacklog()
+    public void setBacklog(Backlog backlog)
+    {
+        this.backlog = backlog;
+    }
+
+    // setBackoff(minBackoffMs, maxBackoffMs) - sets the range of the backoff delay
+    public synchronized void setBackoff(long minBackoffMs, long maxBackoffMs)
+    {
+        this.minBackoffMs = Math.max(1, minBackoffMs);
+        this.maxBackoffMs = Math.max(this.minBackoffMs, maxBackoffMs);
+    }
+
+    // setUnmeteredOnly(bUnmeteredOnly) - only upload on unmetered networks
+    public void setUnmeteredOnly(boolean bUnmeteredOnly)
+    {
+        synchronized (this)
+        {
+            this.bUnmeteredOnly = bUnmeteredOnly;
+        }
+        wakeUp();
+    }
+
+    // setMinBacklog(rows, maxDelayMs) - only fetch once at least rows rows are waiting, or maxDelayMs after the last upload. 0 rows turns it off
+    public void setMinBacklog(long rows, long maxDelayMs)
+    {
+        synchronized (this)
+        {
+            minBacklogRows = Math.max(0, rows);
+            minBacklogDelayMs = Math.max(0, maxDelayMs);
+        }
+        wakeUp();
+    }
+
+    // getFetchDelay() - how many milliseconds the engine should wait before fetching the next batch, 0 for now, or WAIT_FOR_WAKE_UP
+    public synchronized long getFetchDelay()
+    {
+        long delay = getRetryDelay();
+        Backlog currentBacklog = backlog;
+        if (delay > 0 || minBacklogRows == 0 || currentBacklog == null)
+        {
+            return delay;
+        }
+        if (currentBacklog.get() >= minBacklogRows)
+        {
+            return 0;
+        }
+        // not enough waiting yet, wait for more data (the engine gets woken up by new data) or the deadline, whichever comes first
+        return Math.max(0, lastUploadTime + minBacklogDelayMs - clock.now());
+    }
+
+    // getRetryDelay() - how many milliseconds a sender should wait before resending a failed batch, 0 for now, or WAIT_FOR_WAKE_UP
+    public synchronized long getRetryDelay()
+    {
+        if (!network.isConnected() || (bUnmeteredOnly && network.isMetered()))
+        {
+            return WAIT_FOR_WAKE_UP; // until onNetworkChanged()
+        }
+        return Math.max(0, backoffUntil - clock.now());
+    }
+
+    // onSuccess() - a request went through
+    public synchronized void onSuccess()
+    {
+        failures = 0;
+        backoffUntil = 0;
+        lastUploadTime = clock.now();
+    }
+
+    // onFailure() - a request failed or the server did not accept it
+    public synchronized void onFailure()
+    {
+        long now = clock.now();
+        if (now < backoffUntil) // another request already started this backoff
+        {
+            return;
+        }
+        failures++;
+        long backoff = minBackoffMs << Math.min(failures - 1, 30);
+        if (backoff <= 0 || backoff > maxBackoffMs)
+        {
+            backoff = maxBackoffMs;
+        }
+        long half = backoff / 2;
+        backoffUntil = now + half + (long) (random.nextDouble() * (backoff - half + 1));
+    }
+
+    // onNetworkChanged() - the network came up, went down or changed. Called by the NetworkState
+    public void onNetworkChanged()
+    {
+        synchronized (this)
+        {
+            failures = 0;
+            backoffUntil = 0; // failures were on the old network
+        }
+        wakeUp();
+    }
+
+    // getFailures() - failed requests in a row (counting one per backoff)
+    public synchronized int getFailures()
+    {
+        return failures;
+    }
+
+    private void wakeUp()
+    {
+        Runnable currentWakeUp = wakeUp;
+        if (currentWakeUp != null)
+        {
+            currentWakeUp.run();
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package org.svvsd.droneteam.canary;
+
+////////////////////////////////////
+// Notes
+//
+// UploadStore is where UploadEngine gets data to upload from, and marks it uploaded in. Recorder is the real one
+//
+// Public Methods
+//   nextBatch(afterDataId, maxRows) - returns up to maxRows non-uploaded rows with a dataId above afterDataId, oldest first. Zero size if there are none
+//   markUploaded(UploadBatch) - marks all the rows in the batch as uploaded. When the batch has a firstSequence, every row from it through the last row
+//     can be marked, with one range update
+//   getStream() - the name of the stream of rows this store holds, so the server can keep track of each stream's sequences (see UploadBatch)
+//
+///////////////////////////
+
+public interface UploadStore
+{
+    UploadBatch nextBatch(long afterDataId, int maxRows);
+
+    void markUploaded(UploadBatch batch);
+
+    String getStream();
+}
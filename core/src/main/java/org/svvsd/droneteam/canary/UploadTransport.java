@@ -0,0 +1,23 @@
+package org.svvsd.droneteam.canary;
+
+import java.io.IOException;
+
+////////////////////////////////////
+// Notes
+//
+// UploadTransport sends batches of data to the server for UploadEngine. HttpUploadTransport is the real one
+//   Has to be safe to call from several threads at once, since UploadEngine can have several batches in flight
+//
+// Public Methods
+//   send(UploadBatch) - sends the batch, returning how many rows from the start of it the server accepted (0 if the server did not accept it)
+//   acknowledged(stream) - asks the server the sequence through which it has every row of the stream (see UploadBatch), -1 if it can not say.
+//     Used to skip what the server already has when resending, or when starting again
+//
+///////////////////////////
+
+public interface UploadTransport
+{
+    int send(UploadBatch batch) throws IOException;
+
+    long acknowledged(String stream) throws IOException;
+}
@@ -0,0 +1,185 @@
+package org.svvsd.droneteam.canary;
+
+////////////////////////////////////
+// Notes
+//
+// WindowAggregator keeps the count, min, max and mean of every sensor field over fixed time windows (by default 1 second, 10 seconds and 1 minute)
+//   Windows line up on multiples of their length since 1970, so a 1 minute window holds exactly six 10 second windows
+//   Each reading costs a few comparisons and additions per window and field, however long the window is. Nothing is allocated per reading
+//   When a reading's timestamp is past the end of a window, the window is handed to the SummaryListener and a new one starts
+//   GPS values are left out of readings without a GPS fix, since they are -1 then
+//
+// Constructor
+//   WindowAggregator(long[] windowsMs, SummaryListener) - windowsMs are the window lengths in milliseconds
+//
+// Public Methods
+//   add(Reading) - adds a reading to every window, handing any windows it ends to the listener first
+//   flush() - hands every window that has readings to the listener now, as is. Use when recording stops
+//   reset() - drops every window without handing it to the listener
+//
+///////////////////////////
+
+public class WindowAggregator
+{
+    public static final long[] DEFAULT_WINDOWS_MS = {1000, 10000, 60000};
+    public static final String[] FIELD_NAMES = {"temperature", "pressure", "humidity", "CO", "H2", "NH4", "CH4", "O3",
+            "Lidar", "Latitude", "Longitude", "Altitude"}; // database column names of the fields summarized
+    public static final int FIELD_COUNT = FIELD_NAMES.length;
+
+    // SummaryListener - gets each window as it ends. The summary is reused, so copy anything needed before returning
+    public interface SummaryListener
+    {
+        void onSummary(Summary summary);
+    }
+
+    // Summary - one window of one length. count[field] is 0 for fields none of the readings had, and then min, max and mean mean nothing
+    public static class Summary
+    {
+        public long windowMs; // window length
+        public long windowStart; // when the window starts, in milliseconds since 1970
+        public int readings; // how many readings went into the window
+        public final int[] count = new int[FIELD_COUNT]; // how many readings had each field
+        public final double[] min = new double[FIELD_COUNT];
+        public final double[] max = new double[FIELD_COUNT];
+        public final double[] sum = new double[FIELD_COUNT];
+
+        // mean(field) - the mean of the field over the window
+        public double mean(int field)
+        {
+            return sum[field] / count[field];
+        }
+
+        // copyFrom(Summary) - makes this summary a copy of another one
+        public void copyFrom(Summary other)
+        {
+            windowMs = other.windowMs;
+            windowStart = other.windowStart;
+            readings = other.readings;
+            System.arraycopy(other.count, 0, count, 0, FIELD_COUNT);
+            System.arraycopy(other.min, 0, min, 0, FIELD_COUNT);
+            System.arraycopy(other.max, 0, max, 0, FIELD_COUNT);
+            System.arraycopy(other.sum, 0, sum, 0, FIELD_COUNT);
+        }
+
+        // clear() - empties the summary for the next window
+        void clear()
+        {
+            readings = 0;
+            for (int i = 0; i < FIELD_COUNT; i++)
+            {
+                count[i] = 0;
+                sum[i] = 0;
+            }
+        }
+
+        // add(Reading) - adds the fields the reading has
+        void add(Reading reading)
+        {
+            readings++;
+            if (reading.has(Reading.ATMOSPHERE))
+            {
+                add(0, reading.temperature);
+                add(1, reading.pressure);
+                add(2, reading.humidity);
+            }
+            if (reading.has(Reading.GAS))
+            {
+                add(3, reading.co);
+                add(4, reading.h2);
+                add(5, reading.nh4);
+                add(6, reading.ch4);
+                add(7, reading.o3);
+            }
+            if (reading.has(Reading.LIDAR))
+            {
+                add(8, reading.lidar);
+            }
+            if (reading.has(Reading.GPS) && reading.gpsFix)
+            {
+                add(9, reading.latitude);
+                add(10, reading.longitude);
+                add(11, reading.altitude);
+            }
+        }
+
+        // add(field, value) - adds one value of a field
+        private void add(int field, double value)
+        {
+            if (count[field] == 0)
+            {
+                min[field] = value;
+                max[field] = value;
+            }
+            else if (value < min[field])
+            {
+                min[field] = value;
+            }
+            else if (value > max[field])
+            {
+                max[field] = value;
+            }
+            count[field]++;
+            sum[field] += value;
+        }
+    }
+
+    private final Summary[] windows; // the window of each length being filled
+    private final SummaryListener listener;
+
+    public WindowAggregator(long[] windowsMs, SummaryListener listener)
+    {
+        this.listener = listener;
+        windows = new Summary[windowsMs.length];
+        for (int w = 0; w < windows.length; w++)
+        {
+            if (windowsMs[w] <= 0)
+            {
+                throw new IllegalArgumentException("window length must be positive " + windowsMs[w]);
+            }
+            windows[w] = new Summary();
+            windows[w].windowMs = windowsMs[w];
+        }
+    }
+
+    // add(Reading) - adds a reading to every window, handing any windows it ends to the listener first
+    public synchronized void add(Reading reading)
+    {
+        for (int w = 0; w < windows.length; w++)
+        {
+            Summary window = windows[w];
+            long start = reading.timestamp - reading.timestamp % window.windowMs;
+            if (start != window.windowStart) // past the end of the window (or the clock went back)
+            {
+                if (window.readings > 0)
+                {
+                    listener.onSummary(window);
+                    window.clear();
+                }
+                window.windowStart = start;
+            }
+            window.add(reading);
+        }
+    }
+
+    // flush() - hands every window that has readings to the listener now, as is. Use when recording stops
+    public synchronized void flush()
+    {
+        for (int w = 0; w < windows.length; w++)
+        {
+            if (windows[w].readings > 0)
+            {
+                listener.onSummary(windows[w]);
+                windows[w].clear();
+            }
+        }
+    }
+
+    // reset() - drops every window without handing it to the listener
+    public synchronized void reset()
+    {
+        for (int w = 0; w < windows.length; w++)
+        {
+            windows[w].clear();
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package org.svvsd.droneteam.canary;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+// ApiFrameAssembler on hand built API frames, for the checksum, escaping, and finding the next frame after a bad one
+public class ApiFrameAssemblerTest
+{
+    private static final int CAPACITY = 128;
+
+    // Frames - a FrameListener keeping a copy of each frame's data
+    private static class Frames implements FrameAssembler.FrameListener
+    {
+        final List<byte[]> frames = new ArrayList<byte[]>();
+
+        public void onFrame(byte[] frame, int length)
+        {
+            byte[] copy = new byte[length];
+            System.arraycopy(frame, 0, copy, 0, length);
+            frames.add(copy);
+        }
+    }
+
+    private static byte[] bytes(int... values)
+    {
+        byte[] bytes = new byte[values.length];
+        for (int i = 0; i < values.length; i++)
+        {
+            bytes[i] = (byte) values[i];
+        }
+        return bytes;
+    }
+
+    // apiFrame(data, bEscaped, checksumError) - 0x7E, length, data, checksum (off by checksumError), escaped after the 0x7E when bEscaped
+    private static byte[] apiFrame(byte[] data, boolean bEscaped, int checksumError)
+    {
+        int sum = 0;
+        for (byte b : data)
+        {
+            sum += b & 0xFF;
+        }
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        body.write(data.length >> 8);
+        body.write(data.length);
+        body.write(data, 0, data.length);
+        body.write((0xFF - (sum & 0xFF) + checksumError) & 0xFF);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(ApiFrameAssembler.START_DELIMITER);
+        for (byte b : body.toByteArray())
+        {
+            int value = b & 0xFF;
+            if (bEscaped && (value == 0x7E || value == 0x7D || value == 0x11 || value == 0x13))
+            {
+                out.write(ApiFrameAssembler.ESCAPE);
+                out.write(value ^ ApiFrameAssembler.ESCAPE_XOR);
+            }
+            else
+            {
+                out.write(value);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] join(byte[]... parts)
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts)
+        {
+            out.write(part, 0, part.length);
+        }
+        return out.toByteArray();
+    }
+
+    private static Frames assemble(ApiFrameAssembler assembler, byte[] stream, int chunk)
+    {
+        Frames frames = new Frames();
+        for (int i = 0; i < stream.length; i += chunk)
+        {
+            assembler.append(stream, i, Math.min(chunk, stream.length - i), frames);
+        }
+        return frames;
+    }
+
+    private static final byte[] RX_16_FRAME = bytes(ApiFrameAssembler.RX_16, 0x12, 0x34, 0x28, 0x00, '|', '3', ',', '9');
+    private static final byte[] OTHER_FRAME = bytes(0x8A, 0x00); // modem status
+
+    @Test
+    public void passesGoodFramesInAnyChunks()
+    {
+        byte[] stream = join(bytes(0x00, 0x55), apiFrame(RX_16_FRAME, false, 0), apiFrame(OTHER_FRAME, false, 0));
+        for (int chunk = 1; chunk <= stream.length; chunk++)
+        {
+            ApiFrameAssembler assembler = new ApiFrameAssembler(CAPACITY, false);
+            Frames frames = assemble(assembler, stream, chunk);
+            assertEquals(2, frames.frames.size());
+            assertArrayEquals(RX_16_FRAME, frames.frames.get(0));
+            assertArrayEquals(OTHER_FRAME, frames.frames.get(1));
+            assertEquals(2, assembler.bytesDropped); // the noise before the first frame
+        }
+    }
+
+    @Test
+    public void aBadChecksumIsCountedAndDropped()
+    {
+        ApiFrameAssembler assembler = new ApiFrameAssembler(CAPACITY, false);
+        Frames frames = assemble(assembler, join(apiFrame(RX_16_FRAME, false, 1), apiFrame(OTHER_FRAME, false, 0)), 7);
+        assertEquals(1, frames.frames.size());
+        assertArrayEquals(OTHER_FRAME, frames.frames.get(0));
+        assertEquals(1, assembler.checksumFailures);
+        assertEquals(1, assembler.framesAssembled);
+    }
+
+    @Test
+    public void aStrayStartDelimiterDoesNotHideTheNextFrame()
+    {
+        ApiFrameAssembler assembler = new ApiFrameAssembler(CAPACITY, false);
+        Frames frames = assemble(assembler, join(bytes(0x7E), apiFrame(RX_16_FRAME, false, 0)), 1); // too long a length, rescanned
+        assertEquals(1, frames.frames.size());
+        assertArrayEquals(RX_16_FRAME, frames.frames.get(0));
+
+        assembler = new ApiFrameAssembler(CAPACITY, false);
+        frames = assemble(assembler, join(bytes(0x7E, 0x00, 0x04), apiFrame(RX_16_FRAME, false, 0)), 1); // swallows the start of the real frame
+        assertEquals(1, frames.frames.size());
+        assertArrayEquals(RX_16_FRAME, frames.frames.get(0));
+        assertEquals(1, assembler.checksumFailures);
+    }
+
+    @Test
+    public void aFrameLongerThanCapacityIsDropped()
+    {
+        ApiFrameAssembler assembler = new ApiFrameAssembler(8, false);
+        Frames frames = assemble(assembler, join(apiFrame(RX_16_FRAME, false, 0), apiFrame(OTHER_FRAME, false, 0)), 4);
+        assertEquals(1, frames.frames.size());
+        assertArrayEquals(OTHER_FRAME, frames.frames.get(0));
+        assertTrue(assembler.bytesDropped > 0);
+    }
+
+    @Test
+    public void undoesEscapesInEscapedMode()
+    {
+        byte[] data = bytes(ApiFrameAssembler.RX_16, 0x7E, 0x7D, 0x11, 0x13, 0x5E, '|', '3', ',', '1');
+        byte[] frame = apiFrame(data, true, 0);
+        assertTrue("escaped", frame.length > data.length + 4);
+        for (int chunk = 1; chunk <= frame.length; chunk++)
+        {
+            ApiFrameAssembler assembler = new ApiFrameAssembler(CAPACITY, true);
+            Frames frames = assemble(assembler, join(frame, apiFrame(OTHER_FRAME, true, 0)), chunk);
+            assertEquals(2, frames.frames.size());
+            assertArrayEquals(data, frames.frames.get(0));
+            assertEquals(0, assembler.checksumFailures);
+        }
+    }
+
+    @Test
+    public void aStartDelimiterInEscapedModeAlwaysStartsAFrame()
+    {
+        ApiFrameAssembler assembler = new ApiFrameAssembler(CAPACITY, true);
+        byte[] cut = apiFrame(RX_16_FRAME, true, 0);
+        byte[] partial = new byte[cut.length - 3]; // the radio dropped the end of it
+        System.arraycopy(cut, 0, partial, 0, partial.length);
+        Frames frames = assemble(assembler, join(partial, apiFrame(OTHER_FRAME, true, 0)), 5);
+        assertEquals(1, frames.frames.size());
+        assertArrayEquals(OTHER_FRAME, frames.frames.get(0));
+        assertEquals(partial.length, assembler.bytesDropped);
+    }
+
+    @Test
+    public void findsTheReceivedDataInReceiveFrames()
+    {
+        assertEquals(5, ApiFrameAssembler.receivePayloadOffset(RX_16_FRAME, RX_16_FRAME.length));
+        assertEquals(-1, ApiFrameAssembler.receivePayloadOffset(RX_16_FRAME, 5)); // no data
+        byte[] rx64 = new byte[14];
+        rx64[0] = (byte) ApiFrameAssembler.RX_64;
+        assertEquals(11, ApiFrameAssembler.receivePayloadOffset(rx64, rx64.length));
+        byte[] receivePacket = new byte[14];
+        receivePacket[0] = (byte) ApiFrameAssembler.RECEIVE_PACKET;
+        assertEquals(12, ApiFrameAssembler.receivePayloadOffset(receivePacket, receivePacket.length));
+        assertEquals(-1, ApiFrameAssembler.receivePayloadOffset(OTHER_FRAME, OTHER_FRAME.length));
+    }
+}
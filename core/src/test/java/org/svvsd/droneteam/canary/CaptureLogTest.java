@@ -0,0 +1,258 @@
+package org.svvsd.droneteam.canary;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+// CaptureLog on small segments, with crashes simulated by opening the directory again and torn writes by damaging the segment files
+public class CaptureLogTest
+{
+    private static final int SEGMENT_SIZE = 1024; // about 30 of the test records
+    private static final int HEADER_SIZE = 16;
+    private static final int RECORD_HEADER_SIZE = 8;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File directory;
+    private final Reading reading = new Reading();
+
+    @Before
+    public void setUp()
+    {
+        directory = new File(folder.getRoot(), "capture");
+    }
+
+    // append(log, first, count) - appends readings numbered first to first + count - 1, in their lidar values and tags
+    private void append(CaptureLog log, int first, int count) throws Exception
+    {
+        Reading appended = new Reading();
+        for (int i = first; i < first + count; i++)
+        {
+            appended.flags = Reading.LIDAR;
+            appended.lidar = i;
+            appended.timestamp = 1000L + i;
+            byte[] raw = ("|3," + i + "|").getBytes("US-ASCII");
+            appended.setRaw(raw, 0, raw.length);
+            log.append(appended, i * 10L);
+        }
+    }
+
+    // readAll(log) - reads until next() has nothing more, returning the numbers read
+    private int[] readAll(CaptureLog log) throws Exception
+    {
+        int[] numbers = new int[10000];
+        int count = 0;
+        while (log.next(reading))
+        {
+            assertEquals(reading.lidar * 10L, log.getTag());
+            assertEquals(1000L + reading.lidar, reading.timestamp);
+            assertEquals("|3," + reading.lidar + "|", new String(reading.raw, 0, reading.rawLength, "US-ASCII"));
+            numbers[count++] = reading.lidar;
+        }
+        int[] read = new int[count];
+        System.arraycopy(numbers, 0, read, 0, count);
+        return read;
+    }
+
+    private static void assertNumbers(int first, int count, int[] numbers)
+    {
+        assertEquals("how many read", count, numbers.length);
+        for (int i = 0; i < count; i++)
+        {
+            assertEquals(first + i, numbers[i]);
+        }
+    }
+
+    // recordOffset(segment, index) - where the index'th record of a segment file starts
+    private int recordOffset(long segment, int index) throws Exception
+    {
+        RandomAccessFile file = new RandomAccessFile(new File(directory, "capture-" + segment + ".log"), "r");
+        try
+        {
+            int offset = HEADER_SIZE;
+            for (int i = 0; i < index; i++)
+            {
+                file.seek(offset);
+                offset += RECORD_HEADER_SIZE + file.readInt();
+            }
+            return offset;
+        }
+        finally
+        {
+            file.close();
+        }
+    }
+
+    private void writeInt(long segment, int offset, int value) throws Exception
+    {
+        RandomAccessFile file = new RandomAccessFile(new File(directory, "capture-" + segment + ".log"), "rw");
+        try
+        {
+            file.seek(offset);
+            file.writeInt(value);
+        }
+        finally
+        {
+            file.close();
+        }
+    }
+
+    @Test
+    public void readsBackWhatWasAppendedInOrder() throws Exception
+    {
+        CaptureLog log = new CaptureLog(directory, SEGMENT_SIZE);
+        assertFalse(log.next(reading));
+        append(log, 1, 10);
+        assertNumbers(1, 10, readAll(log));
+        assertFalse(log.isReplayed());
+        append(log, 11, 5);
+        assertNumbers(11, 5, readAll(log));
+    }
+
+    @Test
+    public void rollsOverToNewSegments() throws Exception
+    {
+        CaptureLog log = new CaptureLog(directory, SEGMENT_SIZE);
+        long firstSegment = log.getReadSegment();
+        append(log, 1, 500);
+        assertNumbers(1, 500, readAll(log));
+        assertTrue("segments used " + (log.getReadSegment() - firstSegment + 1), log.getReadSegment() - firstSegment >= 10);
+    }
+
+    @Test
+    public void replaysFromACheckpointAfterACrash() throws Exception
+    {
+        CaptureLog log = new CaptureLog(directory, SEGMENT_SIZE);
+        append(log, 1, 100);
+        for (int i = 0; i < 40; i++)
+        {
+            assertTrue(log.next(reading));
+        }
+        long segment = log.getReadSegment(); // the checkpoint a commit would save
+        int offset = log.getReadOffset();
+
+        CaptureLog reopened = new CaptureLog(directory, SEGMENT_SIZE); // the crash
+        reopened.seek(segment, offset);
+        assertTrue(reopened.next(reading));
+        assertEquals(41, reading.lidar);
+        assertTrue(reopened.isReplayed());
+        assertNumbers(42, 59, readAll(reopened));
+
+        append(reopened, 101, 5); // appended after the crash, in a segment of its own
+        assertTrue(reopened.next(reading));
+        assertEquals(101, reading.lidar);
+        assertFalse(reopened.isReplayed());
+        assertNumbers(102, 4, readAll(reopened));
+    }
+
+    @Test
+    public void seekToAReleasedSegmentGoesToTheOldestLeft() throws Exception
+    {
+        CaptureLog log = new CaptureLog(directory, SEGMENT_SIZE);
+        long firstSegment = log.getReadSegment();
+        append(log, 1, 200);
+        readAll(log);
+        log.release(firstSegment + 2);
+
+        CaptureLog reopened = new CaptureLog(directory, SEGMENT_SIZE);
+        reopened.seek(firstSegment, HEADER_SIZE); // gone
+        assertTrue(reopened.next(reading));
+        assertEquals(firstSegment + 2, reopened.getReadSegment());
+        assertTrue(reading.lidar > 1);
+    }
+
+    @Test
+    public void aTornRecordEndsItsSegment() throws Exception
+    {
+        CaptureLog log = new CaptureLog(directory, SEGMENT_SIZE);
+        long segment = log.getReadSegment();
+        append(log, 1, 10);
+        int torn = recordOffset(segment, 3);
+        writeInt(segment, torn + 4, 0x12345678); // the CRC no longer matches, like a record half written when the power went
+
+        CaptureLog reopened = new CaptureLog(directory, SEGMENT_SIZE);
+        reopened.seek(segment, HEADER_SIZE);
+        append(reopened, 11, 2);
+        int[] numbers = readAll(reopened);
+        assertEquals(5, numbers.length); // 1 to 3, then on to the new segment
+        assertNumbers(1, 3, new int[] {numbers[0], numbers[1], numbers[2]});
+        assertEquals(11, numbers[3]);
+        assertEquals(12, numbers[4]);
+    }
+
+    @Test
+    public void aZeroLengthEndsItsSegment() throws Exception
+    {
+        CaptureLog log = new CaptureLog(directory, SEGMENT_SIZE);
+        long segment = log.getReadSegment();
+        append(log, 1, 10);
+        writeInt(segment, recordOffset(segment, 6), 0); // as if only six records were written
+
+        CaptureLog reopened = new CaptureLog(directory, SEGMENT_SIZE);
+        reopened.seek(segment, HEADER_SIZE);
+        assertNumbers(1, 6, readAll(reopened));
+        append(reopened, 11, 1);
+        assertNumbers(11, 1, readAll(reopened));
+    }
+
+    @Test
+    public void aBadLengthEndsItsSegment() throws Exception
+    {
+        CaptureLog log = new CaptureLog(directory, SEGMENT_SIZE);
+        long segment = log.getReadSegment();
+        append(log, 1, 10);
+        writeInt(segment, recordOffset(segment, 2), SEGMENT_SIZE * 2); // nonsense, past the end of the segment
+
+        CaptureLog reopened = new CaptureLog(directory, SEGMENT_SIZE);
+        reopened.seek(segment, HEADER_SIZE);
+        assertNumbers(1, 2, readAll(reopened));
+        append(reopened, 11, 1);
+        assertNumbers(11, 1, readAll(reopened));
+    }
+
+    @Test
+    public void reusesReleasedSegments() throws Exception
+    {
+        CaptureLog log = new CaptureLog(directory, SEGMENT_SIZE);
+        for (int round = 0; round < 20; round++)
+        {
+            append(log, round * 100, 100);
+            assertNumbers(round * 100, 100, readAll(log));
+            log.release(log.getReadSegment());
+            File[] files = directory.listFiles();
+            int free = 0;
+            for (File file : files)
+            {
+                free += file.getName().startsWith("free-") ? 1 : 0;
+            }
+            assertTrue("round " + round + " free segments " + free, free <= 2);
+            assertTrue("round " + round + " files " + files.length, files.length <= 4); // the one being written, at most one full one, and the free ones
+        }
+    }
+
+    @Test
+    public void aReusedSegmentDoesNotReplayItsOldRecords() throws Exception
+    {
+        CaptureLog log = new CaptureLog(directory, SEGMENT_SIZE);
+        append(log, 0, 200);
+        readAll(log);
+        long segment = log.getReadSegment(); // the checkpoint past the old records
+        int offset = log.getReadOffset();
+        log.release(segment); // free segments now hold old records
+        append(log, 1000, 100);
+        assertNumbers(1000, 100, readAll(log));
+
+        CaptureLog reopened = new CaptureLog(directory, SEGMENT_SIZE);
+        reopened.seek(segment, offset);
+        assertNumbers(1000, 100, readAll(reopened)); // through the reused segments, and nothing of what they held before
+    }
+}
@@ -0,0 +1,229 @@
+package org.svvsd.droneteam.canary;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigDecimal;
+import java.util.Locale;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+// ColumnarEncoder checked byte for byte on a small batch, and decoded back the way the server reads it on bigger ones
+public class ColumnarEncoderTest
+{
+    private final ColumnarEncoder encoder = new ColumnarEncoder();
+
+    private static UploadBatch batch(String[] columns, String[][] rows)
+    {
+        UploadBatch batch = new UploadBatch(columns, rows.length);
+        for (int r = 0; r < rows.length; r++)
+        {
+            batch.addRow(r + 1, rows[r]);
+        }
+        return batch;
+    }
+
+    private static byte[] gunzip(byte[] body) throws IOException
+    {
+        InputStream in = new GZIPInputStream(new ByteArrayInputStream(body));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int length;
+        while ((length = in.read(buffer)) > 0)
+        {
+            out.write(buffer, 0, length);
+        }
+        return out.toByteArray();
+    }
+
+    // Decoded - a columnar body read back into column names, types and text values (null for no value)
+    private static class Decoded
+    {
+        String[] columns;
+        int[] types;
+        String[][] values; // [row][column]
+    }
+
+    private static long readVarint(DataInputStream in) throws IOException
+    {
+        long value = 0;
+        int shift = 0;
+        int b;
+        do
+        {
+            b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        }
+        while ((b & 0x80) != 0);
+        return value;
+    }
+
+    private static String readText(DataInputStream in) throws IOException
+    {
+        byte[] utf8 = new byte[(int) readVarint(in)];
+        in.readFully(utf8);
+        return new String(utf8, "UTF-8");
+    }
+
+    private static Decoded decode(byte[] body) throws IOException
+    {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(gunzip(body)));
+        byte[] magic = new byte[4];
+        in.readFully(magic);
+        assertEquals("CNRY", new String(magic, "US-ASCII"));
+        assertEquals(ColumnarEncoder.VERSION, in.readUnsignedByte());
+        int rows = (int) readVarint(in);
+        int columns = (int) readVarint(in);
+        Decoded decoded = new Decoded();
+        decoded.columns = new String[columns];
+        decoded.types = new int[columns];
+        decoded.values = new String[rows][columns];
+        for (int c = 0; c < columns; c++)
+        {
+            decoded.columns[c] = readText(in);
+            decoded.types[c] = in.readUnsignedByte();
+        }
+        for (int c = 0; c < columns; c++)
+        {
+            byte[] nulls = new byte[(rows + 7) / 8];
+            in.readFully(nulls);
+            int scale = decoded.types[c] == ColumnarEncoder.TYPE_DECIMAL ? in.readUnsignedByte() : 0;
+            long previous = 0;
+            for (int r = 0; r < rows; r++)
+            {
+                if ((nulls[r / 8] & (1 << (r % 8))) == 0)
+                {
+                    continue;
+                }
+                if (decoded.types[c] == ColumnarEncoder.TYPE_TEXT)
+                {
+                    decoded.values[r][c] = readText(in);
+                }
+                else
+                {
+                    long zigzag = readVarint(in);
+                    previous += (zigzag >>> 1) ^ -(zigzag & 1);
+                    decoded.values[r][c] = BigDecimal.valueOf(previous, scale).toPlainString();
+                }
+            }
+        }
+        assertEquals("bytes left over", -1, in.read());
+        return decoded;
+    }
+
+    // assertSameValue(sent, decoded) - text exactly, numbers as the same number (trailing fraction zeros are not kept)
+    private static void assertSameValue(String sSent, String sDecoded, int type)
+    {
+        if (sSent == null)
+        {
+            assertNull(sDecoded);
+        }
+        else if (type == ColumnarEncoder.TYPE_TEXT)
+        {
+            assertEquals(sSent, sDecoded);
+        }
+        else
+        {
+            assertEquals(sSent + " came back as " + sDecoded, 0, new BigDecimal(sSent).compareTo(new BigDecimal(sDecoded)));
+        }
+    }
+
+    private void assertRoundTrip(String[] columns, String[][] rows, int[] expectedTypes) throws IOException
+    {
+        Decoded decoded = decode(encoder.encode(batch(columns, rows)));
+        assertArrayEquals(columns, decoded.columns);
+        assertArrayEquals(expectedTypes, decoded.types);
+        assertEquals(rows.length, decoded.values.length);
+        for (int r = 0; r < rows.length; r++)
+        {
+            for (int c = 0; c < columns.length; c++)
+            {
+                assertSameValue(rows[r][c], decoded.values[r][c], decoded.types[c]);
+            }
+        }
+    }
+
+    @Test
+    public void encodesASmallBatchExactly() throws IOException
+    {
+        UploadBatch batch = batch(new String[] {"n", "d", "s"}, new String[][] {
+                {"5", "1.5", "ok"},
+                {null, "-0.25", null},
+                {"3", "2", "\u00e9"}});
+        byte[] expected = {
+                'C', 'N', 'R', 'Y', 1, // magic, version
+                3, 3, // rows, columns
+                1, 'n', ColumnarEncoder.TYPE_INTEGER,
+                1, 'd', ColumnarEncoder.TYPE_DECIMAL,
+                1, 's', ColumnarEncoder.TYPE_TEXT,
+                0x05, 10, 3, // rows 0 and 2, +5 then -2
+                0x07, 2, (byte) 0xAC, 0x02, (byte) 0xDD, 0x02, (byte) 0xC2, 0x03, // scale 2, 150 (+150), -25 (-175), 200 (+225)
+                0x05, 2, 'o', 'k', 2, (byte) 0xC3, (byte) 0xA9}; // rows 0 and 2
+        assertArrayEquals(expected, gunzip(encoder.encode(batch)));
+    }
+
+    @Test
+    public void anEmptyBatchIsJustTheHeader() throws IOException
+    {
+        UploadBatch batch = new UploadBatch(new String[] {"lidar"}, 0);
+        byte[] expected = {'C', 'N', 'R', 'Y', 1, 0, 1, 5, 'l', 'i', 'd', 'a', 'r', ColumnarEncoder.TYPE_INTEGER};
+        assertArrayEquals(expected, gunzip(encoder.encode(batch)));
+    }
+
+    @Test
+    public void roundTripsSensorRows() throws IOException
+    {
+        Random random = new Random(7);
+        String[][] rows = new String[203][]; // not a multiple of 8, so the last null bitmap byte is partly used
+        long time = 1490000000000L;
+        for (int r = 0; r < rows.length; r++)
+        {
+            time += 20 + random.nextInt(5);
+            rows[r] = new String[] {
+                    Long.toString(time),
+                    Integer.toString(random.nextInt(4000)),
+                    random.nextInt(10) == 0 ? null : String.format(Locale.US, "%.2f", 20 + random.nextGaussian()),
+                    r % 3 == 0 ? String.format(Locale.US, "%.6f", 40.0 + random.nextDouble()) : null,
+                    "|3," + r + "|"};
+        }
+        assertRoundTrip(new String[] {"timestamp", "lidar", "temp", "lat", "raw"}, rows, new int[] {
+                ColumnarEncoder.TYPE_INTEGER, ColumnarEncoder.TYPE_INTEGER, ColumnarEncoder.TYPE_DECIMAL,
+                ColumnarEncoder.TYPE_DECIMAL, ColumnarEncoder.TYPE_TEXT});
+    }
+
+    @Test
+    public void keepsNegativesAndScalesTheColumnToItsLongestFraction() throws IOException
+    {
+        assertRoundTrip(new String[] {"alt"}, new String[][] {{"-12"}, {"0.125"}, {"-0.5"}, {"100.50"}, {"-0"}},
+                new int[] {ColumnarEncoder.TYPE_DECIMAL});
+    }
+
+    @Test
+    public void sendsWhatIsNotAPlainDecimalAsText() throws IOException
+    {
+        int text = ColumnarEncoder.TYPE_TEXT;
+        assertRoundTrip(new String[] {"a"}, new String[][] {{"1"}, {"1e5"}}, new int[] {text});
+        assertRoundTrip(new String[] {"a"}, new String[][] {{"1.2.3"}}, new int[] {text});
+        assertRoundTrip(new String[] {"a"}, new String[][] {{"-"}}, new int[] {text});
+        assertRoundTrip(new String[] {"a"}, new String[][] {{"."}}, new int[] {text});
+        assertRoundTrip(new String[] {"a"}, new String[][] {{""}}, new int[] {text});
+        assertRoundTrip(new String[] {"a"}, new String[][] {{"0.1234567891"}}, new int[] {text}); // more than MAX_SCALE fraction digits
+        assertRoundTrip(new String[] {"a"}, new String[][] {{"1234567890123456789"}}, new int[] {text}); // may not fit a long
+    }
+
+    @Test
+    public void aColumnWithNoValuesHasOnlyItsNullBitmap() throws IOException
+    {
+        assertRoundTrip(new String[] {"gps", "lidar"}, new String[][] {{null, "1"}, {null, "2"}, {null, "3"}},
+                new int[] {ColumnarEncoder.TYPE_INTEGER, ColumnarEncoder.TYPE_INTEGER});
+    }
+}
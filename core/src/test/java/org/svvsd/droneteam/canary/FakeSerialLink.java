@@ -0,0 +1,133 @@
+package org.svvsd.droneteam.canary;
+
+import java.io.IOException;
+
+////////////////////////////////////
+// Notes
+//
+// FakeSerialLink simulates an XBee sending a byte stream over a serial link at line rate, for trying out LinkProber without a radio (see LinkProberTest)
+//   The XBee sends the stream over and over, as fast as the line goes (baud / 10 bytes a second, for 8N1), into a FIFO of fifoSize bytes
+//   like the one in the USB serial chip. Whatever does not fit in the FIFO because the reader did not keep up is lost, the way a real one loses it
+//   Opened at any baud rate but the XBee's, the bytes come out garbled, the way they do on a real link
+//
+// Constructor
+//   FakeSerialLink(id, deviceBaudRate, fifoSize, stream) - stream is what the XBee sends, over and over
+//
+// Public Methods
+//   SerialLink methods
+//   getBytesLost() - how many bytes the FIFO lost since the link was opened
+//
+///////////////////////////
+
+public class FakeSerialLink implements SerialLink
+{
+    private static final int GARBLE = 0x5A; // what the bytes get xor'd with at the wrong baud rate
+
+    private final String sId;
+    private final int deviceBaudRate;
+    private final byte[] fifo;
+    private final byte[] stream;
+    private volatile boolean bOpen = false;
+    private boolean bGarbled = false;
+    private long openTime; // System.nanoTime() when opened
+    private long bytesSent = 0; // bytes the XBee has sent since opened
+    private long streamPosition = 0; // position in the repeated stream of the next byte the XBee sends
+    private int fifoHead = 0; // next byte to read
+    private int fifoCount = 0; // bytes waiting in the FIFO
+    private long bytesLost = 0;
+
+    public FakeSerialLink(String sId, int deviceBaudRate, int fifoSize, byte[] stream)
+    {
+        this.sId = sId;
+        this.deviceBaudRate = deviceBaudRate;
+        this.fifo = new byte[fifoSize];
+        this.stream = stream;
+    }
+
+    public synchronized void open(LinkConfig config) throws IOException
+    {
+        if (bOpen)
+        {
+            throw new IOException("link " + sId + " is already open");
+        }
+        bGarbled = config.baudRate != deviceBaudRate;
+        openTime = System.nanoTime();
+        bytesSent = 0;
+        fifoHead = 0;
+        fifoCount = 0;
+        bytesLost = 0;
+        bOpen = true;
+    }
+
+    public boolean isOpen()
+    {
+        return bOpen;
+    }
+
+    public synchronized int available() throws IOException
+    {
+        checkOpen();
+        send();
+        return fifoCount;
+    }
+
+    public synchronized int read(byte[] buffer, int offset, int length) throws IOException
+    {
+        checkOpen();
+        send();
+        int count = Math.min(length, fifoCount);
+        for (int i = 0; i < count; i++)
+        {
+            buffer[offset + i] = fifo[fifoHead];
+            fifoHead = (fifoHead + 1) % fifo.length;
+        }
+        fifoCount -= count;
+        return count;
+    }
+
+    public void close()
+    {
+        bOpen = false;
+    }
+
+    public String getId()
+    {
+        return sId;
+    }
+
+    // getBytesLost() - how many bytes the FIFO lost since the link was opened
+    public synchronized long getBytesLost()
+    {
+        return bytesLost;
+    }
+
+    // send() - puts what the XBee sent since we last looked into the FIFO, losing what does not fit
+    private void send()
+    {
+        long elapsedNs = System.nanoTime() - openTime;
+        long sent = elapsedNs * (deviceBaudRate / 10) / 1000000000L;
+        long newBytes = sent - bytesSent;
+        bytesSent = sent;
+        int fits = (int) Math.min(newBytes, fifo.length - fifoCount);
+        int tail = (fifoHead + fifoCount) % fifo.length;
+        for (int i = 0; i < fits; i++)
+        {
+            int b = stream[(int) (streamPosition % stream.length)];
+            fifo[tail] = (byte) (bGarbled ? b ^ GARBLE : b);
+            tail = (tail + 1) % fifo.length;
+            streamPosition++;
+        }
+        fifoCount += fits;
+        streamPosition += newBytes - fits; // the rest went by while the FIFO was full
+        bytesLost += newBytes - fits;
+    }
+
+    // checkOpen() - throws if the link is not open, the way a closed USB connection does
+    private void checkOpen() throws IOException
+    {
+        if (!bOpen)
+        {
+            throw new IOException("link " + sId + " is not open");
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package org.svvsd.droneteam.canary;
+
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+// FrameAssembler fed the XBee byte stream whole, byte by byte and in random chunks, to check frames come out the same however the reads split them
+public class FrameAssemblerTest
+{
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    // Frames - a FrameListener keeping a copy of each frame as text
+    private static class Frames implements FrameAssembler.FrameListener
+    {
+        final List<String> frames = new ArrayList<String>();
+
+        public void onFrame(byte[] frame, int length)
+        {
+            frames.add(new String(frame, 0, length, ASCII));
+        }
+    }
+
+    private static List<String> assemble(FrameAssembler assembler, String sStream, int chunk)
+    {
+        Frames frames = new Frames();
+        byte[] bytes = sStream.getBytes(ASCII);
+        for (int i = 0; i < bytes.length; i += chunk)
+        {
+            assembler.append(bytes, i, Math.min(chunk, bytes.length - i), frames);
+        }
+        return frames.frames;
+    }
+
+    @Test
+    public void endsFramesAtLineTerminators()
+    {
+        FrameAssembler assembler = new FrameAssembler(256);
+        List<String> frames = assemble(assembler, "3,tail of a frame\r\n|1,20.5,840,30|3,120\r\n|1,21.0,841,31|3,121\n\r", 1000);
+        assertEquals(Arrays.asList("|1,20.5,840,30|3,120", "|1,21.0,841,31|3,121"), frames); // the partial one at the start is thrown away
+        assertEquals(2, assembler.framesAssembled);
+    }
+
+    @Test
+    public void endsFramesWhereTheNextOneStarts()
+    {
+        List<String> frames = assemble(new FrameAssembler(256), "0|3,99|1,20|3,1|1,21|3,2|1,", 1000);
+        assertEquals(Arrays.asList("|1,20|3,1", "|1,21|3,2"), frames);
+    }
+
+    @Test
+    public void readsSplitAnywhereGiveTheSameFrames()
+    {
+        Random random = new Random(5);
+        StringBuilder sb = new StringBuilder("\n");
+        List<String> expected = new ArrayList<String>();
+        for (int i = 0; i < 200; i++)
+        {
+            String sFrame = "|1," + random.nextInt(40) + ".5," + random.nextInt(900) + ",30|2,1,2,3,4,5|3," + random.nextInt(12000) + "|4,|";
+            expected.add(sFrame);
+            sb.append(sFrame).append(random.nextBoolean() ? "\r\n" : "");
+        }
+        sb.append("\n");
+        String sStream = sb.toString();
+        for (int chunk = 1; chunk <= 64; chunk++) // a 128 byte ring, so frames wrap around its end all the time
+        {
+            assertEquals("chunk " + chunk, expected, assemble(new FrameAssembler(128), sStream, chunk));
+        }
+    }
+
+    @Test
+    public void aFrameTooBigToHoldIsDropped()
+    {
+        FrameAssembler assembler = new FrameAssembler(16);
+        List<String> frames = assemble(assembler, "\n|1,aaaaaaaaaaaaaaaaaaaaaaaaaaaa\n|1,b|3,4\n", 3);
+        assertEquals(Arrays.asList("|1,b|3,4"), frames);
+        assertTrue("dropped " + assembler.bytesDropped, assembler.bytesDropped >= 16);
+    }
+
+    @Test
+    public void resetForgetsThePartialFrame()
+    {
+        FrameAssembler assembler = new FrameAssembler(256);
+        Frames frames = new Frames();
+        byte[] before = "\n|1,20|3,".getBytes(ASCII);
+        assembler.append(before, 0, before.length, frames);
+        assembler.reset(); // the connection was reopened
+        byte[] after = "5\n|1,21|3,6\n".getBytes(ASCII);
+        assembler.append(after, 0, after.length, frames);
+        assertEquals(Arrays.asList("|1,21|3,6"), frames.frames);
+    }
+}
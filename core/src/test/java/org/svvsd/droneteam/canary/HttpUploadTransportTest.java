@@ -0,0 +1,187 @@
+package org.svvsd.droneteam.canary;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+
+// HttpUploadTransport against a local server with scripted answers, for how it negotiates the batch formats
+public class HttpUploadTransportTest
+{
+    private static final String PATH = "/canary/canary.php";
+
+    private HttpServer server;
+    private final LinkedList<Object[]> answers = new LinkedList<Object[]>(); // {status, body}, one per request, then 200 OK
+    private final List<String> methods = Collections.synchronizedList(new ArrayList<String>());
+    private final List<String> contentTypes = Collections.synchronizedList(new ArrayList<String>()); // null for a GET
+    private HttpUploadTransport transport;
+    private final AtomicInteger fallbacks = new AtomicInteger(); // times the FormatListener was run
+
+    @Before
+    public void setUp() throws IOException
+    {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 8);
+        server.createContext(PATH, new ScriptedHandler());
+        server.start();
+        transport = new HttpUploadTransport("http://127.0.0.1:" + server.getAddress().getPort() + PATH + "?");
+        transport.setWireFormat(HttpUploadTransport.FORMAT_COLUMNAR);
+        transport.setFormatListener(new Runnable()
+        {
+            public void run()
+            {
+                fallbacks.incrementAndGet();
+            }
+        });
+    }
+
+    @After
+    public void tearDown()
+    {
+        server.stop(0);
+    }
+
+    // ScriptedHandler - reads the request, then answers with the next scripted answer
+    private class ScriptedHandler implements HttpHandler
+    {
+        public void handle(HttpExchange exchange) throws IOException
+        {
+            InputStream in = exchange.getRequestBody();
+            byte[] buffer = new byte[4096];
+            while (in.read(buffer) > 0)
+            {
+                // the body is not looked at
+            }
+            in.close();
+            methods.add(exchange.getRequestMethod());
+            contentTypes.add(exchange.getRequestHeaders().getFirst("Content-Type"));
+            Object[] answer;
+            synchronized (answers)
+            {
+                answer = answers.isEmpty() ? new Object[] {200, "OK"} : answers.removeFirst();
+            }
+            byte[] body = ((String) answer[1]).getBytes("UTF-8");
+            exchange.sendResponseHeaders((Integer) answer[0], body.length);
+            OutputStream out = exchange.getResponseBody();
+            out.write(body);
+            out.close();
+        }
+    }
+
+    private void answer(int status, String sBody)
+    {
+        synchronized (answers)
+        {
+            answers.add(new Object[] {status, sBody});
+        }
+    }
+
+    private static UploadBatch batch(int rows)
+    {
+        UploadBatch batch = new UploadBatch(new String[] {"lidar", "temp"}, rows);
+        for (int i = 1; i <= rows; i++)
+        {
+            batch.addRow(i, new String[] {Integer.toString(i * 10), "21.5"});
+        }
+        return batch;
+    }
+
+    @Test
+    public void aServerErrorBeforeTheFirstBatchKeepsTheFormat() throws Exception
+    {
+        answer(503, "busy");
+        answer(500, "");
+        assertEquals(0, transport.send(batch(5)));
+        assertEquals(0, transport.send(batch(5)));
+        assertEquals(HttpUploadTransport.FORMAT_COLUMNAR, transport.getWireFormat());
+        assertEquals(0, fallbacks.get());
+
+        assertEquals(5, transport.send(batch(5))); // the server is back, and still takes batches
+        assertEquals(3, methods.size());
+        assertEquals("POST", methods.get(2));
+    }
+
+    @Test
+    public void anAnswerThatIsNotOkKeepsTheFormat() throws Exception
+    {
+        answer(200, "<html>Sign in to the hotel wifi</html>");
+        answer(404, "Not Found");
+        assertEquals(0, transport.send(batch(5)));
+        assertEquals(0, transport.send(batch(5)));
+        assertEquals(HttpUploadTransport.FORMAT_COLUMNAR, transport.getWireFormat());
+    }
+
+    @Test
+    public void unsupportedMediaTypeFallsBackToText() throws Exception
+    {
+        answer(415, "Unsupported Media Type");
+        assertEquals(5, transport.send(batch(5))); // the whole batch, resent as text
+        assertEquals(HttpUploadTransport.FORMAT_TEXT, transport.getWireFormat());
+        assertEquals(1, fallbacks.get());
+        assertEquals(Arrays.asList("POST", "POST"), methods);
+        assertEquals(ColumnarEncoder.CONTENT_TYPE, contentTypes.get(0));
+        assertEquals("text/plain; charset=utf-8", contentTypes.get(1));
+
+        assertEquals(5, transport.send(batch(5)));
+        assertEquals(3, methods.size());
+        assertEquals("text/plain; charset=utf-8", contentTypes.get(2));
+        assertEquals(1, fallbacks.get()); // only told once
+    }
+
+    @Test
+    public void rejectingBothBatchFormatsFallsBackToRows() throws Exception
+    {
+        answer(415, "Unsupported Media Type");
+        answer(501, "Not Implemented");
+        assertEquals(1, transport.send(batch(5))); // the first row, resent on its own
+        assertEquals(HttpUploadTransport.FORMAT_ROWS, transport.getWireFormat());
+        assertEquals(2, fallbacks.get());
+        assertEquals(Arrays.asList("POST", "POST", "GET"), methods);
+
+        assertEquals(1, transport.send(batch(5)));
+        assertEquals("GET", methods.get(3));
+        assertEquals(2, fallbacks.get());
+    }
+
+    @Test
+    public void textFallsBackToRows() throws Exception
+    {
+        transport.setWireFormat(HttpUploadTransport.FORMAT_TEXT);
+        answer(501, "Not Implemented");
+        assertEquals(1, transport.send(batch(5)));
+        assertEquals(HttpUploadTransport.FORMAT_ROWS, transport.getWireFormat());
+        assertEquals(Arrays.asList("POST", "GET"), methods);
+    }
+
+    @Test
+    public void aServerErrorOnTextKeepsTheFormat() throws Exception
+    {
+        transport.setWireFormat(HttpUploadTransport.FORMAT_TEXT);
+        answer(503, "busy");
+        assertEquals(0, transport.send(batch(5)));
+        assertEquals(HttpUploadTransport.FORMAT_TEXT, transport.getWireFormat());
+        assertEquals(0, fallbacks.get());
+    }
+
+    @Test
+    public void aPartialAnswerAcceptsThatManyRows() throws Exception
+    {
+        answer(200, "OK 3");
+        assertEquals(3, transport.send(batch(5)));
+        assertEquals(HttpUploadTransport.FORMAT_COLUMNAR, transport.getWireFormat());
+    }
+}
@@ -0,0 +1,71 @@
+package org.svvsd.droneteam.canary;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+// LinkProber against FakeSerialLink, an XBee at a known baud rate behind a FIFO that loses what the reader does not keep up with
+public class LinkProberTest
+{
+    private static final int DEVICE_BAUD_RATE = 115200; // about 170 frames a second of SyntheticTrace
+    private static final long PROBE_MS = 200;
+    private static final double MAX_LOSS_RATE = 0.05;
+
+    private static final byte[] STREAM = new SyntheticTrace(1).transparent(500);
+
+    @Test
+    public void findsTheDeviceBaudRateWithNoLoss() throws Exception
+    {
+        FakeSerialLink link = new FakeSerialLink("fake", DEVICE_BAUD_RATE, 4096, STREAM); // big enough for any read setting to keep up
+        LinkProber prober = new LinkProber(false, false, PROBE_MS, MAX_LOSS_RATE);
+        LinkProber.Result best = prober.tune(link, LinkConfig.DEFAULT);
+
+        assertNotNull(best);
+        assertEquals(DEVICE_BAUD_RATE, best.config.baudRate);
+        assertEquals(0.0, best.lossRate(), 0.0);
+        assertTrue("frames/s " + best.framesPerSecond(), best.framesPerSecond() > 100);
+        assertEquals(0, link.getBytesLost());
+        assertTrue(!link.isOpen());
+
+        int probes = LinkConfig.BAUD_RATES.length + LinkConfig.READ_BUFFER_SIZES.length * LinkConfig.READ_TIMEOUTS_MS.length - 1;
+        assertEquals(probes, prober.getResults().size());
+        for (LinkProber.Result result : prober.getResults())
+        {
+            if (result.config.baudRate != DEVICE_BAUD_RATE) // garbled, nothing decodes
+            {
+                assertEquals(result.toString(), 0, result.goodFrames);
+            }
+        }
+    }
+
+    @Test
+    public void picksAReadSettingThatKeepsUpWithASmallFifo() throws Exception
+    {
+        // 128 bytes is about 11 ms of the line, so waiting 20 ms between reads overflows the FIFO and loses frames
+        FakeSerialLink link = new FakeSerialLink("fake", DEVICE_BAUD_RATE, 128, STREAM);
+        LinkProber prober = new LinkProber(false, false, PROBE_MS, MAX_LOSS_RATE);
+        LinkProber.Result best = prober.tune(link, LinkConfig.DEFAULT.withBaudRate(DEVICE_BAUD_RATE));
+
+        assertNotNull(best);
+        assertEquals(DEVICE_BAUD_RATE, best.config.baudRate);
+        assertTrue("chose " + best, best.config.readTimeoutMs < 20);
+        assertTrue("chose " + best, best.lossRate() <= MAX_LOSS_RATE);
+
+        LinkProber.Result slowest = prober.probe(link, best.config.withRead(best.config.readBufferSize, 20));
+        assertTrue("20 ms wait " + slowest, slowest.lossRate() > MAX_LOSS_RATE);
+        assertTrue(link.getBytesLost() > 0);
+    }
+
+    @Test
+    public void givesUpWhenNoBaudRateWorks() throws Exception
+    {
+        FakeSerialLink link = new FakeSerialLink("fake", 4800, 4096, STREAM); // not one LinkProber tries
+        LinkProber prober = new LinkProber(false, false, 50, MAX_LOSS_RATE);
+
+        assertNull(prober.tune(link, LinkConfig.DEFAULT));
+        assertEquals(LinkConfig.BAUD_RATES.length, prober.getResults().size());
+    }
+}
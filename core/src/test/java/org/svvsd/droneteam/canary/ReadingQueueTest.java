@@ -0,0 +1,235 @@
+package org.svvsd.droneteam.canary;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+// ReadingQueue with several producers and consumers, and with each overflow policy on a small ring
+public class ReadingQueueTest
+{
+    private static final long WAIT_MS = 5000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static Reading reading(int number)
+    {
+        Reading reading = new Reading();
+        reading.flags = Reading.LIDAR;
+        reading.lidar = number;
+        reading.timestamp = 1000L + number;
+        StringBuilder sb = new StringBuilder("|3,").append(number).append('|');
+        for (int i = 0; i < number % 97; i++) // so spilled readings are all sizes, and some end up split between two reads of the spill file
+        {
+            sb.append('x');
+        }
+        byte[] raw = sb.toString().getBytes();
+        reading.setRaw(raw, 0, raw.length);
+        return reading;
+    }
+
+    private static void assertReading(int number, Reading reading)
+    {
+        Reading expected = reading(number);
+        assertEquals(number, reading.lidar);
+        assertEquals(expected.timestamp, reading.timestamp);
+        assertEquals(new String(expected.raw, 0, expected.rawLength), new String(reading.raw, 0, reading.rawLength));
+    }
+
+    @Test
+    public void manyProducersAndConsumersLoseNothing() throws Exception
+    {
+        final ReadingQueue queue = new ReadingQueue(64, ReadingQueue.BLOCK, null);
+        final int producers = 4;
+        final int consumers = 3;
+        final int perProducer = 50000;
+        final int[][] seen = new int[consumers][producers * perProducer]; // how often each consumer got each reading
+        final AtomicBoolean bFailed = new AtomicBoolean(false);
+        Thread[] threads = new Thread[producers + consumers];
+        for (int p = 0; p < producers; p++)
+        {
+            final int producer = p;
+            threads[p] = new Thread(new Runnable()
+            {
+                public void run()
+                {
+                    Reading reading = new Reading();
+                    reading.flags = Reading.LIDAR;
+                    for (int i = 0; i < perProducer; i++)
+                    {
+                        reading.lidar = producer * perProducer + i;
+                        reading.timestamp = i;
+                        queue.offer(reading);
+                    }
+                }
+            });
+        }
+        for (int c = 0; c < consumers; c++)
+        {
+            final int consumer = c;
+            threads[producers + c] = new Thread(new Runnable()
+            {
+                public void run()
+                {
+                    Reading reading = new Reading();
+                    long[] last = new long[producers]; // each producer's readings come out in the order it offered them
+                    Arrays.fill(last, -1);
+                    long deadline = System.currentTimeMillis() + WAIT_MS;
+                    while (queue.getRemoved() < producers * perProducer && System.currentTimeMillis() < deadline)
+                    {
+                        if (!queue.poll(reading))
+                        {
+                            continue;
+                        }
+                        int producer = reading.lidar / perProducer;
+                        if (reading.timestamp <= last[producer])
+                        {
+                            bFailed.set(true);
+                        }
+                        last[producer] = reading.timestamp;
+                        seen[consumer][reading.lidar]++;
+                    }
+                }
+            });
+        }
+        for (Thread thread : threads)
+        {
+            thread.start();
+        }
+        for (Thread thread : threads)
+        {
+            thread.join(WAIT_MS * 2);
+        }
+        assertFalse("a producer's readings came out of order", bFailed.get());
+        for (int number = 0; number < producers * perProducer; number++)
+        {
+            int times = 0;
+            for (int c = 0; c < consumers; c++)
+            {
+                times += seen[c][number];
+            }
+            assertEquals("reading " + number, 1, times);
+        }
+        assertEquals(0, queue.size());
+        assertEquals(0, queue.getDropped());
+        assertTrue(queue.getHighWater() <= 64);
+    }
+
+    @Test
+    public void blockWaitsForRoom() throws Exception
+    {
+        final ReadingQueue queue = new ReadingQueue(4, ReadingQueue.BLOCK, null);
+        for (int i = 0; i < 4; i++)
+        {
+            assertTrue(queue.offer(reading(i)));
+        }
+        final AtomicBoolean bOffered = new AtomicBoolean(false);
+        Thread producer = new Thread(new Runnable()
+        {
+            public void run()
+            {
+                queue.offer(reading(4));
+                bOffered.set(true);
+            }
+        });
+        producer.start();
+        Thread.sleep(100);
+        assertFalse("offer() returned with the ring full", bOffered.get());
+
+        Reading polled = new Reading();
+        assertTrue(queue.poll(polled));
+        assertReading(0, polled);
+        producer.join(WAIT_MS);
+        assertTrue(bOffered.get());
+        for (int i = 1; i <= 4; i++)
+        {
+            assertTrue(queue.poll(polled));
+            assertReading(i, polled);
+        }
+        assertFalse(queue.poll(polled));
+        assertEquals(0, queue.getDropped());
+    }
+
+    @Test
+    public void dropOldestKeepsTheNewest()
+    {
+        ReadingQueue queue = new ReadingQueue(4, ReadingQueue.DROP_OLDEST, null);
+        for (int i = 0; i < 10; i++)
+        {
+            assertTrue(queue.offer(reading(i)));
+        }
+        assertEquals(6, queue.getDropped());
+        assertEquals(4, queue.size());
+        Reading polled = new Reading();
+        for (int i = 6; i < 10; i++)
+        {
+            assertTrue(queue.poll(polled));
+            assertReading(i, polled);
+        }
+        assertFalse(queue.poll(polled));
+        assertEquals(10, queue.getRemoved());
+    }
+
+    @Test
+    public void spillKeepsEverythingInOrder()
+    {
+        File spillFile = new File(folder.getRoot(), "spill");
+        ReadingQueue queue = new ReadingQueue(8, ReadingQueue.SPILL, spillFile);
+        int count = 20000; // about 2MB spilled, many times the spill buffers
+        for (int i = 0; i < count; i++)
+        {
+            assertTrue(queue.offer(reading(i)));
+        }
+        assertEquals(count - 8, queue.getSpilled());
+        assertEquals(count, queue.size());
+
+        Reading polled = new Reading();
+        for (int i = 0; i < count; i++)
+        {
+            assertTrue("reading " + i, queue.poll(polled));
+            assertReading(i, polled);
+        }
+        assertFalse(queue.poll(polled));
+        assertEquals(0, queue.size());
+        assertEquals(0, queue.getSpillBacklog());
+        assertEquals(0, queue.getDropped());
+        assertEquals(0, spillFile.length()); // started over once read back
+    }
+
+    @Test
+    public void spillKeepsOrderWhileBeingDrained()
+    {
+        ReadingQueue queue = new ReadingQueue(8, ReadingQueue.SPILL, new File(folder.getRoot(), "spill"));
+        Reading polled = new Reading();
+        int offered = 0;
+        int next = 0;
+        for (int round = 0; round < 200; round++) // offers outrun polls for a while, then polls catch up and the file starts over
+        {
+            int offers = round < 150 ? 40 : 5;
+            for (int i = 0; i < offers; i++)
+            {
+                assertTrue(queue.offer(reading(offered++)));
+            }
+            int polls = round < 150 ? 25 : 200;
+            for (int i = 0; i < polls && queue.poll(polled); i++)
+            {
+                assertReading(next++, polled);
+            }
+        }
+        while (queue.poll(polled))
+        {
+            assertReading(next++, polled);
+        }
+        assertEquals(offered, next);
+        assertTrue(queue.getSpilled() > 0);
+        assertEquals(0, queue.getDropped());
+    }
+}
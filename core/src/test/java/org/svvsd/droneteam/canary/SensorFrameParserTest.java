@@ -0,0 +1,264 @@
+package org.svvsd.droneteam.canary;
+
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+// SensorFrameParser against the regex / split parsing Receiver.processData() used before it, on representative, truncated and garbage frames
+public class SensorFrameParserTest
+{
+    private static final Charset LATIN1 = Charset.forName("ISO-8859-1"); // one char per byte, both ways
+
+    private final SensorFrameParser parser = new SensorFrameParser();
+
+    // legacyParse(frame, reading) - the old parsing, throwing on a frame it could not parse. Two changes, the places the two are meant to differ:
+    //   every group is looked at - the old code only looked at the first four items of the split, and with the | every frame starts with,
+    //     the first item is empty, so the GPS group was never read
+    //   a group of nothing but commas is skipped like any other empty group - split() made no fields at all of it, and the old code threw
+    private static void legacyParse(byte[] frame, Reading reading)
+    {
+        String sData = new String(frame, LATIN1);
+        reading.flags = 0;
+        sData = sData.replaceAll("[^0-9|.,]", "");
+        String[] dataSplit = sData.split("[|]+");
+        for (int i = 0; i < dataSplit.length; i++)
+        {
+            String[] sensorSplit = dataSplit[i].split(",");
+            if (sensorSplit.length == 0)
+            {
+                continue;
+            }
+            if (sensorSplit[0].contentEquals("1"))
+            {
+                reading.temperature = Float.parseFloat(sensorSplit[1]);
+                reading.pressure = Integer.parseInt(sensorSplit[2]);
+                reading.humidity = Integer.parseInt(sensorSplit[3]);
+                reading.flags |= Reading.ATMOSPHERE;
+            }
+            else if (sensorSplit[0].contentEquals("2"))
+            {
+                reading.co = Integer.parseInt(sensorSplit[1]);
+                reading.h2 = Integer.parseInt(sensorSplit[2]);
+                reading.nh4 = Integer.parseInt(sensorSplit[3]);
+                reading.ch4 = Integer.parseInt(sensorSplit[4]);
+                reading.o3 = Integer.parseInt(sensorSplit[5]);
+                reading.flags |= Reading.GAS;
+            }
+            else if (sensorSplit[0].contentEquals("3"))
+            {
+                reading.lidar = Integer.parseInt(sensorSplit[1]);
+                reading.flags |= Reading.LIDAR;
+            }
+            else if (sensorSplit[0].contentEquals("4"))
+            {
+                if (sensorSplit.length > 1)
+                {
+                    reading.latitude = Float.parseFloat(sensorSplit[1]);
+                    reading.longitude = Float.parseFloat(sensorSplit[2]);
+                    reading.altitude = Float.parseFloat(sensorSplit[3]);
+                    reading.gpsFix = true;
+                }
+                else
+                {
+                    reading.latitude = -1;
+                    reading.longitude = -1;
+                    reading.altitude = -1;
+                    reading.gpsFix = false;
+                }
+                reading.flags |= Reading.GPS;
+            }
+        }
+    }
+
+    // assertSameAsLegacy(frame) - the parser takes the frame exactly when the old parsing did, with the same values. Returns whether it took it
+    private boolean assertSameAsLegacy(byte[] frame)
+    {
+        Reading expected = new Reading();
+        boolean bLegacyOk;
+        try
+        {
+            legacyParse(frame, expected);
+            bLegacyOk = true;
+        }
+        catch (RuntimeException e) // NumberFormatException, or ArrayIndexOutOfBoundsException for a group that is too short
+        {
+            bLegacyOk = false;
+        }
+        Reading actual = new Reading();
+        String sFrame = new String(frame, LATIN1);
+        assertEquals(sFrame, bLegacyOk, parser.parse(frame, 0, frame.length, actual));
+        if (!bLegacyOk)
+        {
+            return false;
+        }
+        assertEquals(sFrame, expected.flags, actual.flags);
+        if (expected.has(Reading.ATMOSPHERE))
+        {
+            assertEquals(sFrame, Float.floatToIntBits(expected.temperature), Float.floatToIntBits(actual.temperature));
+            assertEquals(sFrame, expected.pressure, actual.pressure);
+            assertEquals(sFrame, expected.humidity, actual.humidity);
+        }
+        if (expected.has(Reading.GAS))
+        {
+            assertEquals(sFrame, expected.co, actual.co);
+            assertEquals(sFrame, expected.h2, actual.h2);
+            assertEquals(sFrame, expected.nh4, actual.nh4);
+            assertEquals(sFrame, expected.ch4, actual.ch4);
+            assertEquals(sFrame, expected.o3, actual.o3);
+        }
+        if (expected.has(Reading.LIDAR))
+        {
+            assertEquals(sFrame, expected.lidar, actual.lidar);
+        }
+        if (expected.has(Reading.GPS))
+        {
+            assertEquals(sFrame, expected.gpsFix, actual.gpsFix);
+            assertEquals(sFrame, Float.floatToIntBits(expected.latitude), Float.floatToIntBits(actual.latitude));
+            assertEquals(sFrame, Float.floatToIntBits(expected.longitude), Float.floatToIntBits(actual.longitude));
+            assertEquals(sFrame, Float.floatToIntBits(expected.altitude), Float.floatToIntBits(actual.altitude));
+        }
+        return true;
+    }
+
+    private boolean assertSameAsLegacy(String sFrame)
+    {
+        return assertSameAsLegacy(sFrame.getBytes(LATIN1));
+    }
+
+    // frame(random) - a frame like the drone sends, all four groups, with or without a GPS lock
+    private static String frame(Random random)
+    {
+        StringBuilder sb = new StringBuilder();
+        sb.append("|1,").append(random.nextInt(40)).append('.').append(random.nextInt(100))
+                .append(',').append(80000 + random.nextInt(5000)).append(',').append(random.nextInt(100));
+        sb.append("|2");
+        for (int i = 0; i < 5; i++)
+        {
+            sb.append(',').append(random.nextInt(1024));
+        }
+        sb.append("|3,").append(random.nextInt(12000));
+        if (random.nextInt(4) == 0)
+        {
+            sb.append("|4,|");
+        }
+        else
+        {
+            sb.append("|4,40.").append(random.nextInt(10000000)).append(",-105.").append(random.nextInt(10000000))
+                    .append(',').append(1500 + random.nextInt(400)).append('.').append(random.nextInt(10)).append('|');
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void parsesAllFourGroups()
+    {
+        byte[] frame = "|1,23.5,84012,45|2,12,3,400,5,61|3,1234|4,40.0150,-105.2705,1655.3|".getBytes(LATIN1);
+        assertTrue(assertSameAsLegacy(frame));
+        Reading reading = new Reading();
+        assertTrue(parser.parse(frame, 0, frame.length, reading));
+        assertEquals(Reading.ATMOSPHERE | Reading.GAS | Reading.LIDAR | Reading.GPS, reading.flags);
+        assertEquals(23.5f, reading.temperature, 0);
+        assertEquals(61, reading.o3);
+        assertEquals(1234, reading.lidar);
+        assertEquals(105.2705f, reading.longitude, 0); // the minus sign is dropped, like it always was
+        assertTrue(reading.gpsFix);
+    }
+
+    @Test
+    public void aGpsGroupWithoutValuesIsNoLock()
+    {
+        assertTrue(assertSameAsLegacy("|1,23.5,84012,45|2,12,3,400,5,61|3,1234|4,|"));
+        assertTrue(assertSameAsLegacy("|3,1234|4|"));
+        assertTrue(assertSameAsLegacy("|4,,,|3,1"));
+        Reading reading = new Reading();
+        byte[] frame = "|3,1234|4,|".getBytes(LATIN1);
+        assertTrue(parser.parse(frame, 0, frame.length, reading));
+        assertFalse(reading.gpsFix);
+        assertEquals(-1f, reading.latitude, 0);
+    }
+
+    @Test
+    public void agreesWithTheOldParsingOnDroneFrames()
+    {
+        Random random = new Random(11);
+        for (int i = 0; i < 2000; i++)
+        {
+            assertTrue(assertSameAsLegacy(frame(random)));
+        }
+    }
+
+    @Test
+    public void agreesWithTheOldParsingOnOddButValidFrames()
+    {
+        assertTrue(assertSameAsLegacy(""));
+        assertTrue(assertSameAsLegacy("3,77")); // no leading |
+        assertTrue(assertSameAsLegacy("|||3,77|||")); // runs of |
+        assertTrue(assertSameAsLegacy("|3,77,|")); // a trailing empty field
+        assertTrue(assertSameAsLegacy("|3,7|3,8|")); // the later group wins
+        assertTrue(assertSameAsLegacy("|5,1,2|9|03,4|3,5")); // unknown sensor IDs are skipped
+        assertTrue(assertSameAsLegacy("| 3 , 7 7 \r\n|1,-2.5,-3,4")); // noise and minus signs are dropped
+        assertTrue(assertSameAsLegacy("|1,.5,1,2|4,1.,2.,.3")); // decimals without digits on one side
+        assertTrue(assertSameAsLegacy("|1,23,1,2")); // a whole number temperature
+        assertTrue(assertSameAsLegacy("|4,40.123456789012345678901234567890,1,2")); // too long for the fast path
+        assertTrue(assertSameAsLegacy("|3,2147483647|2,0,0,0,0,0"));
+    }
+
+    @Test
+    public void rejectsWhatTheOldParsingCouldNotParse()
+    {
+        assertFalse(assertSameAsLegacy("|3,|")); // missing value
+        assertFalse(assertSameAsLegacy("|3")); // missing value
+        assertFalse(assertSameAsLegacy("|2,1,2,3,4")); // one short
+        assertFalse(assertSameAsLegacy("|3,1.5")); // not a whole number
+        assertFalse(assertSameAsLegacy("|3,2147483648")); // too big for an int
+        assertFalse(assertSameAsLegacy("|3,99999999999999999999999"));
+        assertFalse(assertSameAsLegacy("|1,1.2.3,1,2")); // two dots
+        assertFalse(assertSameAsLegacy("|1,.,1,2")); // no digits
+        assertFalse(assertSameAsLegacy("|4,1,,3")); // an empty value in the middle
+    }
+
+    @Test
+    public void agreesWithTheOldParsingOnTruncatedFrames()
+    {
+        Random random = new Random(12);
+        int taken = 0;
+        int rejected = 0;
+        for (int i = 0; i < 500; i++)
+        {
+            String sFrame = frame(random);
+            for (int length = 0; length <= sFrame.length(); length++)
+            {
+                if (assertSameAsLegacy(sFrame.substring(0, length)))
+                {
+                    taken++;
+                }
+                else
+                {
+                    rejected++;
+                }
+            }
+        }
+        assertTrue(taken > 0 && rejected > 0);
+    }
+
+    @Test
+    public void agreesWithTheOldParsingOnGarbage()
+    {
+        Random random = new Random(13);
+        byte[] alphabet = "0123456789||,,,..1234 -a\r\n\u0000".getBytes(LATIN1);
+        for (int i = 0; i < 20000; i++)
+        {
+            byte[] frame = new byte[random.nextInt(60)];
+            for (int j = 0; j < frame.length; j++)
+            {
+                frame[j] = random.nextInt(8) == 0 ? (byte) random.nextInt(256) : alphabet[random.nextInt(alphabet.length)];
+            }
+            assertSameAsLegacy(frame);
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package org.svvsd.droneteam.canary;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.concurrent.Semaphore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+// StorageWriter with sinks that fail, block and count, to check what flush() promises, also after a crash
+public class StorageWriterTest
+{
+    private static final long WAIT_MS = 5000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    // CountingSink - commits by counting, or fails every commit, and can be held shut so commits wait
+    private static class CountingSink implements StorageWriter.CommitSink
+    {
+        volatile boolean bFailing = false;
+        volatile boolean bHeld = false;
+        final Semaphore held = new Semaphore(0); // released to let a held commit through
+        volatile long rows = 0; // ingest thread only writes it
+        volatile long lastTimestamp = 0;
+
+        public int commit(Reading[] batch, long[] tags, int size, long segment, int offset)
+        {
+            if (bFailing)
+            {
+                return -1;
+            }
+            if (bHeld)
+            {
+                held.acquireUninterruptibly();
+            }
+            rows += size;
+            if (size > 0)
+            {
+                lastTimestamp = batch[size - 1].timestamp;
+            }
+            return 0;
+        }
+
+        public boolean hasPending()
+        {
+            return false;
+        }
+
+        boolean awaitRows(long count) throws InterruptedException
+        {
+            long deadline = System.currentTimeMillis() + WAIT_MS;
+            while (rows < count && System.currentTimeMillis() < deadline)
+            {
+                Thread.sleep(5);
+            }
+            return rows >= count;
+        }
+    }
+
+    private static void record(StorageWriter writer, int count, long firstTimestamp)
+    {
+        Reading reading = new Reading();
+        for (int i = 0; i < count; i++)
+        {
+            reading.flags = Reading.LIDAR;
+            reading.lidar = i;
+            reading.timestamp = firstTimestamp + i;
+            writer.recordData(reading);
+        }
+    }
+
+    @Test
+    public void flushWaitsForTheRowsQueued() throws Exception
+    {
+        CountingSink sink = new CountingSink();
+        StorageWriter writer = new StorageWriter(folder.getRoot(), "Test", sink);
+        writer.start(0, 0);
+        record(writer, 500, 1000);
+
+        assertTrue(writer.flush(System.currentTimeMillis() + WAIT_MS));
+        assertEquals(500, sink.rows);
+        assertEquals(1499, sink.lastTimestamp);
+        writer.close();
+    }
+
+    @Test
+    public void flushWaitsForNewRowsAfterReplayingACrash() throws Exception
+    {
+        File directory = folder.getRoot();
+        CountingSink crashed = new CountingSink();
+        crashed.bFailing = true; // nothing gets committed before the crash
+        StorageWriter writer = new StorageWriter(directory, "Test", crashed);
+        writer.start(0, 0);
+        record(writer, 300, 1000);
+        writer.awaitAppended(System.currentTimeMillis() + WAIT_MS);
+        writer.close(); // the crash, with 300 rows logged but not committed
+
+        CountingSink sink = new CountingSink();
+        writer = new StorageWriter(directory, "Test", sink);
+        writer.start(0, 0); // no commit was saved, so from the start of the log
+        assertTrue(sink.awaitRows(300));
+        assertEquals(300, sink.rows);
+
+        sink.bHeld = true; // new rows can not be committed until we say so
+        record(writer, 100, 5000);
+        assertFalse("flush() returned before the new rows were committed", writer.flush(System.currentTimeMillis() + 300));
+        assertEquals(300, sink.rows);
+
+        sink.bHeld = false;
+        sink.held.release(1000);
+        assertTrue(writer.flush(System.currentTimeMillis() + WAIT_MS));
+        assertEquals(400, sink.rows);
+        assertEquals(5099, sink.lastTimestamp);
+        writer.close();
+    }
+
+    @Test
+    public void failedCommitsAreRetried() throws Exception
+    {
+        CountingSink sink = new CountingSink();
+        sink.bFailing = true;
+        StorageWriter writer = new StorageWriter(folder.getRoot(), "Test", sink);
+        writer.start(0, 0);
+        record(writer, 50, 1000);
+        assertFalse(writer.flush(System.currentTimeMillis() + 300));
+
+        sink.bFailing = false;
+        assertTrue(writer.flush(System.currentTimeMillis() + WAIT_MS));
+        assertEquals(50, sink.rows); // each row exactly once
+        writer.close();
+    }
+}
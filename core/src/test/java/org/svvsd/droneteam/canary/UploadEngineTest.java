@@ -0,0 +1,283 @@
+package org.svvsd.droneteam.canary;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+// UploadEngine against an in memory store and a fake server that answers late, in part, or not at all, to check every row is marked once and in order
+public class UploadEngineTest
+{
+    private static final long WAIT_MS = 5000;
+    private static final int BATCH_SIZE = 10;
+
+    private UploadEngine engine;
+
+    @After
+    public void tearDown()
+    {
+        if (engine != null)
+        {
+            engine.stop();
+        }
+    }
+
+    // FakeStore - rows with dataIds 1 to rows, remembering the order they were marked uploaded in
+    private static class FakeStore implements UploadStore
+    {
+        final boolean[] uploaded;
+        final List<Long> marked = new ArrayList<Long>(); // guarded by this
+        int markedTwice = 0; // guarded by this
+
+        FakeStore(int rows)
+        {
+            uploaded = new boolean[rows + 1];
+        }
+
+        public synchronized UploadBatch nextBatch(long afterDataId, int maxRows)
+        {
+            UploadBatch batch = new UploadBatch(new String[] {"lidar"}, maxRows);
+            for (long id = afterDataId + 1; id < uploaded.length && batch.size < maxRows; id++)
+            {
+                if (!uploaded[(int) id])
+                {
+                    batch.addRow(id, new String[] {Long.toString(id * 10)});
+                }
+            }
+            return batch;
+        }
+
+        public synchronized void markUploaded(UploadBatch batch)
+        {
+            for (int r = 0; r < batch.size; r++)
+            {
+                int id = (int) batch.dataIds[r];
+                markedTwice += uploaded[id] ? 1 : 0;
+                uploaded[id] = true;
+                marked.add((long) id);
+            }
+        }
+
+        public String getStream()
+        {
+            return "test";
+        }
+
+        synchronized int markedCount()
+        {
+            return marked.size();
+        }
+
+        boolean awaitMarked(int count) throws InterruptedException
+        {
+            long deadline = System.currentTimeMillis() + WAIT_MS;
+            while (markedCount() < count && System.currentTimeMillis() < deadline)
+            {
+                Thread.sleep(5);
+            }
+            return markedCount() >= count;
+        }
+
+        // assertMarkedInOrder(rows) - rows 1 to rows were each marked once, in order
+        synchronized void assertMarkedInOrder(int rows)
+        {
+            assertEquals("marked twice", 0, markedTwice);
+            assertEquals(rows, marked.size());
+            for (int i = 0; i < rows; i++)
+            {
+                assertEquals(i + 1, (long) marked.get(i));
+            }
+        }
+    }
+
+    // FakeServer - stores what it accepts, and can hold requests, accept only part of a batch, lose an answer, and answer acknowledged()
+    private static class FakeServer implements UploadTransport
+    {
+        final int[] stored;
+        volatile int maxAccepted = Integer.MAX_VALUE;
+        volatile boolean bHolding = false; // requests wait for release
+        volatile long holdFrom = 0; // with bHolding, only the batch starting at this dataId waits (0 for every batch)
+        final Semaphore released = new Semaphore(0);
+        volatile long loseAnswerFrom = 0; // the batch starting at this dataId is stored, but its answer is lost
+        volatile boolean bAcks = false; // whether acknowledged() answers
+        int sends = 0; // guarded by this
+        long firstSent = Long.MAX_VALUE; // lowest dataId ever sent, guarded by this
+        volatile boolean bDaemonSenders = true;
+
+        FakeServer(int rows)
+        {
+            stored = new int[rows + 1];
+        }
+
+        public int send(UploadBatch batch) throws IOException
+        {
+            long first = batch.dataIds[0];
+            synchronized (this)
+            {
+                sends++;
+                firstSent = Math.min(firstSent, first);
+            }
+            bDaemonSenders &= Thread.currentThread().isDaemon();
+            if (bHolding && (holdFrom == 0 || holdFrom == first))
+            {
+                released.acquireUninterruptibly(); // like a request on the wire, stopping does not cut it short
+            }
+            int accepted = Math.min(batch.size, maxAccepted);
+            synchronized (this)
+            {
+                for (int r = 0; r < accepted; r++)
+                {
+                    stored[(int) batch.dataIds[r]]++;
+                }
+            }
+            if (first == loseAnswerFrom)
+            {
+                loseAnswerFrom = 0;
+                throw new IOException("answer lost");
+            }
+            return accepted;
+        }
+
+        public synchronized long acknowledged(String sStream)
+        {
+            if (!bAcks)
+            {
+                return -1;
+            }
+            int through = 0;
+            while (through + 1 < stored.length && stored[through + 1] > 0)
+            {
+                through++;
+            }
+            return through;
+        }
+
+        synchronized int sends()
+        {
+            return sends;
+        }
+
+        boolean awaitSends(int count) throws InterruptedException
+        {
+            long deadline = System.currentTimeMillis() + WAIT_MS;
+            while (sends() < count && System.currentTimeMillis() < deadline)
+            {
+                Thread.sleep(5);
+            }
+            return sends() >= count;
+        }
+
+        // assertStoredOnce(rows) - the server got each of rows 1 to rows exactly once
+        synchronized void assertStoredOnce(int rows)
+        {
+            for (int id = 1; id <= rows; id++)
+            {
+                assertEquals("row " + id, 1, stored[id]);
+            }
+        }
+    }
+
+    private UploadEngine start(FakeStore store, FakeServer server, int maxInFlight)
+    {
+        engine = new UploadEngine(store, server, new UploadBatchSizer(BATCH_SIZE, BATCH_SIZE, 2000));
+        engine.getScheduler().setBackoff(1, 5);
+        engine.setMaxInFlight(maxInFlight);
+        engine.start();
+        return engine;
+    }
+
+    @Test
+    public void marksInFetchOrderWhenAnswersComeOutOfOrder() throws Exception
+    {
+        FakeStore store = new FakeStore(40);
+        FakeServer server = new FakeServer(40);
+        server.bHolding = true;
+        server.holdFrom = 1; // the first batch is answered last
+        start(store, server, 4);
+
+        assertTrue(server.awaitSends(4));
+        Thread.sleep(100); // the later three are answered by now
+        assertEquals("marked ahead of the first batch", 0, store.markedCount());
+
+        server.released.release();
+        assertTrue(store.awaitMarked(40));
+        store.assertMarkedInOrder(40);
+        server.assertStoredOnce(40);
+        assertTrue("sender threads are daemons", server.bDaemonSenders);
+    }
+
+    @Test
+    public void resendsOnlyWhatAPartialAnswerLeftOut() throws Exception
+    {
+        FakeStore store = new FakeStore(25);
+        FakeServer server = new FakeServer(25);
+        server.maxAccepted = 3;
+        start(store, server, 2);
+
+        assertTrue(store.awaitMarked(25));
+        store.assertMarkedInOrder(25);
+        server.assertStoredOnce(25);
+    }
+
+    @Test
+    public void aLostAnswerIsNotSentAgainWhenTheServerHasTheRows() throws Exception
+    {
+        FakeStore store = new FakeStore(20);
+        FakeServer server = new FakeServer(20);
+        server.bAcks = true;
+        server.loseAnswerFrom = 1;
+        start(store, server, 1);
+
+        assertTrue(store.awaitMarked(20));
+        store.assertMarkedInOrder(20);
+        server.assertStoredOnce(20);
+        assertEquals(2, server.sends()); // each batch once
+    }
+
+    @Test
+    public void startingMarksWhatTheServerAlreadyHas() throws Exception
+    {
+        FakeStore store = new FakeStore(30);
+        FakeServer server = new FakeServer(30);
+        for (int id = 1; id <= 15; id++) // uploaded before a crash, but never marked
+        {
+            server.stored[id] = 1;
+        }
+        server.bAcks = true;
+        start(store, server, 1);
+
+        assertTrue(store.awaitMarked(30));
+        store.assertMarkedInOrder(30);
+        server.assertStoredOnce(30);
+        synchronized (server)
+        {
+            assertEquals(16, server.firstSent);
+        }
+    }
+
+    @Test
+    public void aStoppedRunMarksNothingOnceRestarted() throws Exception
+    {
+        FakeStore store = new FakeStore(30);
+        FakeServer server = new FakeServer(30);
+        server.bHolding = true;
+        start(store, server, 4);
+        assertTrue(server.awaitSends(3)); // all 30 rows on the wire
+
+        engine.stop();
+        engine.start();
+        assertTrue(server.awaitSends(4)); // the new run sends the first batch again, the old one still has it in flight
+
+        server.bHolding = false;
+        server.released.release(100);
+        assertTrue(store.awaitMarked(30));
+        Thread.sleep(100); // anything the old run might still mark
+        store.assertMarkedInOrder(30);
+    }
+}
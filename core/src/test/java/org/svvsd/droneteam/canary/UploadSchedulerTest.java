@@ -0,0 +1,254 @@
+package org.svvsd.droneteam.canary;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+// UploadScheduler against a fake clock and network, so backoff and the policies can be checked without waiting
+public class UploadSchedulerTest
+{
+    private static final long MIN_BACKOFF_MS = 1000;
+    private static final long MAX_BACKOFF_MS = 16000;
+
+    // FakeClock - only moves when the test says so
+    private static class FakeClock implements UploadScheduler.Clock
+    {
+        long now = 1000000;
+
+        public long now()
+        {
+            return now;
+        }
+    }
+
+    // FakeNetwork - connected and unmetered until the test changes it
+    private static class FakeNetwork implements UploadScheduler.NetworkState
+    {
+        boolean bConnected = true;
+        boolean bMetered = false;
+
+        public boolean isConnected()
+        {
+            return bConnected;
+        }
+
+        public boolean isMetered()
+        {
+            return bMetered;
+        }
+    }
+
+    // FixedRandom - the jitter always lands at the same fraction of the way from half the backoff to all of it
+    private static class FixedRandom extends Random
+    {
+        double value;
+
+        FixedRandom(double value)
+        {
+            this.value = value;
+        }
+
+        @Override
+        public double nextDouble()
+        {
+            return value;
+        }
+    }
+
+    private FakeClock clock;
+    private FakeNetwork network;
+    private FixedRandom random;
+    private UploadScheduler scheduler;
+    private int wakeUps;
+
+    @Before
+    public void setUp()
+    {
+        clock = new FakeClock();
+        network = new FakeNetwork();
+        random = new FixedRandom(0.999999); // all of the backoff
+        scheduler = new UploadScheduler(clock, network, random);
+        scheduler.setBackoff(MIN_BACKOFF_MS, MAX_BACKOFF_MS);
+        wakeUps = 0;
+        scheduler.setWakeUp(new Runnable()
+        {
+            public void run()
+            {
+                wakeUps++;
+            }
+        });
+    }
+
+    // failAndSkip() - fails a request, then moves the clock past the backoff and returns how long it was
+    private long failAndSkip()
+    {
+        scheduler.onFailure();
+        long delay = scheduler.getRetryDelay();
+        clock.now += delay;
+        return delay;
+    }
+
+    @Test
+    public void sendsRightAwayWithNoFailures()
+    {
+        assertEquals(0, scheduler.getRetryDelay());
+        assertEquals(0, scheduler.getFetchDelay());
+    }
+
+    @Test
+    public void backoffDoublesUpToTheCap()
+    {
+        long[] expected = {1000, 2000, 4000, 8000, 16000, 16000, 16000};
+        for (int i = 0; i < expected.length; i++)
+        {
+            assertEquals("failure " + (i + 1), expected[i], failAndSkip());
+            assertEquals(i + 1, scheduler.getFailures());
+        }
+        assertEquals(0, scheduler.getRetryDelay());
+    }
+
+    @Test
+    public void capHoldsAfterManyFailures()
+    {
+        for (int i = 0; i < 100; i++) // far past where minBackoffMs << failures would overflow
+        {
+            long delay = failAndSkip();
+            assertTrue("failure " + (i + 1) + " waited " + delay, delay > 0 && delay <= MAX_BACKOFF_MS);
+        }
+        assertEquals(MAX_BACKOFF_MS, failAndSkip());
+    }
+
+    @Test
+    public void failuresDuringBackoffDoNotDoubleIt()
+    {
+        scheduler.onFailure();
+        scheduler.onFailure(); // the other requests in flight
+        scheduler.onFailure();
+        assertEquals(1, scheduler.getFailures());
+        assertEquals(MIN_BACKOFF_MS, scheduler.getRetryDelay());
+    }
+
+    @Test
+    public void successResetsBackoff()
+    {
+        failAndSkip();
+        failAndSkip();
+        scheduler.onSuccess();
+        assertEquals(0, scheduler.getFailures());
+        assertEquals(MIN_BACKOFF_MS, failAndSkip());
+    }
+
+    @Test
+    public void jitterStaysBetweenHalfAndAllOfTheBackoff()
+    {
+        random.value = 0;
+        assertEquals(MIN_BACKOFF_MS / 2, failAndSkip());
+        assertEquals(2 * MIN_BACKOFF_MS / 2, failAndSkip());
+
+        UploadScheduler seeded = new UploadScheduler(clock, network, new Random(42));
+        seeded.setBackoff(MIN_BACKOFF_MS, MAX_BACKOFF_MS);
+        long backoff = MIN_BACKOFF_MS;
+        for (int i = 0; i < 1000; i++)
+        {
+            seeded.onFailure();
+            long delay = seeded.getRetryDelay();
+            assertTrue("failure " + (i + 1) + " waited " + delay + " of " + backoff, delay >= backoff / 2 && delay <= backoff);
+            clock.now += delay;
+            backoff = Math.min(backoff * 2, MAX_BACKOFF_MS);
+        }
+    }
+
+    @Test
+    public void waitsForWakeUpWithNoNetwork()
+    {
+        network.bConnected = false;
+        assertEquals(UploadScheduler.WAIT_FOR_WAKE_UP, scheduler.getRetryDelay());
+        assertEquals(UploadScheduler.WAIT_FOR_WAKE_UP, scheduler.getFetchDelay());
+        network.bConnected = true;
+        assertEquals(0, scheduler.getFetchDelay());
+    }
+
+    @Test
+    public void unmeteredOnlyWaitsOnMeteredNetworks()
+    {
+        network.bMetered = true;
+        assertEquals(0, scheduler.getFetchDelay());
+
+        scheduler.setUnmeteredOnly(true);
+        assertEquals(1, wakeUps);
+        assertEquals(UploadScheduler.WAIT_FOR_WAKE_UP, scheduler.getFetchDelay());
+        assertEquals(UploadScheduler.WAIT_FOR_WAKE_UP, scheduler.getRetryDelay());
+
+        network.bMetered = false; // onto wifi
+        scheduler.onNetworkChanged();
+        assertEquals(2, wakeUps);
+        assertEquals(0, scheduler.getFetchDelay());
+    }
+
+    @Test
+    public void minBacklogWaitsForRowsOrTheDeadline()
+    {
+        final long[] rows = {0};
+        scheduler.setBacklog(new UploadScheduler.Backlog()
+        {
+            public long get()
+            {
+                return rows[0];
+            }
+        });
+        scheduler.setMinBacklog(100, 60000);
+        assertEquals(1, wakeUps);
+
+        rows[0] = 10;
+        assertEquals(60000, scheduler.getFetchDelay());
+        clock.now += 45000;
+        assertEquals(15000, scheduler.getFetchDelay());
+        rows[0] = 100;
+        assertEquals(0, scheduler.getFetchDelay());
+
+        rows[0] = 10;
+        clock.now += 15000; // the deadline, with a small backlog
+        assertEquals(0, scheduler.getFetchDelay());
+
+        scheduler.onSuccess(); // the deadline starts again from the last upload
+        assertEquals(60000, scheduler.getFetchDelay());
+
+        scheduler.setMinBacklog(0, 0);
+        assertEquals(0, scheduler.getFetchDelay());
+    }
+
+    @Test
+    public void backoffComesBeforeMinBacklog()
+    {
+        scheduler.setBacklog(new UploadScheduler.Backlog()
+        {
+            public long get()
+            {
+                return 1000;
+            }
+        });
+        scheduler.setMinBacklog(100, 60000);
+        scheduler.onFailure();
+        assertEquals(MIN_BACKOFF_MS, scheduler.getFetchDelay());
+    }
+
+    @Test
+    public void networkChangeForgetsBackoff()
+    {
+        failAndSkip();
+        failAndSkip();
+        scheduler.onFailure();
+        assertEquals(3, scheduler.getFailures());
+        assertTrue(scheduler.getRetryDelay() > 0);
+
+        scheduler.onNetworkChanged();
+        assertEquals(1, wakeUps);
+        assertEquals(0, scheduler.getFailures());
+        assertEquals(0, scheduler.getRetryDelay());
+        assertEquals(MIN_BACKOFF_MS, failAndSkip()); // starts doubling from the bottom again
+    }
+}